@@ -5,10 +5,12 @@
  */
 package edu.hope.superresolution.MMgaussianfitmods.datasubs;
 
+import edu.hope.superresolution.fitters.SpotView;
 import edu.valelab.gaussianfit.data.SpotData;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ImageProcessor;
+import java.awt.Rectangle;
 
 /**
  *  Class that calculates and stores a bounded Roi that will encompass a given spot
@@ -221,43 +223,33 @@ public class BoundedSpotData extends SpotData {
         
     }
     
+    //Copies are made from a SpotView of siProc, so siProc's Roi is left untouched and no lock is needed
     @Override
     public ImageProcessor getSpotProcessor(ImageProcessor siProc, int halfSize) {
       if (getImageProcessor() != null)
          return getImageProcessor();
-      synchronized(lockIP) {
-         Roi spotRoi = new Roi(getX() - halfSize, getY() - halfSize, 2 * halfSize, 2 * halfSize );
-         //siProc.setSliceWithoutUpdate(frame_);
-         siProc.setRoi(spotRoi);
-         return siProc.crop();
-      }
+      return getSpotProcessor( siProc, halfSize, getX(), getY() );
    }
    
     //Additional SpotProcessor Methods With Automatic BoundingBox Parameters
+    // The spot box is limited by the bounding Box_ and copied once
     public ImageProcessor getSpotProcessor(ImagePlus siPlus ) {
-        ImageProcessor ip = getSpotProcessor( siPlus, halfWidth_ );
-        //Use the bounding Box_ to limit any sizes
-        ip.setRoi( boundingBox_ );
-        return ip.crop();        
+        //Read the spot's slice from the stack, without moving siPlus
+        ImageProcessor siProc = siPlus.getStack().getProcessor( 
+                siPlus.getStackIndex( getChannel(), getSlice(), getFrame() ) );
+        return getSpotProcessor( siProc );
     }
 
    public ImageProcessor getSpotProcessor(ImageProcessor siProc) {
-        ImageProcessor ip = getSpotProcessor( siProc, halfWidth_ );
-        //Use the bounding Box_ to limit any sizes
-        ip.setRoi( boundingBox_ );
-        return ip.crop();
+        Rectangle box = new Rectangle( getX() - halfWidth_, getY() - halfWidth_, 2 * halfWidth_, 2 * halfWidth_ )
+                            .intersection( boundingBox_.getBounds() );
+        SpotView view = SpotView.create( siProc, box );
+        return ( view != null ) ? view.toProcessor() : null;
    }
    
    public static ImageProcessor getSpotProcessor(ImageProcessor siProc, int halfSize, int x, int y) {
-      synchronized(lockIP) {
-         Roi spotRoi = new Roi(x - halfSize, y - halfSize, 2 * halfSize, 2 * halfSize);
-         siProc.setRoi(spotRoi);
-         try {
-            return siProc.crop();
-         } catch (java.lang.ArrayIndexOutOfBoundsException ex) {
-            return null;
-         }
-      }
+      SpotView view = SpotView.create( siProc, halfSize, x, y );
+      return ( view != null ) ? view.toProcessor() : null;
    }
   
    public void setNumPhotonUncertainty( double numPhotonUncertainty ) {
@@ -5,7 +5,9 @@
  */
 package edu.hope.superresolution.MMgaussianfitmods.datasubs;
 
+import edu.hope.superresolution.fitters.BackgroundNoiseModel;
 import edu.hope.superresolution.fitters.FindLocalMaxima;
+import edu.hope.superresolution.fitters.GaussianMLEFit;
 import edu.hope.superresolution.fitters.GenericBaseGaussianFitThread;
 import edu.valelab.gaussianfit.data.SpotData;
 import ij.ImagePlus;
@@ -62,6 +64,7 @@ public class ExtendedGaussianInfo {
 
     // Settings affecting Gaussian fitting
     protected int maxIterations_ = 200;
+    protected int newtonIterations_ = GaussianMLEFit.DEFAULT_ITERATIONS;  //Fixed count for Newton-MLE
     protected int mode_;
     protected int shape_;
     protected int fitMode_;
@@ -77,10 +80,21 @@ public class ExtendedGaussianInfo {
     
     //Additional Operations
     private FindLocalMaxima.FilterType prefilterType_ = FindLocalMaxima.FilterType.NONE;
+    private FindLocalMaxima.DetectorType detectorType_ = FindLocalMaxima.DetectorType.BLOCK;
     private GenericBaseGaussianFitThread.DataEnsureMode dataEnsureMode_ = GenericBaseGaussianFitThread.DataEnsureMode.none;
     private double snr_ = 6;  //Used to Set the Desired Signal To Noise Ratio
     private int intensityThreshold_;
     private int maxTrackTravel_;  //The Maximum Travel (in pixels) assumed when tracking
+    private SpotData warmStartSpot_ = null;  //Previous Frame's Spot to seed fits with when tracking
+    private boolean useBatchFitting_ = false;  //Fit all queued spots together (Levenberg-Marquardt only)
+    private boolean useIntegratedModel_ = false;  //Fit the pixel-integrated Gaussian (Levenberg-Marquardt only)
+    private boolean useResidualFilter_ = false;  //Reject fits with RMS residual > 3 * noiseTolerance
+    private boolean useFloatPrecision_ = false;  //Fit with the single-precision models and solver
+    private boolean useMultiEmitterFit_ = false;  //Refit crowded boxes with multiple Gaussians (Shape 1 only)
+    private boolean useAdaptiveThresholds_ = false;  //Take detection thresholds from the backgroundNoiseModel_
+    private BackgroundNoiseModel backgroundNoiseModel_ = null;  //Running background and noise of the Roi being fit (shared)
+    private int fitBudget_ = 0;  //Maximum candidates fit per frame of the Roi (0 fits all)
+    private boolean useQuickLocalizer_ = false;  //Localize bright spots from their moments, fitting only the rest
     
     //Nullary Constructor
     public ExtendedGaussianInfo() {
@@ -119,12 +133,24 @@ public class ExtendedGaussianInfo {
 
         // Settings affecting Gaussian fitting
         maxIterations_ = subObject.maxIterations_;
+        newtonIterations_ = subObject.newtonIterations_;
         mode_ = subObject.mode_;
         prefilterType_ = subObject.prefilterType_;
+        detectorType_ = subObject.detectorType_;
         dataEnsureMode_ = subObject.dataEnsureMode_;
         snr_ = subObject.snr_;
         intensityThreshold_ = subObject.intensityThreshold_;
         maxTrackTravel_ = subObject.maxTrackTravel_;
+        warmStartSpot_ = subObject.warmStartSpot_;
+        useBatchFitting_ = subObject.useBatchFitting_;
+        useIntegratedModel_ = subObject.useIntegratedModel_;
+        useResidualFilter_ = subObject.useResidualFilter_;
+        useFloatPrecision_ = subObject.useFloatPrecision_;
+        useMultiEmitterFit_ = subObject.useMultiEmitterFit_;
+        useAdaptiveThresholds_ = subObject.useAdaptiveThresholds_;
+        backgroundNoiseModel_ = subObject.backgroundNoiseModel_;
+        fitBudget_ = subObject.fitBudget_;
+        useQuickLocalizer_ = subObject.useQuickLocalizer_;
 
     }
 
@@ -136,6 +162,14 @@ public class ExtendedGaussianInfo {
         return prefilterType_;
     }
     
+    public void setDetectorType( FindLocalMaxima.DetectorType detectorType ) {
+        detectorType_ = detectorType;
+    }
+    
+    public FindLocalMaxima.DetectorType getDetectorType( ) {
+        return detectorType_;
+    }
+    
     public void setDataEnsureMode( GenericBaseGaussianFitThread.DataEnsureMode dataEnsureMode ) {
         dataEnsureMode_ = dataEnsureMode;
     }
@@ -253,10 +287,172 @@ public class ExtendedGaussianInfo {
         return useNrPhotonsFilter_;
     }
 
+    /**
+     * Sets a Previously Fit Spot whose raw fit parameters will seed the fits 
+     * (warm start) instead of estimating from each spot image.  This is expected 
+     * to be set only for tracking the same fiducial between frames.
+     * 
+     * @param warmStartSpot The previous spot of a track, or null to estimate parameters from each image
+     */
+    public void setWarmStartSpot( SpotData warmStartSpot ) {
+        warmStartSpot_ = warmStartSpot;
+    }
+    
+    public SpotData getWarmStartSpot() {
+        return warmStartSpot_;
+    }
+
+    /**
+     * Sets Whether or not spots should be fit together in batches (BatchGaussianFitStackThread)
+     * instead of one at a time.  This only applies to Levenberg-Marquardt fits of shapes 1 and 2,
+     * other settings will fit one spot at a time regardless.
+     * 
+     * @param useBatchFitting <code>true</code> to fit queued spots in batches
+     */
+    public void setUseBatchFitting( boolean useBatchFitting ) {
+        useBatchFitting_ = useBatchFitting;
+    }
+    
+    public boolean getUseBatchFitting() {
+        return useBatchFitting_;
+    }
+
+    /**
+     * Sets Whether Levenberg-Marquardt fits of shapes 1 and 2 use the pixel-integrated
+     * Gaussian model instead of the Gaussian sampled at pixel centers.
+     * 
+     * @param useIntegratedModel <code>true</code> to fit the integrated model
+     */
+    public void setUseIntegratedModel( boolean useIntegratedModel ) {
+        useIntegratedModel_ = useIntegratedModel;
+    }
+    
+    public boolean getUseIntegratedModel() {
+        return useIntegratedModel_;
+    }
+
+    /**
+     * Sets Whether fits with an RMS residual greater than 3 times the noise tolerance
+     * are rejected.  The residual is reported by the fitter from its last model evaluation.
+     * 
+     * @param useResidualFilter <code>true</code> to reject fits by residual
+     */
+    public void setUseResidualFilter( boolean useResidualFilter ) {
+        useResidualFilter_ = useResidualFilter;
+    }
+    
+    public boolean getUseResidualFilter() {
+        return useResidualFilter_;
+    }
+
+    /**
+     * Sets Whether Levenberg-Marquardt fits (Gaussian shapes 1 and 2, and Gaussian with Defocus)
+     * use the single-precision (float) models and solver instead of double.
+     * 
+     * @param useFloatPrecision <code>true</code> to fit in single-precision
+     */
+    public void setUseFloatPrecision( boolean useFloatPrecision ) {
+        useFloatPrecision_ = useFloatPrecision;
+    }
+    
+    public boolean getUseFloatPrecision() {
+        return useFloatPrecision_;
+    }
+
+    /**
+     * Sets Whether Radially Symmetric (Shape 1) Gaussian fits whose residual shows a second
+     * peak are refit with multiple Gaussians sharing one background, so that a neighbouring
+     * fiducial in the same box does not bias or reject the fit.
+     * 
+     * @param useMultiEmitterFit <code>true</code> to refit crowded boxes
+     */
+    public void setUseMultiEmitterFit( boolean useMultiEmitterFit ) {
+        useMultiEmitterFit_ = useMultiEmitterFit;
+    }
+    
+    public boolean getUseMultiEmitterFit() {
+        return useMultiEmitterFit_;
+    }
+
+    /**
+     * Sets Whether or not the base level, noise tolerance and intensity threshold used to find
+     * and crop spots are taken from the BackgroundNoiseModel (see setBackgroundNoiseModel()) 
+     * instead of these settings.  The model is updated from every frame that is fit, and these
+     * settings are used until it has an estimate.  The fits themselves still use the base level.
+     * 
+     * @param useAdaptiveThresholds <code>true</code> to adapt the thresholds to each frame
+     */
+    public void setUseAdaptiveThresholds( boolean useAdaptiveThresholds ) {
+        useAdaptiveThresholds_ = useAdaptiveThresholds;
+    }
+    
+    public boolean getUseAdaptiveThresholds() {
+        return useAdaptiveThresholds_;
+    }
+
+    /**
+     * Sets the running background and noise estimate of the Roi being fit.  The model is 
+     * shared (not copied) by copies of these settings, so that it follows the Roi between frames.
+     * 
+     * @param backgroundNoiseModel The model of the Roi, or null for none
+     */
+    public void setBackgroundNoiseModel( BackgroundNoiseModel backgroundNoiseModel ) {
+        backgroundNoiseModel_ = backgroundNoiseModel;
+    }
+    
+    public BackgroundNoiseModel getBackgroundNoiseModel() {
+        return backgroundNoiseModel_;
+    }
+
+    /**
+     * Sets the Maximum Number of candidate points fit per frame of the Roi.  When more points
+     * are found, they are ranked by their peak and compactness (see CandidateRanker) and only 
+     * the best are fit.  If a warm start spot is set and none of the best lie within the 
+     * max track travel of it, candidates are fit down the ranking until one does.
+     * 
+     * @param fitBudget The number of candidates to fit, or 0 to fit every candidate
+     */
+    public void setFitBudget( int fitBudget ) {
+        fitBudget_ = fitBudget;
+    }
+    
+    public int getFitBudget() {
+        return fitBudget_;
+    }
+
+    /**
+     * Sets Whether spots are localized from their moments (MomentLocalizer) instead of fit.
+     * Spots that are dim, off-center or of an unexpected width for their box are still fit,
+     * so this is intended for tracking bright fiducials at high frame rates.
+     * Newton_Maximum_Likelihood fits are never replaced.
+     * 
+     * @param useQuickLocalizer <code>true</code> to localize reliable spots without a fit
+     */
+    public void setUseQuickLocalizer( boolean useQuickLocalizer ) {
+        useQuickLocalizer_ = useQuickLocalizer;
+    }
+    
+    public boolean getUseQuickLocalizer() {
+        return useQuickLocalizer_;
+    }
+
     public void setMaxIterations(int maxIter) {
         maxIterations_ = maxIter;
     }
 
+    /**
+     * Sets the Fixed Number of Iterations used by the Newton_Maximum_Likelihood fit mode
+     * 
+     * @param newtonIter The number of Newton-Raphson iterations per spot
+     */
+    public void setNewtonIterations(int newtonIter) {
+        newtonIterations_ = newtonIter;
+    }
+
+    public int getNewtonIterations() {
+        return newtonIterations_;
+    }
+
     public void setBoxSize(int boxSize) {
         halfSize_ = boxSize / 2;
     }
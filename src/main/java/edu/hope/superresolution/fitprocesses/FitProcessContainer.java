@@ -38,7 +38,8 @@ public interface FitProcessContainer {
         Simplex(1, "Simplex"),
         Levenberg_Marquardt(2, "Levenberg-Marquardt"),
         Simplex_Maximum_Likelihood(3, "Simplex-MLE"),
-        Levenberg_Marquardt_Weighted(4, "Weighted Levenberg-Marquardt");
+        Levenberg_Marquardt_Weighted(4, "Weighted Levenberg-Marquardt"),
+        Newton_Maximum_Likelihood(5, "Newton-MLE");
         
         private final int val_;
         private final String msgKey_;
@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of idle Fitters (FitProcessContainers and their scratch-buffer helpers) that
+ * survive across the short-lived FitStackThreads created for every ROI and frame.
+ * <p>
+ * Fitters are kept per Key (the fitter class, shape, optimization mode and base level 
+ * that it was constructed with), so an acquired instance is interchangeable with a newly 
+ * constructed one.  A thread acquires its fitters when it is created and releases them
+ * when it finishes, so in steady state live tracking constructs no new optimizers, 
+ * checkers or parameter arrays per frame.  Per-spot settings (warm starts, integrated or 
+ * float models, base level of the MLE fitter) are applied by the threads before every 
+ * fit and must not be assumed to be reset by the pool.
+ * <p>
+ * At most maxIdlePerKey instances are kept idle per key; any more released are left
+ * to the garbage collector.  Thread-safe.
+ *
+ * @see edu.hope.superresolution.fitters.FitStackThread
+ *
+ * @author Justin Hanselman
+ */
+public class FitProcessPool {
+
+    /**
+     * Creates a new Fitter when no idle instance is available for a key
+     *
+     * @param <T> The type of the Fitter
+     */
+    public static abstract class Factory<T> {
+        public abstract T create();
+    }
+
+    /**
+     * Immutable Key of interchangeable Fitters
+     */
+    public static final class Key {
+
+        private final Class<?> type_;
+        private final int shape_;
+        private final int fitMode_;
+        private final double baseLevel_;
+
+        /**
+         * Constructor
+         *
+         * @param type The class of the pooled Fitter
+         * @param shape The shape mode the Fitter was constructed with (0 if not applicable)
+         * @param fitMode The integer optimization mode the Fitter was constructed with (0 if not applicable)
+         * @param baseLevel The base level the Fitter was constructed with (0 if not applicable)
+         */
+        public Key( Class<?> type, int shape, int fitMode, double baseLevel ) {
+            type_ = type;
+            shape_ = shape;
+            fitMode_ = fitMode;
+            baseLevel_ = baseLevel;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if( !(obj instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return type_ == other.type_ && shape_ == other.shape_ && fitMode_ == other.fitMode_
+                    && Double.compare( baseLevel_, other.baseLevel_ ) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits( baseLevel_ );
+            int hash = type_.hashCode();
+            hash = 31 * hash + shape_;
+            hash = 31 * hash + fitMode_;
+            return 31 * hash + (int) (bits ^ (bits >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return type_.getSimpleName() + "[shape=" + shape_ + ", fitMode=" + fitMode_
+                    + ", baseLevel=" + baseLevel_ + "]";
+        }
+    }
+
+    private static final FitProcessPool sharedPool_ =
+            new FitProcessPool( 2 * Runtime.getRuntime().availableProcessors() );
+
+    private final int maxIdlePerKey_;
+    private final Map<Key, ArrayDeque<Object>> idle_ = new HashMap<Key, ArrayDeque<Object>>();
+    //Accounting for tests and diagnostics
+    private long numCreated_ = 0;
+    private long numReused_ = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxIdlePerKey The maximum number of idle instances kept per key
+     */
+    public FitProcessPool( int maxIdlePerKey ) {
+        maxIdlePerKey_ = maxIdlePerKey;
+    }
+
+    /**
+     * Gets the Pool shared by all FitStackThreads
+     *
+     * @return The shared FitProcessPool
+     */
+    public static FitProcessPool getSharedPool() {
+        return sharedPool_;
+    }
+
+    /**
+     * Takes an idle Fitter for the key, or creates one with the factory if there is none
+     *
+     * @param <T> The type of the Fitter
+     * @param key The key of the Fitter
+     * @param type The class of the Fitter (must match the Key's type)
+     * @param factory Creates a new Fitter as described by the key
+     * @return A Fitter that is exclusively owned by the caller until release()
+     */
+    public <T> T acquire( Key key, Class<T> type, Factory<T> factory ) {
+        synchronized( idle_ ) {
+            ArrayDeque<Object> instances = idle_.get( key );
+            if( instances != null && !instances.isEmpty() ) {
+                ++numReused_;
+                return type.cast( instances.pop() );
+            }
+            ++numCreated_;
+        }
+        //Construction is done outside of the lock
+        return factory.create();
+    }
+
+    /**
+     * Returns a Fitter to the pool.  The caller must not use it afterwards.
+     *
+     * @param key The key the Fitter was acquired with
+     * @param instance The Fitter
+     */
+    public void release( Key key, Object instance ) {
+        if( instance == null ) {
+            return;
+        }
+        synchronized( idle_ ) {
+            ArrayDeque<Object> instances = idle_.get( key );
+            if( instances == null ) {
+                instances = new ArrayDeque<Object>();
+                idle_.put( key, instances );
+            }
+            if( instances.size() < maxIdlePerKey_ ) {
+                instances.push( instance );
+            }
+        }
+    }
+
+    /**
+     * Gets the Number of Fitters created by acquire() since the pool was constructed
+     *
+     * @return The number of factory creations
+     */
+    public long getNumCreated() {
+        synchronized( idle_ ) {
+            return numCreated_;
+        }
+    }
+
+    /**
+     * Gets the Number of Fitters reused by acquire() since the pool was constructed
+     *
+     * @return The number of acquisitions served from idle instances
+     */
+    public long getNumReused() {
+        synchronized( idle_ ) {
+            return numReused_;
+        }
+    }
+
+    /**
+     * Discards all idle Fitters
+     */
+    public void clear() {
+        synchronized( idle_ ) {
+            idle_.clear();
+        }
+    }
+
+}
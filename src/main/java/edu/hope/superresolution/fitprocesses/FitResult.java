@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+/**
+ * Immutable Result of a single fit from a FitResultProcess.
+ * <p>
+ * Carries the fit parameters along with the goodness-of-fit values that the fitter
+ * already computed during its final model evaluation, so that rejection by residual
+ * does not require a second pass over the spot image.
+ * <pre>
+ * Chi-Square - The objective of the fitter at the final parameters (see implementation)
+ * RMS Residual - sqrt( sum( (pixel - model)^2 ) / numPixels ) in counts 
+ *                (NaN if the fitter's objective does not provide it)
+ * Iterations - The number of iterations used
+ * Converged - Whether the fit met its convergence criterion (as opposed to running
+ *             out of iterations or failing)
+ * </pre>
+ *
+ * @see FitResultProcess
+ *
+ * @author Justin Hanselman
+ */
+public class FitResult {
+
+    private final double[] parameters_;
+    private final double chiSquare_;
+    private final double rmsResidual_;
+    private final int iterations_;
+    private final boolean converged_;
+
+    /**
+     * Constructor
+     *
+     * @param parameters The fit parameters ({0.0} for a failed fit), not copied
+     * @param chiSquare The objective value at the final parameters
+     * @param rmsResidual The root mean square residual (counts) at the final parameters
+     * @param iterations The number of iterations used
+     * @param converged Whether the fit converged
+     */
+    public FitResult( double[] parameters, double chiSquare, double rmsResidual,
+                        int iterations, boolean converged ) {
+        parameters_ = parameters;
+        chiSquare_ = chiSquare;
+        rmsResidual_ = rmsResidual;
+        iterations_ = iterations;
+        converged_ = converged;
+    }
+
+    /**
+     * Creates the Result of a Failed Fit
+     *
+     * @param iterations The number of iterations used before failure
+     * @return A Result with parameters {0.0} that is not converged
+     */
+    public static FitResult failed( int iterations ) {
+        return new FitResult( new double[] { 0.0 }, Double.NaN, Double.NaN, iterations, false );
+    }
+
+    /**
+     * Gets the Fit Parameters, in the order of the FitProcessContainer's indices.
+     * <p>
+     * Note: This returns the array itself and not a copy.
+     *
+     * @return The parameters ({0.0} if the fit failed)
+     */
+    public double[] getParameters() {
+        return parameters_;
+    }
+
+    public double getChiSquare() {
+        return chiSquare_;
+    }
+
+    public double getRMSResidual() {
+        return rmsResidual_;
+    }
+
+    public int getIterations() {
+        return iterations_;
+    }
+
+    public boolean isConverged() {
+        return converged_;
+    }
+
+    /**
+     * Whether or not the fit produced parameters
+     *
+     * @return <code>false</code> if the fit failed (parameters are {0.0})
+     */
+    public boolean hasParameters() {
+        return parameters_.length > 1;
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Optional Interface for FitProcessContainers that can report the goodness-of-fit
+ * of a dofit() call from their own final model evaluation.
+ * <p>
+ * dofitWithResult() performs exactly the same fit as dofit(), but returns the 
+ * parameters wrapped in a FitResult along with the chi-square, RMS residual, 
+ * iteration count and convergence flag.
+ *
+ * @see FitProcessContainer
+ * @see FitResult
+ *
+ * @author Justin Hanselman
+ */
+public interface FitResultProcess {
+
+    /**
+     *  Performs the fit of dofit() and reports its goodness-of-fit
+     *
+     * @param siProc The bounded image of the spot to fit
+     * @param maxIterations The maximum number of iterations for the fit
+     * @return The Result of the fit (never null)
+     */
+    public FitResult dofitWithResult( ImageProcessor siProc, int maxIterations );
+}
@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+/**
+ * Optional Interface for FitProcessContainers that can take the total, border and centroid
+ * of a spot image from precomputed moments instead of summing the spot image for them.
+ * <p>
+ * This is intended for spots cropped from a frame whose summed-area tables were already
+ * built, so that each moment is a constant-time lookup.  A moment estimate stays in effect
+ * for every dofit() call until it is replaced or clearMomentEstimate() is called, and it
+ * must describe the spot image that is passed to dofit().  A warm start (see
+ * WarmStartFitProcess) takes precedence over the values it replaces.
+ *
+ * @see WarmStartFitProcess
+ *
+ * @author Justin Hanselman
+ */
+public interface MomentEstimateFitProcess {
+
+    /**
+     *  Sets the moments of the next spot image(s) to fit
+     *
+     * @param total The sum of every pixel value of the spot image
+     * @param borderMean The mean pixel value of the outermost rows and columns of the spot image
+     * @param xCentroid The intensity-weighted mean column of the spot image
+     * @param yCentroid The intensity-weighted mean row of the spot image
+     */
+    public void setMomentEstimate( double total, double borderMean, double xCentroid, double yCentroid );
+
+    /**
+     *  Returns to summing each spot image for its moments
+     */
+    public void clearMomentEstimate();
+}
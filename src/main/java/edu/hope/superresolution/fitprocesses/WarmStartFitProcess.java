@@ -0,0 +1,47 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+/**
+ * Optional Interface for FitProcessContainers that can start their fit from a previous
+ * result instead of estimating initial parameters from scratch.
+ * <p>
+ * This is intended for tracking, where the same fiducial was fit in the previous frame
+ * and its intensity, background and width are already close to the optimum for the 
+ * current frame.  The center is still estimated from each spot image, since the fiducial
+ * may have moved.  A warm start stays in effect for every dofit() call until 
+ * clearWarmStart() is called.
+ * <p>
+ * All values are in the raw units of the implementing FitProcessContainer's parameters
+ * (i.e. the values it returned from dofit() for the previous spot).
+ *
+ * @see FitProcessContainer
+ *
+ * @author Justin Hanselman
+ */
+public interface WarmStartFitProcess {
+
+    /**
+     *  Seeds subsequent fits with the parameters of a previous fit.
+     *
+     * @param intensity The previously fitted intensity parameter
+     * @param background The previously fitted background parameter
+     * @param sigma The previously fitted sigma (pixels)
+     */
+    public void setWarmStart( double intensity, double background, double sigma );
+
+    /**
+     *  Returns to estimating initial parameters from each spot image
+     */
+    public void clearWarmStart();
+
+    /**
+     *  Gets the number of optimizer iterations used by the most recent dofit()
+     *
+     * @return The number of iterations of the last fit
+     */
+    public int getLastIterations();
+}
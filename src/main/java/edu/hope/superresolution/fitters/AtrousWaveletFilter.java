@@ -0,0 +1,200 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+/**
+ *  Undecimated (a trous) B-spline Wavelet Prefilter that only evaluates a region of an image.
+ * <p>
+ *  The image is smoothed twice with the separable B3-spline kernel [1,4,6,4,1]/16, the
+ *  second time with a hole between each tap.  The second wavelet plane (first smoothing
+ *  minus second smoothing) is returned, which keeps spots of a few pixels and removes both
+ *  the background and most of the pixel noise.  The first wavelet plane (image minus first
+ *  smoothing) is nearly all noise, so its spread is kept as the noise of the filtered
+ *  region (see getNoise()).
+ * <p>
+ *  Each smoothing is done in place on its plane, one row and then one column at a time.
+ *  Only the requested region plus a margin of MARGIN pixels is read from the image, and
+ *  pixels beyond the image edge take the value of the nearest edge pixel (as with DoGFilter).
+ *  All planes are kept between calls and only grow, so a filter should be owned by a
+ *  single thread.
+ *
+ * @see FindLocalMaxima
+ *
+ * @author Justin Hanselman
+ */
+public class AtrousWaveletFilter {
+
+    //Pixels read beyond each side of a region (radius 2 for the first smoothing, 4 for the second)
+    public static final int MARGIN = 6;
+
+    //Converts a mean absolute deviation to a standard deviation for Gaussian noise
+    private static final double MEAN_ABS_TO_SIGMA = Math.sqrt( Math.PI / 2 );
+
+    //Planes
+    private float[] smooth1_ = new float[0];
+    private float[] smooth2_ = new float[0];
+    private float[] result_ = new float[0];
+    //Single row or column of a plane while it is smoothed
+    private float[] line_ = new float[0];
+
+    private double noise_ = 0;
+
+    public AtrousWaveletFilter() {
+    }
+
+    /**
+     *  Filters a region of an image.
+     * <p>
+     *  The returned array is a scratch buffer of this filter and is overwritten
+     *  by the next call.  It may be longer than the region.
+     *
+     * @param iProc The image to filter
+     * @param region The region of iProc to produce (must lie within the image)
+     * @return The second wavelet plane of the region, row-major with a width of region.width
+     */
+    public float[] filter( ImageProcessor iProc, Rectangle region ) {
+        smoothFirstPlane( iProc, region );
+        int sWidth = region.width + 2 * MARGIN;
+        int sHeight = region.height + 2 * MARGIN;
+        int size = sWidth * sHeight;
+        result_ = ensureCapacity( result_, region.width * region.height );
+
+        System.arraycopy( smooth1_, 0, smooth2_, 0, size );
+        smooth( smooth2_, sWidth, sHeight, 2 );
+
+        //Second Plane over the region
+        for( int y = 0; y < region.height; ++y ) {
+            int offset = (y + MARGIN) * sWidth + MARGIN;
+            int rOffset = y * region.width;
+            for( int x = 0; x < region.width; ++x ) {
+                result_[ rOffset + x ] = smooth1_[ offset + x ] - smooth2_[ offset + x ];
+            }
+        }
+        return result_;
+    }
+
+    /**
+     *  Gets the noise of the last filtered (or measured) region
+     *
+     * @return The standard deviation of the first wavelet plane over the region
+     */
+    public double getNoise() {
+        return noise_;
+    }
+
+    /**
+     *  Measures the noise of a region without producing the second plane.  The result
+     *  is identical to getNoise() after filter() of the same region, so that bands of a 
+     *  region can be filtered separately against the noise of the whole (see TiledMaximaFinder).
+     *
+     * @param iProc The image to measure
+     * @param region The region of iProc to measure (must lie within the image)
+     * @return The standard deviation of the first wavelet plane over the region
+     */
+    public double measureNoise( ImageProcessor iProc, Rectangle region ) {
+        smoothFirstPlane( iProc, region );
+        return noise_;
+    }
+
+    /**
+     *  Copies the region and its margin into smooth1_ and smooths it once, keeping the 
+     *  noise of the first plane (source minus smooth1_) over the region
+     */
+    private void smoothFirstPlane( ImageProcessor iProc, Rectangle region ) {
+        int width = iProc.getWidth();
+        int height = iProc.getHeight();
+        if( region.x < 0 || region.y < 0 || region.x + region.width > width
+                || region.y + region.height > height ) {
+            throw new IllegalArgumentException( "AtrousWaveletFilter region must lie within the image" );
+        }
+        int sWidth = region.width + 2 * MARGIN;
+        int sHeight = region.height + 2 * MARGIN;
+        int size = sWidth * sHeight;
+        smooth1_ = ensureCapacity( smooth1_, size );
+        smooth2_ = ensureCapacity( smooth2_, size );
+        line_ = ensureCapacity( line_, Math.max( sWidth, sHeight ) );
+
+        copySource( iProc, region.x - MARGIN, region.y - MARGIN, sWidth, sHeight );
+        //Keep the source in smooth2_ until the first plane has been measured
+        System.arraycopy( smooth1_, 0, smooth2_, 0, size );
+        smooth( smooth1_, sWidth, sHeight, 1 );
+
+        double absSum = 0;
+        for( int y = 0; y < region.height; ++y ) {
+            int offset = (y + MARGIN) * sWidth + MARGIN;
+            for( int x = 0; x < region.width; ++x ) {
+                absSum += Math.abs( smooth2_[ offset + x ] - smooth1_[ offset + x ] );
+            }
+        }
+        noise_ = MEAN_ABS_TO_SIGMA * absSum / (region.width * region.height);
+    }
+
+    private static float[] ensureCapacity( float[] buffer, int size ) {
+        return (buffer.length >= size) ? buffer : new float[ size ];
+    }
+
+    /**
+     *  Smooths a plane in place with the [1,4,6,4,1]/16 kernel in x and then y, with taps
+     *  step pixels apart.  Taps beyond the plane take the value of its nearest edge, which
+     *  only affects values farther from the region than the margin of later passes.
+     */
+    private void smooth( float[] plane, int width, int height, int step ) {
+        for( int y = 0; y < height; ++y ) {
+            smoothLine( plane, y * width, 1, width, step );
+        }
+        for( int x = 0; x < width; ++x ) {
+            smoothLine( plane, x, width, height, step );
+        }
+    }
+
+    private void smoothLine( float[] plane, int start, int stride, int length, int step ) {
+        for( int i = 0; i < length; ++i ) {
+            line_[i] = plane[ start + i * stride ];
+        }
+        int last = length - 1;
+        int step2 = 2 * step;
+        for( int i = 0; i < length; ++i ) {
+            float near = line_[ Math.max( i - step, 0 ) ] + line_[ Math.min( i + step, last ) ];
+            float far = line_[ Math.max( i - step2, 0 ) ] + line_[ Math.min( i + step2, last ) ];
+            plane[ start + i * stride ] = (6 * line_[i] + 4 * near + far) * (1f / 16);
+        }
+    }
+
+    /**
+     *  Copies a block of the image into smooth1_, replicating edge pixels for
+     *  coordinates outside of the image
+     */
+    private void copySource( ImageProcessor iProc, int x0, int y0, int sWidth, int sHeight ) {
+        int width = iProc.getWidth();
+        int height = iProc.getHeight();
+        Object pixels = iProc.getPixels();
+        short[] shortPixels = (pixels instanceof short[]) ? (short[]) pixels : null;
+        byte[] bytePixels = (pixels instanceof byte[]) ? (byte[]) pixels : null;
+        float[] floatPixels = (pixels instanceof float[]) ? (float[]) pixels : null;
+        for( int y = 0; y < sHeight; ++y ) {
+            int row = Math.min( Math.max( y0 + y, 0 ), height - 1 ) * width;
+            int offset = y * sWidth;
+            for( int x = 0; x < sWidth; ++x ) {
+                int col = Math.min( Math.max( x0 + x, 0 ), width - 1 );
+                float value;
+                if( shortPixels != null ) {
+                    value = shortPixels[ row + col ] & 0xffff;
+                } else if( bytePixels != null ) {
+                    value = bytePixels[ row + col ] & 0xff;
+                } else if( floatPixels != null ) {
+                    value = floatPixels[ row + col ];
+                } else {
+                    value = iProc.getPixelValue( col, row / width );
+                }
+                smooth1_[ offset + x ] = value;
+            }
+        }
+    }
+
+}
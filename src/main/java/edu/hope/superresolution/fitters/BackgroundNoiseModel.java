@@ -0,0 +1,219 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ *  Running Estimate of the Background and Noise of a Roi, updated once per frame.
+ * <p>
+ *  Each update samples the roi on a regular grid (at most MAX_SAMPLES pixels), skipping
+ *  the boxes around the points found in the previous frame (see setExcludedPoints()).  The
+ *  median of the samples is the background and the median absolute deviation (scaled to
+ *  a Gaussian standard deviation) is the noise, so that the few fiducial pixels that are
+ *  left do not pull the estimate.  Both are blended into the previous estimate with an
+ *  exponential weight, the first update sets them directly.
+ * <p>
+ *  The model is meant to follow a single Roi (e.g. a FiducialArea along its track) and
+ *  may be shared between the fit threads of successive frames, so all methods are synchronized.
+ *
+ * @see ImageRegionFitThreadTest
+ *
+ * @author Justin Hanselman
+ */
+public class BackgroundNoiseModel {
+
+    //Default Weight of a new frame in the running estimate
+    public static final double DEFAULT_WEIGHT = .2;
+    //Maximum Number of pixels sampled per update
+    public static final int MAX_SAMPLES = 4096;
+    //Minimum Number of samples for an update to be used
+    public static final int MIN_SAMPLES = 16;
+    //Lowest noise reported (counts), so that flat images do not accept every maximum
+    public static final double MIN_NOISE = 1;
+    //Noise Tolerance in standard deviations of the noise
+    public static final double NOISE_TOLERANCE_SIGMAS = 3;
+
+    //Converts a median absolute deviation to a standard deviation for Gaussian noise
+    private static final double MAD_TO_SIGMA = 1.4826;
+
+    private final double weight_;
+    private boolean hasEstimate_ = false;
+    private double background_ = 0;
+    private double noise_ = 0;
+    private int numUpdates_ = 0;
+
+    //Boxes excluded from the next update
+    private final Polygon excludedPoints_ = new Polygon();
+    private int excludedHalfBox_ = 0;
+
+    //Scratch Buffer
+    private int[] samples_ = new int[0];
+
+    /**
+     *  Constructor - Uses DEFAULT_WEIGHT
+     */
+    public BackgroundNoiseModel() {
+        this( DEFAULT_WEIGHT );
+    }
+
+    /**
+     *  Constructor
+     *
+     * @param weight The weight (0, 1] of each new frame in the running estimate (1 uses the latest frame only)
+     */
+    public BackgroundNoiseModel( double weight ) {
+        if( !(weight > 0 && weight <= 1) ) {
+            throw new IllegalArgumentException( "BackgroundNoiseModel weight must be in (0, 1]" );
+        }
+        weight_ = weight;
+    }
+
+    /**
+     *  Updates the estimate from the pixels of a roi outside of the excluded boxes
+     *
+     * @param iProc The current frame
+     * @param roi The region of the frame to sample (clipped to the image)
+     * @return <code>true</code> if enough pixels were sampled to update the estimate
+     */
+    public synchronized boolean update( ImageProcessor iProc, Rectangle roi ) {
+        Rectangle region = roi.intersection( new Rectangle( 0, 0, iProc.getWidth(), iProc.getHeight() ) );
+        if( region.isEmpty() ) {
+            return false;
+        }
+        int step = Math.max( 1, (int) Math.ceil( Math.sqrt( ((double) region.width) * region.height / MAX_SAMPLES ) ) );
+        int numSamples = sample( iProc, region, step );
+        if( numSamples < MIN_SAMPLES ) {
+            return false;
+        }
+
+        Arrays.sort( samples_, 0, numSamples );
+        int median = samples_[ numSamples / 2 ];
+        for( int i = 0; i < numSamples; ++i ) {
+            samples_[i] = Math.abs( samples_[i] - median );
+        }
+        Arrays.sort( samples_, 0, numSamples );
+        double noise = MAD_TO_SIGMA * samples_[ numSamples / 2 ];
+
+        if( hasEstimate_ ) {
+            background_ += weight_ * (median - background_);
+            noise_ += weight_ * (noise - noise_);
+        } else {
+            background_ = median;
+            noise_ = noise;
+            hasEstimate_ = true;
+        }
+        ++numUpdates_;
+        return true;
+    }
+
+    /**
+     *  Sets the points whose boxes are skipped by the next update (typically the
+     *  points of interest found in the current frame)
+     *
+     * @param points The centers of the boxes
+     * @param halfBox The half size of each box
+     */
+    public synchronized void setExcludedPoints( Polygon points, int halfBox ) {
+        excludedPoints_.reset();
+        for( int i = 0; i < points.npoints; ++i ) {
+            excludedPoints_.addPoint( points.xpoints[i], points.ypoints[i] );
+        }
+        excludedHalfBox_ = halfBox;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return hasEstimate_;
+    }
+
+    public synchronized int getNumUpdates() {
+        return numUpdates_;
+    }
+
+    /**
+     *  Gets the background level
+     *
+     * @return The running median of the roi (counts)
+     */
+    public synchronized double getBackground() {
+        return background_;
+    }
+
+    /**
+     *  Gets the standard deviation of the noise about the background
+     *
+     * @return The running noise estimate (counts), at least MIN_NOISE
+     */
+    public synchronized double getNoise() {
+        return Math.max( noise_, MIN_NOISE );
+    }
+
+    /**
+     *  Gets the maximum anticipated deviation of the noise from the background
+     *  (as GaussianInfo's noiseTolerance_)
+     *
+     * @return NOISE_TOLERANCE_SIGMAS times the noise, rounded up
+     */
+    public synchronized int getNoiseTolerance() {
+        return (int) Math.ceil( NOISE_TOLERANCE_SIGMAS * getNoise() );
+    }
+
+    /**
+     *  Gets the value that a maximum must exceed to be a point of interest
+     *
+     * @param snr The signal to noise ratio required of a maximum
+     * @return The background plus snr times the noise
+     */
+    public synchronized int getThreshold( double snr ) {
+        return (int) Math.round( background_ + snr * getNoise() );
+    }
+
+    /**
+     *  Samples the region every step pixels in x and y into samples_
+     *
+     * @return The number of samples
+     */
+    private int sample( ImageProcessor iProc, Rectangle region, int step ) {
+        int maxSamples = ((region.width + step - 1) / step) * ((region.height + step - 1) / step);
+        if( samples_.length < maxSamples ) {
+            samples_ = new int[ maxSamples ];
+        }
+        int width = iProc.getWidth();
+        Object pixels = iProc.getPixels();
+        int count = 0;
+        for( int y = region.y; y < region.y + region.height; y += step ) {
+            for( int x = region.x; x < region.x + region.width; x += step ) {
+                if( isExcluded( x, y ) ) {
+                    continue;
+                }
+                int value;
+                if( pixels instanceof short[] ) {
+                    value = ((short[]) pixels)[ y * width + x ] & 0xffff;
+                } else if( pixels instanceof byte[] ) {
+                    value = ((byte[]) pixels)[ y * width + x ] & 0xff;
+                } else {
+                    value = Math.round( iProc.getPixelValue( x, y ) );
+                }
+                samples_[ count++ ] = value;
+            }
+        }
+        return count;
+    }
+
+    private boolean isExcluded( int x, int y ) {
+        for( int i = 0; i < excludedPoints_.npoints; ++i ) {
+            if( Math.abs( x - excludedPoints_.xpoints[i] ) <= excludedHalfBox_
+                    && Math.abs( y - excludedPoints_.ypoints[i] ) <= excludedHalfBox_ ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.Utils.IJMMReportingUtils;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitProcessPool;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.hope.superresolution.fitprocesses.WarmStartFitProcess;
+import edu.hope.superresolution.genericstructures.BlockingQueueEndConditionTest;
+import edu.valelab.gaussianfit.data.SpotData;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ *  Batched Alternative to GaussianFitStackThreadTest.  Instead of fitting one spot at a
+ *  time, every spot that is queued when the thread takes from the stack (up to the batch size)
+ *  is packed into a BatchGaussianLMFit and fit together with Levenberg-Marquardt.  Results
+ *  are converted to SpotData identically to GaussianFitStackThreadTest.
+ * <p>
+ *  Only Levenberg-Marquardt fits of Shape 1 or 2 are batched.  Use isBatchable() before
+ *  creating this thread; other shapes and modes should use GaussianFitStackThreadTest.
+ *  Spots that are not 16-bit are fit one at a time, as GaussianFitStackThreadTest would.
+ *
+ * @see BatchGaussianLMFit
+ * @see GaussianFitStackThreadTest
+ *
+ * @author Justin Hanselman
+ */
+public class BatchGaussianFitStackThread extends GaussianFitStackThreadTest {
+
+    //Default Maximum Number of Spots to Fit Together
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final int batchSize_;
+    private BatchGaussianLMFit batchFit_ = null;
+
+    /**
+     *  Constructor - Parameters are identical to GaussianFitStackThreadTest
+     *
+     * @param sourceList - The BlockingQueue of SpotData to pull preliminary unfit Spots from
+     * @param endCondTest - A BlockingQueueEndConditionTest object with method for identifying the endCondition of the BlockingQueue
+     * @param resultList - The synchronized List to append FittedSpots to
+     * @param siPlus - The imagePlus associated with the fitting
+     * @param resolveLimit - The limit in which Gaussians are considered discernable, provides a minimum fitWidth
+     * @param shape - Whether the fit is meant to be circular (1) or oval in x and y (2)
+     * @param fitMode - The mode used to establish the fit (must be Levenberg_Marquardt)
+     * @param batchSize - The maximum number of spots to fit together
+     *
+     * @see #isBatchable(int, edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes)
+     */
+    public BatchGaussianFitStackThread(BlockingQueue<SpotData> sourceList,
+                                BlockingQueueEndConditionTest<SpotData> endCondTest,
+                                List<SpotData> resultList, ImagePlus siPlus,
+                                int resolveLimit, int shape,
+                                FitProcessContainer.OptimizationModes fitMode, int batchSize ) {
+        super(sourceList, endCondTest, resultList, siPlus, resolveLimit, shape, fitMode);
+        if( !isBatchable( shape, fitMode ) ) {
+            throw new IllegalArgumentException( "Batch Fitting is only available for Levenberg-Marquardt with Shape 1 or 2" );
+        }
+        batchSize_ = batchSize;
+    }
+
+    /**
+     * Checks whether or not a shape and fit mode may be fit by this thread
+     *
+     * @param shape The shape of the fit
+     * @param fitMode The optimization mode of the fit
+     * @return <code>true</code> if the shape and mode are supported by BatchGaussianLMFit
+     */
+    public static boolean isBatchable( int shape, FitProcessContainer.OptimizationModes fitMode ) {
+        return (shape == 1 || shape == 2)
+                && fitMode == FitProcessContainer.OptimizationModes.Levenberg_Marquardt;
+    }
+
+    @Override
+    protected int getBatchSize() {
+        return batchSize_;
+    }
+
+    @Override
+    protected List<SpotData> runBatchFitProcess( List<SpotData> spots ) throws IllegalThreadStateException {
+        List<SpotData> results = new ArrayList<SpotData>( spots.size() );
+        try {
+            //Settings are applied after construction, so baseLevel_ is only valid now
+            if( batchFit_ == null ) {
+                final int shape = shape_;
+                final double baseLevel = baseLevel_;
+                batchFit_ = acquirePooled( new FitProcessPool.Key( BatchGaussianLMFit.class, shape, 0, baseLevel ),
+                                            BatchGaussianLMFit.class, new FitProcessPool.Factory<BatchGaussianLMFit>() {
+                    @Override
+                    public BatchGaussianLMFit create() {
+                        return new BatchGaussianLMFit( shape, baseLevel );
+                    }
+                });
+            }
+            batchFit_.clear();
+            int[] halfWidths = new int[spots.size()];
+            //Index of each spot in the batch, -1 for spots localized from their moments or fit on their own
+            int[] batchIdx = new int[spots.size()];
+            SpotData[] singleSpots = new SpotData[spots.size()];
+            for( int i = 0; i < spots.size(); ++i ) {
+                SpotData spot = spots.get(i);
+                singleSpots[i] = quickLocalize( spot );
+                if( singleSpots[i] != null ) {
+                    batchIdx[i] = -1;
+                    continue;
+                }
+                //Views are packed straight from their frame (see SpotViewData)
+                SpotView spotView = (spot instanceof SpotViewData) ? ((SpotViewData) spot).getSpotView() : null;
+                if( spotView != null && spotView.getShortPixels() != null ) {
+                    halfWidths[i] = spotView.getWidth() / 2;
+                    batchIdx[i] = batchFit_.addSpot( spotView.getShortPixels(), spotView.getOffset(), 
+                                                        spotView.getStride(), spotView.getWidth(), spotView.getHeight() );
+                    continue;
+                }
+                ImageProcessor ip = spot.getImageProcessor();
+                if( !(ip.getPixels() instanceof short[]) ) {
+                    //BatchGaussianLMFit only packs 16-bit pixels
+                    batchIdx[i] = -1;
+                    singleSpots[i] = runFitProcess( spot );
+                    if( singleSpots[i] != null && getFitProcess() instanceof WarmStartFitProcess ) {
+                        addIterations( ((WarmStartFitProcess) getFitProcess()).getLastIterations() );
+                    }
+                    continue;
+                }
+                halfWidths[i] = ip.getWidth() / 2;
+                batchIdx[i] = batchFit_.addSpot( (short[]) ip.getPixels(), ip.getWidth(), ip.getHeight() );
+            }
+
+            batchFit_.fitAll( maxIterations_ );
+            //Crowded spots are refit individually after the batch
+
+            for( int i = 0; i < spots.size(); ++i ) {
+                if( batchIdx[i] < 0 ) {
+                    results.add( singleSpots[i] );
+                    continue;
+                }
+                FitResult fitResult = batchFit_.getFitResult( batchIdx[i] );
+                if( isMultiEmitterCandidate( fitResult ) ) {
+                    fitResult = refineMultiEmitter( spots.get(i).getImageProcessor(), fitResult );
+                }
+                SpotData fittedSpot = createFittedSpot( spots.get(i), fitResult, halfWidths[i] );
+                //Only fits that produced a spot are counted (as in FitStackThread)
+                if( fittedSpot != null ) {
+                    addIterations( batchFit_.getIterations( batchIdx[i] ) );
+                }
+                results.add( fittedSpot );
+            }
+        } catch (Exception ex) {
+            IJMMReportingUtils.logError(ex);
+            IJMMReportingUtils.logError("Thread run out of memory  " +
+                    Thread.currentThread().getName());
+            throw new IllegalThreadStateException( ex.getMessage() );
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,494 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+import static edu.hope.superresolution.fitters.GaussianFit.BGR;
+import static edu.hope.superresolution.fitters.GaussianFit.INT;
+import static edu.hope.superresolution.fitters.GaussianFit.S;
+import static edu.hope.superresolution.fitters.GaussianFit.S1;
+import static edu.hope.superresolution.fitters.GaussianFit.S2;
+import static edu.hope.superresolution.fitters.GaussianFit.XC;
+import static edu.hope.superresolution.fitters.GaussianFit.YC;
+
+/**
+ * Batched Levenberg-Marquardt Gaussian Fit of many spot images at once.
+ * <p>
+ * Spot images are appended into one packed short[] block (with per-spot offsets,
+ * widths and heights) and all parameters, damping factors and normal equations are
+ * held in structure-of-arrays form (one primitive array per quantity, indexed by spot).
+ * fitAll() then sweeps over the active spots, taking one Levenberg-Marquardt step for
+ * each per sweep.  Spots that converge (or fail) drop out of the active set, so later
+ * sweeps only touch the spots that still need work.
+ * <p>
+ * The model, derivatives, parameter indices and initial estimates are the same as
+ * GaussianLMFit (and so GaussianFit's Levenberg-Marquardt mode), for the shapes:
+ * <pre>
+ *      1 - Radial Symmetric: [ INT, BGR, XC, YC, S ]
+ *      2 - In-plane Ellipse: [ INT, BGR, XC, YC, S1 (sigmaX), S2 (sigmaY) ]
+ * </pre>
+ * Storage grows as spots are added and is kept across clear(), so steady-state use
+ * (similar spot counts per frame) does not allocate except for returned parameters.
+ * <p>
+ * Not Thread-safe.  One instance is expected per FitStackThread.
+ *
+ * @see GaussianLMFit
+ * @see BatchGaussianFitStackThread
+ *
+ * @author Justin Hanselman
+ */
+public class BatchGaussianLMFit {
+
+    //Damping Parameters (same as GaussianLMFit)
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double LAMBDA_INCREASE = 10;
+    private static final double LAMBDA_DECREASE = .1;
+    private static final double MAX_LAMBDA = 1e10;
+    private static final double CHI_SQR_TOLERANCE = 1e-7;
+
+    //Spot Status
+    private static final byte ACTIVE = 0;
+    private static final byte CONVERGED = 1;
+    private static final byte FAILED = 2;
+    private static final byte MAX_ITERATIONS = 3;
+
+    private final int mode_;
+    private final int numParams_;
+    private final int numNormal_;
+    private final double baseLevel_;
+
+    //Packed Pixels
+    private short[] pixels_ = new short[0];
+    private int numPixels_ = 0;
+
+    //Per-Spot Arrays
+    private int numSpots_ = 0;
+    private int[] offsets_ = new int[0];
+    private int[] widths_ = new int[0];
+    private int[] heights_ = new int[0];
+    private double[][] params_;
+    private double[] chiSqr_ = new double[0];
+    private double[] lambda_ = new double[0];
+    private int[] iterations_ = new int[0];
+    private byte[] status_ = new byte[0];
+    private double[] jtj_ = new double[0];  //numSpots * numParams^2 (upper triangle used)
+    private double[] jtr_ = new double[0];  //numSpots * numParams
+    private int[] active_ = new int[0];
+
+    //Single-Spot Scratch
+    private final double[] row_;
+    private final double[] trial_;
+    private final double[] delta_;
+    private final double[] system_;
+
+    /**
+     * Constructor
+     *
+     * @param mode - fit circle (1) or ellipse (2)
+     * @param baseLevel - The baseLevel of the camera (used to seed the background estimate)
+     */
+    public BatchGaussianLMFit( int mode, double baseLevel ) {
+        if( mode != 1 && mode != 2 ) {
+            throw new IllegalArgumentException( "Batch Gaussian Fit only supports Shape Modes 1 and 2" );
+        }
+        mode_ = mode;
+        numParams_ = mode + 4;
+        numNormal_ = numParams_ * numParams_;
+        baseLevel_ = baseLevel;
+        params_ = new double[numParams_][0];
+        row_ = new double[numParams_];
+        trial_ = new double[numParams_];
+        delta_ = new double[numParams_];
+        system_ = new double[numNormal_];
+    }
+
+    /**
+     * Removes all spots from the batch (storage is retained for the next batch)
+     */
+    public void clear() {
+        numSpots_ = 0;
+        numPixels_ = 0;
+    }
+
+    /**
+     * Gets the Number of spots currently in the batch
+     *
+     * @return The number of spots added since the last clear()
+     */
+    public int getNumSpots() {
+        return numSpots_;
+    }
+
+    /**
+     * Appends a spot image to the packed pixel block.
+     *
+     * @param pixels The 16-bit pixels of the spot (row-major)
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @return The index of the spot in the batch
+     */
+    public int addSpot( short[] pixels, int width, int height ) {
+        return addSpot( pixels, 0, width, width, height );
+    }
+
+    /**
+     * Appends a box of a larger pixel array (i.e. a SpotView of a frame) to the packed pixel block.
+     *
+     * @param pixels The 16-bit pixels containing the spot (row-major)
+     * @param offset The index of the spot's top-left pixel
+     * @param stride The distance between rows of the spot in pixels
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @return The index of the spot in the batch
+     */
+    public int addSpot( short[] pixels, int offset, int stride, int width, int height ) {
+        int spotPixels = width * height;
+        ensureSpotCapacity( numSpots_ + 1 );
+        if( numPixels_ + spotPixels > pixels_.length ) {
+            short[] grown = new short[Math.max( 2 * pixels_.length, numPixels_ + spotPixels )];
+            System.arraycopy( pixels_, 0, grown, 0, numPixels_ );
+            pixels_ = grown;
+        }
+        for( int y = 0; y < height; ++y ) {
+            System.arraycopy( pixels, offset + y * stride, pixels_, numPixels_ + y * width, width );
+        }
+        int idx = numSpots_++;
+        offsets_[idx] = numPixels_;
+        widths_[idx] = width;
+        heights_[idx] = height;
+        numPixels_ += spotPixels;
+        return idx;
+    }
+
+    private void ensureSpotCapacity( int numSpots ) {
+        if( numSpots <= offsets_.length ) {
+            return;
+        }
+        int capacity = Math.max( 16, 2 * offsets_.length );
+        offsets_ = grow( offsets_, capacity );
+        widths_ = grow( widths_, capacity );
+        heights_ = grow( heights_, capacity );
+        iterations_ = grow( iterations_, capacity );
+        active_ = grow( active_, capacity );
+        chiSqr_ = grow( chiSqr_, capacity );
+        lambda_ = grow( lambda_, capacity );
+        jtj_ = grow( jtj_, capacity * numNormal_ );
+        jtr_ = grow( jtr_, capacity * numParams_ );
+        byte[] status = new byte[capacity];
+        System.arraycopy( status_, 0, status, 0, status_.length );
+        status_ = status;
+        for( int k = 0; k < numParams_; ++k ) {
+            params_[k] = grow( params_[k], capacity );
+        }
+    }
+
+    private static int[] grow( int[] src, int capacity ) {
+        int[] dest = new int[capacity];
+        System.arraycopy( src, 0, dest, 0, src.length );
+        return dest;
+    }
+
+    private static double[] grow( double[] src, int capacity ) {
+        double[] dest = new double[capacity];
+        System.arraycopy( src, 0, dest, 0, src.length );
+        return dest;
+    }
+
+    /**
+     * Fits every spot in the batch.  Each sweep takes at most one damped step per
+     * active spot; a spot leaves the active set once it converges, fails, or has
+     * used maxIterations steps.
+     *
+     * @param maxIterations The maximum number of steps (accepted or rejected) per spot
+     */
+    public void fitAll( int maxIterations ) {
+        int numActive = 0;
+        for( int s = 0; s < numSpots_; ++s ) {
+            estimateParameters( s );
+            lambda_[s] = INITIAL_LAMBDA;
+            iterations_[s] = 0;
+            chiSqr_[s] = buildNormalEquations( s, params_, s );
+            if( Double.isNaN( chiSqr_[s] ) || Double.isInfinite( chiSqr_[s] ) ) {
+                status_[s] = FAILED;
+            } else {
+                status_[s] = ACTIVE;
+                active_[numActive++] = s;
+            }
+        }
+
+        while( numActive > 0 ) {
+            int stillActive = 0;
+            for( int a = 0; a < numActive; ++a ) {
+                int s = active_[a];
+                step( s );
+                if( status_[s] == ACTIVE && iterations_[s] >= maxIterations ) {
+                    status_[s] = MAX_ITERATIONS;
+                }
+                if( status_[s] == ACTIVE ) {
+                    active_[stillActive++] = s;
+                }
+            }
+            numActive = stillActive;
+        }
+    }
+
+    //One damped Levenberg-Marquardt step for spot s
+    private void step( int s ) {
+        ++iterations_[s];
+        final int n = numParams_;
+        if( solveDamped( s, lambda_[s] ) ) {
+            for( int k = 0; k < n; ++k ) {
+                trial_[k] = params_[k][s] + delta_[k];
+            }
+            double trialChiSqr = chiSquare( s, trial_ );
+            if( trialChiSqr < chiSqr_[s] ) {
+                for( int k = 0; k < n; ++k ) {
+                    params_[k][s] = trial_[k];
+                }
+                lambda_[s] *= LAMBDA_DECREASE;
+                boolean converged = (chiSqr_[s] - trialChiSqr) <= CHI_SQR_TOLERANCE * chiSqr_[s];
+                chiSqr_[s] = buildNormalEquations( s, params_, s );
+                if( Double.isNaN( chiSqr_[s] ) || Double.isInfinite( chiSqr_[s] ) ) {
+                    status_[s] = FAILED;
+                } else if( converged ) {
+                    status_[s] = CONVERGED;
+                }
+                return;
+            }
+        }
+        lambda_[s] *= LAMBDA_INCREASE;
+        if( lambda_[s] >= MAX_LAMBDA ) {
+            //No downhill step is possible from here, current parameters are the minimum
+            status_[s] = CONVERGED;
+        }
+    }
+
+    /**
+     * Gets the fit parameters of a spot after fitAll()
+     *
+     * @param spotIdx The index returned from addSpot()
+     * @return {0.0} if the fit failed, or the parameters in the order described by the class
+     */
+    public double[] getParameters( int spotIdx ) {
+        if( status_[spotIdx] == FAILED ) {
+            return new double[] { 0.0 };
+        }
+        double[] paramsOut = new double[numParams_];
+        for( int k = 0; k < numParams_; ++k ) {
+            paramsOut[k] = params_[k][spotIdx];
+        }
+        return paramsOut;
+    }
+
+    /**
+     * Gets the Result of a spot after fitAll().  The chi-square (sum of squared residuals)
+     * is the one computed with the spot's final normal equations.
+     *
+     * @param spotIdx The index returned from addSpot()
+     * @return The FitResult of the spot
+     */
+    public FitResult getFitResult( int spotIdx ) {
+        if( status_[spotIdx] == FAILED ) {
+            return FitResult.failed( iterations_[spotIdx] );
+        }
+        double chiSqr = chiSqr_[spotIdx];
+        return new FitResult( getParameters( spotIdx ), chiSqr,
+                                Math.sqrt( chiSqr / (widths_[spotIdx] * heights_[spotIdx]) ),
+                                iterations_[spotIdx], status_[spotIdx] == CONVERGED );
+    }
+
+    /**
+     * Gets the number of steps used by a spot in the last fitAll()
+     *
+     * @param spotIdx The index returned from addSpot()
+     * @return The number of steps taken
+     */
+    public int getIterations( int spotIdx ) {
+        return iterations_[spotIdx];
+    }
+
+    /**
+     * Estimates the Initial Parameters of a spot identically to GaussianFit
+     */
+    private void estimateParameters( int s ) {
+        final short[] pixels = pixels_;
+        final int width = widths_[s];
+        final int height = heights_[s];
+        params_[S][s] = 0.9;
+        if( mode_ == 2 ) {
+            params_[S2][s] = 0.9;
+        }
+        params_[BGR][s] = Math.sqrt( baseLevel_ );
+
+        double mt = 0.0, mx = 0.0, my = 0.0;
+        int maxValue = 0;
+        int idx = offsets_[s];
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                int pointValue = pixels[idx] & 0xffff;
+                mt += pointValue;
+                mx += pointValue * x;
+                my += pointValue * y;
+                if( pointValue > maxValue ) {
+                    maxValue = pointValue;
+                }
+            }
+        }
+        params_[XC][s] = mx / mt;
+        params_[YC][s] = my / mt;
+        params_[INT][s] = maxValue;
+    }
+
+    /**
+     * Accumulates the upper triangle of J^T*J and J^T*r for spot s at params[k][col]
+     *
+     * @return The chi-square at the parameters
+     */
+    private double buildNormalEquations( int s, double[][] params, int col ) {
+        final int n = numParams_;
+        final double[] row = row_;
+        final double[] jtj = jtj_;
+        final double[] jtr = jtr_;
+        final int jtjOff = s * numNormal_;
+        final int jtrOff = s * n;
+        for( int i = 0; i < numNormal_; ++i ) {
+            jtj[jtjOff + i] = 0;
+        }
+        for( int i = 0; i < n; ++i ) {
+            jtr[jtrOff + i] = 0;
+        }
+
+        final double a = params[INT][col];
+        final double bgr = params[BGR][col];
+        final double xC = params[XC][col];
+        final double yC = params[YC][col];
+        final double s1 = params[S1][col];
+        final double s2 = (mode_ == 2) ? params[S2][col] : s1;
+        final double invS1Sqr = 1.0 / (s1 * s1);
+        final double invS2Sqr = 1.0 / (s2 * s2);
+        final double invS1Cube = invS1Sqr / s1;
+        final double invS2Cube = invS2Sqr / s2;
+
+        final short[] pixels = pixels_;
+        final int width = widths_[s];
+        final int height = heights_[s];
+        double chiSqr = 0;
+        int idx = offsets_[s];
+        row[BGR] = 1.0;
+        for( int y = 0; y < height; ++y ) {
+            final double dy = y - yC;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final double dx = x - xC;
+                double e = Math.exp( -.5 * (dx * dx * invS1Sqr + dy * dy * invS2Sqr) );
+                double q = a * e;
+                row[INT] = e;
+                row[XC] = dx * q * invS1Sqr;
+                row[YC] = dy * q * invS2Sqr;
+                if( mode_ == 1 ) {
+                    row[S] = (dx * dx + dy * dy) * q * invS1Cube;
+                } else {
+                    row[S1] = dx * dx * q * invS1Cube;
+                    row[S2] = dy * dy * q * invS2Cube;
+                }
+
+                double residual = (pixels[idx] & 0xffff) - (q + bgr);
+                chiSqr += residual * residual;
+                for( int j = 0; j < n; ++j ) {
+                    double rj = row[j];
+                    jtr[jtrOff + j] += rj * residual;
+                    int off = jtjOff + j * n;
+                    for( int k = j; k < n; ++k ) {
+                        jtj[off + k] += rj * row[k];
+                    }
+                }
+            }
+        }
+        return chiSqr;
+    }
+
+    //Chi-square only for a trial parameter set of spot s
+    private double chiSquare( int s, double[] params ) {
+        final double a = params[INT];
+        final double bgr = params[BGR];
+        final double xC = params[XC];
+        final double yC = params[YC];
+        final double s1 = params[S1];
+        final double s2 = (mode_ == 2) ? params[S2] : s1;
+        final double halfInvS1Sqr = .5 / (s1 * s1);
+        final double halfInvS2Sqr = .5 / (s2 * s2);
+
+        final short[] pixels = pixels_;
+        final int width = widths_[s];
+        final int height = heights_[s];
+        double chiSqr = 0;
+        int idx = offsets_[s];
+        for( int y = 0; y < height; ++y ) {
+            final double dy = y - yC;
+            final double yTerm = dy * dy * halfInvS2Sqr;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final double dx = x - xC;
+                double residual = (pixels[idx] & 0xffff) - (a * Math.exp( -(dx * dx * halfInvS1Sqr + yTerm) ) + bgr);
+                chiSqr += residual * residual;
+            }
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Solves the damped normal equations of spot s by Cholesky decomposition into
+     * system_ and stores the step in delta_.
+     *
+     * @return <code>false</code> if the damped system was not positive definite
+     */
+    private boolean solveDamped( int s, double lambda ) {
+        final int n = numParams_;
+        final double[] l = system_;
+        final int jtjOff = s * numNormal_;
+        final int jtrOff = s * n;
+        for( int j = 0; j < n; ++j ) {
+            for( int k = 0; k <= j; ++k ) {
+                l[j * n + k] = jtj_[jtjOff + k * n + j];
+            }
+            l[j * n + j] *= (1 + lambda);
+        }
+
+        for( int j = 0; j < n; ++j ) {
+            double sum = l[j * n + j];
+            for( int k = 0; k < j; ++k ) {
+                sum -= l[j * n + k] * l[j * n + k];
+            }
+            if( sum <= 0 || Double.isNaN( sum ) ) {
+                return false;
+            }
+            double diag = Math.sqrt( sum );
+            l[j * n + j] = diag;
+            for( int i = j + 1; i < n; ++i ) {
+                double v = l[i * n + j];
+                for( int k = 0; k < j; ++k ) {
+                    v -= l[i * n + k] * l[j * n + k];
+                }
+                l[i * n + j] = v / diag;
+            }
+        }
+
+        for( int i = 0; i < n; ++i ) {
+            double v = jtr_[jtrOff + i];
+            for( int k = 0; k < i; ++k ) {
+                v -= l[i * n + k] * delta_[k];
+            }
+            delta_[i] = v / l[i * n + i];
+        }
+        for( int i = n - 1; i >= 0; --i ) {
+            double v = delta_[i];
+            for( int k = i + 1; k < n; ++k ) {
+                v -= l[k * n + i] * delta_[k];
+            }
+            delta_[i] = v / l[i * n + i];
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ *  Orders the candidate points of a frame by how spot-like they are, so that only the
+ *  best few need a full Gaussian fit.
+ * <p>
+ *  A candidate is scored from a SummedAreaTable of the frame in a constant number of lookups:
+ *  <pre>
+ *     peak        = mean of the 3x3 core - mean of the border of the box (local background)
+ *     compactness = core sum above background / box sum above background (at most 1)
+ *     score       = peak * compactness
+ *  </pre>
+ *  A fiducial has a bright, compact core.  Maxima of the noise have little peak, and
+ *  maxima on broad structures (out of focus debris, background gradients) spread most of
+ *  their excess outside of the core.
+ * <p>
+ *  Score storage is kept between calls, so a ranker should be owned by a single thread.
+ *
+ * @see SummedAreaTable
+ * @see ImageRegionFitThreadTest
+ *
+ * @author Justin Hanselman
+ */
+public class CandidateRanker {
+
+    //Half size of the core that a spot's peak is measured over
+    private static final int CORE_HALF_SIZE = 1;
+
+    private double[] scores_ = new double[0];
+
+    public CandidateRanker() {
+    }
+
+    /**
+     *  Scores a candidate point.  The box of the candidate must lie within the table.
+     *
+     * @param table The SummedAreaTable of the frame
+     * @param x The x of the candidate (pixel)
+     * @param y The y of the candidate (pixel)
+     * @param halfBox The half size of the box that the candidate's background is measured on
+     * @return The score of the candidate, 0 if it has no peak above its background
+     */
+    public static double score( SummedAreaTable table, int x, int y, int halfBox ) {
+        int size = 2 * halfBox;
+        int coreSize = 2 * CORE_HALF_SIZE + 1;
+        int coreCount = coreSize * coreSize;
+        double background = ((double) table.getBorderSum( x - halfBox, y - halfBox, size, size ))
+                                / SummedAreaTable.getBorderCount( size, size );
+        double coreExcess = table.getSum( x - CORE_HALF_SIZE, y - CORE_HALF_SIZE, coreSize, coreSize )
+                                - coreCount * background;
+        if( coreExcess <= 0 ) {
+            return 0;
+        }
+        double boxExcess = table.getSum( x - halfBox, y - halfBox, size, size ) - size * size * background;
+        double compactness = coreExcess / Math.max( boxExcess, coreExcess );
+        return (coreExcess / coreCount) * compactness;
+    }
+
+    /**
+     *  Sorts candidates from the highest to the lowest score.  Candidates whose box is not
+     *  within the table are ranked last.
+     *
+     * @param table The SummedAreaTable of the frame
+     * @param candidates The candidate points ({x, y} pairs), sorted in place
+     * @param halfBox The half size of the box that backgrounds are measured on
+     */
+    public void rank( SummedAreaTable table, int[][] candidates, int halfBox ) {
+        int numCandidates = candidates.length;
+        if( scores_.length < numCandidates ) {
+            scores_ = new double[ numCandidates ];
+        }
+        final double[] scores = scores_;
+        Integer[] order = new Integer[ numCandidates ];
+        int size = 2 * halfBox;
+        for( int i = 0; i < numCandidates; ++i ) {
+            int x = candidates[i][0];
+            int y = candidates[i][1];
+            scores[i] = table.contains( x - halfBox, y - halfBox, size, size )
+                            ? score( table, x, y, halfBox ) : -1;
+            order[i] = i;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer o1, Integer o2 ) {
+                return Double.compare( scores[o2], scores[o1] );
+            }
+        } );
+
+        int[][] unranked = candidates.clone();
+        double[] unrankedScores = Arrays.copyOf( scores, numCandidates );
+        for( int i = 0; i < numCandidates; ++i ) {
+            candidates[i] = unranked[ order[i] ];
+            scores[i] = unrankedScores[ order[i] ];
+        }
+    }
+
+    /**
+     *  Gets the score of a candidate from the last rank()
+     *
+     * @param rank The position of the candidate after rank()
+     * @return The score of the candidate (-1 if its box was not within the table)
+     */
+    public double getScore( int rank ) {
+        return scores_[rank];
+    }
+
+    /**
+     *  Gets the number of ranked candidates to fit within a budget.  If none of the first
+     *  budget candidates matches an expected position (i.e. the previous frame's spot of a
+     *  track), the count is extended to the best ranked candidate that does, so that a
+     *  tracked spot dimmer than the budget's worth of other maxima is still fit.
+     *
+     * @param ranked The candidates, sorted by rank()
+     * @param budget The number of candidates to fit (0 or less fits all of them)
+     * @param matchX The expected x of a spot (pixels)
+     * @param matchY The expected y of a spot (pixels)
+     * @param matchRadius The distance (pixels) from the expected position that is a match,
+     *                    or a negative number if no position is expected
+     * @return The number of leading candidates to fit
+     */
+    public static int getNumToFit( int[][] ranked, int budget, double matchX, double matchY, double matchRadius ) {
+        if( budget <= 0 || budget >= ranked.length ) {
+            return ranked.length;
+        }
+        if( matchRadius < 0 ) {
+            return budget;
+        }
+        double radiusSqr = matchRadius * matchRadius;
+        for( int i = 0; i < ranked.length; ++i ) {
+            double dx = ranked[i][0] - matchX;
+            double dy = ranked[i][1] - matchY;
+            if( dx * dx + dy * dy <= radiusSqr ) {
+                return Math.max( budget, i + 1 );
+            }
+        }
+        //Nothing matches, so only the budget is worth fitting
+        return budget;
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+/**
+ *  Difference of Gaussians Prefilter that only evaluates a region of an image.
+ * <p>
+ *  The narrow and wide Gaussians are separable, so each is applied as a horizontal then
+ *  vertical 1D kernel.  Kernels are computed once on construction.  Only the requested
+ *  region plus a margin of the wide kernel's radius is read from the image, and pixels
+ *  beyond the image edge take the value of the nearest edge pixel (as with ImageJ's GaussianBlur).
+ * <p>
+ *  All intermediate and output arrays are kept between calls and only grow, so a filter
+ *  should be owned by a single thread.  For integer images, negative differences are set
+ *  to 0 (as with ImageJ's subtract on 8 and 16-bit images).
+ *
+ * @see FindLocalMaxima
+ *
+ * @author Justin Hanselman
+ */
+public class DoGFilter {
+
+    private final double sigma1_;
+    private final double sigma2_;
+    //Half Kernels (index 0 is the center)
+    private final float[] kernel1_;
+    private final float[] kernel2_;
+    private final int margin_;
+
+    //Scratch Buffers
+    private float[] source_ = new float[0];
+    private float[] rows1_ = new float[0];
+    private float[] rows2_ = new float[0];
+    private float[] result_ = new float[0];
+
+    /**
+     *  Constructor
+     *
+     * @param sigma1 The standard deviation of the narrow Gaussian (pixels)
+     * @param sigma2 The standard deviation of the wide Gaussian that is subtracted (pixels)
+     * @param accuracy The relative value at which the kernels are cut off (e.g. 0.01)
+     */
+    public DoGFilter( double sigma1, double sigma2, double accuracy ) {
+        if( sigma1 <= 0 || sigma2 <= 0 || accuracy <= 0 || accuracy >= 1 ) {
+            throw new IllegalArgumentException( "DoGFilter sigmas must be positive and accuracy must be between 0 and 1" );
+        }
+        sigma1_ = sigma1;
+        sigma2_ = sigma2;
+        kernel1_ = makeKernel( sigma1, accuracy );
+        kernel2_ = makeKernel( sigma2, accuracy );
+        margin_ = Math.max( kernel1_.length, kernel2_.length ) - 1;
+    }
+
+    /**
+     *  Creates a normalized half kernel for a Gaussian
+     *
+     * @param sigma The standard deviation (pixels)
+     * @param accuracy The relative value at which the kernel is cut off
+     * @return The kernel values from the center outward
+     */
+    private static float[] makeKernel( double sigma, double accuracy ) {
+        int radius = (int) Math.ceil( sigma * Math.sqrt( -2 * Math.log( accuracy ) ) ) + 1;
+        float[] kernel = new float[ radius + 1 ];
+        double sum = 0;
+        for( int i = 0; i <= radius; ++i ) {
+            double value = Math.exp( -.5 * i * i / (sigma * sigma) );
+            kernel[i] = (float) value;
+            sum += (i == 0) ? value : 2 * value;
+        }
+        for( int i = 0; i <= radius; ++i ) {
+            kernel[i] = (float) (kernel[i] / sum);
+        }
+        return kernel;
+    }
+
+    public double getSigma1() {
+        return sigma1_;
+    }
+
+    public double getSigma2() {
+        return sigma2_;
+    }
+
+    /**
+     *  Gets the number of pixels read beyond each side of a filtered region
+     *
+     * @return The radius of the widest kernel
+     */
+    public int getMargin() {
+        return margin_;
+    }
+
+    /**
+     *  Filters a region of an image.
+     * <p>
+     *  The returned array is a scratch buffer of this filter and is overwritten
+     *  by the next call.  It may be longer than the region.
+     *
+     * @param iProc The image to filter
+     * @param region The region of iProc to produce (must lie within the image)
+     * @return The filtered region, row-major with a width of region.width
+     */
+    public float[] filter( ImageProcessor iProc, Rectangle region ) {
+        int width = iProc.getWidth();
+        int height = iProc.getHeight();
+        if( region.x < 0 || region.y < 0 || region.x + region.width > width
+                || region.y + region.height > height ) {
+            throw new IllegalArgumentException( "DoGFilter region must lie within the image" );
+        }
+        int sWidth = region.width + 2 * margin_;
+        int sHeight = region.height + 2 * margin_;
+        source_ = ensureCapacity( source_, sWidth * sHeight );
+        rows1_ = ensureCapacity( rows1_, region.width * sHeight );
+        rows2_ = ensureCapacity( rows2_, region.width * sHeight );
+        result_ = ensureCapacity( result_, region.width * region.height );
+
+        boolean clampNegative = copySource( iProc, region.x - margin_, region.y - margin_, sWidth, sHeight );
+
+        //Horizontal Pass for both kernels
+        for( int y = 0; y < sHeight; ++y ) {
+            int sOffset = y * sWidth + margin_;
+            int rOffset = y * region.width;
+            for( int x = 0; x < region.width; ++x ) {
+                rows1_[ rOffset + x ] = convolve( source_, sOffset + x, 1, kernel1_ );
+                rows2_[ rOffset + x ] = convolve( source_, sOffset + x, 1, kernel2_ );
+            }
+        }
+
+        //Vertical Pass and Difference
+        for( int y = 0; y < region.height; ++y ) {
+            int rOffset = (y + margin_) * region.width;
+            int offset = y * region.width;
+            for( int x = 0; x < region.width; ++x ) {
+                float value = convolve( rows1_, rOffset + x, region.width, kernel1_ )
+                                - convolve( rows2_, rOffset + x, region.width, kernel2_ );
+                result_[ offset + x ] = (clampNegative && value < 0) ? 0 : value;
+            }
+        }
+        return result_;
+    }
+
+    private static float[] ensureCapacity( float[] buffer, int size ) {
+        return (buffer.length >= size) ? buffer : new float[ size ];
+    }
+
+    private static float convolve( float[] values, int center, int stride, float[] kernel ) {
+        float sum = kernel[0] * values[center];
+        for( int k = 1; k < kernel.length; ++k ) {
+            int offset = k * stride;
+            sum += kernel[k] * (values[ center - offset ] + values[ center + offset ]);
+        }
+        return sum;
+    }
+
+    /**
+     *  Copies a block of the image into source_, replicating edge pixels for
+     *  coordinates outside of the image
+     *
+     * @return <code>true</code> if the image has integer pixels
+     */
+    private boolean copySource( ImageProcessor iProc, int x0, int y0, int sWidth, int sHeight ) {
+        int width = iProc.getWidth();
+        int height = iProc.getHeight();
+        Object pixels = iProc.getPixels();
+        short[] shortPixels = (pixels instanceof short[]) ? (short[]) pixels : null;
+        byte[] bytePixels = (pixels instanceof byte[]) ? (byte[]) pixels : null;
+        float[] floatPixels = (pixels instanceof float[]) ? (float[]) pixels : null;
+        for( int y = 0; y < sHeight; ++y ) {
+            int row = Math.min( Math.max( y0 + y, 0 ), height - 1 ) * width;
+            int offset = y * sWidth;
+            for( int x = 0; x < sWidth; ++x ) {
+                int col = Math.min( Math.max( x0 + x, 0 ), width - 1 );
+                float value;
+                if( shortPixels != null ) {
+                    value = shortPixels[ row + col ] & 0xffff;
+                } else if( bytePixels != null ) {
+                    value = bytePixels[ row + col ] & 0xff;
+                } else if( floatPixels != null ) {
+                    value = floatPixels[ row + col ];
+                } else {
+                    value = iProc.getPixelValue( col, row / width );
+                }
+                source_[ offset + x ] = value;
+            }
+        }
+        return floatPixels == null;
+    }
+
+}
@@ -11,9 +11,7 @@
 package edu.hope.superresolution.fitters;
 
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
 import ij.process.ImageProcessor;
-import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 
@@ -23,12 +21,58 @@ import java.awt.Rectangle;
  * @author nico
  */
 public class FindLocalMaxima {
-   private static final GaussianBlur filter_ = new GaussianBlur();
-   private static final ImageCalculator ic_ = new ImageCalculator();
+   //Prefilter for GAUSSIAN1_5, each thread keeps its own scratch buffers
+   private static final ThreadLocal<DoGFilter> dogFilter_ = new ThreadLocal<DoGFilter>() {
+      @Override
+      protected DoGFilter initialValue() {
+         return new DoGFilter( 0.4, 2.0, 0.01 );
+      }
+   };
+   //Prefilter for WAVELET, each thread keeps its own planes
+   private static final ThreadLocal<AtrousWaveletFilter> waveletFilter_ = new ThreadLocal<AtrousWaveletFilter>() {
+      @Override
+      protected AtrousWaveletFilter initialValue() {
+         return new AtrousWaveletFilter();
+      }
+   };
+   private static final ThreadLocal<RunningMaxDetector> runningMax_ = new ThreadLocal<RunningMaxDetector>() {
+      @Override
+      protected RunningMaxDetector initialValue() {
+         return new RunningMaxDetector();
+      }
+   };
    
+   /**
+    * Prefilter applied before the search for maxima.
+    * <p>
+    * NONE - The raw pixels are searched and compared to the threshold.
+    * <p>
+    * GAUSSIAN1_5 - Difference of Gaussians (see DoGFilter), compared to the threshold.
+    * <p>
+    * WAVELET - Second plane of an a trous wavelet transform (see AtrousWaveletFilter).  The 
+    *           plane has no background, so maxima are compared to snr times the noise of the 
+    *           first plane, and the threshold is compared to their pixels in the image.
+    */
    public enum FilterType {
       NONE,
-      GAUSSIAN1_5
+      GAUSSIAN1_5,
+      WAVELET
+   }
+
+   /**
+    * Method used to find the maxima after prefiltering.
+    * <p>
+    * BLOCK - Block search of Neubeck and Van Gool, whose cost grows with n.  Only the 
+    *         largest pixel of each 2n+1 block is a candidate, and the last partial 
+    *         blocks of the roi are not searched.
+    * <p>
+    * RUNNING_MAX - Compares each pixel to the dilated image (see RunningMaxDetector), whose 
+    *               cost is independent of n.  Every maximum of a 2n+1 neighborhood in the 
+    *               roi is found.  Suited to large n (defocused fiducials).
+    */
+   public enum DetectorType {
+      BLOCK,
+      RUNNING_MAX
    }
 
    /**
@@ -39,47 +83,171 @@ public class FindLocalMaxima {
     * @param iPlus - ImagePlus object in which to look for local maxima
     * @param n - minimum distance to other local maximum (2n is the search data centered around the the point)
     * @param threshold - value below which a maximum will be rejected
-    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
     * @return Polygon with maxima 
     */
    public static Polygon FindMax(ImagePlus iPlus, int n, double snr, int noiseMax, int threshold, FilterType filterType) {
       return FindMax( iPlus.getProcessor(), n , snr, noiseMax, threshold, filterType );
    }
 
+   /**
+    * Static utility function to find local maxima in an Image    
+    * <p>
+    *  Alias for FindMax( ImageProcessor, int, double, int, int, FilterType, DetectorType ) 
+    *  with the BLOCK detector
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param n - minimum distance to other local maximum (2n is the search data centered around the the point)
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+    * @return Polygon with maxima 
+    */
+   public static Polygon FindMax( ImageProcessor iProc, int n, double snr, int noiseMax, int threshold, FilterType filterType ) {
+      return FindMax( iProc, n, snr, noiseMax, threshold, filterType, DetectorType.BLOCK );
+   }
+
    /**
     * Static utility function to find local maxima in an Image
+    * <p>
+    * 16-bit, 8-bit and 32-bit images are searched directly on their pixel arrays 
+    * (see findMaxShort(), findMaxByte() and findMaxFloat()), other ImageProcessors 
+    * through getPixel().  The maxima are identical to the getPixel() search, except that 
+    * 32-bit images are compared by float value instead of by their raw int bits.
+    * <p>
+    * The GAUSSIAN1_5 and WAVELET prefilters are only evaluated on the roi and the 
+    * n pixels around it that are checked for neighboring maxima.
     * 
     * @param iProc - ImageProcessor object in which to look for local maxima
     * @param n - minimum distance to other local maximum (2n is the search data centered around the the point)
     * @param snr - The minimum Signal To Noise Ratio Accepatble (to be multiplied by noiseMax and offset from threshold)
     * @param noiseMax- the maximum anticipated value of the noise from mean
     * @param threshold - value below which a maximum will be rejected
-    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+    * @param detectorType - The search for maxima after prefiltering
     * @return Polygon with maxima 
     */
-   public static Polygon FindMax( ImageProcessor iProc, int n, double snr, int noiseMax, int threshold, FilterType filterType ) {
+   public static Polygon FindMax( ImageProcessor iProc, int n, double snr, int noiseMax, int threshold, 
+                                  FilterType filterType, DetectorType detectorType ) {
+      return FindMax( iProc, iProc.getRoi(), n, snr, noiseMax, threshold, filterType, detectorType );
+   }
+
+   /**
+    * Static utility function to find local maxima in a region of an Image, regardless of 
+    * the Roi set on the ImageProcessor.  Only reads from iProc, so that regions of 
+    * the same ImageProcessor may be searched concurrently (see TiledMaximaFinder).
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - The region of iProc to search (must lie within the image)
+    * @param n - minimum distance to other local maximum (2n is the search data centered around the the point)
+    * @param snr - The minimum Signal To Noise Ratio Accepatble (to be multiplied by noiseMax and offset from threshold)
+    * @param noiseMax- the maximum anticipated value of the noise from mean
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+    * @param detectorType - The search for maxima after prefiltering
+    * @return Polygon with maxima 
+    */
+   public static Polygon FindMax( ImageProcessor iProc, Rectangle roi, int n, double snr, int noiseMax, 
+                                  int threshold, FilterType filterType, DetectorType detectorType ) {
+      return FindMax( iProc, roi, n, snr, noiseMax, threshold, filterType, detectorType, Double.NaN );
+   }
+
+   /**
+    * FindMax( ImageProcessor, Rectangle, int, double, int, int, FilterType, DetectorType ) with
+    * the WAVELET noise supplied instead of measured on the filtered region.  This lets regions
+    * of a larger roi be searched against the same noise (see getWaveletNoise()).
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - The region of iProc to search (must lie within the image)
+    * @param n - minimum distance to other local maximum (2n is the search data centered around the the point)
+    * @param snr - The minimum Signal To Noise Ratio Accepatble (to be multiplied by noiseMax and offset from threshold)
+    * @param noiseMax- the maximum anticipated value of the noise from mean
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+    * @param detectorType - The search for maxima after prefiltering
+    * @param waveletNoise - The noise that snr multiplies for WAVELET, or NaN to measure it on the roi
+    * @return Polygon with maxima 
+    */
+   public static Polygon FindMax( ImageProcessor iProc, Rectangle roi, int n, double snr, int noiseMax, 
+                                  int threshold, FilterType filterType, DetectorType detectorType,
+                                  double waveletNoise ) {
       
       Polygon maxima = new Polygon();
-       
-      Rectangle roi = iProc.getRoi();
       
-      // Prefilter if needed
+      boolean noThreshold = (threshold + snr * noiseMax == 0);
+      //WAVELET compares the threshold to the image, after the search of its plane
+      boolean thresholdPixels = false;
+      int pixelThreshold = threshold;
+      
+      // Prefilter if needed, only the roi and the surroundings of its maxima are filtered
+      Rectangle region = getFilterRegion( iProc, roi, n );
+      float[] filtered = null;
       switch (filterType) {
          case GAUSSIAN1_5 : 
-            // TODO: if there is an ROI, we only need to filter_ in the ROI
-            ImageProcessor iProcG1 = iProc.duplicate();
-            ImageProcessor iProcG5 = iProc.duplicate();
-            filter_.blurGaussian(iProcG1, 0.4, 0.4, 0.01); 
-            filter_.blurGaussian(iProcG5, 2.0, 2.0, 0.01);
-            ImagePlus p1 = new ImagePlus("G1", iProcG1);
-            ImagePlus p5 = new ImagePlus("G5", iProcG5);
-            ic_.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
-                      
+            filtered = dogFilter_.get().filter( iProc, region );
             break;
+         case WAVELET :
+            AtrousWaveletFilter wavelet = waveletFilter_.get();
+            filtered = wavelet.filter( iProc, region );
+            if( !noThreshold ) {
+               // shifting the plane by its threshold leaves the maxima in place
+               double noise = Double.isNaN( waveletNoise ) ? wavelet.getNoise() : waveletNoise;
+               float planeThreshold = (float) (snr * noise);
+               int size = region.width * region.height;
+               for (int i = 0; i < size; i++) {
+                  filtered[i] -= planeThreshold;
+               }
+               threshold = 0;
+               thresholdPixels = true;
+            }
+            break;
+      }
+
+      if( filtered != null ) {
+         Rectangle regionRoi = new Rectangle( roi.x - region.x, roi.y - region.y, roi.width, roi.height );
+         if( detectorType == DetectorType.RUNNING_MAX ) {
+            runningMax_.get().findMaxima( filtered, region.width, region.height, regionRoi, n, noThreshold, 
+                                          threshold, region.x, region.y, maxima );
+         } else {
+            Polygon regionMaxima = new Polygon();
+            findMaxFloat( filtered, region.width, region.height, regionRoi, n, noThreshold, threshold, regionMaxima );
+            for (int i = 0; i < regionMaxima.npoints; i++) {
+               maxima.addPoint( regionMaxima.xpoints[i] + region.x, regionMaxima.ypoints[i] + region.y );
+            }
+         }
+         return thresholdPixels ? thresholdMaxima( iProc, maxima, pixelThreshold ) : maxima;
+      }
+
+      if( detectorType == DetectorType.RUNNING_MAX ) {
+         runningMax_.get().findMaxima( iProc, roi, n, noThreshold, threshold, maxima );
+         return maxima;
       }
 
+      Object pixels = iProc.getPixels();
+      if( pixels instanceof short[] ) {
+         findMaxShort( (short[]) pixels, iProc.getWidth(), iProc.getHeight(), roi, n, noThreshold, threshold, maxima );
+      } else if( pixels instanceof byte[] ) {
+         findMaxByte( (byte[]) pixels, iProc.getWidth(), iProc.getHeight(), roi, n, noThreshold, threshold, maxima );
+      } else if( pixels instanceof float[] ) {
+         findMaxFloat( (float[]) pixels, iProc.getWidth(), iProc.getHeight(), roi, n, noThreshold, threshold, maxima );
+      } else {
+         findMaxGeneric( iProc, roi, n, noThreshold, threshold, maxima );
+      }
+      return maxima;
+   }
 
+   /**
+    * getPixel() Implementation of the Block search (used for ColorProcessors, and kept 
+    * as the reference for the typed implementations)
+    * 
+    * @param iProc - ImageProcessor in which to look for local maxima
+    * @param roi - The region of iProc to search
+    * @param n - minimum distance to other local maximum
+    * @param noThreshold - Whether every local maximum is accepted regardless of the threshold
+    * @param threshold - value below which a maximum will be rejected
+    * @param maxima - Polygon to add the maxima to
+    */
+   static void findMaxGeneric( ImageProcessor iProc, Rectangle roi, int n, boolean noThreshold,
+                               int threshold, Polygon maxima ) {
       // divide the image up in blocks of size 2n and find local maxima
       int n2 = 2*n + 1;
       // calculate borders once
@@ -143,14 +311,233 @@ public class FindLocalMaxima {
             }
             
             //Check to See if the Value is above the overall SNR permitted
-            if( !stop && (threshold+ snr * noiseMax == 0 || 
+            if( !stop && (noThreshold || 
                     (iProc.getPixel(mi, mj)  > threshold/* + snr * noiseMax*/))) {
                 maxima.addPoint(mi, mj);
             }
          }
       }
-      
-      return maxima;
+   }
+
+   /**
+    * Block search of findMaxGeneric() on the pixels of a 16-bit image.  The candidate 
+    * value is kept in a local, rows are scanned contiguously, and the check of the 
+    * surrounding blocks stops at the first greater pixel.  Pixels outside of the image 
+    * are skipped (getPixel() would return 0, which can not beat an unsigned candidate).
+    */
+   private static void findMaxShort( short[] pixels, int width, int height, Rectangle roi, int n,
+                                     boolean noThreshold, int threshold, Polygon maxima ) {
+      int n2 = 2*n + 1;
+      int xRealEnd = roi.x + roi.width;
+      int xEnd = xRealEnd - n;
+      int yRealEnd = roi.y + roi.height;
+      int yEnd = yRealEnd - n;
+      for (int i=roi.x; i <= xEnd - n - 1; i+=n2) {
+         int iBlockEnd = Math.min( i + n2, xRealEnd );
+         for (int j=roi.y; j <= yEnd - n - 1; j+=n2) {
+            int jBlockEnd = Math.min( j + n2, yRealEnd );
+            int mi = i;
+            int mj = j;
+            int max = pixels[j * width + i] & 0xffff;
+            // row-major scan, ties go to the lowest x (then y) as in the column-major scan
+            for (int j2 = j; j2 < jBlockEnd; j2++) {
+               int offset = j2 * width;
+               for (int i2 = i; i2 < iBlockEnd; i2++) {
+                  int value = pixels[offset + i2] & 0xffff;
+                  if (value > max || (value == max && i2 < mi)) {
+                     max = value;
+                     mi = i2;
+                     mj = j2;
+                  }
+               }
+            }
+            // columns in block to the left, columns to the right, rows on top, rows below
+            boolean stop = (mi - n < i && i > 0)
+                    && exceedsShort( pixels, width, height, mi - n, i - 1, mj - n, mj + n, max );
+            stop = stop || (mi + n >= i + n2
+                    && exceedsShort( pixels, width, height, i + n2, mi + n, mj - n, mj + n, max ));
+            stop = stop || (mj - n < j && j > 0
+                    && exceedsShort( pixels, width, height, mi - n, mi + n, mj - n, j - 1, max ));
+            stop = stop || (mj + n >= j + n2
+                    && exceedsShort( pixels, width, height, mi - n, mi + n, j + n2, mj + n, max ));
+            if (!stop && (noThreshold || max > threshold)) {
+               maxima.addPoint(mi, mj);
+            }
+         }
+      }
+   }
+
+   //Whether any in-image pixel of [x0, x1] x [y0, y1] is greater than max
+   private static boolean exceedsShort( short[] pixels, int width, int height,
+                                        int x0, int x1, int y0, int y1, int max ) {
+      x0 = Math.max( x0, 0 );
+      x1 = Math.min( x1, width - 1 );
+      y0 = Math.max( y0, 0 );
+      y1 = Math.min( y1, height - 1 );
+      for (int y = y0; y <= y1; y++) {
+         int offset = y * width;
+         for (int x = x0; x <= x1; x++) {
+            if ((pixels[offset + x] & 0xffff) > max) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * findMaxShort() for the pixels of an 8-bit image
+    */
+   private static void findMaxByte( byte[] pixels, int width, int height, Rectangle roi, int n,
+                                    boolean noThreshold, int threshold, Polygon maxima ) {
+      int n2 = 2*n + 1;
+      int xRealEnd = roi.x + roi.width;
+      int xEnd = xRealEnd - n;
+      int yRealEnd = roi.y + roi.height;
+      int yEnd = yRealEnd - n;
+      for (int i=roi.x; i <= xEnd - n - 1; i+=n2) {
+         int iBlockEnd = Math.min( i + n2, xRealEnd );
+         for (int j=roi.y; j <= yEnd - n - 1; j+=n2) {
+            int jBlockEnd = Math.min( j + n2, yRealEnd );
+            int mi = i;
+            int mj = j;
+            int max = pixels[j * width + i] & 0xff;
+            for (int j2 = j; j2 < jBlockEnd; j2++) {
+               int offset = j2 * width;
+               for (int i2 = i; i2 < iBlockEnd; i2++) {
+                  int value = pixels[offset + i2] & 0xff;
+                  if (value > max || (value == max && i2 < mi)) {
+                     max = value;
+                     mi = i2;
+                     mj = j2;
+                  }
+               }
+            }
+            boolean stop = (mi - n < i && i > 0)
+                    && exceedsByte( pixels, width, height, mi - n, i - 1, mj - n, mj + n, max );
+            stop = stop || (mi + n >= i + n2
+                    && exceedsByte( pixels, width, height, i + n2, mi + n, mj - n, mj + n, max ));
+            stop = stop || (mj - n < j && j > 0
+                    && exceedsByte( pixels, width, height, mi - n, mi + n, mj - n, j - 1, max ));
+            stop = stop || (mj + n >= j + n2
+                    && exceedsByte( pixels, width, height, mi - n, mi + n, j + n2, mj + n, max ));
+            if (!stop && (noThreshold || max > threshold)) {
+               maxima.addPoint(mi, mj);
+            }
+         }
+      }
+   }
+
+   private static boolean exceedsByte( byte[] pixels, int width, int height,
+                                       int x0, int x1, int y0, int y1, int max ) {
+      x0 = Math.max( x0, 0 );
+      x1 = Math.min( x1, width - 1 );
+      y0 = Math.max( y0, 0 );
+      y1 = Math.min( y1, height - 1 );
+      for (int y = y0; y <= y1; y++) {
+         int offset = y * width;
+         for (int x = x0; x <= x1; x++) {
+            if ((pixels[offset + x] & 0xff) > max) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * findMaxShort() for the pixels of a 32-bit image.  Values (and the threshold) are 
+    * compared as floats.  Pixels outside of the image count as 0, as with getPixel().
+    */
+   private static void findMaxFloat( float[] pixels, int width, int height, Rectangle roi, int n,
+                                     boolean noThreshold, int threshold, Polygon maxima ) {
+      int n2 = 2*n + 1;
+      int xRealEnd = roi.x + roi.width;
+      int xEnd = xRealEnd - n;
+      int yRealEnd = roi.y + roi.height;
+      int yEnd = yRealEnd - n;
+      for (int i=roi.x; i <= xEnd - n - 1; i+=n2) {
+         int iBlockEnd = Math.min( i + n2, xRealEnd );
+         for (int j=roi.y; j <= yEnd - n - 1; j+=n2) {
+            int jBlockEnd = Math.min( j + n2, yRealEnd );
+            int mi = i;
+            int mj = j;
+            float max = pixels[j * width + i];
+            for (int j2 = j; j2 < jBlockEnd; j2++) {
+               int offset = j2 * width;
+               for (int i2 = i; i2 < iBlockEnd; i2++) {
+                  float value = pixels[offset + i2];
+                  if (value > max || (value == max && i2 < mi)) {
+                     max = value;
+                     mi = i2;
+                     mj = j2;
+                  }
+               }
+            }
+            boolean stop = (mi - n < i && i > 0)
+                    && exceedsFloat( pixels, width, height, mi - n, i - 1, mj - n, mj + n, max );
+            stop = stop || (mi + n >= i + n2
+                    && exceedsFloat( pixels, width, height, i + n2, mi + n, mj - n, mj + n, max ));
+            stop = stop || (mj - n < j && j > 0
+                    && exceedsFloat( pixels, width, height, mi - n, mi + n, mj - n, j - 1, max ));
+            stop = stop || (mj + n >= j + n2
+                    && exceedsFloat( pixels, width, height, mi - n, mi + n, j + n2, mj + n, max ));
+            if (!stop && (noThreshold || max > threshold)) {
+               maxima.addPoint(mi, mj);
+            }
+         }
+      }
+   }
+
+   private static boolean exceedsFloat( float[] pixels, int width, int height,
+                                        int x0, int x1, int y0, int y1, float max ) {
+      //Pixels outside of the image are 0
+      if (max < 0 && (x0 < 0 || y0 < 0 || x1 >= width || y1 >= height)) {
+         return true;
+      }
+      x0 = Math.max( x0, 0 );
+      x1 = Math.min( x1, width - 1 );
+      y0 = Math.max( y0, 0 );
+      y1 = Math.min( y1, height - 1 );
+      for (int y = y0; y <= y1; y++) {
+         int offset = y * width;
+         for (int x = x0; x <= x1; x++) {
+            if (pixels[offset + x] > max) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Measures the noise that a WAVELET FindMax() of the roi compares snr to, so that 
+    * regions of the roi may be searched against it (see TiledMaximaFinder)
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - The region of iProc that would be searched
+    * @param n - minimum distance to other local maximum
+    * @return The noise of the first wavelet plane over the roi and its surroundings
+    */
+   public static double getWaveletNoise( ImageProcessor iProc, Rectangle roi, int n ) {
+      return waveletFilter_.get().measureNoise( iProc, getFilterRegion( iProc, roi, n ) );
+   }
+
+   //The roi and the n pixels around it that are checked for neighboring maxima, within the image
+   private static Rectangle getFilterRegion( ImageProcessor iProc, Rectangle roi, int n ) {
+      return new Rectangle( roi.x - n, roi.y - n, roi.width + 2*n, roi.height + 2*n )
+                    .intersection( new Rectangle( 0, 0, iProc.getWidth(), iProc.getHeight() ) );
+   }
+
+   //Keeps the maxima whose pixels in the image are above the threshold
+   private static Polygon thresholdMaxima( ImageProcessor iProc, Polygon maxima, int threshold ) {
+      Polygon kept = new Polygon();
+      for (int i = 0; i < maxima.npoints; i++) {
+         if (iProc.getPixelValue( maxima.xpoints[i], maxima.ypoints[i] ) > threshold) {
+            kept.addPoint( maxima.xpoints[i], maxima.ypoints[i] );
+         }
+      }
+      return kept;
    }
 
    // Filters local maxima list using the ImageJ findMaxima Threshold algorithm
@@ -0,0 +1,170 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived, bounded worker threads for fitting, shared by every ImageRegionFitThreadTest
+ * (and so every FiducialAreaProcessor).
+ * <p>
+ * Fitting an Roi used to start a new Thread for the Roi and one per FitStackThread, so that
+ * tracking a dozen fiducial areas started dozens of threads every frame.  Instead, work is
+ * submitted as tasks to two fixed sets of threads that live as long as the plugin:
+ * <pre>
+ *     Region Workers - run ImageRegionFitThreadTest (finding spots and feeding its queue)
+ *     Fit Workers    - run FitStackThreads (taking spots from the queue and fitting them)
+ * </pre>
+ * The two are kept separate since a region task waits on the fit tasks of its Roi; if they
+ * shared threads, a few Rois could occupy all of them while their fits sat in the task queue.
+ * Fit tasks only wait on their Roi's spot queue, which their region task always ends.
+ * <p>
+ * Tasks beyond the number of workers are queued, not given new threads.  Workers are daemon
+ * threads, so an idle executor does not keep ImageJ from exiting.  Thread-safe.
+ *
+ * @see ImageRegionFitThreadTest
+ * @see FitStackThread
+ *
+ * @author Justin Hanselman
+ */
+public class FitExecutor {
+
+    //Upper limit on fit workers, as used for the number of FitStackThreads per Roi
+    public static final int MAX_FIT_WORKERS = 8;
+
+    private static final FitExecutor sharedExecutor_ =
+            new FitExecutor( getDefaultNumWorkers(), getDefaultNumWorkers() );
+
+    private final ThreadPoolExecutor regionExecutor_;
+    private final ThreadPoolExecutor fitExecutor_;
+    private final int numFitWorkers_;
+    //Accounting for tests and diagnostics
+    private final AtomicInteger numThreadsStarted_ = new AtomicInteger();
+
+    /**
+     * Creates Daemon threads named for the executor that they belong to
+     */
+    private class WorkerFactory implements ThreadFactory {
+
+        private final String prefix_;
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        WorkerFactory( String prefix ) {
+            prefix_ = prefix;
+        }
+
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, prefix_ + "-" + count_.incrementAndGet() );
+            t.setDaemon( true );
+            numThreadsStarted_.incrementAndGet();
+            return t;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param numRegionWorkers The number of Rois that may be searched at once
+     * @param numFitWorkers The number of FitStackThreads that may run at once
+     */
+    public FitExecutor( int numRegionWorkers, int numFitWorkers ) {
+        numFitWorkers_ = Math.max( 1, numFitWorkers );
+        regionExecutor_ = createExecutor( Math.max( 1, numRegionWorkers ), "FitExecutor-region" );
+        fitExecutor_ = createExecutor( numFitWorkers_, "FitExecutor-fit" );
+    }
+
+    private ThreadPoolExecutor createExecutor( int numWorkers, String prefix ) {
+        return new ThreadPoolExecutor( numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+                                        new LinkedBlockingQueue<Runnable>(), new WorkerFactory( prefix ) );
+    }
+
+    //The ImageJ thread preference, limited to MAX_FIT_WORKERS
+    private static int getDefaultNumWorkers() {
+        return Math.min( ij.Prefs.getThreads(), MAX_FIT_WORKERS );
+    }
+
+    /**
+     * Gets the Executor shared by all ImageRegionFitThreadTests
+     *
+     * @return The shared FitExecutor
+     */
+    public static FitExecutor getSharedExecutor() {
+        return sharedExecutor_;
+    }
+
+    /**
+     * Queues a region task (i.e. an ImageRegionFitThreadTest) to run on a region worker
+     *
+     * @param task The task to run
+     * @return The Future of the task, for waiting on it
+     */
+    public Future<?> submitRegion( Runnable task ) {
+        return regionExecutor_.submit( task );
+    }
+
+    /**
+     * Queues a fit task (i.e. a FitStackThread) to run on a fit worker
+     *
+     * @param task The task to run
+     * @return The Future of the task, for waiting on it
+     */
+    public Future<?> submitFit( Runnable task ) {
+        return fitExecutor_.submit( task );
+    }
+
+    /**
+     * Gets the Number of Fit workers, which is the useful number of FitStackThreads per Roi
+     *
+     * @return The number of fit workers
+     */
+    public int getNumFitWorkers() {
+        return numFitWorkers_;
+    }
+
+    /**
+     * Gets the Number of worker threads started since the executor was constructed.
+     * This stays at the number of workers once they have all been used.
+     *
+     * @return The number of threads started by the executor
+     */
+    public int getNumThreadsStarted() {
+        return numThreadsStarted_.get();
+    }
+
+    /**
+     * Stops the workers after their queued tasks.  The shared executor is never shut down.
+     */
+    public void shutdown() {
+        if( this == sharedExecutor_ ) {
+            return;
+        }
+        regionExecutor_.shutdown();
+        fitExecutor_.shutdown();
+    }
+
+    /**
+     * Waits for the workers to stop after shutdown()
+     *
+     * @param millis The maximum time to wait
+     * @return <code>true</code> if all workers have stopped
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination( long millis ) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        if( !regionExecutor_.awaitTermination( millis, TimeUnit.MILLISECONDS ) ) {
+            return false;
+        }
+        return fitExecutor_.awaitTermination( Math.max( 0, end - System.currentTimeMillis() ),
+                                                TimeUnit.MILLISECONDS );
+    }
+
+}
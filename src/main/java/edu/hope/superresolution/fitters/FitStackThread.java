@@ -1,15 +1,18 @@
 package edu.hope.superresolution.fitters;
 
 import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitProcessPool;
+import edu.hope.superresolution.fitprocesses.MomentEstimateFitProcess;
+import edu.hope.superresolution.fitprocesses.WarmStartFitProcess;
 import edu.hope.superresolution.genericstructures.BlockingQueueEndConditionTest;
-import edu.valelab.gaussianfit.DataCollectionForm;
-import edu.valelab.gaussianfit.algorithm.GaussianFit;
 import edu.valelab.gaussianfit.data.GaussianInfo;
 import edu.valelab.gaussianfit.data.SpotData;
-import edu.valelab.gaussianfit.fitting.ZCalibrator;
 import ij.ImagePlus;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /*
  * To change this license header, choose License Headers in Project Properties.
@@ -42,11 +45,44 @@ import java.util.concurrent.BlockingQueue;
  */
 public abstract class FitStackThread extends GaussianInfo implements Runnable {
 
-   private Thread t_;
-   private boolean stopNow_ = false;
+   //Public Keys for the raw fit parameters stored in SpotData (used to warm start the next frame)
+   public static final String FIT_INTENSITY_KEY = FitStackThread.class.getName() + ".FitIntensity";
+   public static final String FIT_BACKGROUND_KEY = FitStackThread.class.getName() + ".FitBackground";
+   public static final String FIT_SIGMA_KEY = FitStackThread.class.getName() + ".FitSigma";
+   //Public Key marking the one candidate of a frame that is seeded by the warm start spot
+   public static final String WARM_START_CANDIDATE_KEY = FitStackThread.class.getName() + ".WarmStartCandidate";
+   //Public Keys for the moments of a spot image (stored by ImageRegionFitThreadTest from its SummedAreaTable)
+   public static final String MOMENT_TOTAL_KEY = FitStackThread.class.getName() + ".MomentTotal";
+   public static final String MOMENT_BORDER_MEAN_KEY = FitStackThread.class.getName() + ".MomentBorderMean";
+   public static final String MOMENT_X_CENTROID_KEY = FitStackThread.class.getName() + ".MomentXCentroid";
+   public static final String MOMENT_Y_CENTROID_KEY = FitStackThread.class.getName() + ".MomentYCentroid";
+
+   //Task of this stack on the shared FitExecutor (null until init())
+   private volatile Future<?> task_;
+   private volatile boolean stopNow_ = false;
    private BlockingQueueEndConditionTest endCondTest_;
    //protected member for FitProcessContainer Access
    protected FitProcessContainer fitProcess_;
+   //Fixed iteration count for Newton-MLE FitProcesses
+   protected int newtonIterations_ = GaussianMLEFit.DEFAULT_ITERATIONS;
+   //Fit the pixel-integrated Gaussian where the FitProcess supports it
+   protected boolean useIntegratedModel_ = false;
+   //Reject fits whose RMS residual exceeds 3 times the noise tolerance
+   protected boolean useResidualFilter_ = false;
+   //Fit in single-precision where the FitProcess supports it
+   protected boolean useFloatPrecision_ = false;
+   //Refit with additional Gaussians when the residual shows another peak
+   protected boolean useMultiEmitterFit_ = false;
+   //Localize bright, centered spots from their moments instead of fitting them
+   protected boolean useQuickLocalizer_ = false;
+   //Previously fit spot to seed the fit process with (null for no warm start)
+   private SpotData warmStartSpot_ = null;
+   //Iteration Accounting for WarmStartFitProcesses
+   private long totalIterations_ = 0;
+   private int numFits_ = 0;
+   //Fitters acquired from the FitProcessPool, released when run() exits
+   private final List<FitProcessPool.Key> pooledKeys_ = new ArrayList<FitProcessPool.Key>();
+   private final List<Object> pooledInstances_ = new ArrayList<Object>();
    
    /**
     *  Main Constructor - Sets up all terms for use in Extending Class
@@ -94,12 +130,152 @@ public abstract class FitStackThread extends GaussianInfo implements Runnable {
    }
 
    /**
-    * Create and Start the Thread
+    * Sets the Fixed Number of Iterations for FitProcesses that run Newton-Raphson
+    * Maximum Likelihood (OptimizationModes.Newton_Maximum_Likelihood)
+    * 
+    * @param newtonIterations The number of iterations per spot
+    */
+   public void setNewtonIterations( int newtonIterations ) {
+      newtonIterations_ = newtonIterations;
+   }
+
+   /**
+    * Sets Whether the FitProcess should fit the pixel-integrated Gaussian model 
+    * (where supported) instead of the Gaussian sampled at pixel centers
+    * 
+    * @param useIntegratedModel <code>true</code> to use the integrated model
+    */
+   public void setUseIntegratedModel( boolean useIntegratedModel ) {
+      useIntegratedModel_ = useIntegratedModel;
+   }
+
+   /**
+    * Sets Whether the FitProcess should use its single-precision (float) model and
+    * Levenberg-Marquardt solver where supported
+    * 
+    * @param useFloatPrecision <code>true</code> to fit in single-precision
+    */
+   public void setUseFloatPrecision( boolean useFloatPrecision ) {
+      useFloatPrecision_ = useFloatPrecision;
+   }
+
+   /**
+    * Sets Whether a spot whose fit residual shows another peak (i.e. a neighbouring fiducial
+    * inside the box) is refit with additional Gaussians sharing the background, where supported
+    * 
+    * @param useMultiEmitterFit <code>true</code> to refit crowded spots with multiple emitters
+    */
+   public void setUseMultiEmitterFit( boolean useMultiEmitterFit ) {
+      useMultiEmitterFit_ = useMultiEmitterFit;
+   }
+
+   /**
+    * Sets Whether spots are first localized from their moments (MomentLocalizer), where
+    * supported.  Only spots whose estimate is reliable skip the fit, the others are fit as usual.
+    * 
+    * @param useQuickLocalizer <code>true</code> to try the moment estimate before fitting
+    */
+   public void setUseQuickLocalizer( boolean useQuickLocalizer ) {
+      useQuickLocalizer_ = useQuickLocalizer;
+   }
+
+   /**
+    * Sets Whether fits with an RMS residual greater than 3 times the noise tolerance
+    * should be rejected (for FitProcesses that report a FitResult)
+    * 
+    * @param useResidualFilter <code>true</code> to reject fits by residual
+    */
+   public void setUseResidualFilter( boolean useResidualFilter ) {
+      useResidualFilter_ = useResidualFilter;
+   }
+
+   /**
+    * Sets a Previously Fit Spot (i.e. the same fiducial in the previous frame) whose
+    * raw fit parameters will seed a WarmStartFitProcess.  Only spots carrying the 
+    * WARM_START_CANDIDATE_KEY are seeded, all others are estimated from their image.  
+    * Must be called before init().
+    * 
+    * @param warmStartSpot A Spot with the FIT_*_KEY values stored, or null to estimate from each image
+    * 
+    * @see #storeRawFitParameters(edu.valelab.gaussianfit.data.SpotData, double, double, double) 
+    */
+   public void setWarmStartSpot( SpotData warmStartSpot ) {
+      warmStartSpot_ = warmStartSpot;
+   }
+
+   /**
+    * Gets the Total Number of optimizer iterations used by the fit process
+    * (only counted for WarmStartFitProcesses, and for fits that produced a spot)
+    * 
+    * @return The total iterations across all fits performed by this thread
+    */
+   public long getTotalIterations() {
+      return totalIterations_;
+   }
+
+   /**
+    * Gets the Number of Fits that were counted in getTotalIterations()
+    * 
+    * @return The number of fits performed by a WarmStartFitProcess that produced a spot
+    */
+   public int getNumFits() {
+      return numFits_;
+   }
+
+   /**
+    * Stores the raw parameters of a fit as key values in the SpotData, so that
+    * the spot may seed the fit of the same fiducial in a later frame
+    * 
+    * @param spotData The Spot to store the values in
+    * @param intensity The fitted intensity parameter
+    * @param background The fitted background parameter
+    * @param sigma The fitted sigma (pixels)
+    */
+   protected static void storeRawFitParameters( SpotData spotData, double intensity, double background,
+                                                  double sigma ) {
+      spotData.addKeyValue( FIT_INTENSITY_KEY, intensity );
+      spotData.addKeyValue( FIT_BACKGROUND_KEY, background );
+      spotData.addKeyValue( FIT_SIGMA_KEY, sigma );
+   }
+
+   //Sets the moment estimate of the fit process from the spot, or clears it if the spot has none
+   private static void applyMomentEstimate( MomentEstimateFitProcess fitProcess, SpotData spot ) {
+      if( spot.hasKey( MOMENT_TOTAL_KEY ) && spot.hasKey( MOMENT_BORDER_MEAN_KEY )
+              && spot.hasKey( MOMENT_X_CENTROID_KEY ) && spot.hasKey( MOMENT_Y_CENTROID_KEY ) ) {
+         fitProcess.setMomentEstimate( spot.getValue( MOMENT_TOTAL_KEY ), spot.getValue( MOMENT_BORDER_MEAN_KEY ),
+                                         spot.getValue( MOMENT_X_CENTROID_KEY ), spot.getValue( MOMENT_Y_CENTROID_KEY ) );
+      } else {
+         fitProcess.clearMomentEstimate();
+      }
+   }
+
+   //Whether the spot is the warm start candidate and warmStartSpot_ holds a fit to seed it with
+   private boolean isWarmStartSeeded( SpotData spot ) {
+      SpotData seed = warmStartSpot_;
+      return seed != null && spot.hasKey( WARM_START_CANDIDATE_KEY ) && seed.hasKey( FIT_INTENSITY_KEY ) 
+              && seed.hasKey( FIT_BACKGROUND_KEY ) && seed.hasKey( FIT_SIGMA_KEY );
+   }
+
+   //Seeds the warm start of the fit process from warmStartSpot_ if the spot is the warm start candidate,
+   // or clears it
+   private void applyWarmStart( WarmStartFitProcess fitProcess, SpotData spot ) {
+      if( isWarmStartSeeded( spot ) ) {
+         SpotData seed = warmStartSpot_;
+         fitProcess.setWarmStart( seed.getValue( FIT_INTENSITY_KEY ), seed.getValue( FIT_BACKGROUND_KEY ),
+                                    seed.getValue( FIT_SIGMA_KEY ) );
+      } else {
+         fitProcess.clearWarmStart();
+      }
+   }
+
+   /**
+    * Queue the Stack on a fit worker of the shared FitExecutor (no Thread is created)
+    * 
+    * @see FitExecutor
     */
    public void init() {
       stopNow_ = false;
-      t_ = new Thread(this);
-      t_.start();
+      task_ = FitExecutor.getSharedExecutor().submitFit( this );
    }
 
    /**
@@ -110,51 +286,178 @@ public abstract class FitStackThread extends GaussianInfo implements Runnable {
    }
 
    /**
-    *  Join the current Thread that was created
+    *  Whether the Stack queued by init() has ended, so that it takes no more spots from 
+    *  the source queue.  This is the case after the end condition, stop(), or an 
+    *  unrecoverable exception of runFitProcess().
+    * 
+    * @return <code>true</code> if the Stack was queued and has ended
+    */
+   public boolean isDone() {
+      Future<?> task = task_;
+      return task != null && task.isDone();
+   }
+
+   /**
+    *  Wait for the Stack queued by init() to finish
     * @throws InterruptedException 
     */
    public void join() throws InterruptedException {
-      if (t_ != null)
-         t_.join();
+      Future<?> task = task_;
+      if (task == null) {
+         return;
+      }
+      try {
+         task.get();
+      } catch (ExecutionException ex) {
+         ij.IJ.log( "Fatal Thread Exception: " + ex.getCause() );
+      }
    }
 
    /**
-    * Runnable run() - meant to be invoked by use of init() only
+    * Runnable run() - meant to be invoked by use of init() only.  Fitters acquired
+    * from the FitProcessPool are returned to it when this exits.
     * 
     * @see #init() 
     */
    @Override
    final public void run() {
-      GaussianFit gs_ = new GaussianFit(shape_, fitMode_);
-      double cPCF = photonConversionFactor_ / gain_;
-      ZCalibrator zc = DataCollectionForm.zc_;
+      try {
+         runStack();
+      } finally {
+         releasePooled();
+      }
+   }
+
+   /**
+    * Takes Spots from the Stack until the end condition (or stop()) and fits them
+    */
+   private void runStack() {
+      WarmStartFitProcess warmStartProcess = null;
+      if( fitProcess_ instanceof WarmStartFitProcess ) {
+         warmStartProcess = (WarmStartFitProcess) fitProcess_;
+         //Pooled fit processes may still hold the seed of a previous stack
+         warmStartProcess.clearWarmStart();
+      }
+
+      int batchSize = getBatchSize();
+      if( batchSize > 1 ) {
+         runBatches( batchSize, warmStartProcess );
+         return;
+      }
 
       while (!stopNow_) {
          SpotData spot;
-         synchronized (gfsLock_) {
-            try {
-               spot = sourceList_.take();
-               // Look for signal that we are done, add back to queue if found
-               if ( endCondTest_.isEndCondition(spot) ) {
-                  sourceList_.add(spot);
-                  return;
-               }
-            } catch (InterruptedException iExp) {
-               ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
+         //The queue is thread-safe, so no lock is shared with the other FitStackThreads
+         try {
+            spot = sourceList_.take();
+            // Look for signal that we are done, add back to queue if found
+            // (it is the last spot queued, so the queue has room for it)
+            if ( endCondTest_.isEndCondition(spot) ) {
+               sourceList_.add(spot);
                return;
             }
+         } catch (InterruptedException iExp) {
+            ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
+            return;
          }
 
          //Enforce Use of super-level fitProcessor
          assert( fitProcess_ != null );
          
-         //Implement Abstract Method of Extension
-         //This allows for multiple parameter and model changes without threading considerations
-         SpotData tempResult;
          try {
-            tempResult = runFitProcess( spot );
-            if( tempResult != null ) {
-                resultList_.add(tempResult);
+            fitSpot( spot, warmStartProcess );
+         } catch ( IllegalThreadStateException ex ) {
+             ij.IJ.log( "Fatal Thread Exception: " + ex.getMessage());
+             return;
+         } catch ( Exception ex ) {
+             ij.IJ.log( "Non-Fatal Thread Exception: " + ex.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Fits a single spot with runFitProcess() and adds the result to the result list.  The fit 
+    * process is seeded first if it is the warm start candidate, and its iterations are counted
+    * if it produced a spot.
+    * 
+    * @param spot The spot to fit
+    * @param warmStartProcess The fit process as a WarmStartFitProcess (null if it is not one)
+    * @throws IllegalThreadStateException If runFitProcess() fails fatally
+    */
+   private void fitSpot( SpotData spot, WarmStartFitProcess warmStartProcess ) throws IllegalThreadStateException {
+      //Implement Abstract Method of Extension
+      //This allows for multiple parameter and model changes without threading considerations
+      if( fitProcess_ instanceof MomentEstimateFitProcess ) {
+         applyMomentEstimate( (MomentEstimateFitProcess) fitProcess_, spot );
+      }
+      if( warmStartProcess != null ) {
+         applyWarmStart( warmStartProcess, spot );
+      }
+      SpotData tempResult = runFitProcess( spot );
+      if( tempResult != null ) {
+          if( warmStartProcess != null ) {
+             totalIterations_ += warmStartProcess.getLastIterations();
+             ++numFits_;
+          }
+          resultList_.add(tempResult);
+      }
+   }
+
+   /**
+    * Batched Equivalent of the run() loop.  Blocks for one spot, then takes whatever
+    * other spots are already queued (up to batchSize) and passes them to runBatchFitProcess().
+    * The end condition is put back on the queue for the other threads once found.
+    * <p>
+    * The warm start candidate (see setWarmStartSpot()) is fit on its own with fitSpot() instead,
+    * since the batch fit cannot be seeded.
+    * 
+    * @param batchSize The maximum number of spots to fit together
+    * @param warmStartProcess The fit process as a WarmStartFitProcess (null if it is not one)
+    */
+   private void runBatches( int batchSize, WarmStartFitProcess warmStartProcess ) {
+      List<SpotData> drained = new ArrayList<SpotData>( batchSize );
+      List<SpotData> batch = new ArrayList<SpotData>( batchSize );
+      List<SpotData> seeded = new ArrayList<SpotData>( 1 );
+      boolean endFound = false;
+      while (!stopNow_ && !endFound) {
+         drained.clear();
+         batch.clear();
+         seeded.clear();
+         try {
+            drained.add( sourceList_.take() );
+            sourceList_.drainTo( drained, batchSize - 1 );
+         } catch (InterruptedException iExp) {
+            ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
+            return;
+         }
+         // Look for signal that we are done, add back to queue if found
+         // (nothing is queued after it, so other threads' drains never skip a spot)
+         for( SpotData spot : drained ) {
+            if( endCondTest_.isEndCondition(spot) ) {
+               sourceList_.add(spot);
+               endFound = true;
+               break;
+            }
+            if( warmStartProcess != null && isWarmStartSeeded( spot ) ) {
+               seeded.add( spot );
+            } else {
+               batch.add( spot );
+            }
+         }
+
+         try {
+            for( SpotData spot : seeded ) {
+               fitSpot( spot, warmStartProcess );
+            }
+            if( batch.isEmpty() ) {
+               continue;
+            }
+            List<SpotData> results = runBatchFitProcess( batch );
+            for( SpotData result : results ) {
+               if( result != null ) {
+                  ++numFits_;
+                  resultList_.add(result);
+               }
             }
          } catch ( IllegalThreadStateException ex ) {
              ij.IJ.log( "Fatal Thread Exception: " + ex.getMessage());
@@ -164,6 +467,45 @@ public abstract class FitStackThread extends GaussianInfo implements Runnable {
          }
       }
    }
+
+   /**
+    * Adds Iterations performed outside of a WarmStartFitProcess (i.e. by a batch fit)
+    * to the iteration accounting of this thread
+    * 
+    * @param iterations The number of iterations to add to getTotalIterations()
+    */
+   protected void addIterations( long iterations ) {
+      totalIterations_ += iterations;
+   }
+
+   /**
+    * The Maximum Number of Spots to take from the queue at once.  A value greater than 1
+    * makes the thread pass spots to runBatchFitProcess() instead of runFitProcess().
+    * 
+    * @return 1 by default (one spot at a time)
+    */
+   protected int getBatchSize() {
+      return 1;
+   }
+
+   /**
+    * SubClass-Specific Fit Process for several spots from the Stack at once.  The default 
+    * fits each spot individually with runFitProcess().  Extending classes that can fit 
+    * spots together should override this along with getBatchSize().
+    * 
+    * @param spots The current bounded images (see runFitProcess()) to be evaluated
+    * @return The fitted SpotData for each spot in the same order (null entries for no fit)
+    * @throws IllegalThreadStateException For unrecoverable states (stops the thread)
+    * 
+    * @see #runFitProcess(edu.valelab.gaussianfit.data.SpotData) 
+    */
+   protected List<SpotData> runBatchFitProcess( List<SpotData> spots ) throws IllegalThreadStateException {
+      List<SpotData> results = new ArrayList<SpotData>( spots.size() );
+      for( SpotData spot : spots ) {
+         results.add( runFitProcess( spot ) );
+      }
+      return results;
+   }
   
    /**
     *  Sets the fit Process for the stack Thread.  Protected nature requires only 
@@ -181,6 +523,54 @@ public abstract class FitStackThread extends GaussianInfo implements Runnable {
    final protected void setFitProcess( FitProcessContainer fitProcess ) {
        fitProcess_ = fitProcess;
    }
+
+   /**
+    *  Sets the fit Process to one from the shared FitProcessPool, keyed by its class and 
+    *  the shape, fitMode and baseLevel of this thread.  The factory is only used if no 
+    *  idle instance is available.  The fitProcess is returned to the pool when run() exits.
+    * 
+    * @param <T> The type of FitProcessContainer
+    * @param type The class of the FitProcessContainer
+    * @param factory Constructs a new FitProcessContainer for the shape, fitMode and baseLevel
+    * @return The FitProcessContainer that was set (see setFitProcess())
+    */
+   final protected <T extends FitProcessContainer> T acquireFitProcess( Class<T> type,
+                                                                        FitProcessPool.Factory<T> factory ) {
+       T fitProcess = acquirePooled( new FitProcessPool.Key( type, shape_, fitMode_, baseLevel_ ),
+                                       type, factory );
+       setFitProcess( fitProcess );
+       return fitProcess;
+   }
+
+   /**
+    *  Acquires any other reusable fitter or scratch-buffer object from the shared 
+    *  FitProcessPool.  It is returned to the pool when run() exits.
+    * 
+    * @param <T> The type of object
+    * @param key The Key describing interchangeable instances
+    * @param type The class of the object
+    * @param factory Constructs a new instance if no idle one is available
+    * @return An instance exclusively owned by this thread until run() exits
+    */
+   final protected <T> T acquirePooled( FitProcessPool.Key key, Class<T> type, FitProcessPool.Factory<T> factory ) {
+       T instance = FitProcessPool.getSharedPool().acquire( key, type, factory );
+       synchronized( pooledKeys_ ) {
+           pooledKeys_.add( key );
+           pooledInstances_.add( instance );
+       }
+       return instance;
+   }
+
+   //Returns every pooled object acquired by this thread
+   private void releasePooled() {
+       synchronized( pooledKeys_ ) {
+           for( int i = 0; i < pooledKeys_.size(); ++i ) {
+               FitProcessPool.getSharedPool().release( pooledKeys_.get(i), pooledInstances_.get(i) );
+           }
+           pooledKeys_.clear();
+           pooledInstances_.clear();
+       }
+   }
    
    /**
     *  Get the FitProcessContainer set to the object.  This is meant to be used mainly 
@@ -0,0 +1,325 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+
+/**
+ * Single-Precision Levenberg-Marquardt Solver for a FloatPixelModel.
+ * <p>
+ * The spot pixels are converted to a float buffer once per fit, and the model values, 
+ * Jacobian columns, residuals and the normal equations (J^T*W*J and J^T*W*r) are all 
+ * evaluated in float, halving the memory traffic of the per-pixel loops compared to 
+ * GaussianLMFit.  Only the small (at most 6 parameter) damped system is copied to double 
+ * and solved by Cholesky decomposition, since single-precision Cholesky of a badly scaled 
+ * J^T*J (amplitudes of thousands against sigmas of ~1) loses too many digits.  
+ * <p>
+ * The damping schedule is the same as GaussianLMFit.  Because chi-square is accumulated 
+ * in float, the relative convergence tolerance is looser (1e-5 instead of 1e-7); for spots 
+ * of a few hundred pixels the resulting difference in position from the double path is 
+ * well below 1e-3 pixels (see FloatLMFitNGTest).
+ * <p>
+ * All working storage is allocated once per instance (pixel buffers grow with the largest spot).
+ * Not Thread-safe.  One instance is expected per FitProcessContainer.
+ *
+ * @see FloatPixelModel
+ * @see GaussianLMFit
+ *
+ * @author Justin Hanselman
+ */
+public class FloatLMFit {
+
+    //Damping Parameters
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double LAMBDA_INCREASE = 10;
+    private static final double LAMBDA_DECREASE = .1;
+    private static final double MAX_LAMBDA = 1e10;
+    //Relative Chi-Square decrease considered to be converged (float accumulation)
+    private static final double CHI_SQR_TOLERANCE = 1e-5;
+
+    private final FloatPixelModel model_;
+    private final int numParams_;
+
+    //Reused Working Storage
+    private final float[] params_;
+    private final float[] trial_;
+    private final double[] delta_;
+    private final float[] jtj_;
+    private final float[] jtr_;
+    private final double[] system_;
+    private float[] data_ = new float[0];
+    private float[] weights_ = new float[0];
+    private float[] values_ = new float[0];
+    private float[] residuals_ = new float[0];
+    private float[][] jacobian_;
+
+    private int lastIterations_ = 0;
+    //Unweighted sum of squared residuals from the last buildNormalEquations()
+    private double residualSumSqr_ = 0;
+    private FitResult lastResult_ = FitResult.failed( 0 );
+
+    /**
+     * Constructor
+     *
+     * @param model The single-precision model to fit
+     */
+    public FloatLMFit( FloatPixelModel model ) {
+        model_ = model;
+        numParams_ = model.getNumParams();
+        params_ = new float[numParams_];
+        trial_ = new float[numParams_];
+        delta_ = new double[numParams_];
+        jtj_ = new float[numParams_ * numParams_];
+        jtr_ = new float[numParams_];
+        system_ = new double[numParams_ * numParams_];
+        jacobian_ = new float[numParams_][0];
+    }
+
+    /**
+     * Runs the Levenberg-Marquardt fit from the supplied starting parameters.
+     *
+     * @param pixels The 16-bit pixels of the spot (row-major)
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param initialParams The starting parameters (not modified)
+     * @param maxIterations The maximum number of iterations
+     * @param weighted Whether or not to weight pixels by 1/value (Poisson variance)
+     * @return {0.0} if the fit failed, or the fit parameters (in double)
+     */
+    public double[] fit( short[] pixels, int width, int height, double[] initialParams,
+                            int maxIterations, boolean weighted ) {
+        return fit( pixels, 0, width, width, height, initialParams, maxIterations, weighted );
+    }
+
+    /**
+     * Runs the Levenberg-Marquardt fit of fit( short[], int, int, double[], int, boolean ) on 
+     * a box of a larger pixel array (i.e. a SpotView of a frame)
+     *
+     * @param pixels The 16-bit pixels containing the spot (row-major)
+     * @param offset The index of the spot's top-left pixel
+     * @param stride The distance between rows of the spot in pixels
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param initialParams The starting parameters (not modified)
+     * @param maxIterations The maximum number of iterations
+     * @param weighted Whether or not to weight pixels by 1/value (Poisson variance)
+     * @return {0.0} if the fit failed, or the fit parameters (in double)
+     */
+    public double[] fit( short[] pixels, int offset, int stride, int width, int height,
+                            double[] initialParams, int maxIterations, boolean weighted ) {
+        int numPixels = width * height;
+        if( data_.length < numPixels ) {
+            data_ = new float[numPixels];
+            weights_ = new float[numPixels];
+            values_ = new float[numPixels];
+            residuals_ = new float[numPixels];
+            for( int k = 0; k < numParams_; ++k ) {
+                jacobian_[k] = new float[numPixels];
+            }
+        }
+        int i = 0;
+        for( int y = 0; y < height; ++y ) {
+            int row = offset + y * stride;
+            for( int x = 0; x < width; ++x, ++i ) {
+                int value = pixels[row + x] & 0xffff;
+                data_[i] = value;
+                //Guard against zero-valued pixels
+                weights_[i] = weighted ? 1f / Math.max( 1, value ) : 1f;
+            }
+        }
+
+        for( int k = 0; k < numParams_; ++k ) {
+            params_[k] = (float) initialParams[k];
+        }
+        double lambda = INITIAL_LAMBDA;
+        double chiSqr = buildNormalEquations( width, height, params_ );
+        lastIterations_ = 0;
+        boolean converged = false;
+
+        while( lastIterations_ < maxIterations ) {
+            ++lastIterations_;
+            if( Double.isNaN( chiSqr ) || Double.isInfinite( chiSqr ) ) {
+                lastResult_ = FitResult.failed( lastIterations_ );
+                return lastResult_.getParameters();
+            }
+
+            //Search for a step that reduces chi-square, increasing damping on rejection
+            double trialChiSqr = Double.POSITIVE_INFINITY;
+            while( lambda < MAX_LAMBDA ) {
+                if( solveDamped( lambda ) ) {
+                    for( int k = 0; k < numParams_; ++k ) {
+                        trial_[k] = (float) (params_[k] + delta_[k]);
+                    }
+                    trialChiSqr = chiSquare( width, height, trial_ );
+                    if( trialChiSqr < chiSqr ) {
+                        break;
+                    }
+                }
+                lambda *= LAMBDA_INCREASE;
+            }
+            if( lambda >= MAX_LAMBDA ) {
+                //No downhill step is possible from here, current parameters are the minimum
+                converged = true;
+                break;
+            }
+
+            System.arraycopy( trial_, 0, params_, 0, numParams_ );
+            lambda *= LAMBDA_DECREASE;
+            converged = (chiSqr - trialChiSqr) <= CHI_SQR_TOLERANCE * chiSqr;
+            chiSqr = buildNormalEquations( width, height, params_ );
+            if( converged ) {
+                break;
+            }
+        }
+
+        if( Double.isNaN( chiSqr ) || Double.isInfinite( chiSqr ) ) {
+            lastResult_ = FitResult.failed( lastIterations_ );
+            return lastResult_.getParameters();
+        }
+        double[] paramsOut = new double[numParams_];
+        for( int k = 0; k < numParams_; ++k ) {
+            paramsOut[k] = params_[k];
+        }
+        lastResult_ = new FitResult( paramsOut, chiSqr, Math.sqrt( residualSumSqr_ / numPixels ),
+                                        lastIterations_, converged );
+        return paramsOut;
+    }
+
+    /**
+     * Evaluates the model and Jacobian over the spot and accumulates the upper 
+     * triangle of J^T*W*J and J^T*W*r one Jacobian column at a time.
+     *
+     * @return The chi-square of the current parameters
+     */
+    private double buildNormalEquations( int width, int height, float[] params ) {
+        final int n = numParams_;
+        final int numPixels = width * height;
+        model_.evaluate( params, width, height, values_, jacobian_ );
+
+        float chiSqr = 0;
+        float rss = 0;
+        for( int i = 0; i < numPixels; ++i ) {
+            float residual = data_[i] - values_[i];
+            rss += residual * residual;
+            float wr = weights_[i] * residual;
+            chiSqr += wr * residual;
+            residuals_[i] = wr;
+        }
+
+        for( int j = 0; j < n; ++j ) {
+            final float[] colJ = jacobian_[j];
+            float sumR = 0;
+            for( int i = 0; i < numPixels; ++i ) {
+                sumR += colJ[i] * residuals_[i];
+            }
+            jtr_[j] = sumR;
+            for( int k = j; k < n; ++k ) {
+                final float[] colK = jacobian_[k];
+                float sum = 0;
+                for( int i = 0; i < numPixels; ++i ) {
+                    sum += weights_[i] * colJ[i] * colK[i];
+                }
+                jtj_[j * n + k] = sum;
+            }
+        }
+        residualSumSqr_ = rss;
+        return chiSqr;
+    }
+
+    /**
+     * Computes chi-square only (no derivatives) for a trial set of parameters
+     */
+    private double chiSquare( int width, int height, float[] params ) {
+        final int numPixels = width * height;
+        model_.evaluate( params, width, height, values_, null );
+        float chiSqr = 0;
+        for( int i = 0; i < numPixels; ++i ) {
+            float residual = data_[i] - values_[i];
+            chiSqr += weights_[i] * residual * residual;
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Solves (J^T*W*J + lambda*diag(J^T*W*J)) * delta = J^T*W*r in double by Cholesky
+     * decomposition into system_ and stores the step in delta_.
+     *
+     * @param lambda The current damping factor
+     * @return <code>false</code> if the damped system was not positive definite
+     */
+    private boolean solveDamped( double lambda ) {
+        final int n = numParams_;
+        final double[] l = system_;
+        //Copy the upper triangle into the lower triangle of the working system, with damping
+        for( int j = 0; j < n; ++j ) {
+            for( int k = 0; k <= j; ++k ) {
+                l[j * n + k] = jtj_[k * n + j];
+            }
+            l[j * n + j] *= (1 + lambda);
+        }
+
+        //Cholesky Decomposition (L stored in lower triangle)
+        for( int j = 0; j < n; ++j ) {
+            double sum = l[j * n + j];
+            for( int k = 0; k < j; ++k ) {
+                sum -= l[j * n + k] * l[j * n + k];
+            }
+            if( sum <= 0 || Double.isNaN( sum ) ) {
+                return false;
+            }
+            double diag = Math.sqrt( sum );
+            l[j * n + j] = diag;
+            for( int i = j + 1; i < n; ++i ) {
+                double s = l[i * n + j];
+                for( int k = 0; k < j; ++k ) {
+                    s -= l[i * n + k] * l[j * n + k];
+                }
+                l[i * n + j] = s / diag;
+            }
+        }
+
+        //Forward Substitution (L*z = J^T*W*r)
+        for( int i = 0; i < n; ++i ) {
+            double s = jtr_[i];
+            for( int k = 0; k < i; ++k ) {
+                s -= l[i * n + k] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        //Back Substitution (L^T*delta = z)
+        for( int i = n - 1; i >= 0; --i ) {
+            double s = delta_[i];
+            for( int k = i + 1; k < n; ++k ) {
+                s -= l[k * n + i] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        return true;
+    }
+
+    /**
+     * Gets the Result of the most recent fit()
+     *
+     * @return The FitResult of the last fit
+     */
+    public FitResult getLastFitResult() {
+        return lastResult_;
+    }
+
+    /**
+     * Gets the Number of Levenberg-Marquardt iterations used by the most recent fit
+     *
+     * @return The number of iterations of the last call to fit()
+     */
+    public int getLastIterations() {
+        return lastIterations_;
+    }
+
+    public int getNumParams() {
+        return numParams_;
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+/**
+ * Single-Precision Model of a spot image, evaluated over every pixel at once for FloatLMFit.
+ * <p>
+ * Values are written row-major (index = y * width + x) and the Jacobian is written
+ * column-wise (jacobian[parameter][pixel]) so that each partial derivative is one
+ * contiguous float array.  This keeps the per-pixel loops of the model and of the
+ * solver over flat float arrays.
+ *
+ * @see FloatLMFit
+ *
+ * @author Justin Hanselman
+ */
+public interface FloatPixelModel {
+
+    /**
+     * Gets the Number of Parameters of the model
+     *
+     * @return The length of the params array expected by evaluate()
+     */
+    public int getNumParams();
+
+    /**
+     * Evaluates the model (and optionally its Jacobian) at every pixel
+     *
+     * @param params The model parameters
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param values Filled with the model value of each pixel (length at least width*height)
+     * @param jacobian Filled with the partial derivatives [parameter][pixel], or null for values only
+     */
+    public void evaluate( float[] params, int width, int height, float[] values, float[][] jacobian );
+}
@@ -7,9 +7,12 @@ package edu.hope.superresolution.fitters;
 
 import edu.hope.superresolution.Utils.AdditionalGaussianUtils;
 import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.hope.superresolution.fitprocesses.FitResultProcess;
+import edu.hope.superresolution.fitprocesses.MomentEstimateFitProcess;
+import edu.hope.superresolution.fitprocesses.WarmStartFitProcess;
 import edu.valelab.gaussianfit.fitting.MultiVariateGaussianFunction;
 import edu.valelab.gaussianfit.fitting.MultiVariateGaussianMLE;
-import edu.valelab.gaussianfit.fitting.ParametricGaussianFunction;
 import edu.valelab.gaussianfit.utils.GaussianUtils;
 import edu.valelab.gaussianfit.utils.ReportingUtils;
 import ij.process.ImageProcessor;
@@ -18,11 +21,7 @@ import org.apache.commons.math.optimization.GoalType;
 import org.apache.commons.math.optimization.OptimizationException;
 import org.apache.commons.math.optimization.RealPointValuePair;
 import org.apache.commons.math.optimization.SimpleScalarValueChecker;
-import org.apache.commons.math.optimization.VectorialConvergenceChecker;
-import org.apache.commons.math.optimization.VectorialPointValuePair;
 import org.apache.commons.math.optimization.direct.NelderMead;
-import org.apache.commons.math.optimization.fitting.CurveFitter;
-import org.apache.commons.math.optimization.general.LevenbergMarquardtOptimizer;
 import org.apache.commons.math.optimization.general.NonLinearConjugateGradientOptimizer;
 
 /**
@@ -33,9 +32,10 @@ import org.apache.commons.math.optimization.general.NonLinearConjugateGradientOp
  * shape fit types than would be advisable in a single implementation, but is not pertinent to change.
  * <p>
  * <pre>
- * The Gaussian has 3 fitModes, adapted to the FitProcessContrainer.OptimizationModes enum:
+ * The Gaussian has 4 fitModes, adapted to the FitProcessContrainer.OptimizationModes enum:
  *      Simplex - Searches For a Peak Fit Through Simplex Algorithm
  *      Levenberg-Marquardt - Searches For a minimization in Least Squares
+ *      Weighted Levenberg-Marquardt - Least Squares weighted by 1/pixel value
  *      Simple-MLE - Uses Maximum Likelihood Evaluation, in conjunction with Simplex
  * 
  * The current Shape Modes are:
@@ -44,10 +44,16 @@ import org.apache.commons.math.optimization.general.NonLinearConjugateGradientOp
  *      In-plane Ellipse - sigma varies in x and y (Uses S1 and S2 as sigmaX and sigmaY) 
  *      Ellipse with Varying Angle - sigma varies in x and y and theta
  *                                   (S1, S2, S3 are used as sigmaX, sigmaY, and theta)
+ * 
+ * FitResult Chi-Square (see dofitWithResult()):
+ *      Simplex, Levenberg-Marquardt - Sum of squared residuals (RMS residual available)
+ *      Weighted Levenberg-Marquardt - Weighted sum of squared residuals (RMS residual available)
+ *      Simple-MLE - Negative log-likelihood (RMS residual is NaN)
  * </pre>
  * @author nico (modified by Justin Hanselman)
  */
-public class GaussianFit implements FitProcessContainer {
+public class GaussianFit implements FitProcessContainer, WarmStartFitProcess, FitResultProcess,
+                                     MomentEstimateFitProcess {
 
    //Parameter Indices
    public static final int INT = 0;
@@ -64,6 +70,21 @@ public class GaussianFit implements FitProcessContainer {
    private double[] steps_;
    public String [] paramNames_;
 
+   //Warm Start from a previous fit (smaller Simplex steps since we start near the optimum)
+   private static final double COLD_STEP_FRACTION = 0.3;
+   private static final double WARM_STEP_FRACTION = 0.1;
+   private boolean warmStart_ = false;
+   private double warmIntensity_;
+   private double warmBackground_;
+   private double warmSigma_;
+   private int lastIterations_ = 0;
+
+   //Precomputed Spot Moments (see setMomentEstimate())
+   private boolean momentEstimate_ = false;
+   private double momentTotal_;
+   private double momentXCentroid_;
+   private double momentYCentroid_;
+
    private int mode_ = 1;
    private OptimizationModes fitMode_ = OptimizationModes.Simplex;
    private double baseLevel_ = 0;
@@ -74,7 +95,12 @@ public class GaussianFit implements FitProcessContainer {
    MultiVariateGaussianFunction mGF_;
    MultiVariateGaussianMLE mGFMLE_;
    NonLinearConjugateGradientOptimizer nlcgo_;
-   LevenbergMarquardtOptimizer lMO_;
+   GaussianLMFit lmFit_;
+   //Single-Precision Levenberg-Marquardt (created by setFloatPrecision())
+   FloatLMFit floatFit_;
+   private boolean floatPrecision_ = false;
+   //Contiguous copy of a SpotView for the Simplex functions, which only take whole arrays
+   private short[] packed_ = new short[0];
 
    /**
     * Gaussian fit can be run by estimating parameter c (width of Gaussian)
@@ -111,11 +137,9 @@ public class GaussianFit implements FitProcessContainer {
          convergedChecker_ = new SimpleScalarValueChecker(1e-6,-1);
          mGF_ = new MultiVariateGaussianFunction(mode_);
       }
-      // Levenberg-Marquardt and weighted Levenberg-Marquardt
+      // Levenberg-Marquardt and weighted Levenberg-Marquardt (closed-form Jacobian on raw pixels)
       if (fitMode_.equals(2) || fitMode_.equals(4) ) {
-         lMO_ = new LevenbergMarquardtOptimizer();
-         LMChecker lmChecker = new LMChecker();
-         lMO_.setConvergenceChecker(lmChecker);
+         lmFit_ = new GaussianLMFit(mode_, fitMode_, baseLevel_);
       }
       if (fitMode_.equals(3) ) {
          nm_ = new NelderMead();
@@ -152,18 +176,62 @@ public class GaussianFit implements FitProcessContainer {
     */
     @Override
    public double[] dofit (ImageProcessor siProc, int maxIterations) {
-      estimateParameters(siProc);
+      return dofitWithResult(siProc, maxIterations).getParameters();
+   }
 
-      double[] paramsOut = {0.0};
+   /**
+    * Performs the Gaussian Fit of dofit() and reports the goodness-of-fit from the
+    * optimizer's final function value (See class description for the Chi-Square per mode)
+    * 
+    * @param siProc - ImageJ ImageProcessor containing image to be fit
+    * @param maxIterations - maximum number of iterations for the optimization algorithm
+    * @return The FitResult with the parameters dofit() would return
+    */
+   @Override
+   public FitResult dofitWithResult (ImageProcessor siProc, int maxIterations) {
+      int width = siProc.getWidth();
+      return dofitWithResult((short[]) siProc.getPixels(), 0, width, width, siProc.getHeight(), maxIterations);
+   }
+
+   /**
+    * Performs the Gaussian Fit of dofitWithResult( ImageProcessor, int ) on a view of the 
+    * spot in its frame.  The Levenberg-Marquardt modes read a 16-bit frame in place.
+    * 
+    * @param spotView - The view of the spot (frames that are not 16-bit are copied)
+    * @param maxIterations - maximum number of iterations for the optimization algorithm
+    * @return The FitResult with the parameters dofit() would return
+    */
+   public FitResult dofitWithResult (SpotView spotView, int maxIterations) {
+      short[] pixels = spotView.getShortPixels();
+      if (pixels == null) {
+         return dofitWithResult(spotView.toProcessor(), maxIterations);
+      }
+      return dofitWithResult(pixels, spotView.getOffset(), spotView.getStride(), spotView.getWidth(),
+              spotView.getHeight(), maxIterations);
+   }
+
+   private FitResult dofitWithResult (short[] pixels, int offset, int stride, int width, int height,
+                                      int maxIterations) {
+      estimateParameters(pixels, offset, stride, width, height);
+      if (warmStart_) {
+         applyWarmStart();
+      }
+      lastIterations_ = 0;
+      int numPixels = width * height;
+
+      FitResult fitResult = null;
 
       if ( fitMode_.equals(1) ) {
          nm_.setStartConfiguration(steps_);
          nm_.setConvergenceChecker(convergedChecker_);
          nm_.setMaxIterations(maxIterations);
-         mGF_.setImage((short[]) siProc.getPixels(), siProc.getWidth(), siProc.getHeight());
+         mGF_.setImage(packPixels(pixels, offset, stride, width, height), width, height);
          try {
             RealPointValuePair result = nm_.optimize(mGF_, GoalType.MINIMIZE, params0_);            
-            paramsOut = result.getPoint();          
+            lastIterations_ = nm_.getIterations();
+            //The Least Squares function value is the sum of squared residuals
+            fitResult = new FitResult(result.getPoint(), result.getValue(),
+                    Math.sqrt(result.getValue() / numPixels), lastIterations_, true);
          } catch (java.lang.OutOfMemoryError e) {
             throw(e);
          } catch (FunctionEvaluationException e) {
@@ -178,35 +246,16 @@ public class GaussianFit implements FitProcessContainer {
          }
       }
 
-      if ( fitMode_.equals(2) || fitMode_.equals(4) ) {
-         
-         // lMO_.setMaxIterations(maxIterations);
-         CurveFitter cF = new CurveFitter(lMO_);
-         short[] pixels = (short[]) siProc.getPixels();
-         if (fitMode_.equals(2) ) {
-            for (int i = 0; i < pixels.length; i++) {
-               cF.addObservedPoint(i, (int) pixels[i] & 0xffff);
-            }
-         }
-         if ( fitMode_.equals(4) ) {
-            for (int i = 0; i < pixels.length; i++) {
-               double factor = ((int) pixels[i] & 0xffff) ;
-               cF.addObservedPoint(1 / factor, i, (int) pixels[i] & 0xffff);
-            }
-         }
-         try {
-            paramsOut = cF.fit(new ParametricGaussianFunction( mode_, siProc.getWidth(), siProc.getHeight() ),
-                    params0_);
-         } catch (FunctionEvaluationException ex) {
-            //ReportingUtils.logError(ex);
-            ij.IJ.log(ex.getMessage());
-         } catch (OptimizationException ex) {
-            // Logger.getLogger(gaussianfit.class.getName()).log(Level.SEVERE, null, ex);
-            ij.IJ.log(ex.getMessage());
-         } catch (IllegalArgumentException ex) {
-            //ReportingUtils.logError(ex);
-            ij.IJ.log(ex.getMessage());
-         }
+      if ( (fitMode_.equals(2) || fitMode_.equals(4)) && useFloatPrecision() ) {
+         floatFit_.fit(pixels, offset, stride, width, height,
+                 params0_, maxIterations, fitMode_.equals(4));
+         lastIterations_ = floatFit_.getLastIterations();
+         fitResult = floatFit_.getLastFitResult();
+      } else if ( fitMode_.equals(2) || fitMode_.equals(4) ) {
+         lmFit_.fit(pixels, offset, stride, width, height,
+                 params0_, maxIterations);
+         lastIterations_ = lmFit_.getLastIterations();
+         fitResult = lmFit_.getLastFitResult();
       }
       
       // Simplex-MLE
@@ -214,10 +263,13 @@ public class GaussianFit implements FitProcessContainer {
          nm_.setStartConfiguration(steps_);
          nm_.setConvergenceChecker(convergedChecker_);
          nm_.setMaxIterations(maxIterations);
-         mGFMLE_.setImage((short[]) siProc.getPixels(), siProc.getWidth(), siProc.getHeight());
+         mGFMLE_.setImage(packPixels(pixels, offset, stride, width, height), width, height);
          try {
             RealPointValuePair result = nm_.optimize(mGFMLE_, GoalType.MINIMIZE, params0_);
-            paramsOut = result.getPoint();
+            lastIterations_ = nm_.getIterations();
+            //The Likelihood function does not provide residuals
+            fitResult = new FitResult(result.getPoint(), result.getValue(), Double.NaN,
+                    lastIterations_, true);
          } catch (java.lang.OutOfMemoryError e) {
             throw(e);
          } catch (FunctionEvaluationException e) {
@@ -248,7 +300,11 @@ public class GaussianFit implements FitProcessContainer {
          }
       }
       */
-         
+
+      if (fitResult == null) {
+         fitResult = FitResult.failed(lastIterations_);
+      }
+      double[] paramsOut = fitResult.getParameters();
       if (mode_ == 3) {
          if (paramsOut.length > S3) {
             double[] prms = GaussianUtils.ellipseParmConversion(paramsOut[S1], paramsOut[S2], paramsOut[S3]);
@@ -258,18 +314,40 @@ public class GaussianFit implements FitProcessContainer {
          }
       }
       
-      return paramsOut;
+      return fitResult;
+   }
+
+   /**
+    * Gets a contiguous array of a box of pixels, copying it into packed_ unless it already is one
+    */
+   private short[] packPixels(short[] pixels, int offset, int stride, int width, int height) {
+      if (offset == 0 && stride == width && pixels.length == width * height) {
+         return pixels;
+      }
+      if (packed_.length != width * height) {
+         packed_ = new short[width * height];
+      }
+      for (int y = 0; y < height; y++) {
+         System.arraycopy(pixels, offset + y * stride, packed_, y * width, width);
+      }
+      return packed_;
    }
 
 
    /**
     * Estimates the Parameters for a function by assuming the ImageProcessor Provided
     *  for the spot is centered on a Gaussian and is not the complete Gaussian
+    * <p>
+    * The total and centroid are taken from the moment estimate if one is set, so that
+    * only the maximum is read from the pixels.
     * 
-    * @param siProc 
+    * @param imagePixels The pixels containing the spot
+    * @param offset The index of the spot's top-left pixel
+    * @param stride The distance between rows of the spot in imagePixels
+    * @param width The width of the spot
+    * @param height The height of the spot
     */
-   private void estimateParameters(ImageProcessor siProc) {
-      short[] imagePixels = (short[]) siProc.getPixels();
+   private void estimateParameters(short[] imagePixels, int offset, int stride, int width, int height) {
 
       // Hard code estimate for sigma (expressed in pixels):
       params0_[S] = 0.9;
@@ -282,48 +360,46 @@ public class GaussianFit implements FitProcessContainer {
          params0_[S3] = 1;
       }
       
-      double bg = 0.0;
-      int n = 0;
-      int lastRowOffset = (siProc.getHeight() - 1) * siProc.getWidth();
-      for (int i = 0; i < siProc.getWidth(); i++) {
-         bg += (imagePixels[i] & 0xffff);
-         bg += (imagePixels[i + lastRowOffset] & 0xffff);
-         n += 2;
-      }
-      for (int i = 1; i < siProc.getHeight() - 1; i++) {
-         bg += (imagePixels[i * siProc.getWidth()] & 0xffff);
-         bg += (imagePixels[(i + 1) * siProc.getWidth() - 1] & 0xffff);
-         n += 2;
-      }
-      
       params0_[BGR] = Math.sqrt(baseLevel_);
-      // estimate signal by subtracting background from total intensity
+      // total intensity, maximum and center of mass in one pass
       double mt = 0.0;
-      int maxValue = 0, pointValue = 0;
-      for (int i = 0; i < siProc.getHeight() * siProc.getWidth(); i++) {
-         pointValue = (imagePixels[i] & 0xffff);
-         mt += pointValue;
-         if( pointValue > maxValue ) {
-             maxValue = pointValue;
-         }
-      }
-
-
-      // estimate center of mass
       double mx = 0.0;
       double my = 0.0;
-      for (int i = 0; i < siProc.getHeight() * siProc.getWidth(); i++) {
-         //mx += (imagePixels[i] - params0_[4]) * (i % siProc.getWidth() );
-         //my += (imagePixels[i] - params0_[4]) * (Math.floor (i / siProc.getWidth()));
-         mx += ((imagePixels[i] & 0xffff)) * (i % siProc.getWidth());
-         my += ((imagePixels[i] & 0xffff)) * (Math.floor(i / siProc.getWidth()));
+      int maxValue = 0, pointValue = 0;
+      int numPixels = height * width;
+      if (momentEstimate_) {
+         for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+               pointValue = (imagePixels[row + x] & 0xffff);
+               if( pointValue > maxValue ) {
+                   maxValue = pointValue;
+               }
+            }
+         }
+         mt = momentTotal_;
+         mx = momentXCentroid_ * mt;
+         my = momentYCentroid_ * mt;
+      } else {
+         for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+               pointValue = (imagePixels[row + x] & 0xffff);
+               mt += pointValue;
+               mx += pointValue * x;
+               my += pointValue * y;
+               if( pointValue > maxValue ) {
+                   maxValue = pointValue;
+               }
+            }
+         }
       }
       double xC = mx / mt;
       double yC = my / mt;
       params0_[XC] = xC;
       params0_[YC] = yC;
            
-      double ti = mt - (baseLevel_ * siProc.getHeight() * siProc.getWidth());
+      double ti = mt - (baseLevel_ * numPixels);
       //Calculate Infinite Integral in 2D of a given intensity
       params0_[INT] = maxValue;//ti / (2 * Math.PI * params0_[S] * params0_[S]);
       // print("Total signal: " + ti + "Estimate: " + params0_[0]);
@@ -332,40 +408,117 @@ public class GaussianFit implements FitProcessContainer {
       //ij.IJ.log("Centroid: " + mx/mt + " " + my/mt);
       // set step size during estimate
       for (int i = 0; i < params0_.length; ++i) {
-         steps_[i] = params0_[i] * 0.3;
+         steps_[i] = params0_[i] * COLD_STEP_FRACTION;
          if (steps_[i] == 0)
             steps_[i] = 0.1;
       }
    }
-   
-   
-   private class LMChecker implements VectorialConvergenceChecker {
-      int iteration_ = 0;
-      boolean lastResult_ = false;
-      @Override
-      public boolean converged(int i, VectorialPointValuePair previous, VectorialPointValuePair current) {
-         if (i == iteration_)
-            return lastResult_;
-         
-         iteration_ = i;
-         double[] p = previous.getPoint();
-         double[] c = current.getPoint();
-         
-         if ( Math.abs(p[INT] - c[INT]) < 10  &&
-                 Math.abs(p[BGR] - c[BGR]) < .1/*2*/ &&
-                 Math.abs(p[XC] - c[XC]) < 0.1 &&
-                 Math.abs(p[YC] - c[YC]) < 0.1 &&
-                 Math.abs(p[S] - c[S]) < 5 ) {
-            lastResult_ = true;
-            return true;
-         }
-         
-         lastResult_ = false;
+
+   /**
+    * Replaces the estimated Parameters with those of the previous fit (warm start).
+    * The center keeps its estimate from the current image, since the spot may have moved.
+    * Sigma is not seeded for the varying angle ellipse, since its returned
+    * parameters are converted from the fitted ones.
+    */
+   private void applyWarmStart() {
+      params0_[INT] = warmIntensity_;
+      params0_[BGR] = warmBackground_;
+      if (mode_ == 1) {
+         params0_[S] = warmSigma_;
+      } else if (mode_ == 2) {
+         params0_[S1] = warmSigma_;
+         params0_[S2] = warmSigma_;
+      }
+      for (int i = 0; i < params0_.length; ++i) {
+         steps_[i] = params0_[i] * WARM_STEP_FRACTION;
+         if (steps_[i] == 0)
+            steps_[i] = 0.1;
+      }
+   }
+
+   @Override
+   public void setWarmStart(double intensity, double background, double sigma) {
+      //Ignore Invalid Seeds and keep estimating from the image
+      if (!(intensity > 0) || !(sigma > 0) || Double.isNaN(background)) {
+         warmStart_ = false;
+         return;
+      }
+      warmIntensity_ = intensity;
+      warmBackground_ = background;
+      warmSigma_ = sigma;
+      warmStart_ = true;
+   }
+
+   @Override
+   public void clearWarmStart() {
+      warmStart_ = false;
+   }
+
+   @Override
+   public void setMomentEstimate(double total, double borderMean, double xCentroid, double yCentroid) {
+      //Ignore Invalid Moments and keep summing the image
+      if (!(total > 0) || Double.isNaN(xCentroid) || Double.isNaN(yCentroid)) {
+         momentEstimate_ = false;
+         return;
+      }
+      momentTotal_ = total;
+      momentXCentroid_ = xCentroid;
+      momentYCentroid_ = yCentroid;
+      momentEstimate_ = true;
+   }
+
+   @Override
+   public void clearMomentEstimate() {
+      momentEstimate_ = false;
+   }
+
+   @Override
+   public int getLastIterations() {
+      return lastIterations_;
+   }
+
+   /**
+    * Sets Whether the Levenberg-Marquardt modes fit the pixel-integrated Gaussian
+    * (see GaussianLMFit.setIntegratedModel()).  Ignored for other fitModes and Shape Mode 3.
+    * 
+    * @param integrated <code>true</code> to fit the pixel-integrated model
+    * @return The resulting state
+    */
+   public boolean setIntegratedModel(boolean integrated) {
+      if (lmFit_ == null) {
+         return false;
+      }
+      return lmFit_.setIntegratedModel(integrated);
+   }
+
+   /**
+    * Sets Whether the Levenberg-Marquardt modes use the single-precision FloatLMFit
+    * (with a GaussianFloatModel) instead of GaussianLMFit.  Ignored for other fitModes 
+    * and Shape Mode 3.  The pixel-integrated model is only available in double, so it 
+    * takes precedence if both are set.
+    * 
+    * @param floatPrecision <code>true</code> to fit in single-precision
+    * @return The resulting state
+    * 
+    * @see FloatLMFit
+    */
+   public boolean setFloatPrecision(boolean floatPrecision) {
+      if (lmFit_ == null || mode_ == 3) {
          return false;
       }
+      if (floatPrecision && floatFit_ == null) {
+         floatFit_ = new FloatLMFit(new GaussianFloatModel(mode_));
+      }
+      floatPrecision_ = floatPrecision;
+      return floatPrecision_;
+   }
+
+   private boolean useFloatPrecision() {
+      return floatPrecision_ && !lmFit_.isIntegratedModel();
    }
+   
+   
 
-    
     @Override
     public int getNumParams() {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
@@ -375,6 +528,7 @@ public class GaussianFit implements FitProcessContainer {
     public OptimizationModes setOptimizerMode(OptimizationModes mode) {
         if( mode == OptimizationModes.Levenberg_Marquardt 
                 || mode == OptimizationModes.Simplex 
+                || mode == OptimizationModes.Levenberg_Marquardt_Weighted
                 || mode == OptimizationModes.Simplex_Maximum_Likelihood ) {
             fitMode_ = mode;
         }
@@ -6,15 +6,16 @@
 package edu.hope.superresolution.fitters;
 
 import edu.hope.superresolution.MMgaussianfitmods.datasubs.BoundedSpotData;
-import edu.hope.superresolution.Utils.AdditionalGaussianUtils;
 import edu.hope.superresolution.Utils.IJMMReportingUtils;
 import edu.hope.superresolution.Utils.ThompsonGaussianEstimationUtil;
 import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitProcessPool;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.hope.superresolution.fitprocesses.FitResultProcess;
 import edu.hope.superresolution.genericstructures.BlockingQueueEndConditionTest;
 import edu.valelab.gaussianfit.DataCollectionForm;
 import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.fitting.ZCalibrator;
-import edu.valelab.gaussianfit.utils.GaussianUtils;
 import ij.ImagePlus;
 import ij.gui.ImageWindow;
 import ij.gui.Overlay;
@@ -37,6 +38,12 @@ public class GaussianFitStackThreadTest extends FitStackThread {
     
     private final double cPCF = photonConversionFactor_ / gain_;
     private final ZCalibrator zc = DataCollectionForm.zc_;
+    //Non-null when the Newton-MLE FitProcess is in use (provides Cramer-Rao Bounds)
+    private GaussianMLEFit mleFit_ = null;
+    //Created on the first crowded spot (see refineMultiEmitter())
+    private MultiGaussianLMFit multiFit_ = null;
+    //Moment estimates for the quick path (see quickLocalize())
+    private final MomentLocalizer quickLocalizer_ = new MomentLocalizer();
     //private final double sigmaMin_;  //This is Equal to Abbe Limit/2 (or half-Size search Area/2) (approx Gaussian Sigma)
     
     /**
@@ -55,11 +62,27 @@ public class GaussianFitStackThreadTest extends FitStackThread {
     public GaussianFitStackThreadTest(BlockingQueue<SpotData> sourceList, 
                                 BlockingQueueEndConditionTest<SpotData> endCondTest,
                                 List<SpotData> resultList, ImagePlus siPlus, 
-                                int resolveLimit, int shape,
-                                FitProcessContainer.OptimizationModes fitMode) {
+                                int resolveLimit, final int shape,
+                                final FitProcessContainer.OptimizationModes fitMode) {
         super(sourceList, endCondTest, resultList, siPlus, resolveLimit, shape, null, fitMode);
         //Later Initialization of FitProcessContainer for sake of readability
-        setFitProcess( new GaussianFit( shape, fitMode, baseLevel_ ) );
+        //  Fitters are reused from previous threads of the same shape and mode
+        if( fitMode == FitProcessContainer.OptimizationModes.Newton_Maximum_Likelihood ) {
+            //Radially Symmetric Only
+            mleFit_ = acquireFitProcess( GaussianMLEFit.class, new FitProcessPool.Factory<GaussianMLEFit>() {
+                @Override
+                public GaussianMLEFit create() {
+                    return new GaussianMLEFit( baseLevel_ );
+                }
+            });
+        } else {
+            acquireFitProcess( GaussianFit.class, new FitProcessPool.Factory<GaussianFit>() {
+                @Override
+                public GaussianFit create() {
+                    return new GaussianFit( shape, fitMode, baseLevel_ );
+                }
+            });
+        }
         //sigmaMin_ = resolveLimit / 2;
         
     }
@@ -67,78 +90,42 @@ public class GaussianFitStackThreadTest extends FitStackThread {
     @Override
     protected SpotData runFitProcess(SpotData spot) throws IllegalThreadStateException {
         try {
+            SpotData quickSpot = quickLocalize( spot );
+            if( quickSpot != null ) {
+                return quickSpot;
+            }
+            //Spots produced as views are fit in their frame without a copy (see SpotViewData)
+            SpotView spotView = (spot instanceof SpotViewData) ? ((SpotViewData) spot).getSpotView() : null;
+            if( spotView != null && mleFit_ == null ) {
+                ((GaussianFit) getFitProcess()).setIntegratedModel( useIntegratedModel_ );
+                ((GaussianFit) getFitProcess()).setFloatPrecision( useFloatPrecision_ );
+                FitResult fitResult = ((GaussianFit) getFitProcess()).dofitWithResult( spotView, maxIterations_ );
+                if( isMultiEmitterCandidate( fitResult ) ) {
+                    fitResult = refineMultiEmitter( spot.getImageProcessor(), fitResult );
+                }
+                return createFittedSpot( spot, fitResult, spotView.getWidth() / 2 );
+            }
+
             // Note: the implementation assumes there is a non-null spot to return a cached version of the ImageProcessor
             ImageProcessor ip = spot.getImageProcessor();
             //make this halfWidth for half-size
             int iWidth = ip.getWidth();
             int iHeight = ip.getHeight();
             int halfWidth = iWidth/2;
-            double[] paramsOut = getFitProcess().dofit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
-            BoundedSpotData spotData = new BoundedSpotData( spot, getPixelSize() );
-            double sx = 0;
-            double sy = 0;
-            double a = 1;
-            double theta = 0;                              
-            if (paramsOut.length >= 5) {
-               /*//Check That Residuals are Within the assumed 3 * Noise Amplitude
-               if( getRMSresiduals( ip, paramsOut ) > 3 * getNoiseTolerance() ) {
-                   ij.IJ.log("Residuals are greater than 2 times NoiseTolerance");
-                   return null;
-               }*/
-               
-               //Total Number of Photons in the theoretical Distribution
-               double N = cPCF * paramsOut[GaussianFit.INT]
-                       * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
-               //ij.IJ.log("Int Raw is: " + paramsOut[GaussianFit.INT]);
-               
-               double s = Math.abs(paramsOut[GaussianFit.S]) * pixelSize_;
-
-               double xMax = (paramsOut[GaussianFit.XC] - halfWidth + spot.getX()) * pixelSize_;
-               double yMax = (paramsOut[GaussianFit.YC] - halfWidth + spot.getY()) * pixelSize_;
-               // express background in photons after base level correction
-               // From Thompson Paper, We Propagate Noise + any dilineation from BaseLevel in the fit
-               double bgr = cPCF * Math.sqrt( Math.pow( Math.pow(paramsOut[GaussianFit.BGR], 2) - baseLevel_, 2) + Math.pow( noiseTolerance_, 2 ));
-               // calculate error using formula from Thompson et al (2002)
-               // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
-               //ij.IJ.log("Sigma is: " + s + "\nBackground is: " + bgr + "\nNumPhotons: " + N + "\n PixelSize: " + pixelSize_);
-               double uncertaintyPos = ThompsonGaussianEstimationUtil.calculateLateralUncertainty( s, bgr, N, pixelSize_ );
-               //ij.IJ.log( "Lateral Uncertainty is: " + uncertaintyPos);
-               double uncertaintyNumPhotons = ThompsonGaussianEstimationUtil.calculatePhotonUncertainty( N, s, bgr, pixelSize_ );
-               
-               if (paramsOut.length >= 6) {
-                  sx = paramsOut[GaussianFit.S1] * pixelSize_;
-                  sy = paramsOut[GaussianFit.S2] * pixelSize_;
-                  a = sx / sy;
-                  
-                  /*double z = 0.0;              
-               
-                  if (zc.hasFitFunctions()) {
-                     z = zc.getZ(2 * sx, 2 * sy);
-                     spotData.setZCenter(z);
-                  }*/
-                  
-               }
-
-               if (paramsOut.length >= 7) {
-                  theta = paramsOut[GaussianFit.S3];
-               }
-               
-               double width = 2 * s;
-                         
-               spotData.setMaxIntensity( paramsOut[GaussianFit.INT] );
-               spotData.setMaxIntensityUncertainty( uncertaintyNumPhotons/
-                                                        (2*Math.PI*paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]) );
-               spotData.setNumPhotonUncertainty( uncertaintyNumPhotons );
-               spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, uncertaintyPos);
-               //ij.IJ.log( "Spot Fit: " + spotData.getX() + ", " + spotData.getY() +  " and width = " + spotData.getWidth() + " uncertainty = " + spotData.getSigma() );
-               if( width > widthMin_ && width < widthMax_ && uncertaintyPos < width) {                       
-                  return spotData;
-               }
-
+            FitResult fitResult;
+            if( mleFit_ != null ) {
+                //Settings are applied after construction, so update them per spot
+                mleFit_.setBaseLevel( baseLevel_ );
+                mleFit_.setCountsToPhotons( photonConversionFactor_ / gain_ );
+                fitResult = mleFit_.dofitWithResult( ip, newtonIterations_ );
             } else {
-                //ij.IJ.log("Spot Fit Fell Through");
+                //Settings are applied after construction
+                ((GaussianFit) getFitProcess()).setIntegratedModel( useIntegratedModel_ );
+                ((GaussianFit) getFitProcess()).setFloatPrecision( useFloatPrecision_ );
+                fitResult = ((FitResultProcess) getFitProcess()).dofitWithResult(ip, maxIterations_);
+                fitResult = refineMultiEmitter( ip, fitResult );
             }
+            return createFittedSpot( spot, fitResult, halfWidth );
          } catch (Exception ex) {
             IJMMReportingUtils.logError(ex);
             IJMMReportingUtils.logError("Thread run out of memory  " + 
@@ -147,42 +134,175 @@ public class GaussianFitStackThreadTest extends FitStackThread {
                     "Out of memory error");
             throw new IllegalThreadStateException( ex.getMessage() );
          }
+    }
 
-        return null;
+    /**
+     * Localizes a spot from its moments instead of fitting it, if the quick localizer is 
+     * in use (see setUseQuickLocalizer()).  The estimate is only kept if MomentLocalizer 
+     * considers it reliable for the noise tolerance and it passes the same filters as a fit 
+     * (createFittedSpot()), otherwise the spot should be fit.
+     * <p>
+     * Not used with Newton-MLE fits, whose uncertainties come from the fit itself.
+     * 
+     * @param spot The spot to localize
+     * @return The localized spot, or null if the spot should be fit instead
+     * 
+     * @see MomentLocalizer
+     */
+    protected SpotData quickLocalize( SpotData spot ) {
+        if( !useQuickLocalizer_ || mleFit_ != null ) {
+            return null;
+        }
+        SpotView spotView = (spot instanceof SpotViewData) ? ((SpotViewData) spot).getSpotView() : null;
+        FitResult estimate;
+        int halfWidth;
+        if( spotView != null ) {
+            estimate = quickLocalizer_.localize( spotView );
+            halfWidth = spotView.getWidth() / 2;
+        } else {
+            ImageProcessor ip = spot.getImageProcessor();
+            estimate = quickLocalizer_.localize( ip );
+            halfWidth = ip.getWidth() / 2;
+        }
+        if( !quickLocalizer_.isReliable( getNoiseTolerance() ) ) {
+            return null;
+        }
+        return createFittedSpot( spot, estimate, halfWidth );
     }
-    
-    //Calculates the RMS of the residucals given the final Params and modes
-    double getRMSresiduals( ImageProcessor siProc, double[] finalParams ) {
-       
-       int xWidth = siProc.getWidth();
-       int yHeight = siProc.getHeight();
-       double rmsResidual = 0.0;
-       
-       if (mode_ == 1) {
-          for (int i = 0; i < xWidth; i++) {
-             for (int j = 0; j < yHeight; j++) {
-                rmsResidual += GaussianUtils.sqr(AdditionalGaussianUtils.gaussianSquareBGR(finalParams, i, j)
-                                                           - siProc.get(i, j) );
-             }
-          }
-       } else if (mode_ == 2) {
-          for (int i = 0; i < xWidth; i++) {
-             for (int j = 0; j < yHeight; j++) {
-                rmsResidual += GaussianUtils.sqr(AdditionalGaussianUtils.gaussian2DXYSquareBGR(finalParams, i, j) 
-                                                            - siProc.get(i, j));
-             }
-          }
-       } else if (mode_ == 3) {
-          for (int i = 0; i < xWidth; i++) {
-             for (int j = 0; j < yHeight; j++) {
-                rmsResidual += GaussianUtils.sqr(AdditionalGaussianUtils.gaussian2DEllipsSquareBGR(finalParams, i, j)
-                                                            - siProc.get(i, j));
-             }
-          }
-       }
-       
-       return Math.sqrt(rmsResidual/(xWidth*yHeight));
+
+    /**
+     * Refits a Radially Symmetric (Shape 1) spot with additional Gaussians if the 
+     * residual of its single Gaussian fit has a peak above 3 times the noise tolerance 
+     * (see setUseMultiEmitterFit()).  Only the emitter nearest the center of the spot is 
+     * returned, the others are fit so that a neighbouring fiducial does not pull the 
+     * center or widen the fit.
+     * 
+     * @param ip The ImageProcessor of the spot
+     * @param fitResult The single Gaussian fit of the spot (GaussianFit indices)
+     * @return The FitResult of the center emitter, or fitResult if no other emitter was found
+     * 
+     * @see MultiGaussianLMFit
+     */
+    protected FitResult refineMultiEmitter( ImageProcessor ip, FitResult fitResult ) {
+        if( !isMultiEmitterCandidate( fitResult ) ) {
+            return fitResult;
+        }
+        if( multiFit_ == null ) {
+            multiFit_ = acquirePooled( new FitProcessPool.Key( MultiGaussianLMFit.class, 0, 0, 0 ),
+                                        MultiGaussianLMFit.class, new FitProcessPool.Factory<MultiGaussianLMFit>() {
+                @Override
+                public MultiGaussianLMFit create() {
+                    return new MultiGaussianLMFit();
+                }
+            });
+        }
+        FitResult refined = multiFit_.refine( (short[]) ip.getPixels(), ip.getWidth(), ip.getHeight(),
+                                                fitResult.getParameters(), 3 * getNoiseTolerance(), maxIterations_ );
+        return (refined != null) ? refined : fitResult;
+    }
+
+    /**
+     * Whether refineMultiEmitter() would look for other emitters in a fit
+     * 
+     * @param fitResult The single Gaussian fit of the spot
+     * @return <code>true</code> if multi-emitter fits are in use and apply to the fit
+     */
+    protected boolean isMultiEmitterCandidate( FitResult fitResult ) {
+        //The Newton-MLE background is not linear in counts
+        return useMultiEmitterFit_ && shape_ == 1 && mleFit_ == null && fitResult.hasParameters();
     }
 
+    /**
+     * Converts the Result of a GaussianFit into a BoundedSpotData with the
+     * number of photons, background and uncertainties.
+     * <p>
+     * If the residual filter is in use (setUseResidualFilter()), fits with an RMS residual
+     * greater than 3 times the noise tolerance are rejected.  The RMS residual is 
+     * taken from the FitResult, so no additional pass over the spot is made.
+     * 
+     * @param spot The spot that was fit
+     * @param fitResult The result of the fit (GaussianFit indices)
+     * @param halfWidth The center pixel of the spot's ImageProcessor
+     * @return The fitted spot, or null if the fit failed or was filtered out
+     */
+    protected SpotData createFittedSpot( SpotData spot, FitResult fitResult, int halfWidth ) {
+        double[] paramsOut = fitResult.getParameters();
+        // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
+        BoundedSpotData spotData = new BoundedSpotData( spot, getPixelSize() );
+        double sx = 0;
+        double sy = 0;
+        double a = 1;
+        double theta = 0;                              
+        if (paramsOut.length >= 5) {
+           //Check That Residuals are Within the assumed 3 * Noise Amplitude
+           //(NaN for fits without residuals is not rejected)
+           if( useResidualFilter_ && fitResult.getRMSResidual() > 3 * getNoiseTolerance() ) {
+               return null;
+           }
+           
+           //Total Number of Photons in the theoretical Distribution
+           double N = cPCF * paramsOut[GaussianFit.INT]
+                   * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
+           //ij.IJ.log("Int Raw is: " + paramsOut[GaussianFit.INT]);
+           
+           double s = Math.abs(paramsOut[GaussianFit.S]) * pixelSize_;
+
+           double xMax = (paramsOut[GaussianFit.XC] - halfWidth + spot.getX()) * pixelSize_;
+           double yMax = (paramsOut[GaussianFit.YC] - halfWidth + spot.getY()) * pixelSize_;
+           // express background in photons after base level correction
+           // From Thompson Paper, We Propagate Noise + any dilineation from BaseLevel in the fit
+           double bgr = cPCF * Math.sqrt( Math.pow( Math.pow(paramsOut[GaussianFit.BGR], 2) - baseLevel_, 2) + Math.pow( noiseTolerance_, 2 ));
+           // calculate error using formula from Thompson et al (2002)
+           // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
+           //ij.IJ.log("Sigma is: " + s + "\nBackground is: " + bgr + "\nNumPhotons: " + N + "\n PixelSize: " + pixelSize_);
+           double uncertaintyPos = ThompsonGaussianEstimationUtil.calculateLateralUncertainty( s, bgr, N, pixelSize_ );
+           //ij.IJ.log( "Lateral Uncertainty is: " + uncertaintyPos);
+           double uncertaintyNumPhotons = ThompsonGaussianEstimationUtil.calculatePhotonUncertainty( N, s, bgr, pixelSize_ );
+           if( mleFit_ != null ) {
+               //Use the Cramer-Rao Lower Bounds from the Fisher Information of the fit
+               double[] crlb = mleFit_.getCRLB();
+               uncertaintyPos = Math.sqrt( (crlb[GaussianMLEFit.CRLB_X] + crlb[GaussianMLEFit.CRLB_Y]) / 2 ) * pixelSize_;
+               uncertaintyNumPhotons = Math.sqrt( crlb[GaussianMLEFit.CRLB_N] );
+           }
+           
+           if (paramsOut.length >= 6) {
+              sx = paramsOut[GaussianFit.S1] * pixelSize_;
+              sy = paramsOut[GaussianFit.S2] * pixelSize_;
+              a = sx / sy;
+              
+              /*double z = 0.0;              
+           
+              if (zc.hasFitFunctions()) {
+                 z = zc.getZ(2 * sx, 2 * sy);
+                 spotData.setZCenter(z);
+              }*/
+              
+           }
+
+           if (paramsOut.length >= 7) {
+              theta = paramsOut[GaussianFit.S3];
+           }
+           
+           double width = 2 * s;
+                     
+           spotData.setMaxIntensity( paramsOut[GaussianFit.INT] );
+           spotData.setMaxIntensityUncertainty( uncertaintyNumPhotons/
+                                                    (2*Math.PI*paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]) );
+           spotData.setNumPhotonUncertainty( uncertaintyNumPhotons );
+           spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, uncertaintyPos);
+           //Raw parameters for warm starting the next frame of a track
+           storeRawFitParameters( spotData, paramsOut[GaussianFit.INT], paramsOut[GaussianFit.BGR],
+                                    Math.abs(paramsOut[GaussianFit.S]) );
+           //ij.IJ.log( "Spot Fit: " + spotData.getX() + ", " + spotData.getY() +  " and width = " + spotData.getWidth() + " uncertainty = " + spotData.getSigma() );
+           if( width > widthMin_ && width < widthMax_ && uncertaintyPos < width) {                       
+              return spotData;
+           }
+
+        } else {
+            //ij.IJ.log("Spot Fit Fell Through");
+        }
+
+        return null;
+    }
     
 }
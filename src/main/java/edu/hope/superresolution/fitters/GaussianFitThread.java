@@ -75,14 +75,24 @@ public class GaussianFitThread extends GenericBaseGaussianFitThread {
     * Presents A GaussianFitStackThreadTest based on Parameters passed from the Super Class
     * <p>
     * All Parameters Are The Requirements for a FitStackThread passed from the super run()
+    * <p>
+    * If Batch Fitting is set (see setUseBatchFitting()) and the shape and fitMode are supported,
+    * a BatchGaussianFitStackThread is presented instead.
     * 
     * @return A GaussianFitStackThreadTest that will perform Basic Gaussian Fits
     * 
     * @see GaussianFitStackThreadTest
+    * @see BatchGaussianFitStackThread
     * @see #super
     */
     @Override
     protected FitStackThread createFitStackThreadInstance(BlockingQueue<SpotData> sourceList, BlockingQueueEndConditionTest<SpotData> endCondTest, List<SpotData> resultList, ImagePlus siPlus, int halfSize, int shape, FitProcessContainer.OptimizationModes fitMode) {
+        //The batch fit only samples the Gaussian at pixel centers, in double
+        if( getUseBatchFitting() && !getUseIntegratedModel() && !getUseFloatPrecision()
+                && BatchGaussianFitStackThread.isBatchable( shape, fitMode ) ) {
+            return new BatchGaussianFitStackThread(sourceList, endCondTest, resultList,
+                     siPlus, halfSize, shape, fitMode, BatchGaussianFitStackThread.DEFAULT_BATCH_SIZE );
+        }
         return new GaussianFitStackThreadTest(sourceList, endCondTest, resultList, 
                  siPlus, halfSize, shape, fitMode );
     }
@@ -112,10 +122,11 @@ public class GaussianFitThread extends GenericBaseGaussianFitThread {
                 && y > halfSize_ && y < ip.getHeight() - halfSize_) {
             //Check to make sure the edge pixel average is greater than approx 1.5*sigma
             //It is assumed a user has already specified 2*sigma abbe Limit
-            int maxValue = ip.get(x, y) - (int) baseLevel_;
-            double compValue = .5 * maxValue + baseLevel_;
+            double baseLevel = getFrameBaseLevel();
+            int maxValue = ip.get(x, y) - (int) baseLevel;
+            double compValue = .5 * maxValue + baseLevel;
             //Checks in case there is a problem with fitting parameters to avoid looping
-            if( compValue - baseLevel_ < noiseTolerance_ ) {
+            if( compValue - baseLevel < getFrameNoiseTolerance() ) {
                 //ij.IJ.log( "Removed Spot Compared to BaseLevel ");
                 return null;
             }
@@ -131,7 +142,8 @@ public class GaussianFitThread extends GenericBaseGaussianFitThread {
                     values = scaleSettoDirectionalValues( x, y, halfSize_, ip, compValue );
                     break;
             }
-            ImageProcessor sp = SpotData.getSpotProcessor(ip,
+            //A view of the box, ip's Roi is left untouched
+            SpotView sp = SpotView.create(ip,
                     values[HALFBOX_IDX], values[X_IDX], values[Y_IDX]);
              
             if (sp != null) {
@@ -140,8 +152,10 @@ public class GaussianFitThread extends GenericBaseGaussianFitThread {
                 if( Math.abs( values[X_IDX] - x ) < halfSize_ 
                         && Math.abs( values[Y_IDX] - y ) < halfSize_ ) {
                     //Such a Dumb way to lump getters and setters with the setData thing
-                    return new SpotData(sp, channel, slice, frame,
+                    SpotData spot = new SpotViewData(sp, channel, slice, frame,
                             position, spotIdx, values[X_IDX], values[Y_IDX]);
+                    addMomentEstimate( spot, values[HALFBOX_IDX], values[X_IDX], values[Y_IDX] );
+                    return spot;
                 }
                 else {
                     ij.IJ.log( "position rejection");
@@ -206,7 +220,7 @@ public class GaussianFitThread extends GenericBaseGaussianFitThread {
             int val;
             int lx = 0, rx = 0, ty = 0, by = 0;
             //int max = (int) Math.ceil( widthMax_ / pixelSize_ );
-            int noiseAmplitude = getNoiseTolerance();
+            int noiseAmplitude = getFrameNoiseTolerance();
             do {
                 if (!leftLow) {
                     val = iProc.getPixel(x - (halfBox + lx), y);
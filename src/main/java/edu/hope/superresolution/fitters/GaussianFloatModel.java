@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import static edu.hope.superresolution.fitters.GaussianFit.BGR;
+import static edu.hope.superresolution.fitters.GaussianFit.INT;
+import static edu.hope.superresolution.fitters.GaussianFit.S;
+import static edu.hope.superresolution.fitters.GaussianFit.S1;
+import static edu.hope.superresolution.fitters.GaussianFit.S2;
+import static edu.hope.superresolution.fitters.GaussianFit.XC;
+import static edu.hope.superresolution.fitters.GaussianFit.YC;
+
+/**
+ * Single-Precision Gaussian (sampled at pixel centers) with a linear background.
+ * <p>
+ * This is the same model and parameter order as GaussianLMFit (GaussianFit's 
+ * Levenberg-Marquardt path) for the shapes:
+ * <pre>
+ *      1 - Radial Symmetric: [ INT, BGR, XC, YC, S ]
+ *      2 - In-plane Ellipse: [ INT, BGR, XC, YC, S1 (sigmaX), S2 (sigmaY) ]
+ * </pre>
+ *
+ * @see FloatLMFit
+ * @see GaussianLMFit
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianFloatModel implements FloatPixelModel {
+
+    private final int mode_;
+
+    /**
+     * Constructor
+     *
+     * @param mode - fit circle (1) or ellipse (2)
+     */
+    public GaussianFloatModel( int mode ) {
+        if( mode != 1 && mode != 2 ) {
+            throw new IllegalArgumentException( "Float Gaussian Model only supports Shape Modes 1 and 2" );
+        }
+        mode_ = mode;
+    }
+
+    @Override
+    public int getNumParams() {
+        return mode_ + 4;
+    }
+
+    @Override
+    public void evaluate( float[] params, int width, int height, float[] values, float[][] jacobian ) {
+        final float a = params[INT];
+        final float bgr = params[BGR];
+        final float xC = params[XC];
+        final float yC = params[YC];
+        final float s1 = params[S1];
+        final float s2 = (mode_ == 2) ? params[S2] : s1;
+        final float invS1Sqr = 1f / (s1 * s1);
+        final float invS2Sqr = 1f / (s2 * s2);
+        final float invS1Cube = invS1Sqr / s1;
+        final float invS2Cube = invS2Sqr / s2;
+
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            final float dy = y - yC;
+            final float yTerm = dy * dy * invS2Sqr;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final float dx = x - xC;
+                float e = (float) Math.exp( -.5f * (dx * dx * invS1Sqr + yTerm) );
+                float q = a * e;
+                values[idx] = q + bgr;
+                if( jacobian != null ) {
+                    jacobian[INT][idx] = e;
+                    jacobian[BGR][idx] = 1f;
+                    jacobian[XC][idx] = dx * q * invS1Sqr;
+                    jacobian[YC][idx] = dy * q * invS2Sqr;
+                    if( mode_ == 1 ) {
+                        jacobian[S][idx] = (dx * dx + dy * dy) * q * invS1Cube;
+                    } else {
+                        jacobian[S1][idx] = dx * dx * q * invS1Cube;
+                        jacobian[S2][idx] = dy * dy * q * invS2Cube;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,651 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import static edu.hope.superresolution.fitters.GaussianFit.BGR;
+import static edu.hope.superresolution.fitters.GaussianFit.INT;
+import static edu.hope.superresolution.fitters.GaussianFit.S;
+import static edu.hope.superresolution.fitters.GaussianFit.S1;
+import static edu.hope.superresolution.fitters.GaussianFit.S2;
+import static edu.hope.superresolution.fitters.GaussianFit.S3;
+import static edu.hope.superresolution.fitters.GaussianFit.XC;
+import static edu.hope.superresolution.fitters.GaussianFit.YC;
+import edu.hope.superresolution.Utils.AdditionalGaussianUtils;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.hope.superresolution.fitprocesses.FitResultProcess;
+import edu.valelab.gaussianfit.utils.GaussianUtils;
+import ij.process.ImageProcessor;
+
+/**
+ * Levenberg-Marquardt Gaussian Fit operating directly on the short[] pixels of a spot.
+ * <p>
+ * This replaces the commons-math CurveFitter path of GaussianFit (one observation
+ * object per pixel and a generic optimizer per spot).  The Jacobian is written in
+ * closed form for each of the shape modes, accumulated straight into the normal
+ * equations (J^T*W*J and J^T*W*r), and the small (5-7 parameter) damped system is
+ * solved in place by Cholesky decomposition.  All working storage is allocated once
+ * per instance, so the only allocation per fit is the returned parameter array.
+ * <p>
+ * The model and parameter indices are the same as GaussianFit's Levenberg-Marquardt
+ * path (GaussianUtils.gaussian, gaussian2DXY, gaussian2DEllips), so results can be
+ * interpreted identically.
+ * <p>
+ * Shape Modes 1 and 2 may instead use the pixel-integrated Gaussian (see setIntegratedModel()),
+ * which is evaluated from per-row and per-column erf tables (AdditionalGaussianUtils.integratedGaussianAxis).
+ * The parameters keep the same meaning (INT is the peak amplitude).
+ * <pre>
+ * Shape Modes:
+ *      1 - Radial Symmetric: [ INT, BGR, XC, YC, S ]
+ *      2 - In-plane Ellipse: [ INT, BGR, XC, YC, S1 (sigmaX), S2 (sigmaY) ]
+ *      3 - Ellipse with Varying Angle: [ INT, BGR, XC, YC, S1, S2, S3 ]
+ *          (converted to sigmaX, sigmaY, theta on return)
+ *
+ * Optimization Modes:
+ *      Levenberg_Marquardt - Unweighted Least Squares
+ *      Levenberg_Marquardt_Weighted - Pixels weighted by 1/value (Poisson variance)
+ * </pre>
+ * The chi-square (weighted for Levenberg_Marquardt_Weighted) and RMS residual of the 
+ * FitResult come from the normal equations built at the final parameters, so no 
+ * additional pass over the pixels is made.
+ * <p>
+ * Not Thread-safe.  One instance is expected per FitStackThread.
+ *
+ * @see GaussianFit
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianLMFit implements FitProcessContainer, FitResultProcess {
+
+    //Damping Parameters
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double LAMBDA_INCREASE = 10;
+    private static final double LAMBDA_DECREASE = .1;
+    private static final double MAX_LAMBDA = 1e10;
+    //Relative Chi-Square decrease considered to be converged
+    private static final double CHI_SQR_TOLERANCE = 1e-7;
+
+    private final int mode_;
+    private final int numParams_;
+    private OptimizationModes fitMode_ = OptimizationModes.Levenberg_Marquardt;
+    private double baseLevel_ = 0;
+
+    //Reused Working Storage
+    private final double[] params_;
+    private final double[] trial_;
+    private final double[] delta_;
+    private final double[] row_;
+    private final double[] jtj_;
+    private final double[] jtr_;
+    private final double[] system_;
+    private double[] weights_ = new double[0];
+
+    //Pixel-Integrated Model and its per-axis tables
+    private boolean integrated_ = false;
+    private double[] gx_ = new double[0];
+    private double[] dGxC_ = new double[0];
+    private double[] dGxS_ = new double[0];
+    private double[] gy_ = new double[0];
+    private double[] dGyC_ = new double[0];
+    private double[] dGyS_ = new double[0];
+
+    //Number of Iterations used by the last fit
+    private int lastIterations_ = 0;
+    //Unweighted sum of squared residuals from the last buildNormalEquations()
+    private double residualSumSqr_ = 0;
+    private FitResult lastResult_ = FitResult.failed( 0 );
+
+    /**
+     * Constructor
+     *
+     * @param mode - fit circle (1) ellipse(2), or ellipse with varying angle (3)
+     * @param fitMode - Levenberg_Marquardt or Levenberg_Marquardt_Weighted (other modes are ignored)
+     * @param baseLevel - The baseLevel of the camera (used to seed the background estimate)
+     */
+    public GaussianLMFit( int mode, OptimizationModes fitMode, double baseLevel ) {
+        if( mode < 1 || mode > 3 ) {
+            throw new IllegalArgumentException( "Gaussian Shape Mode must be 1, 2, or 3" );
+        }
+        mode_ = mode;
+        numParams_ = mode + 4;
+        baseLevel_ = baseLevel;
+        setOptimizerMode( fitMode );
+
+        params_ = new double[numParams_];
+        trial_ = new double[numParams_];
+        delta_ = new double[numParams_];
+        row_ = new double[numParams_];
+        jtj_ = new double[numParams_ * numParams_];
+        jtr_ = new double[numParams_];
+        system_ = new double[numParams_ * numParams_];
+    }
+
+    /**
+     * Sets Whether or not to fit the pixel-integrated Gaussian instead of the Gaussian 
+     * sampled at pixel centers.  Only available for Shape Modes 1 and 2.
+     *
+     * @param integrated <code>true</code> to fit the integrated model
+     * @return The resulting state (always <code>false</code> for Shape Mode 3)
+     */
+    public boolean setIntegratedModel( boolean integrated ) {
+        integrated_ = integrated && mode_ != 3;
+        return integrated_;
+    }
+
+    public boolean isIntegratedModel() {
+        return integrated_;
+    }
+
+    /**
+     * Performs the Gaussian Fit on a given ImageProcessor, estimating initial parameters
+     * the same way as GaussianFit.
+     *
+     * @param siProc - ImageJ ImageProcessor (ShortProcessor) containing image to be fit
+     * @param maxIterations - maximum number of Levenberg-Marquardt iterations
+     * @return {0.0} if the fit failed, or the parameters in the order described by the class
+     */
+    @Override
+    public double[] dofit( ImageProcessor siProc, int maxIterations ) {
+        int width = siProc.getWidth();
+        return dofit( (short[]) siProc.getPixels(), 0, width, width, siProc.getHeight(), maxIterations );
+    }
+
+    /**
+     * Performs the Gaussian Fit of dofit( ImageProcessor, int ) on a view of the spot in its frame
+     *
+     * @param spotView The view of the spot (16-bit frames are read in place, others are copied)
+     * @param maxIterations - maximum number of Levenberg-Marquardt iterations
+     * @return {0.0} if the fit failed, or the parameters in the order described by the class
+     */
+    public double[] dofit( SpotView spotView, int maxIterations ) {
+        short[] pixels = spotView.getShortPixels();
+        if( pixels == null ) {
+            return dofit( spotView.toProcessor(), maxIterations );
+        }
+        return dofit( pixels, spotView.getOffset(), spotView.getStride(), spotView.getWidth(),
+                        spotView.getHeight(), maxIterations );
+    }
+
+    private double[] dofit( short[] pixels, int offset, int stride, int width, int height, int maxIterations ) {
+        double[] params0 = new double[numParams_];
+        estimateParameters( pixels, offset, stride, width, height, params0 );
+        double[] paramsOut = fit( pixels, offset, stride, width, height, params0, maxIterations );
+
+        if ( mode_ == 3 && paramsOut.length > S3 ) {
+            double[] prms = GaussianUtils.ellipseParmConversion( paramsOut[S1], paramsOut[S2], paramsOut[S3] );
+            paramsOut[S1] = prms[1];
+            paramsOut[S2] = prms[2];
+            paramsOut[S3] = prms[0];
+        }
+        return paramsOut;
+    }
+
+    @Override
+    public FitResult dofitWithResult( ImageProcessor siProc, int maxIterations ) {
+        dofit( siProc, maxIterations );
+        //dofit() converts the parameters of lastResult_ in place
+        return lastResult_;
+    }
+
+    /**
+     * Gets the Result of the most recent fit() or dofit()
+     *
+     * @return The FitResult of the last fit
+     */
+    public FitResult getLastFitResult() {
+        return lastResult_;
+    }
+
+    /**
+     * Runs the Levenberg-Marquardt fit from the supplied starting parameters.
+     * <p>
+     * Note: No ellipse parameter conversion is performed for mode 3, the raw model
+     * parameters are returned.
+     *
+     * @param pixels The 16-bit pixels of the spot (row-major)
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param initialParams The starting parameters (not modified)
+     * @param maxIterations The maximum number of iterations
+     * @return {0.0} if the fit failed, or the fit parameters
+     */
+    public double[] fit( short[] pixels, int width, int height, double[] initialParams, int maxIterations ) {
+        return fit( pixels, 0, width, width, height, initialParams, maxIterations );
+    }
+
+    /**
+     * Runs the Levenberg-Marquardt fit of fit( short[], int, int, double[], int ) on a box
+     * of a larger pixel array (i.e. a SpotView of a frame), without copying it.
+     *
+     * @param pixels The 16-bit pixels containing the spot (row-major)
+     * @param offset The index of the spot's top-left pixel
+     * @param stride The distance between rows of the spot in pixels
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param initialParams The starting parameters (not modified)
+     * @param maxIterations The maximum number of iterations
+     * @return {0.0} if the fit failed, or the fit parameters
+     */
+    public double[] fit( short[] pixels, int offset, int stride, int width, int height,
+                            double[] initialParams, int maxIterations ) {
+
+        int numPixels = width * height;
+        boolean weighted = fitMode_ == OptimizationModes.Levenberg_Marquardt_Weighted;
+        if( weighted ) {
+            if( weights_.length != numPixels ) {
+                weights_ = new double[numPixels];
+            }
+            int idx = 0;
+            for( int y = 0; y < height; ++y ) {
+                int rowStart = offset + y * stride;
+                for( int x = 0; x < width; ++x, ++idx ) {
+                    //Guard against zero-valued pixels (legacy path would produce an infinite weight)
+                    weights_[idx] = 1.0 / Math.max( 1, pixels[rowStart + x] & 0xffff );
+                }
+            }
+        }
+
+        if( integrated_ && (gx_.length < width || gy_.length < height) ) {
+            gx_ = new double[width];
+            dGxC_ = new double[width];
+            dGxS_ = new double[width];
+            gy_ = new double[height];
+            dGyC_ = new double[height];
+            dGyS_ = new double[height];
+        }
+
+        System.arraycopy( initialParams, 0, params_, 0, numParams_ );
+        double lambda = INITIAL_LAMBDA;
+        double chiSqr = buildNormalEquations( pixels, offset, stride, width, height, params_, weighted );
+        lastIterations_ = 0;
+        boolean converged = false;
+
+        while( lastIterations_ < maxIterations ) {
+            ++lastIterations_;
+            if( Double.isNaN( chiSqr ) || Double.isInfinite( chiSqr ) ) {
+                lastResult_ = FitResult.failed( lastIterations_ );
+                return lastResult_.getParameters();
+            }
+
+            //Search for a step that reduces chi-square, increasing damping on rejection
+            double trialChiSqr = Double.POSITIVE_INFINITY;
+            while( lambda < MAX_LAMBDA ) {
+                if( solveDamped( lambda ) ) {
+                    for( int k = 0; k < numParams_; ++k ) {
+                        trial_[k] = params_[k] + delta_[k];
+                    }
+                    trialChiSqr = chiSquare( pixels, offset, stride, width, height, trial_, weighted );
+                    if( trialChiSqr < chiSqr ) {
+                        break;
+                    }
+                }
+                lambda *= LAMBDA_INCREASE;
+            }
+            if( lambda >= MAX_LAMBDA ) {
+                //No downhill step is possible from here, current parameters are the minimum
+                converged = true;
+                break;
+            }
+
+            System.arraycopy( trial_, 0, params_, 0, numParams_ );
+            lambda *= LAMBDA_DECREASE;
+            converged = (chiSqr - trialChiSqr) <= CHI_SQR_TOLERANCE * chiSqr;
+            chiSqr = buildNormalEquations( pixels, offset, stride, width, height, params_, weighted );
+            if( converged ) {
+                break;
+            }
+        }
+
+        if( Double.isNaN( chiSqr ) || Double.isInfinite( chiSqr ) ) {
+            lastResult_ = FitResult.failed( lastIterations_ );
+            return lastResult_.getParameters();
+        }
+        double[] paramsOut = new double[numParams_];
+        System.arraycopy( params_, 0, paramsOut, 0, numParams_ );
+        lastResult_ = new FitResult( paramsOut, chiSqr, Math.sqrt( residualSumSqr_ / numPixels ),
+                                        lastIterations_, converged );
+        return paramsOut;
+    }
+
+    /**
+     * Evaluates the model and its closed-form partial derivatives at every pixel
+     * and accumulates the upper triangle of J^T*W*J and J^T*W*r.
+     *
+     * @return The chi-square of the current parameters
+     */
+    private double buildNormalEquations( short[] pixels, int offset, int stride, int width, int height,
+                                         double[] params, boolean weighted ) {
+        if( integrated_ ) {
+            return buildIntegratedNormalEquations( pixels, offset, stride, width, height, params, weighted );
+        }
+        final int n = numParams_;
+        final double[] row = row_;
+        final double[] jtj = jtj_;
+        final double[] jtr = jtr_;
+        for( int i = 0; i < jtj.length; ++i ) {
+            jtj[i] = 0;
+        }
+        for( int i = 0; i < n; ++i ) {
+            jtr[i] = 0;
+        }
+
+        final double a = params[INT];
+        final double bgr = params[BGR];
+        final double xC = params[XC];
+        final double yC = params[YC];
+        //Precompute the per-mode shape terms
+        final double p1 = params[S1];
+        final double p2 = (mode_ >= 2) ? params[S2] : p1;
+        final double p3 = (mode_ == 3) ? params[S3] : 0;
+        final double invS1Sqr = 1.0 / (p1 * p1);
+        final double invS2Sqr = 1.0 / (p2 * p2);
+        final double invS1Cube = invS1Sqr / p1;
+        final double invS2Cube = invS2Sqr / p2;
+
+        double chiSqr = 0;
+        double rss = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            final int rowStart = offset + y * stride;
+            final double dy = y - yC;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final double dx = x - xC;
+                double e;
+                row[BGR] = 1.0;
+                if( mode_ == 1 ) {
+                    double r2 = dx * dx + dy * dy;
+                    e = Math.exp( -.5 * r2 * invS1Sqr );
+                    double q = a * e;
+                    row[XC] = dx * q * invS1Sqr;
+                    row[YC] = dy * q * invS1Sqr;
+                    row[S] = r2 * q * invS1Cube;
+                } else if( mode_ == 2 ) {
+                    e = Math.exp( -.5 * (dx * dx * invS1Sqr + dy * dy * invS2Sqr) );
+                    double q = a * e;
+                    row[XC] = dx * q * invS1Sqr;
+                    row[YC] = dy * q * invS2Sqr;
+                    row[S1] = dx * dx * q * invS1Cube;
+                    row[S2] = dy * dy * q * invS2Cube;
+                } else {
+                    e = Math.exp( -.5 * (p1 * dx * dx + p3 * dy * dy + 2 * p2 * dx * dy) );
+                    double q = a * e;
+                    row[XC] = (p1 * dx + p2 * dy) * q;
+                    row[YC] = (p2 * dx + p3 * dy) * q;
+                    row[S1] = -.5 * dx * dx * q;
+                    row[S2] = -dx * dy * q;
+                    row[S3] = -.5 * dy * dy * q;
+                }
+                row[INT] = e;
+
+                double residual = (pixels[rowStart + x] & 0xffff) - (a * e + bgr);
+                double w = weighted ? weights_[idx] : 1.0;
+                chiSqr += w * residual * residual;
+                rss += residual * residual;
+                double wr = w * residual;
+                for( int j = 0; j < n; ++j ) {
+                    double wj = w * row[j];
+                    jtr[j] += row[j] * wr;
+                    int off = j * n;
+                    for( int k = j; k < n; ++k ) {
+                        jtj[off + k] += wj * row[k];
+                    }
+                }
+            }
+        }
+        residualSumSqr_ = rss;
+        return chiSqr;
+    }
+
+    /**
+     * Computes chi-square only (no derivatives) for a trial set of parameters
+     */
+    private double chiSquare( short[] pixels, int offset, int stride, int width, int height, double[] params, boolean weighted ) {
+        if( integrated_ ) {
+            return integratedChiSquare( pixels, offset, stride, width, height, params, weighted );
+        }
+        final double a = params[INT];
+        final double bgr = params[BGR];
+        final double xC = params[XC];
+        final double yC = params[YC];
+        final double p1 = params[S1];
+        final double p2 = (mode_ >= 2) ? params[S2] : p1;
+        final double p3 = (mode_ == 3) ? params[S3] : 0;
+        final double halfInvS1Sqr = .5 / (p1 * p1);
+        final double halfInvS2Sqr = .5 / (p2 * p2);
+
+        double chiSqr = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            final int rowStart = offset + y * stride;
+            final double dy = y - yC;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final double dx = x - xC;
+                double exponent;
+                if( mode_ == 3 ) {
+                    exponent = .5 * (p1 * dx * dx + p3 * dy * dy + 2 * p2 * dx * dy);
+                } else {
+                    exponent = dx * dx * halfInvS1Sqr + dy * dy * halfInvS2Sqr;
+                }
+                double residual = (pixels[rowStart + x] & 0xffff) - (a * Math.exp( -exponent ) + bgr);
+                chiSqr += (weighted ? weights_[idx] : 1.0) * residual * residual;
+            }
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Integrated Model Equivalent of buildNormalEquations().  The model is
+     * INT * gx[x] * gy[y] + BGR, with the per-axis tables (and their derivatives)
+     * computed once for the parameters.
+     *
+     * @return The chi-square of the current parameters
+     */
+    private double buildIntegratedNormalEquations( short[] pixels, int offset, int stride, int width, int height,
+                                                   double[] params, boolean weighted ) {
+        final int n = numParams_;
+        final double[] row = row_;
+        final double[] jtj = jtj_;
+        final double[] jtr = jtr_;
+        for( int i = 0; i < jtj.length; ++i ) {
+            jtj[i] = 0;
+        }
+        for( int i = 0; i < n; ++i ) {
+            jtr[i] = 0;
+        }
+
+        final double a = params[INT];
+        final double bgr = params[BGR];
+        final double sX = params[S1];
+        final double sY = (mode_ == 2) ? params[S2] : sX;
+        AdditionalGaussianUtils.integratedGaussianAxis( params[XC], sX, width, gx_, dGxC_, dGxS_ );
+        AdditionalGaussianUtils.integratedGaussianAxis( params[YC], sY, height, gy_, dGyC_, dGyS_ );
+
+        double chiSqr = 0;
+        double rss = 0;
+        int idx = 0;
+        row[BGR] = 1.0;
+        for( int y = 0; y < height; ++y ) {
+            final int rowStart = offset + y * stride;
+            final double gy = gy_[y];
+            final double aGy = a * gy;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final double gx = gx_[x];
+                final double e = gx * gy;
+                row[INT] = e;
+                row[XC] = aGy * dGxC_[x];
+                row[YC] = a * gx * dGyC_[y];
+                if( mode_ == 1 ) {
+                    row[S] = aGy * dGxS_[x] + a * gx * dGyS_[y];
+                } else {
+                    row[S1] = aGy * dGxS_[x];
+                    row[S2] = a * gx * dGyS_[y];
+                }
+
+                double residual = (pixels[rowStart + x] & 0xffff) - (a * e + bgr);
+                double w = weighted ? weights_[idx] : 1.0;
+                chiSqr += w * residual * residual;
+                rss += residual * residual;
+                double wr = w * residual;
+                for( int j = 0; j < n; ++j ) {
+                    double wj = w * row[j];
+                    jtr[j] += row[j] * wr;
+                    int off = j * n;
+                    for( int k = j; k < n; ++k ) {
+                        jtj[off + k] += wj * row[k];
+                    }
+                }
+            }
+        }
+        residualSumSqr_ = rss;
+        return chiSqr;
+    }
+
+    /**
+     * Computes chi-square only for a trial set of parameters of the integrated model
+     */
+    private double integratedChiSquare( short[] pixels, int offset, int stride, int width, int height, double[] params, boolean weighted ) {
+        final double a = params[INT];
+        final double bgr = params[BGR];
+        final double sX = params[S1];
+        final double sY = (mode_ == 2) ? params[S2] : sX;
+        AdditionalGaussianUtils.integratedGaussianAxis( params[XC], sX, width, gx_, null, null );
+        AdditionalGaussianUtils.integratedGaussianAxis( params[YC], sY, height, gy_, null, null );
+
+        double chiSqr = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            final int rowStart = offset + y * stride;
+            final double aGy = a * gy_[y];
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double residual = (pixels[rowStart + x] & 0xffff) - (aGy * gx_[x] + bgr);
+                chiSqr += (weighted ? weights_[idx] : 1.0) * residual * residual;
+            }
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Solves (J^T*W*J + lambda*diag(J^T*W*J)) * delta = J^T*W*r in place by Cholesky
+     * decomposition into system_ and stores the step in delta_.
+     *
+     * @param lambda The current damping factor
+     * @return <code>false</code> if the damped system was not positive definite
+     */
+    private boolean solveDamped( double lambda ) {
+        final int n = numParams_;
+        final double[] l = system_;
+        //Copy the upper triangle into the lower triangle of the working system, with damping
+        for( int j = 0; j < n; ++j ) {
+            for( int k = 0; k <= j; ++k ) {
+                l[j * n + k] = jtj_[k * n + j];
+            }
+            l[j * n + j] *= (1 + lambda);
+        }
+
+        //Cholesky Decomposition (L stored in lower triangle)
+        for( int j = 0; j < n; ++j ) {
+            double sum = l[j * n + j];
+            for( int k = 0; k < j; ++k ) {
+                sum -= l[j * n + k] * l[j * n + k];
+            }
+            if( sum <= 0 || Double.isNaN( sum ) ) {
+                return false;
+            }
+            double diag = Math.sqrt( sum );
+            l[j * n + j] = diag;
+            for( int i = j + 1; i < n; ++i ) {
+                double s = l[i * n + j];
+                for( int k = 0; k < j; ++k ) {
+                    s -= l[i * n + k] * l[j * n + k];
+                }
+                l[i * n + j] = s / diag;
+            }
+        }
+
+        //Forward Substitution (L*z = J^T*W*r)
+        for( int i = 0; i < n; ++i ) {
+            double s = jtr_[i];
+            for( int k = 0; k < i; ++k ) {
+                s -= l[i * n + k] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        //Back Substitution (L^T*delta = z)
+        for( int i = n - 1; i >= 0; --i ) {
+            double s = delta_[i];
+            for( int k = i + 1; k < n; ++k ) {
+                s -= l[k * n + i] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the initial Parameters identically to GaussianFit (centroid for the
+     * center, max pixel for the amplitude, fixed sigma and square root of the base level
+     * for the background)
+     */
+    private void estimateParameters( short[] pixels, int offset, int stride, int width, int height, double[] params0 ) {
+        params0[S] = 0.9;
+        if ( mode_ >= 2 ) {
+            params0[S2] = 0.9;
+        }
+        if ( mode_ == 3 ) {
+            params0[S1] = 1;
+            params0[S2] = 0;
+            params0[S3] = 1;
+        }
+        params0[BGR] = Math.sqrt( baseLevel_ );
+
+        double mt = 0.0, mx = 0.0, my = 0.0;
+        int maxValue = 0;
+        for( int y = 0; y < height; ++y ) {
+            int rowStart = offset + y * stride;
+            for( int x = 0; x < width; ++x ) {
+                int pointValue = pixels[rowStart + x] & 0xffff;
+                mt += pointValue;
+                mx += pointValue * x;
+                my += pointValue * y;
+                if( pointValue > maxValue ) {
+                    maxValue = pointValue;
+                }
+            }
+        }
+        params0[XC] = mx / mt;
+        params0[YC] = my / mt;
+        params0[INT] = maxValue;
+    }
+
+    /**
+     * Gets the Number of Levenberg-Marquardt iterations used by the most recent fit
+     *
+     * @return The number of iterations of the last call to fit() or dofit()
+     */
+    public int getLastIterations() {
+        return lastIterations_;
+    }
+
+    @Override
+    public int getNumParams() {
+        return numParams_;
+    }
+
+    @Override
+    public OptimizationModes setOptimizerMode( OptimizationModes mode ) {
+        if( mode == OptimizationModes.Levenberg_Marquardt
+                || mode == OptimizationModes.Levenberg_Marquardt_Weighted ) {
+            fitMode_ = mode;
+        }
+        return fitMode_;
+    }
+
+    @Override
+    public OptimizationModes getOptimizerMode() {
+        return fitMode_;
+    }
+
+}
@@ -0,0 +1,433 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.Utils.AdditionalGaussianUtils;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.hope.superresolution.fitprocesses.FitResultProcess;
+import ij.process.ImageProcessor;
+
+/**
+ * Poisson Maximum Likelihood Fit of a Pixel-Integrated, Radially Symmetric Gaussian
+ * through a fixed number of per-parameter Newton-Raphson iterations.
+ * <p>
+ * Each pixel's expected value is the Gaussian integrated over the pixel area:
+ * <pre>
+ * mu(i,j) = N * Ex(i) * Ey(j) + bg
+ * Ex(i) = 1/2 * ( erf( (i - xC + 1/2)/(sqrt(2)*sigma) ) - erf( (i - xC - 1/2)/(sqrt(2)*sigma) ) )
+ * </pre>
+ * Every iteration updates each of [xC, yC, N, bg, sigma] by its own Newton step
+ * (first over second derivative of the Poisson log-likelihood), so the cost of a fit
+ * is a fixed number of passes over the pixels and does not depend on convergence.
+ * After the final iteration, the Fisher Information Matrix is built from the same
+ * derivatives and inverted to provide Cramer-Rao Lower Bounds for each parameter.
+ * <p>
+ * The likelihood is evaluated in photons: pixels have the camera base level removed
+ * and are scaled by the counts-to-photons factor (see setCountsToPhotons()).  The returned
+ * parameters are converted back to GaussianFit's indices and conventions so that
+ * existing FitStackThreads can consume them directly:
+ * <pre>
+ *      INT - Peak Amplitude (counts above background)
+ *      BGR - Square root of (background + baseLevel) counts
+ *      XC, YC - Center (pixels)
+ *      S - sigma (pixels)
+ * </pre>
+ * The FitResult (dofitWithResult()) takes its residuals from the Fisher Information pass:
+ * the Chi-Square is Pearson's chi-square, sum( (data - mu)^2 / mu ) in photons, and the 
+ * RMS residual is in counts.  A fit is reported as converged when the last Newton step 
+ * moved the center by less than CONVERGED_STEP pixels.
+ * <p>
+ * Not Thread-safe.  One instance is expected per FitStackThread.
+ *
+ * @see GaussianFit
+ * @see FitProcessContainer.OptimizationModes#Newton_Maximum_Likelihood
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianMLEFit implements FitProcessContainer, FitResultProcess {
+
+    //Indices for the Cramer-Rao Lower Bound array (variances)
+    public static final int CRLB_X = 0;
+    public static final int CRLB_Y = 1;
+    public static final int CRLB_N = 2;
+    public static final int CRLB_BGR = 3;
+    public static final int CRLB_S = 4;
+
+    public static final int DEFAULT_ITERATIONS = 10;
+    //Largest final center step (pixels) that is reported as converged
+    public static final double CONVERGED_STEP = 1e-3;
+
+    private static final int NUM_FIT_PARAMS = 5;
+    private static final double SQRT_2 = Math.sqrt( 2 );
+    private static final double INV_SQRT_2PI = 1.0 / Math.sqrt( 2 * Math.PI );
+    //Limits on the Newton Steps to keep the fit within the spot
+    private static final double MAX_CENTER_STEP = 1.0;
+    private static final double MAX_SIGMA_STEP_FRACTION = .5;
+    private static final double MIN_SIGMA = .3;
+    private static final double MIN_BACKGROUND = .01;
+
+    private double baseLevel_;
+    private double countsToPhotons_ = 1;
+    private double initialSigma_ = 1;
+    private OptimizationModes fitMode_ = OptimizationModes.Newton_Maximum_Likelihood;
+
+    //Reused Working Storage
+    private double[] data_ = new double[0];
+    private double[] ex_ = new double[0];
+    private double[] dEx_ = new double[0];
+    private double[] d2Ex_ = new double[0];
+    private double[] dExS_ = new double[0];
+    private double[] d2ExS_ = new double[0];
+    private double[] ey_ = new double[0];
+    private double[] dEy_ = new double[0];
+    private double[] d2Ey_ = new double[0];
+    private double[] dEyS_ = new double[0];
+    private double[] d2EyS_ = new double[0];
+    private final double[] theta_ = new double[NUM_FIT_PARAMS];
+    private final double[] grad_ = new double[NUM_FIT_PARAMS];
+    private final double[] curv_ = new double[NUM_FIT_PARAMS];
+    private final double[] fisher_ = new double[NUM_FIT_PARAMS * NUM_FIT_PARAMS];
+    private final double[] crlb_ = new double[NUM_FIT_PARAMS];
+    private final double[] d_ = new double[NUM_FIT_PARAMS];
+    private final double[] d2_ = new double[NUM_FIT_PARAMS];
+    //Goodness-of-fit accumulated in the Fisher Information pass
+    private double pearsonChiSqr_ = 0;
+    private double residualSumSqr_ = 0;
+
+    /**
+     * Constructor
+     *
+     * @param baseLevel The base level (offset) of the camera in counts
+     */
+    public GaussianMLEFit( double baseLevel ) {
+        baseLevel_ = baseLevel;
+    }
+
+    /**
+     * Sets the base level (offset) of the camera in counts
+     *
+     * @param baseLevel The base level of the camera in counts
+     */
+    public void setBaseLevel( double baseLevel ) {
+        baseLevel_ = baseLevel;
+    }
+
+    /**
+     * Sets the factor converting counts above base level into photons
+     * (photonConversionFactor / gain).  Defaults to 1.
+     *
+     * @param countsToPhotons Photons per count
+     */
+    public void setCountsToPhotons( double countsToPhotons ) {
+        if( countsToPhotons > 0 ) {
+            countsToPhotons_ = countsToPhotons;
+        }
+    }
+
+    /**
+     * Sets the sigma (in pixels) used to start the Newton iterations.  Defaults to 1.
+     *
+     * @param initialSigma The starting sigma in pixels
+     */
+    public void setInitialSigma( double initialSigma ) {
+        if( initialSigma > MIN_SIGMA ) {
+            initialSigma_ = initialSigma;
+        }
+    }
+
+    /**
+     * Performs the Newton-Raphson MLE fit for exactly numIterations iterations.
+     *
+     * @param siProc - ImageJ ImageProcessor (ShortProcessor) containing image to be fit
+     * @param numIterations - The fixed number of Newton iterations to run
+     * @return {0.0} if the fit diverged, or [ INT, BGR, XC, YC, S ] (see class description)
+     */
+    @Override
+    public double[] dofit( ImageProcessor siProc, int numIterations ) {
+        return dofitWithResult( siProc, numIterations ).getParameters();
+    }
+
+    /**
+     * Performs the fit of dofit() and reports the goodness-of-fit from the final
+     * Fisher Information pass (see class description)
+     *
+     * @param siProc - ImageJ ImageProcessor (ShortProcessor) containing image to be fit
+     * @param numIterations - The fixed number of Newton iterations to run
+     * @return The FitResult with the parameters dofit() would return
+     */
+    @Override
+    public FitResult dofitWithResult( ImageProcessor siProc, int numIterations ) {
+        short[] pixels = (short[]) siProc.getPixels();
+        int width = siProc.getWidth();
+        int height = siProc.getHeight();
+        ensureCapacity( width, height );
+
+        final double[] theta = theta_;
+        estimateParameters( pixels, width, height );
+
+        double centerStep = Double.POSITIVE_INFINITY;
+        for( int iter = 0; iter < numIterations; ++iter ) {
+            computeDerivatives( width, height, true );
+            double stepX = clamp( grad_[CRLB_X] / curv_[CRLB_X], MAX_CENTER_STEP );
+            double stepY = clamp( grad_[CRLB_Y] / curv_[CRLB_Y], MAX_CENTER_STEP );
+            theta[CRLB_X] -= stepX;
+            theta[CRLB_Y] -= stepY;
+            centerStep = Math.max( Math.abs( stepX ), Math.abs( stepY ) );
+            theta[CRLB_N] = Math.max( 1, theta[CRLB_N] - grad_[CRLB_N] / curv_[CRLB_N] );
+            theta[CRLB_BGR] = Math.max( MIN_BACKGROUND, theta[CRLB_BGR] - grad_[CRLB_BGR] / curv_[CRLB_BGR] );
+            theta[CRLB_S] = Math.max( MIN_SIGMA, theta[CRLB_S]
+                    - clamp( grad_[CRLB_S] / curv_[CRLB_S], MAX_SIGMA_STEP_FRACTION * theta[CRLB_S] ) );
+            for( int k = 0; k < NUM_FIT_PARAMS; ++k ) {
+                if( Double.isNaN( theta[k] ) || Double.isInfinite( theta[k] ) ) {
+                    return FitResult.failed( iter + 1 );
+                }
+            }
+        }
+
+        //Fisher Information at the final estimate
+        computeDerivatives( width, height, false );
+        if( !invertFisherDiagonal() ) {
+            for( int k = 0; k < NUM_FIT_PARAMS; ++k ) {
+                crlb_[k] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        double sigma = theta[CRLB_S];
+        double[] paramsOut = new double[NUM_FIT_PARAMS];
+        paramsOut[GaussianFit.INT] = theta[CRLB_N] / (countsToPhotons_ * 2 * Math.PI * sigma * sigma);
+        paramsOut[GaussianFit.BGR] = Math.sqrt( theta[CRLB_BGR] / countsToPhotons_ + baseLevel_ );
+        paramsOut[GaussianFit.XC] = theta[CRLB_X];
+        paramsOut[GaussianFit.YC] = theta[CRLB_Y];
+        paramsOut[GaussianFit.S] = sigma;
+        return new FitResult( paramsOut, pearsonChiSqr_,
+                                Math.sqrt( residualSumSqr_ / (width * height) ) / countsToPhotons_,
+                                numIterations, centerStep < CONVERGED_STEP );
+    }
+
+    /**
+     * Gets the Cramer-Rao Lower Bounds (variances) of the last fit, indexed by CRLB_X,
+     * CRLB_Y (pixels^2), CRLB_N, CRLB_BGR (photons^2) and CRLB_S (pixels^2).
+     * <p>
+     * Note: This returns a reference to internal storage that is overwritten by the next fit.
+     *
+     * @return The variance bounds of the last fit
+     */
+    public double[] getCRLB() {
+        return crlb_;
+    }
+
+    private static double clamp( double step, double limit ) {
+        if( step > limit ) {
+            return limit;
+        } else if( step < -limit ) {
+            return -limit;
+        }
+        return step;
+    }
+
+    private void ensureCapacity( int width, int height ) {
+        if( data_.length != width * height ) {
+            data_ = new double[width * height];
+        }
+        if( ex_.length != width ) {
+            ex_ = new double[width];
+            dEx_ = new double[width];
+            d2Ex_ = new double[width];
+            dExS_ = new double[width];
+            d2ExS_ = new double[width];
+        }
+        if( ey_.length != height ) {
+            ey_ = new double[height];
+            dEy_ = new double[height];
+            d2Ey_ = new double[height];
+            dEyS_ = new double[height];
+            d2EyS_ = new double[height];
+        }
+    }
+
+    /**
+     * Converts the pixels to photons and estimates starting parameters (centroid,
+     * minimum for the background, and remaining sum for the photon count)
+     */
+    private void estimateParameters( short[] pixels, int width, int height ) {
+        double minVal = Double.MAX_VALUE;
+        for( int i = 0; i < pixels.length; ++i ) {
+            double val = Math.max( 0, (pixels[i] & 0xffff) - baseLevel_ ) * countsToPhotons_;
+            data_[i] = val;
+            if( val < minVal ) {
+                minVal = val;
+            }
+        }
+        double sum = 0, mx = 0, my = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double val = data_[idx] - minVal;
+                sum += val;
+                mx += val * x;
+                my += val * y;
+            }
+        }
+        theta_[CRLB_X] = (sum > 0) ? mx / sum : (width - 1) / 2.0;
+        theta_[CRLB_Y] = (sum > 0) ? my / sum : (height - 1) / 2.0;
+        theta_[CRLB_N] = Math.max( 1, sum );
+        theta_[CRLB_BGR] = Math.max( MIN_BACKGROUND, minVal );
+        theta_[CRLB_S] = initialSigma_;
+    }
+
+    /**
+     * Fills the separable per-row and per-column integrated terms and their first and
+     * second derivatives with respect to center and sigma.
+     */
+    private static void fillAxisTerms( double center, double sigma, int length, double[] e,
+                                       double[] dE, double[] d2E, double[] dES, double[] d2ES ) {
+        final double invSqrt2Sigma = 1.0 / (SQRT_2 * sigma);
+        final double halfInvSigmaSqr = .5 / (sigma * sigma);
+        final double invSigmaSqr = 1.0 / (sigma * sigma);
+        final double norm = INV_SQRT_2PI / sigma;
+        for( int i = 0; i < length; ++i ) {
+            double u = i - center - .5;
+            double v = i - center + .5;
+            double eU = Math.exp( -u * u * halfInvSigmaSqr );
+            double eV = Math.exp( -v * v * halfInvSigmaSqr );
+            e[i] = .5 * (AdditionalGaussianUtils.tabulatedErf( v * invSqrt2Sigma )
+                            - AdditionalGaussianUtils.tabulatedErf( u * invSqrt2Sigma ));
+            dE[i] = norm * (eU - eV);
+            d2E[i] = norm * invSigmaSqr * (u * eU - v * eV);
+            dES[i] = norm / sigma * (u * eU - v * eV);
+            d2ES[i] = norm * invSigmaSqr * ((u * u * u * eU - v * v * v * eV) * invSigmaSqr
+                                              - 2 * (u * eU - v * eV));
+        }
+    }
+
+    /**
+     * Accumulates either the log-likelihood gradient and diagonal second derivatives
+     * (newton == true) or the Fisher Information Matrix (newton == false) at theta_.
+     */
+    private void computeDerivatives( int width, int height, boolean newton ) {
+        final double n = theta_[CRLB_N];
+        final double bg = theta_[CRLB_BGR];
+        fillAxisTerms( theta_[CRLB_X], theta_[CRLB_S], width, ex_, dEx_, d2Ex_, dExS_, d2ExS_ );
+        fillAxisTerms( theta_[CRLB_Y], theta_[CRLB_S], height, ey_, dEy_, d2Ey_, dEyS_, d2EyS_ );
+        if( newton ) {
+            for( int k = 0; k < NUM_FIT_PARAMS; ++k ) {
+                grad_[k] = 0;
+                curv_[k] = 0;
+            }
+        } else {
+            for( int k = 0; k < fisher_.length; ++k ) {
+                fisher_[k] = 0;
+            }
+            pearsonChiSqr_ = 0;
+            residualSumSqr_ = 0;
+        }
+
+        final double[] d = d_;
+        final double[] d2 = d2_;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double exy = ex_[x] * ey_[y];
+                double mu = n * exy + bg;
+                d[CRLB_X] = n * dEx_[x] * ey_[y];
+                d[CRLB_Y] = n * ex_[x] * dEy_[y];
+                d[CRLB_N] = exy;
+                d[CRLB_BGR] = 1;
+                d[CRLB_S] = n * (dExS_[x] * ey_[y] + ex_[x] * dEyS_[y]);
+                if( newton ) {
+                    d2[CRLB_X] = n * d2Ex_[x] * ey_[y];
+                    d2[CRLB_Y] = n * ex_[x] * d2Ey_[y];
+                    d2[CRLB_S] = n * (d2ExS_[x] * ey_[y] + 2 * dExS_[x] * dEyS_[y] + ex_[x] * d2EyS_[y]);
+                    double ratio = data_[idx] / mu;
+                    double ratioSqr = ratio / mu;
+                    for( int k = 0; k < NUM_FIT_PARAMS; ++k ) {
+                        grad_[k] += d[k] * (ratio - 1);
+                        curv_[k] += d2[k] * (ratio - 1) - d[k] * d[k] * ratioSqr;
+                    }
+                } else {
+                    double invMu = 1.0 / mu;
+                    double residual = data_[idx] - mu;
+                    residualSumSqr_ += residual * residual;
+                    pearsonChiSqr_ += residual * residual * invMu;
+                    for( int j = 0; j < NUM_FIT_PARAMS; ++j ) {
+                        double dj = d[j] * invMu;
+                        for( int k = j; k < NUM_FIT_PARAMS; ++k ) {
+                            fisher_[j * NUM_FIT_PARAMS + k] += dj * d[k];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Inverts the (upper triangle stored) Fisher Information Matrix in place by
+     * Cholesky decomposition and stores the diagonal of the inverse in crlb_
+     *
+     * @return <code>false</code> if the Fisher Information was singular
+     */
+    private boolean invertFisherDiagonal() {
+        final int n = NUM_FIT_PARAMS;
+        final double[] l = fisher_;
+        //Mirror into lower triangle, then decompose (L stored in lower triangle)
+        for( int j = 0; j < n; ++j ) {
+            for( int k = 0; k < j; ++k ) {
+                l[j * n + k] = l[k * n + j];
+            }
+        }
+        for( int j = 0; j < n; ++j ) {
+            double sum = l[j * n + j];
+            for( int k = 0; k < j; ++k ) {
+                sum -= l[j * n + k] * l[j * n + k];
+            }
+            if( sum <= 0 || Double.isNaN( sum ) ) {
+                return false;
+            }
+            double diag = Math.sqrt( sum );
+            l[j * n + j] = diag;
+            for( int i = j + 1; i < n; ++i ) {
+                double s = l[i * n + j];
+                for( int k = 0; k < j; ++k ) {
+                    s -= l[i * n + k] * l[j * n + k];
+                }
+                l[i * n + j] = s / diag;
+            }
+        }
+        //diag(F^-1)_k = sum over rows of (L^-1)^2 in column k, solve L*z = e_k per column
+        final double[] z = d_;
+        for( int col = 0; col < n; ++col ) {
+            double var = 0;
+            for( int i = 0; i < n; ++i ) {
+                double s = (i == col) ? 1 : 0;
+                for( int k = col; k < i; ++k ) {
+                    s -= l[i * n + k] * z[k];
+                }
+                z[i] = (i < col) ? 0 : s / l[i * n + i];
+                var += z[i] * z[i];
+            }
+            crlb_[col] = var;
+        }
+        return true;
+    }
+
+    @Override
+    public int getNumParams() {
+        return NUM_FIT_PARAMS;
+    }
+
+    @Override
+    public OptimizationModes setOptimizerMode( OptimizationModes mode ) {
+        //Only a single Optimization Mode is supported
+        return fitMode_;
+    }
+
+    @Override
+    public OptimizationModes getOptimizerMode() {
+        return fitMode_;
+    }
+
+}
@@ -6,6 +6,8 @@
 package edu.hope.superresolution.fitters;
 
 import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.MomentEstimateFitProcess;
+import edu.hope.superresolution.fitprocesses.WarmStartFitProcess;
 import static edu.hope.superresolution.fitters.GaussianFit.BGR;
 import static edu.hope.superresolution.fitters.GaussianFit.INT;
 import static edu.hope.superresolution.fitters.GaussianFit.S;
@@ -17,6 +19,7 @@ import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
 import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
 import org.apache.commons.math3.optim.ConvergenceChecker;
 import org.apache.commons.math3.optim.PointVectorValuePair;
 
@@ -45,7 +48,7 @@ import org.apache.commons.math3.optim.PointVectorValuePair;
  * 
  * @author Justin Hanselman
  */
-public class GaussianWithDefocusFit implements FitProcessContainer {
+public class GaussianWithDefocusFit implements FitProcessContainer, WarmStartFitProcess, MomentEstimateFitProcess {
     
     //Indices Corresponding to Parameters
     public static final int IDX_A0 = 0;
@@ -72,8 +75,48 @@ public class GaussianWithDefocusFit implements FitProcessContainer {
     private LeastSquaresBuilder problemBuilderBase_;
     
     private double[] params0_;
+    
+    //Warm Start from a previous fit
+    private boolean warmStart_ = false;
+    private double warmIntensity_;
+    private double warmBackground_;
+    private double warmSigma_;
+    private int lastIterations_ = 0;
+    
+    //Precomputed Spot Moments (see setMomentEstimate())
+    private boolean momentEstimate_ = false;
+    private double momentTotal_;
+    private double momentBorderMean_;
+    private double momentXCentroid_;
+    private double momentYCentroid_;
+    
+    //Reusable Primitive Model (null if the legacy GaussianWithDefocusModel is used)
+    private final GaussianWithDefocusPrimitiveModel primitiveModel_;
+    
+    //Single-Precision Solver (created on first use)
+    private boolean floatPrecision_ = false;
+    private FloatLMFit floatFit_ = null;
         
+    /**
+     * Nullary Constructor - Uses the legacy GaussianWithDefocusModel, which is
+     * allocated per fit.
+     */
     public GaussianWithDefocusFit() {
+        this( false );
+    }
+    
+    /**
+     * Constructor - Selects the model used in dofit()
+     * 
+     * @param usePrimitiveModel <code>true</code> to use the allocation-free 
+     *                          GaussianWithDefocusPrimitiveModel that is reused across fits,
+     *                          <code>false</code> to use the legacy GaussianWithDefocusModel
+     * 
+     * @see GaussianWithDefocusPrimitiveModel
+     */
+    public GaussianWithDefocusFit( boolean usePrimitiveModel ) {
+        
+        primitiveModel_ = usePrimitiveModel ? new GaussianWithDefocusPrimitiveModel() : null;
         
         //Establish Modes for Curve Fitting and Create the Reusable Optimizer
         currentOptimizationMode_ = OptimizationModes.Levenberg_Marquardt;
@@ -121,22 +164,46 @@ public class GaussianWithDefocusFit implements FitProcessContainer {
     public double[] dofit( ImageProcessor siProc, int maxIterations ) {
 
         estimateParameters(siProc);
+        if( warmStart_ ) {
+            //Previous fit replaces the estimates (Center is still estimated and Defocus Term starts at 0)
+            params0_[IDX_A0] = warmIntensity_;
+            params0_[IDX_BGR] = warmBackground_;
+            params0_[IDX_SIGMA] = warmSigma_;
+        }
+        lastIterations_ = 0;
 
         //This could be Done in Estimate Parameters with less reduncancy
         short[] imagePixels = (short[]) siProc.getPixels();
         int width = siProc.getWidth(), height = siProc.getHeight();
-        int numPoints = width * height;
-        GaussianWithDefocusModel model = new GaussianWithDefocusModel(numPoints);
-
-        for (int i = 0; i < numPoints; ++i) {
-            model.addPixel(i % width, i / width, (imagePixels[i] & 0xffff));
+        
+        if( floatPrecision_ ) {
+            double[] paramsOut = floatFit_.fit( imagePixels, width, height, params0_, maxIterations, false );
+            lastIterations_ = floatFit_.getLastIterations();
+            return paramsOut;
+        }
+        
+        MultivariateJacobianFunction model;
+        double[] target;
+        if( primitiveModel_ != null ) {
+            primitiveModel_.setPixels( imagePixels, width, height );
+            model = primitiveModel_;
+            target = primitiveModel_.getPixelValues();
+        } else {
+            int numPoints = width * height;
+            GaussianWithDefocusModel legacyModel = new GaussianWithDefocusModel(numPoints);
+            for (int i = 0; i < numPoints; ++i) {
+                legacyModel.addPixel(i % width, i / width, (imagePixels[i] & 0xffff));
+            }
+            model = legacyModel;
+            target = legacyModel.getPixelValues();
         }
         
         //Create A Least Square Problem from the Base
+        //  Note: lazyEvaluation must stay false for the reused buffers of the primitive model
         LeastSquaresProblem problem = problemBuilderBase_.
                                         start( params0_ ).
                                         model( model ).
-                                        target( model.getPixelValues() ).
+                                        target( target ).
                                         lazyEvaluation( false ).
                                         maxIterations( maxIterations ).
                                         build();
@@ -147,6 +214,7 @@ public class GaussianWithDefocusFit implements FitProcessContainer {
         try {
             LeastSquaresOptimizer.Optimum optimum = lmo_.optimize(problem);
             paramsOut = optimum.getPoint().toArray();
+            lastIterations_ = optimum.getIterations();
         } catch (ConvergenceException ex) {
             ij.IJ.log("Convergence Exception Occured " + ex.getMessage());
         }
@@ -231,42 +299,56 @@ public class GaussianWithDefocusFit implements FitProcessContainer {
     }
     */
     
+    /**
+     * Estimates the background as the mean of the image border, the centroid, and the
+     * intensity from the total less the background.  All of them are taken from the moment
+     * estimate if one is set, without reading the pixels.
+     * 
+     * @param siProc - Current bounded ImageProcessor That Should contain the potential Airy Disk
+     */
     private void estimateParameters(ImageProcessor siProc) {
-      short[] imagePixels = (short[]) siProc.getPixels();
+      int width = siProc.getWidth();
+      int height = siProc.getHeight();
+      int numPixels = height * width;
 
       // Hard code estimate for sigma (expressed in pixels):
       params0_[S] = 0.9;
-      double bg = 0.0;
-      int n = 0;
-      int lastRowOffset = (siProc.getHeight() - 1) * siProc.getWidth();
-      for (int i = 0; i < siProc.getWidth(); i++) {
-         bg += (imagePixels[i] & 0xffff);
-         bg += (imagePixels[i + lastRowOffset] & 0xffff);
-         n += 2;
-      }
-      for (int i = 1; i < siProc.getHeight() - 1; i++) {
-         bg += (imagePixels[i * siProc.getWidth()] & 0xffff);
-         bg += (imagePixels[(i + 1) * siProc.getWidth() - 1] & 0xffff);
-         n += 2;
+      double bgMean;
+      double mt, mx, my;
+      if (momentEstimate_) {
+         bgMean = momentBorderMean_;
+         mt = momentTotal_;
+         mx = momentXCentroid_ * mt;
+         my = momentYCentroid_ * mt;
+      } else {
+         // border, total intensity and center of mass in one pass
+         short[] imagePixels = (short[]) siProc.getPixels();
+         double bg = 0.0;
+         int n = 0;
+         mt = 0.0;
+         mx = 0.0;
+         my = 0.0;
+         int i = 0;
+         for (int y = 0; y < height; y++) {
+            boolean borderRow = (y == 0 || y == height - 1);
+            for (int x = 0; x < width; x++, i++) {
+               int pointValue = (imagePixels[i] & 0xffff);
+               mt += pointValue;
+               mx += pointValue * x;
+               my += pointValue * y;
+               if (borderRow || x == 0 || x == width - 1) {
+                  bg += pointValue;
+                  n++;
+               }
+            }
+         }
+         bgMean = bg / n;
       }
-      params0_[BGR] = bg / n;
+      params0_[BGR] = bgMean;
       // estimate signal by subtracting background from total intensity
-      double mt = 0.0;
-      for (int i = 0; i < siProc.getHeight() * siProc.getWidth(); i++) {
-         mt += (imagePixels[i] & 0xffff);
-      }
-      double ti = mt - ((bg / n) * siProc.getHeight() * siProc.getWidth());
+      double ti = mt - (bgMean * numPixels);
       params0_[INT] = ti / (2 * Math.PI * params0_[S] * params0_[S]);
       // print("Total signal: " + ti + "Estimate: " + params0_[0]);
-      // estimate center of mass
-      double mx = 0.0;
-      double my = 0.0;
-      for (int i = 0; i < siProc.getHeight() * siProc.getWidth(); i++) {
-         //mx += (imagePixels[i] - params0_[4]) * (i % siProc.getWidth() );
-         //my += (imagePixels[i] - params0_[4]) * (Math.floor (i / siProc.getWidth()));
-         mx += ((imagePixels[i] & 0xffff)) * (i % siProc.getWidth());
-         my += ((imagePixels[i] & 0xffff)) * (Math.floor(i / siProc.getWidth()));
-      }
       params0_[XC] = mx / mt;
       params0_[YC] = my / mt;
       //ij.IJ.log("Centroid: " + mx/mt + " " + my/mt);
@@ -274,6 +356,71 @@ public class GaussianWithDefocusFit implements FitProcessContainer {
    }
     
 
+    /**
+     * Sets Whether or not dofit() uses the single-precision FloatLMFit with a 
+     * GaussianWithDefocusFloatModel instead of the commons-math Levenberg-Marquardt Optimizer.
+     * <p>
+     * The float solver iterates to a relative chi-square tolerance instead of the 
+     * parameter deltas of the LMChecker, so its results are generally closer to the optimum.
+     * 
+     * @param floatPrecision <code>true</code> to fit in single-precision
+     * 
+     * @see FloatLMFit
+     */
+    public void setFloatPrecision( boolean floatPrecision ) {
+        if( floatPrecision && floatFit_ == null ) {
+            floatFit_ = new FloatLMFit( new GaussianWithDefocusFloatModel() );
+        }
+        floatPrecision_ = floatPrecision;
+    }
+
+    public boolean isFloatPrecision() {
+        return floatPrecision_;
+    }
+
+    @Override
+    public void setWarmStart( double intensity, double background, double sigma ) {
+        //Ignore Invalid Seeds and keep estimating from the image
+        if( !(intensity > 0) || !(sigma > 0) || Double.isNaN( background ) ) {
+            warmStart_ = false;
+            return;
+        }
+        warmIntensity_ = intensity;
+        warmBackground_ = background;
+        warmSigma_ = sigma;
+        warmStart_ = true;
+    }
+
+    @Override
+    public void clearWarmStart() {
+        warmStart_ = false;
+    }
+
+    @Override
+    public void setMomentEstimate( double total, double borderMean, double xCentroid, double yCentroid ) {
+        //Ignore Invalid Moments and keep summing the image
+        if( !(total > 0) || Double.isNaN( borderMean ) || Double.isNaN( xCentroid )
+                || Double.isNaN( yCentroid ) ) {
+            momentEstimate_ = false;
+            return;
+        }
+        momentTotal_ = total;
+        momentBorderMean_ = borderMean;
+        momentXCentroid_ = xCentroid;
+        momentYCentroid_ = yCentroid;
+        momentEstimate_ = true;
+    }
+
+    @Override
+    public void clearMomentEstimate() {
+        momentEstimate_ = false;
+    }
+
+    @Override
+    public int getLastIterations() {
+        return lastIterations_;
+    }
+
     @Override
     public int getNumParams() {
         return numParams_;
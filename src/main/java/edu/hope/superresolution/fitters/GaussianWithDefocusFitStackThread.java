@@ -7,6 +7,7 @@ package edu.hope.superresolution.fitters;
 
 import edu.hope.superresolution.Utils.IJMMReportingUtils;
 import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitProcessPool;
 import edu.hope.superresolution.genericstructures.BlockingQueueEndConditionTest;
 import edu.valelab.gaussianfit.data.SpotData;
 import ij.ImagePlus;
@@ -32,7 +33,13 @@ public class GaussianWithDefocusFitStackThread extends FitStackThread {
         super(sourceList, endCondTest, resultList, siPlus, halfSize, shape, null, fitMode);
         
         //Later Initialization of FitProcessContainer for sake of readability
-        setFitProcess( new GaussianWithDefocusFit() );
+        //  Primitive Model buffers are reused across every spot and every thread of the same mode
+        acquireFitProcess( GaussianWithDefocusFit.class, new FitProcessPool.Factory<GaussianWithDefocusFit>() {
+            @Override
+            public GaussianWithDefocusFit create() {
+                return new GaussianWithDefocusFit( true );
+            }
+        });
         
     }
 
@@ -57,6 +64,8 @@ public class GaussianWithDefocusFitStackThread extends FitStackThread {
             // Note: the implementation will try to return a cached version of the ImageProcessor
             ImageProcessor ip = spot.getImageProcessor();
             int halfwidth = ip.getWidth()/2;
+            //Settings are applied after construction
+            ((GaussianWithDefocusFit) getFitProcess()).setFloatPrecision( useFloatPrecision_ );
             double[] paramsOut = getFitProcess().dofit(ip, maxIterations_);
             // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
             SpotData spotData = new SpotData(spot);
@@ -88,6 +97,10 @@ public class GaussianWithDefocusFitStackThread extends FitStackThread {
                 double relativeDefocus = paramsOut[GaussianWithDefocusFit.IDX_ADEFOCUS];
                 print(" The Relative Defocus is: " + relativeDefocus + " at sigma of " + s );
                 spotData.addKeyValue( REL_DEFOCUS_SPOT_KEY, relativeDefocus );
+                //Raw parameters for warm starting the next frame of a track
+                storeRawFitParameters( spotData, paramsOut[GaussianWithDefocusFit.IDX_A0],
+                                         paramsOut[GaussianWithDefocusFit.IDX_BGR],
+                                         paramsOut[GaussianWithDefocusFit.IDX_SIGMA] );
                 
                 spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, error);
                  
@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_A0;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_ADEFOCUS;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_BGR;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_SIGMA;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_XC;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_YC;
+
+/**
+ * Single-Precision Version of GaussianWithDefocusPrimitiveModel for FloatLMFit.
+ * <p>
+ * Equation of Form:
+ * <p>
+ * I(x,y) = A0*exp( -((x-xC)^2+(y-yC)^2)/(2*sigma^2) ) +
+ * Ad*(2*((x-xC)^2+(y-yC)^2)/(N*sigma)^2 -1) + BGR
+ * <p>
+ * Parameters: [ A0, BGR, xC, yC, sigma, Ad ]
+ *
+ * @see GaussianWithDefocusPrimitiveModel
+ * @see FloatLMFit
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianWithDefocusFloatModel implements FloatPixelModel {
+
+    private final float invNSqr_;
+
+    /**
+     * Constructor - Variable Zernike Unit Circle Multiplier
+     *
+     * @param N The multiple times sigma that Zernike Polynomial will be valid across (r/N*sigma)
+     */
+    public GaussianWithDefocusFloatModel( double N ) {
+        invNSqr_ = (float) (1.0 / (N * N));
+    }
+
+    /**
+     * Constructor - Fixed Zernike Circle Multiplier (N = 6)
+     */
+    public GaussianWithDefocusFloatModel( ) {
+        this( 6 );
+    }
+
+    @Override
+    public int getNumParams() {
+        return GaussianWithDefocusFit.numParams_;
+    }
+
+    @Override
+    public void evaluate( float[] params, int width, int height, float[] values, float[][] jacobian ) {
+        final float a0 = params[IDX_A0];
+        final float bgr = params[IDX_BGR];
+        final float xC = params[IDX_XC];
+        final float yC = params[IDX_YC];
+        final float sigma = params[IDX_SIGMA];
+        final float aDefocus = params[IDX_ADEFOCUS];
+
+        final float invSigmaSqr = 1f / (sigma * sigma);
+        final float invSigmaCube = invSigmaSqr / sigma;
+        final float halfInvSigmaSqr = .5f * invSigmaSqr;
+        final float zernikeScale = 2 * invNSqr_ * invSigmaSqr;
+        final float p = 4 * aDefocus * invNSqr_;
+
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            final float dy = y - yC;
+            for( int x = 0; x < width; ++x, ++idx ) {
+                final float dx = x - xC;
+                float r2 = dx * dx + dy * dy;
+                float e = (float) Math.exp( -r2 * halfInvSigmaSqr );
+                float q = a0 * e;
+                float zernike = zernikeScale * r2 - 1;
+                values[idx] = q + bgr + aDefocus * zernike;
+                if( jacobian != null ) {
+                    float qp = q - p;
+                    jacobian[IDX_A0][idx] = e;
+                    jacobian[IDX_BGR][idx] = 1f;
+                    jacobian[IDX_XC][idx] = dx * invSigmaSqr * qp;
+                    jacobian[IDX_YC][idx] = dy * invSigmaSqr * qp;
+                    jacobian[IDX_SIGMA][idx] = r2 * invSigmaCube * qp;
+                    jacobian[IDX_ADEFOCUS][idx] = zernike;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_A0;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_ADEFOCUS;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_BGR;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_SIGMA;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_XC;
+import static edu.hope.superresolution.fitters.GaussianWithDefocusFit.IDX_YC;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Primitive-Array Version of GaussianWithDefocusModel.
+ * <p>
+ * Fits the same Gaussian with Zernike[2,0] (defocus) term, but stores pixel
+ * coordinates and values in flat int[] and double[] buffers and evaluates the
+ * analytic Jacobian into storage that is reused across Levenberg-Marquardt
+ * iterations and across spots.  Buffers are only reallocated when the number
+ * of pixels in a spot changes, so steady-state tracking (constant box size)
+ * performs no allocation inside value().
+ * <p>
+ * Note: The RealVector and RealMatrix returned from value() wrap the internal
+ * buffers and are overwritten by the next call.  This is safe for the Apache
+ * LevenbergMarquardtOptimizer with lazyEvaluation( false ), since residuals are
+ * copied when an Evaluation is created and the Jacobian is only read from the
+ * most recently accepted evaluation.  Do not hold onto the returned Pair elsewhere.
+ * <p>
+ * Not Thread-safe.  One instance is expected per FitProcessContainer.
+ *
+ * @see GaussianWithDefocusModel
+ * @see GaussianWithDefocusFit
+ *
+ * @author Justin Hanselman
+ */
+class GaussianWithDefocusPrimitiveModel implements MultivariateJacobianFunction {
+
+    private int[] xs_ = new int[0];
+    private int[] ys_ = new int[0];
+    private double[] pixelValues_ = new double[0];
+    private int numPixels_ = 0;
+    private final double N_;  //Determined Theoretically
+    private final double invNSqr_;
+
+    //Reused Evaluation Storage
+    private double[] values_ = new double[0];
+    private double[][] jacobian_ = new double[0][];
+    private Pair<RealVector, RealMatrix> result_;
+
+    /**
+     * Constructor - Variable Zernike Unit Circle Multiplier
+     *
+     * @param N The multiple times sigma that Zernike Polynomial will be valid across (r/N*sigma)
+     */
+    public GaussianWithDefocusPrimitiveModel( double N ) {
+        N_ = N;
+        invNSqr_ = 1.0 / (N * N);
+    }
+
+    /**
+     * Constructor - Fixed Zernike Circle Multiplier (N = 6)
+     */
+    public GaussianWithDefocusPrimitiveModel( ) {
+        this( 6 );
+    }
+
+    /**
+     * Loads the pixels of a spot into the model, replacing any previous spot.
+     * Coordinates are stored as (i % width, i / width) to match GaussianWithDefocusModel.
+     *
+     * @param pixels The 16-bit pixels of the spot (row-major)
+     * @param width The width of the spot
+     * @param height The height of the spot
+     */
+    public void setPixels( short[] pixels, int width, int height ) {
+        ensureCapacity( width * height );
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                xs_[idx] = x;
+                ys_[idx] = y;
+                pixelValues_[idx] = pixels[idx] & 0xffff;
+                ++idx;
+            }
+        }
+    }
+
+    //Reallocates only on a change of pixel count (Evaluation dimensions must match exactly)
+    private void ensureCapacity( int numPixels ) {
+        if( numPixels == numPixels_ && result_ != null ) {
+            return;
+        }
+        numPixels_ = numPixels;
+        xs_ = new int[numPixels];
+        ys_ = new int[numPixels];
+        pixelValues_ = new double[numPixels];
+        values_ = new double[numPixels];
+        jacobian_ = new double[numPixels][GaussianWithDefocusFit.numParams_];
+        result_ = new Pair<RealVector, RealMatrix>( new ArrayRealVector( values_, false ),
+                                                    new Array2DRowRealMatrix( jacobian_, false ) );
+    }
+
+    /**
+     * Returns the model values and the Jacobian for the current parameters.
+     * <p>
+     * Equation of Form:
+     * <p>
+     * I(x,y) = A0*exp( -((x-xC)^2+(y-yC)^2)/(2*sigma^2) ) +
+     * Ad*(2*((x-xC)^2+(y-yC)^2)/(N*sigma)^2 -1) + BGR
+     *
+     * @param params The Parameters being optimized: [ A0, BGR, xC, yC, sigma, Ad ]
+     * @return Pair of reused value and Jacobian storage (overwritten on the next call)
+     *
+     * @see GaussianWithDefocusModel#value(org.apache.commons.math3.linear.RealVector)
+     */
+    @Override
+    public Pair<RealVector, RealMatrix> value( RealVector params ) {
+
+        final double a0 = params.getEntry(IDX_A0);
+        final double bgr = params.getEntry(IDX_BGR);
+        final double xC = params.getEntry(IDX_XC);
+        final double yC = params.getEntry(IDX_YC);
+        final double sigma = params.getEntry(IDX_SIGMA);
+        final double aDefocus = params.getEntry(IDX_ADEFOCUS);
+
+        final double invSigmaSqr = 1.0 / (sigma * sigma);
+        final double invSigmaCube = invSigmaSqr / sigma;
+        final double halfInvSigmaSqr = 0.5 * invSigmaSqr;
+        final double zernikeScale = 2 * invNSqr_ * invSigmaSqr;
+        final double p = 4 * aDefocus * invNSqr_;
+        final double invA0 = 1.0 / a0;
+
+        final double[] values = values_;
+        final int[] xs = xs_;
+        final int[] ys = ys_;
+        for( int i = 0; i < numPixels_; ++i ) {
+            double dx = xs[i] - xC;
+            double dy = ys[i] - yC;
+            double r2 = dx * dx + dy * dy;
+            double q = a0 * Math.exp( -r2 * halfInvSigmaSqr );
+            double zernike = zernikeScale * r2 - 1;
+            values[i] = q + bgr + aDefocus * zernike;
+
+            double qp = q - p;
+            double[] row = jacobian_[i];
+            row[IDX_A0] = q * invA0;
+            row[IDX_BGR] = 1.0;
+            row[IDX_XC] = dx * invSigmaSqr * qp;
+            row[IDX_YC] = dy * invSigmaSqr * qp;
+            row[IDX_SIGMA] = r2 * invSigmaCube * qp;
+            row[IDX_ADEFOCUS] = zernike;
+        }
+
+        return result_;
+    }
+
+    /**
+     * Retrieve the pixelValues_ array. "Target" for LeastSquares Builder.
+     * <p>
+     * Note: This returns a reference to the internal array to avoid copying.
+     *
+     * @return array of doubles to PixelValues (non-copied for speed)
+     */
+    public double[] getPixelValues() {
+        return pixelValues_;
+    }
+
+    /**
+     * Gets the Number of Pixels currently loaded by setPixels()
+     *
+     * @return The number of pixels in the current spot
+     */
+    public int getNumPixels() {
+        return numPixels_;
+    }
+
+}
@@ -116,11 +116,13 @@ public class GaussianWithSimpleDefocusFitThread extends GenericBaseGaussianFitTh
                 avgEdges /= 4;
                 halfBox += 1;
             } while (avgEdges > maxValue * .33);
-            ImageProcessor sp = SpotData.getSpotProcessor(ip,
-                    halfBox, x, y);
+            //A view of the box, ip's Roi is left untouched
+            SpotView sp = SpotView.create(ip, halfBox, x, y);
             if (sp != null) {
-                return new SpotData(sp, channel, slice, frame,
+                SpotData spot = new SpotViewData(sp, channel, slice, frame,
                         position, spotIdx, x, y);
+                addMomentEstimate( spot, halfBox, x, y );
+                return spot;
             }
         }
         return null;
@@ -120,13 +120,18 @@ public abstract class GenericBaseGaussianFitThread extends ImageRegionFitThreadT
     /**
      * Discovers Points of Interest for Fitting a Gaussian Through use of FindLocalMaxima.FindMax()
      * <p>
+     * Large Rois are searched in parallel bands by TiledMaximaFinder, with identical results.
+     * Only the pixels of currentImageProcessor within getFrameRoi() are read.
+     * <p>
      * This Method Looks for the Maxima Within a Given Region (Abbe Limit In this Case)
      * And above a given Threshold Value for the current ImageProcessor.
      * <p>
      * <pre>
      *  Threshold Value is part of GaussianInfo super class (manipulated by setNoiseTolerance())
+     *                  or estimated per frame if setUseAdaptiveThresholds() is set (see getFrameIntensityThreshold())
      *  HalfSize Value is part of GaussianInfo super class (manipulated by setSpotImageAreaHalfSize())
      *  preFilterType is manipulated by setPreFiltertype()
+     *  detectorType is part of ExtendedGaussianInfo super class (manipulated by setDetectorType())
      * </pre>
      * 
      * @param currentImageProcessor The current ImageProcessor passed in from BaseClass
@@ -135,11 +140,12 @@ public abstract class GenericBaseGaussianFitThread extends ImageRegionFitThreadT
      * @see #setSpotImageAreaHalfSize(int)  
      * @see #setNoiseTolerance(int)
      * @see #setPreFilterType(edu.hope.superresolution.fitters.FindLocalMaxima.FilterType) 
+     * @see #setDetectorType(edu.hope.superresolution.fitters.FindLocalMaxima.DetectorType) 
      */
     @Override
     protected Polygon discoverPointsOfInterest(ImageProcessor currentImageProcessor) {
-        return FindLocalMaxima.FindMax( currentImageProcessor, halfSize_, getSNR(), noiseTolerance_, getIntensityThreshold(),
-                                preFilterType_);
+        return TiledMaximaFinder.findMax( currentImageProcessor, getFrameRoi(), halfSize_, getSNR(), getFrameNoiseTolerance(),
+                                getFrameIntensityThreshold(), preFilterType_, getDetectorType() );
     }
 
 }
@@ -14,17 +14,27 @@ import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.utils.MMWindowAbstraction;
 import edu.valelab.gaussianfit.utils.ProgressThread;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -39,19 +49,30 @@ import java.util.concurrent.locks.ReentrantLock;
  * 
  *     1. Establish ImagePlus Properties (i.e. slices, etc.)
  *     2. Create FitStackThreads using createFitStackThreadInstance() [abstract]
+ *        (queued on the fit workers of the shared FitExecutor)
  *      {Per Image In the Stack}
  *     3. Discover the Potential Fit Points of Interest using discoverPointsOfInterest [abstract]
+ *        (ranked and limited to the best getFitBudget() Points, if there is a budget)
  *     4. Apply Each Potential Fit to the BlockingQueue with a cropped Image of halfSize_
+ *        (the queue is bounded, so this waits while the FitStackThreads catch up)
  *      {End Per Image In the Stack}
  *     5. Wait For FitStackThreads to Finish
  *     6. Call The ListFinished Callback to use ResultingListInfo in Calling Context
  * </pre> 
- * 
+ * The procedure itself runs as a task on a region worker of the shared FitExecutor 
+ * (see init()), so no Threads are started per Roi or per frame.
+ *
+ * @see FitExecutor
  *
  * @author Justin Hanselman
  */
 abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo implements Runnable {
     
+   //Capacity of the spot queue.  Spots are views of their frame, so this also bounds the frames held in memory
+   public static final int SOURCE_QUEUE_CAPACITY = 1024;
+   //Time (ms) a full queue is waited on before checking whether the fit was stopped
+   private static final long OFFER_TIMEOUT_MS = 100;
+    
    /**General Lock to allow for modification of any settings to be used 
     *   while thread is running.  This takes care of the general case for pre-run
     *   variables as this lock is called on run. Synchronization for dynamic in-process 
@@ -60,11 +81,34 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
     */
     protected final ReentrantLock modifyLock_ = new ReentrantLock();
     
-    private volatile Thread t_;  //self-stored calling thread
+    private volatile Future<?> task_;  //Task of this fit on the shared FitExecutor
     private ImagePlus ip_;
+    //Pixel arrays of the images of ip_ (by stack index - 1), read by init() on the queueing thread
+    private Object[] framePixels_;
     private boolean running_ = false;
     private FitStackThread[] stackFitThreads_;
+    //Every FitStackThread of the current analysis ended before all of its spots were queued
+    private volatile boolean fitStacksEnded_ = false;
+    private int numFitStacks_ = 0;  //FitStackThreads per analysis (0 for one per fit worker)
     private Roi roi_;
+    //Bounds of the Roi in the current frame (read once, other fits may set the shared processor's Roi)
+    private Rectangle frameRoi_ = null;
+    private volatile long lastTotalIterations_ = 0;  //Fit Iterations of the last analysis
+    private volatile int lastNumFits_ = 0;  //Fits counted in lastTotalIterations_
+    
+    //Summed-Area Tables of the current frame (built by the first addMomentEstimate() of a frame)
+    private final SummedAreaTable frameTable_ = new SummedAreaTable();
+    private ImageProcessor frameTableProc_ = null;
+    private Rectangle frameTableRegion_ = null;
+    private boolean frameTableBuilt_ = false;
+    
+    //Ranks the candidates of a frame when there are more than the fit budget
+    private final CandidateRanker candidateRanker_ = new CandidateRanker();
+    
+    //Thresholds of the current frame (the settings, unless adapted by the BackgroundNoiseModel)
+    private double frameBaseLevel_;
+    private int frameNoiseTolerance_;
+    private int frameIntensityThreshold_;
     
     //Callback for calling Context
     private final FitThreadCallback<SpotData> listCallback_;
@@ -191,6 +235,37 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
         return new ArrayList<SpotData>( resultList_ );
     }
  
+    /**
+     * Gets the Average Number of optimizer iterations per spot in the last analysis.
+     * Only fit processes that report iterations (WarmStartFitProcess) are counted.
+     * This allows for comparison of warm started (tracked) fits against cold fits.
+     * 
+     * @return The average iterations per fit, or 0 if none were counted
+     */
+    public double getLastAverageIterations() {
+        int numFits = lastNumFits_;
+        return (numFits > 0) ? ((double) lastTotalIterations_) / numFits : 0;
+    }
+ 
+    /**
+     * Gets the Total Number of optimizer iterations in the last analysis, counted as for 
+     * getLastAverageIterations().  Used to average over several fits.
+     * 
+     * @return The total iterations of the fits counted in getLastNumFits()
+     */
+    public long getLastTotalIterations() {
+        return lastTotalIterations_;
+    }
+ 
+    /**
+     * Gets the Number of fits counted in getLastTotalIterations()
+     * 
+     * @return The number of fits by a WarmStartFitProcess in the last analysis
+     */
+    public int getLastNumFits() {
+        return lastNumFits_;
+    }
+ 
     /**
      *  Sets the ImagePlus for use in the analysis
      *  <p> 
@@ -216,6 +291,33 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
         return true;
     }
        
+    /**
+     *  Sets the Number of FitStackThreads that fit the spots of this Roi.  When several Rois
+     *  of a frame are fit at once, each should use a share of the fit workers of the 
+     *  FitExecutor, since a FitStackThread holds its worker until its Roi is finished.
+     *  <p> 
+     *  Note: Only changes the number if Thread is not currently running
+     * 
+     * @param numFitStacks The number of FitStackThreads (0 or less for one per fit worker)
+     * @return <code>true</code> if the number was set 
+     *         or <code>false</code> if called while process was running
+     * 
+     * @see FitExecutor#getNumFitWorkers() 
+     */
+    public boolean setNumFitStacks( int numFitStacks ) {
+        if( isRunning() ) {
+            return false;
+        }
+        
+        modifyLock_.lock();
+        try {
+            numFitStacks_ = numFitStacks;
+        } finally {
+            modifyLock_.unlock();
+        }
+        return true;
+    }
+       
     /**
      *  Sets the halfSize of the Spot Image Area.  This means that when SpotData
      *  is created around a Point of Interest to evaluate, the ImageProcessor will be
@@ -268,9 +370,9 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
        if ( isRunning() ) {
            return false;
        }
-      t_ = new Thread(this);
       setRunning( true );
-      t_.start();
+      framePixels_ = readFramePixels( ip_ );
+      task_ = FitExecutor.getSharedExecutor().submitRegion( this );
       return true;
    }
    
@@ -284,10 +386,17 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
    }
    
    public boolean join(long millis) throws InterruptedException {
-       if (!isRunning()) {
+       Future<?> task = task_;
+       if (!isRunning() || task == null) {
            return false;
        }
-      t_.join(millis);
+      try {
+         task.get(millis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+         //Same as a Thread join that timed out, the fit is still running
+      } catch (ExecutionException ex) {
+         print( "Fit Task Exception: " + ex.getCause() );
+      }
       return true;
    } 
 
@@ -299,7 +408,7 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
             }
          }
       }
-      t_ = null;
+      task_ = null;
       setRunning(false);
    }
 
@@ -336,14 +445,14 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
      */
     private void fitRoi( Roi roi ) {
       // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<SpotData>();
+      sourceList_ = new ArrayBlockingQueue<SpotData>(SOURCE_QUEUE_CAPACITY);
       resultList_ = Collections.synchronizedList( new ArrayList<SpotData>() );
 
       
-      //Set up Number of Threads in Spot Fitting
-      int nrThreads = ij.Prefs.getThreads();
-      if (nrThreads > 8) {
-         nrThreads = 8;
+      //One FitStackThread per fit worker (ImageJ's thread count, at most 8), unless shared with other Rois
+      int nrThreads = FitExecutor.getSharedExecutor().getNumFitWorkers();
+      if (numFitStacks_ > 0 && numFitStacks_ < nrThreads) {
+         nrThreads = numFitStacks_;
       }
       
        long startTime = System.nanoTime();
@@ -380,6 +489,8 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
          }
          for (int p = startPos; p <= endPos; p++) {
             MMWindowAbstraction.setPosition(ip_, p);
+            //The position was already changed on this thread, so its pixels are read here too
+            framePixels_ = readFramePixels( ip_ );
             int nrSpots = analyzeImagePlus(ip_, p, nrThreads, roi);
             if (nrSpots > maxNrSpots) {
                maxNrSpots = nrSpots;
@@ -440,12 +551,12 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
     abstract public boolean roiIsValid( Roi roi );
     
     /**
-     * Initializes Threads to search through all ImageProcessors of a given ImagePlus, corresponding to 
+     * Queues FitStackThreads to search through all ImageProcessors of a given ImagePlus, corresponding to 
      * an Roi and a z position.
      * 
      * @param siPlus - The imagePlus to process All processors at the same z-postion
      * @param position - The z-position of processors to analyze fits in
-     * @param nrThreads - the number of threads to spawn
+     * @param nrThreads - the number of FitStackThreads to queue on the FitExecutor
      * @param originalRoi - the ROI to analyze such fits in
      * @return 
      */
@@ -453,7 +564,8 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
    private int analyzeImagePlus(ImagePlus siPlus, int position, int nrThreads, Roi originalRoi ) {
 
       int nrSpots = 0;
-      // Start up IJ.Prefs.getThreads() threads for gaussian fitting
+      fitStacksEnded_ = false;
+      // Queue one FitStackThread per fit worker for gaussian fitting
       stackFitThreads_ = new FitStackThread[nrThreads];
       for (int i = 0; i < nrThreads; i++) {
           //Get Actual FitStackThread from SubClass implementation
@@ -474,56 +586,48 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
          stackFitThreads_[i].setNrPhotonsMin(nrPhotonsMin_);
          stackFitThreads_[i].setNrPhotonsMax(nrPhotonsMax_);
          stackFitThreads_[i].setMaxIterations(maxIterations_);
+         stackFitThreads_[i].setNewtonIterations(newtonIterations_);
+         stackFitThreads_[i].setUseIntegratedModel(getUseIntegratedModel());
+         stackFitThreads_[i].setUseResidualFilter(getUseResidualFilter());
+         stackFitThreads_[i].setUseFloatPrecision(getUseFloatPrecision());
+         stackFitThreads_[i].setUseMultiEmitterFit(getUseMultiEmitterFit());
+         stackFitThreads_[i].setUseQuickLocalizer(getUseQuickLocalizer());
+         stackFitThreads_[i].setWarmStartSpot(getWarmStartSpot());
          stackFitThreads_[i].setUseWidthFilter(useWidthFilter_);
          stackFitThreads_[i].setUseNrPhotonsFilter(useNrPhotonsFilter_);
          stackFitThreads_[i].init();
       }
 
-      // work around strange bug that happens with freshly opened images
-      for (int i = 1; i <= siPlus.getNChannels(); i++) {
-         siPlus.setPosition(i, siPlus.getCurrentSlice(), siPlus.getFrame());
-      }
-
       int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
       int imageCount = 0;
       try {
          for (int c = 1; c <= siPlus.getNChannels(); c++) {
-            if ( !isRunning() ) {
+            if ( !isRunning() || fitStacksEnded_ ) {
                break;
             }
             for (int z = 1; z <= siPlus.getNSlices(); z++) {
-               if ( !isRunning() ) {
+               if ( !isRunning() || fitStacksEnded_ ) {
                   break;
                }
                for (int f = 1; f <= siPlus.getNFrames(); f++) {
-                  if ( !isRunning() ) {
+                  if ( !isRunning() || fitStacksEnded_ ) {
                      break;
                   }
-                  // to avoid making a gigantic sourceList and running out of memory
-                  // sleep a bit when the sourcesize gets too big
-                  // once we have very fast multi-core computers, this constant can be increased
-                  if (sourceList_.size() > 100000) {
-                     try {
-                        Thread.sleep(1000);
-                     } catch (InterruptedException ex) {
-                        // not sure what to do
-                     }
-                  }
-
                   imageCount++;
                   ij.IJ.showStatus("Processing image " + imageCount);
 
                   //Generate Points of Interest
-                  ImageProcessor siProc = null;
                   Polygon p = new Polygon();
-                   //Not Really Portable For SpotData Processing due to static lock 
-                  // Does Account for ImageProcessor sharing between getProcessor Method and this
-                  synchronized (SpotData.lockIP) {
-                     siPlus.setPositionWithoutUpdate(c, z, f);
-                        siPlus.setRoi(originalRoi, false);
-                        siProc = siPlus.getProcessor();
-                        //Call Abstract discovery of Points
-                        p = discoverPointsOfInterest( siProc );
+                  //siProc is this fit's own ImageProcessor over the frame's pixels, and the Roi is
+                  // only kept as frameRoi_, so no lock is shared with other fits or ImagePlus'
+                  ImageProcessor siProc = getFrameProcessor( framePixels_, siPlus, c, z, f );
+                  frameRoi_ = getFrameBounds( siProc, originalRoi );
+                  //Call Abstract discovery of Points (only reads siProc)
+                  BackgroundNoiseModel backgroundModel = updateFrameThresholds( siProc );
+                  p = discoverPointsOfInterest( siProc );
+                  if( backgroundModel != null ) {
+                     //Keep the spots of this frame out of the next frame's background
+                     backgroundModel.setExcludedPoints( p, halfSize_ );
                   }
 
                   if (p.npoints > nrSpots) {
@@ -535,25 +639,29 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
                      sC[j][0] = p.xpoints[j];
                      sC[j][1] = p.ypoints[j];
                   }
+                
+                  //Spot moments for this frame are summed once from the roi (see addMomentEstimate())
+                  beginFrameTable( siProc );
+                  //Only fit the best ranked candidates if there are more than the budget
+                  sC = selectCandidates( sC );
                       
                   //Sort Points Spatially Left to Right, Top to Bottom
                   Arrays.sort(sC, new ImageRegionFitThreadTest.SpotSortComparator());
-                
+                  //Only the candidate where the warm start spot was is seeded by it
+                  int warmStartIdx = getWarmStartCandidate( sC );
+
                   //Set up SpotData basic structures for FitStackThreads
                   SpotData spot;
                   for(int j = 0; j < sC.length; j++) {
                      // filter out spots too close to the edge based on halfSize_
                      //This is set by 
-                     synchronized (SpotData.lockIP) {
-                        spot = produceSpot( siProc, c, z, f, position, j, sC[j][0], sC[j][1] );
+                     //produceSpot() only reads siProc (spots are views, see SpotView), so no lock is held
+                     spot = produceSpot( siProc, c, z, f, position, j, sC[j][0], sC[j][1] );
+                     if( spot != null && j == warmStartIdx ) {
+                        spot.addKeyValue( FitStackThread.WARM_START_CANDIDATE_KEY, 1 );
                      }
-                     if( spot!= null ) {
-                        try {
-                           sourceList_.put(spot);
-                        } catch (InterruptedException iex) {
-                           Thread.currentThread().interrupt();
-                           throw new RuntimeException("Unexpected interruption");
-                        }
+                     if( spot!= null && !offerSpot(spot) ) {
+                        break;
                      }
                   }
                               
@@ -574,26 +682,154 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
       // Send working threads signal that we are done:
       SpotData lastSpot = new SpotData(null, -1, 1, -1, -1, -1, -1, -1);
       try {
-         sourceList_.put(lastSpot);
+         while ( !fitStacksEnded_ && !sourceList_.offer(lastSpot, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS) ) {
+            if ( !isRunning() ) {
+               //Stopped FitStackThreads may have left the queue full, and their spots are not needed
+               sourceList_.clear();
+            } else if ( !hasLiveFitStacks( stackFitThreads_ ) ) {
+               abortForEndedFitStacks();
+            }
+         }
       } catch (InterruptedException iex) {
          Thread.currentThread().interrupt();
          throw new RuntimeException("Unexpected interruption");
       }
 
       // wait for worker threads to finish
+      long totalIterations = 0;
+      int numFits = 0;
       for (int i=0; i<nrThreads; i++) {
          try {
             stackFitThreads_[i].join();
+            totalIterations += stackFitThreads_[i].getTotalIterations();
+            numFits += stackFitThreads_[i].getNumFits();
             stackFitThreads_[i] = null;
          } catch (InterruptedException ie) {
          }
       }
+      lastNumFits_ = numFits;
+      lastTotalIterations_ = totalIterations;
 
       sourceList_.clear();
       return nrSpots;
 
    }
     
+   /**
+    *  Reads the pixel arrays of every image of an ImagePlus.  This is called on the thread that
+    *  queues the fit, since ImagePlus.getStack() is not read-only (it builds the stack of a 
+    *  single image and sets its processor) and so races with the display and other fits.
+    * 
+    * @param siPlus The ImagePlus being fit
+    * @return The pixel arrays of siPlus, indexed by stack index - 1
+    */
+   private static Object[] readFramePixels( ImagePlus siPlus ) {
+      int stackSize = siPlus.getStackSize();
+      Object[] pixels = new Object[stackSize];
+      if( stackSize == 1 ) {
+         pixels[0] = siPlus.getProcessor().getPixels();
+         return pixels;
+      }
+      ImageStack stack = siPlus.getImageStack();
+      for (int n = 1; n <= stackSize; ++n) {
+         pixels[n - 1] = stack.getPixels( n );
+      }
+      return pixels;
+   }
+
+   /**
+    *  Gets an ImageProcessor of one image of an ImagePlus without moving the ImagePlus to it.
+    *  The ImageProcessor shares the image's pixels, but is new, so its Roi and other state are
+    *  not shared with the ImagePlus or with other fits of it.
+    * 
+    * @param framePixels The pixel arrays of siPlus (see readFramePixels())
+    * @param siPlus The ImagePlus being fit (only its dimensions are read)
+    * @param channel The Channel of the image
+    * @param slice The Slice of the image
+    * @param frame The Frame of the image
+    * @return A new ImageProcessor of the image's pixels
+    */
+   private static ImageProcessor getFrameProcessor( Object[] framePixels, ImagePlus siPlus, 
+                                                    int channel, int slice, int frame ) {
+      Object pixels = framePixels[ siPlus.getStackIndex( channel, slice, frame ) - 1 ];
+      int width = siPlus.getWidth();
+      int height = siPlus.getHeight();
+      if( pixels instanceof short[] ) {
+         return new ShortProcessor( width, height, (short[]) pixels, null );
+      } else if( pixels instanceof byte[] ) {
+         return new ByteProcessor( width, height, (byte[]) pixels, null );
+      } else if( pixels instanceof int[] ) {
+         return new ColorProcessor( width, height, (int[]) pixels );
+      }
+      return new FloatProcessor( width, height, (float[]) pixels, null );
+   }
+
+   /**
+    *  Gets the bounds of an Roi within an image, as the ImageProcessor would after setRoi()
+    * 
+    * @param siProc The ImageProcessor of the image
+    * @param roi The Roi to fit (<code>null</code> for the whole image)
+    * @return The bounds of roi, clipped to the image
+    */
+   private static Rectangle getFrameBounds( ImageProcessor siProc, Roi roi ) {
+      Rectangle imageBounds = new Rectangle( 0, 0, siProc.getWidth(), siProc.getHeight() );
+      if( roi == null ) {
+         return imageBounds;
+      }
+      return roi.getBounds().intersection( imageBounds );
+   }
+
+   /**
+    *  Puts a Spot on the bounded source queue, waiting while it is full.  The wait is 
+    *  given up if the fit is stopped, since the FitStackThreads may no longer be taking spots,
+    *  or if every FitStackThread has ended (i.e. each failed in runFitProcess()), in which
+    *  case the rest of the region is not searched.
+    * 
+    * @param spot The spot to queue
+    * @return <code>false</code> if the fit was stopped or lost its FitStackThreads before 
+    *         the spot could be queued
+    */
+   private boolean offerSpot( SpotData spot ) {
+      try {
+         while ( !sourceList_.offer(spot, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS) ) {
+            if ( !isRunning() ) {
+               return false;
+            }
+            if ( !hasLiveFitStacks( stackFitThreads_ ) ) {
+               abortForEndedFitStacks();
+               return false;
+            }
+         }
+      } catch (InterruptedException iex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Unexpected interruption");
+      }
+      return true;
+   }
+
+   /**
+    *  Whether any of the FitStackThreads may still take spots from the source queue
+    * 
+    * @param fitStacks The FitStackThreads queued for the current analysis
+    * @return <code>false</code> if every FitStackThread has ended (see FitStackThread#isDone())
+    */
+   static boolean hasLiveFitStacks( FitStackThread[] fitStacks ) {
+      for (FitStackThread fitStack : fitStacks) {
+         if (fitStack != null && !fitStack.isDone()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   //Gives up on the region once no FitStackThread is left to take its spots, so that the
+   // region worker is not held by a queue that never drains
+   private void abortForEndedFitStacks() {
+      fitStacksEnded_ = true;
+      sourceList_.clear();
+      print( "Every FitStackThread ended before the Roi was queued, the rest of the Roi is skipped" );
+   }
+    
    /**
     *  Function Used By Sub-Classes to create A Specific FitStackThread.  This 
     *  function just needs to return a new instance of FitStackThread.
@@ -631,6 +867,9 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
     * <p>
     * Note: The points found will be used to produce a Preliminary Spot with a cropped
     * ImageProcessor of the specified width using setPointOfInterestHalfWidth( int )
+    * <p>
+    * Note: currentImageProcessor is not shared with other fits, but its pixels are.  
+    * Implementations must only read them, and search the Roi of getFrameRoi() (its own Roi is not set).
     * 
     * @param currentImageProcessor The currentImageProcessor as selected By Iterating through the baseLevel ImagePlus member
     * @return Polygon object that represents all points of interest discovered
@@ -641,6 +880,10 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
     *  Given the x and y coordinates produced from discoverPointsOfInterest, apply 
     *  any further postProcessing to generate value SpotData for evaluation by the given
     *  FitThread.
+    * <p>
+    *  Note: The pixels of ip are shared with other fits, so implementations must only 
+    *  read from ip.  Spot images should be views of ip (see SpotView and SpotViewData) 
+    *  rather than crops, which copy the pixels.
     * 
     * @param ip - The Image Processor in which the data is correlated
     * @param channel - The Channel Number as parsed by the super class
@@ -656,6 +899,200 @@ abstract public class ImageRegionFitThreadTest extends ExtendedGaussianInfo impl
                                               int slice, int frame, int position, 
                                               int spotIdx, int x, int y );
 
+   /**
+    *  Sets the thresholds of the current frame.  If adaptive thresholds are used, the
+    *  BackgroundNoiseModel is first updated from the Roi of the frame and its estimate
+    *  replaces the base level, noise tolerance and intensity threshold of the settings.
+    * 
+    * @param siProc The ImageProcessor of the frame (the Roi is frameRoi_)
+    * @return The BackgroundNoiseModel that was updated, or null if thresholds are not adaptive
+    */
+   private BackgroundNoiseModel updateFrameThresholds( ImageProcessor siProc ) {
+      frameBaseLevel_ = baseLevel_;
+      frameNoiseTolerance_ = noiseTolerance_;
+      frameIntensityThreshold_ = getIntensityThreshold();
+      BackgroundNoiseModel model = getBackgroundNoiseModel();
+      if( !getUseAdaptiveThresholds() || model == null ) {
+         return null;
+      }
+      model.update( siProc, frameRoi_ );
+      if( model.hasEstimate() ) {
+         frameBaseLevel_ = model.getBackground();
+         frameNoiseTolerance_ = model.getNoiseTolerance();
+         frameIntensityThreshold_ = model.getThreshold( getSNR() );
+      }
+      return model;
+   }
+
+   /**
+    *  Gets the base level (background) of the frame whose spots are being discovered and produced
+    * 
+    * @return The estimated background if adaptive thresholds are used, otherwise the base level setting
+    * 
+    * @see ExtendedGaussianInfo#setUseAdaptiveThresholds(boolean) 
+    */
+   protected double getFrameBaseLevel() {
+      return frameBaseLevel_;
+   }
+
+   /**
+    *  Gets the noise tolerance of the frame whose spots are being discovered and produced
+    * 
+    * @return The estimated noise tolerance if adaptive thresholds are used, otherwise the noise tolerance setting
+    * 
+    * @see ExtendedGaussianInfo#setUseAdaptiveThresholds(boolean) 
+    */
+   protected int getFrameNoiseTolerance() {
+      return frameNoiseTolerance_;
+   }
+
+   /**
+    *  Gets the intensity threshold of the frame whose spots are being discovered and produced
+    * 
+    * @return The estimated background plus SNR times the noise if adaptive thresholds are used, 
+    *          otherwise the intensity threshold setting
+    * 
+    * @see ExtendedGaussianInfo#setUseAdaptiveThresholds(boolean) 
+    */
+   protected int getFrameIntensityThreshold() {
+      return frameIntensityThreshold_;
+   }
+
+   /**
+    *  Gets the bounds of the Roi in the frame whose spots are being discovered and produced.
+    *  The frame's ImageProcessor is read without setting its Roi, so this is the only record of it.
+    * 
+    * @return The bounds of the Roi in the current frame
+    */
+   protected Rectangle getFrameRoi() {
+      return frameRoi_;
+   }
+
+   /**
+    *  Resets the frame's SummedAreaTable to cover the current Roi of the ImageProcessor
+    *  and a margin of twice halfSize_ for spot boxes that grow past the Roi.
+    * 
+    * @param siProc The ImageProcessor of the frame whose spots are about to be produced
+    */
+   private void beginFrameTable( ImageProcessor siProc ) {
+      Rectangle roi = frameRoi_;
+      int margin = 2 * halfSize_;
+      frameTableProc_ = siProc;
+      frameTableRegion_ = new Rectangle( roi.x - margin, roi.y - margin,
+                                          roi.width + 2 * margin, roi.height + 2 * margin );
+      frameTableBuilt_ = false;
+   }
+
+   /**
+    *  Stores the moments of a spot's box in the spot (see FitStackThread.MOMENT_*_KEY),
+    *  so that a MomentEstimateFitProcess does not sum the spot image for its initial parameters.
+    *  Meant to be called from produceSpot() for the box passed to SpotView.create().
+    * <p>
+    *  The moments are looked up in one SummedAreaTable per frame, which is built by the first
+    *  call for the frame.  Boxes beyond the table are left without moments.
+    * 
+    * @param spot The spot produced from the box
+    * @param halfBox The half size of the box
+    * @param x The x image position (pixel) the box is centered on
+    * @param y The y image position (pixel) the box is centered on
+    * 
+    * @see edu.hope.superresolution.fitprocesses.MomentEstimateFitProcess
+    */
+   protected void addMomentEstimate( SpotData spot, int halfBox, int x, int y ) {
+      if( !ensureFrameTable() ) {
+         return;
+      }
+      int left = x - halfBox;
+      int top = y - halfBox;
+      int size = 2 * halfBox;
+      if( !frameTable_.contains( left, top, size, size ) ) {
+         return;
+      }
+      long total = frameTable_.getSum( left, top, size, size );
+      if( total <= 0 ) {
+         return;
+      }
+      double borderMean = ((double) frameTable_.getBorderSum( left, top, size, size ))
+                              / SummedAreaTable.getBorderCount( size, size );
+      spot.addKeyValue( FitStackThread.MOMENT_TOTAL_KEY, total );
+      spot.addKeyValue( FitStackThread.MOMENT_BORDER_MEAN_KEY, borderMean );
+      spot.addKeyValue( FitStackThread.MOMENT_X_CENTROID_KEY,
+                          ((double) frameTable_.getXMoment( left, top, size, size )) / total );
+      spot.addKeyValue( FitStackThread.MOMENT_Y_CENTROID_KEY,
+                          ((double) frameTable_.getYMoment( left, top, size, size )) / total );
+   }
+
+   /**
+    *  Builds the frame's SummedAreaTable if it has not been built since beginFrameTable()
+    * 
+    * @return <code>false</code> if there is no frame to build the table from
+    */
+   private boolean ensureFrameTable() {
+      if( frameTableProc_ == null ) {
+         return false;
+      }
+      if( !frameTableBuilt_ ) {
+         frameTable_.build( frameTableProc_, frameTableRegion_ );
+         frameTableBuilt_ = true;
+      }
+      return true;
+   }
+
+   /**
+    *  Limits the candidates of the current frame to the fit budget (see 
+    *  ExtendedGaussianInfo#setFitBudget(int)).  If there are more candidates than the budget,
+    *  they are ranked by a CandidateRanker on the frame's SummedAreaTable and the best are kept,
+    *  extended down the ranking to the first candidate within the max track travel of the warm 
+    *  start spot if none of the best are.
+    * 
+    * @param candidates The candidate points ({x, y} pairs) of the frame
+    * @return The candidates to fit (candidates itself if all of them are fit)
+    */
+   private int[][] selectCandidates( int[][] candidates ) {
+      int budget = getFitBudget();
+      if( budget <= 0 || candidates.length <= budget || !ensureFrameTable() ) {
+         return candidates;
+      }
+      candidateRanker_.rank( frameTable_, candidates, halfSize_ );
+      double matchX = 0, matchY = 0, matchRadius = -1;
+      SpotData warmStartSpot = getWarmStartSpot();
+      if( warmStartSpot != null ) {
+         matchX = warmStartSpot.getXCenter() / pixelSize_;
+         matchY = warmStartSpot.getYCenter() / pixelSize_;
+         matchRadius = ( getMaxTrackTravel() > 0 ) ? getMaxTrackTravel() : halfSize_;
+      }
+      int numToFit = CandidateRanker.getNumToFit( candidates, budget, matchX, matchY, matchRadius );
+      return Arrays.copyOf( candidates, numToFit );
+   }
+
+   /**
+    *  Finds the candidate nearest to the position of the warm start spot (the same fiducial
+    *  in the previous frame).
+    * 
+    * @param candidates The candidate points ({x, y} pairs) of the frame
+    * @return The index of the nearest candidate, or -1 if there is no warm start spot
+    */
+   private int getWarmStartCandidate( int[][] candidates ) {
+      SpotData warmStartSpot = getWarmStartSpot();
+      if( warmStartSpot == null ) {
+         return -1;
+      }
+      double prevX = warmStartSpot.getXCenter() / pixelSize_;
+      double prevY = warmStartSpot.getYCenter() / pixelSize_;
+      int nearestIdx = -1;
+      double nearestDistSqr = Double.POSITIVE_INFINITY;
+      for( int i = 0; i < candidates.length; ++i ) {
+         double dx = candidates[i][0] - prevX;
+         double dy = candidates[i][1] - prevY;
+         double distSqr = dx * dx + dy * dy;
+         if( distSqr < nearestDistSqr ) {
+            nearestDistSqr = distSqr;
+            nearestIdx = i;
+         }
+      }
+      return nearestIdx;
+   }
+
   /**
    * Custom Comparator Class as copied from FitAllThread.java
    * <p>
@@ -0,0 +1,243 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+import ij.process.ImageProcessor;
+
+/**
+ *  Non-iterative Localizer that estimates a radially symmetric Gaussian from the moments
+ *  of a spot image in one pass.
+ * <p>
+ *  The background is the mean of the border pixels of the box and the noise is their
+ *  standard deviation.  The raw sums of the pixels and of their first and second moments
+ *  are taken in the same pass, and the background is subtracted from them afterwards:
+ *  <pre>
+ *     total  = sum( v ) - background * n
+ *     center = sum( v * x ) - background * sum( x ), divided by total
+ *     sigma^2 = ( second moments in x and y, less background, divided by total - center^2 ) / 2
+ *     amplitude = total / ( 2 * pi * sigma^2 )
+ *  </pre>
+ *  The parameters are returned in the order of GaussianFit (Shape 1), so the result may
+ *  be used anywhere a single Gaussian fit would be.  The estimate is only trustworthy for
+ *  bright spots near the center of their box, see isReliable().
+ * <p>
+ *  Not Thread-safe (the last estimate is kept).  One instance is expected per FitStackThread.
+ *
+ * @see GaussianFit
+ *
+ * @author Justin Hanselman
+ */
+public class MomentLocalizer {
+
+    //Minimum peak signal to noise (amplitude over the border's standard deviation) of a reliable estimate
+    public static final double MIN_PEAK_SNR = 8;
+    //Range of sigma (pixels) that is considered a spot
+    public static final double MIN_SIGMA = .5;
+    //The Noise used if the border is flat (i.e. simulated or saturated images)
+    private static final double MIN_NOISE = 1;
+
+    private double noise_ = 0;
+    private int width_ = 0;
+    private int height_ = 0;
+    private FitResult lastResult_ = FitResult.failed( 0 );
+
+    //Sums over the box of the current estimate, coordinates relative to the top-left pixel
+    private double total_;
+    private double xSum_;
+    private double ySum_;
+    private double xxSum_;
+    private double yySum_;
+    private double borderSum_;
+    private double borderSqrSum_;
+
+    public MomentLocalizer() {
+    }
+
+    /**
+     *  Estimates the Gaussian of a spot in its frame
+     *
+     * @param spotView The view of the spot
+     * @return The estimate (see localize( short[], int, int, int, int ))
+     */
+    public FitResult localize( SpotView spotView ) {
+        short[] pixels = spotView.getShortPixels();
+        if( pixels != null ) {
+            return localize( pixels, spotView.getOffset(), spotView.getStride(),
+                                spotView.getWidth(), spotView.getHeight() );
+        }
+        beginSums();
+        int width = spotView.getWidth();
+        int height = spotView.getHeight();
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                addPixel( spotView.getPixelValue( x, y ), x, y, width, height );
+            }
+        }
+        return finishSums( width, height );
+    }
+
+    /**
+     *  Estimates the Gaussian of a spot image
+     *
+     * @param ip The spot image
+     * @return The estimate (see localize( short[], int, int, int, int ))
+     */
+    public FitResult localize( ImageProcessor ip ) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        Object pixels = ip.getPixels();
+        if( pixels instanceof short[] ) {
+            return localize( (short[]) pixels, 0, width, width, height );
+        }
+        beginSums();
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                addPixel( ip.getPixelValue( x, y ), x, y, width, height );
+            }
+        }
+        return finishSums( width, height );
+    }
+
+    /**
+     *  Estimates the Gaussian of a box of 16-bit pixels
+     *
+     * @param pixels The 16-bit pixels containing the spot (row-major)
+     * @param offset The index of the spot's top-left pixel
+     * @param stride The distance between rows of the spot in pixels
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @return The parameters {INT, BGR, XC, YC, S} (GaussianFit indices), or a failed result
+     *          if the spot has no signal above its border or no spread
+     */
+    public FitResult localize( short[] pixels, int offset, int stride, int width, int height ) {
+        beginSums();
+        for( int y = 0; y < height; ++y ) {
+            int rowStart = offset + y * stride;
+            for( int x = 0; x < width; ++x ) {
+                addPixel( pixels[rowStart + x] & 0xffff, x, y, width, height );
+            }
+        }
+        return finishSums( width, height );
+    }
+
+    private void beginSums() {
+        total_ = 0;
+        xSum_ = 0;
+        ySum_ = 0;
+        xxSum_ = 0;
+        yySum_ = 0;
+        borderSum_ = 0;
+        borderSqrSum_ = 0;
+    }
+
+    private void addPixel( double value, int x, int y, int width, int height ) {
+        total_ += value;
+        xSum_ += value * x;
+        ySum_ += value * y;
+        xxSum_ += value * x * x;
+        yySum_ += value * y * y;
+        if( x == 0 || y == 0 || x == width - 1 || y == height - 1 ) {
+            borderSum_ += value;
+            borderSqrSum_ += value * value;
+        }
+    }
+
+    private FitResult finishSums( int width, int height ) {
+        width_ = width;
+        height_ = height;
+        int borderCount = SummedAreaTable.getBorderCount( width, height );
+        if( borderCount <= 0 || width < 3 || height < 3 ) {
+            lastResult_ = FitResult.failed( 0 );
+            return lastResult_;
+        }
+        double background = borderSum_ / borderCount;
+        noise_ = Math.sqrt( Math.max( 0, borderSqrSum_ / borderCount - background * background ) );
+
+        //Sums of the coordinates (and their squares) over the box, for the background
+        double xCoordSum = height * (width * (width - 1.0) / 2);
+        double yCoordSum = width * (height * (height - 1.0) / 2);
+        double xxCoordSum = height * ((width - 1.0) * width * (2 * width - 1.0) / 6);
+        double yyCoordSum = width * ((height - 1.0) * height * (2 * height - 1.0) / 6);
+
+        double signal = total_ - background * width * height;
+        if( signal <= 0 ) {
+            lastResult_ = FitResult.failed( 0 );
+            return lastResult_;
+        }
+        double xC = (xSum_ - background * xCoordSum) / signal;
+        double yC = (ySum_ - background * yCoordSum) / signal;
+        double xVar = (xxSum_ - background * xxCoordSum) / signal - xC * xC;
+        double yVar = (yySum_ - background * yyCoordSum) / signal - yC * yC;
+        double sigmaSqr = (xVar + yVar) / 2;
+        if( sigmaSqr <= 0 || Double.isNaN( sigmaSqr ) ) {
+            lastResult_ = FitResult.failed( 0 );
+            return lastResult_;
+        }
+
+        double[] params = new double[5];
+        params[GaussianFit.INT] = signal / (2 * Math.PI * sigmaSqr);
+        params[GaussianFit.BGR] = background;
+        params[GaussianFit.XC] = xC;
+        params[GaussianFit.YC] = yC;
+        params[GaussianFit.S] = Math.sqrt( sigmaSqr );
+        //No model was evaluated, so there is no chi-square or residual
+        lastResult_ = new FitResult( params, Double.NaN, Double.NaN, 0, true );
+        return lastResult_;
+    }
+
+    /**
+     *  Gets the Standard Deviation of the border pixels of the last estimate
+     *
+     * @return The noise of the last spot's background
+     */
+    public double getNoise() {
+        return noise_;
+    }
+
+    /**
+     *  Gets the Peak Signal to Noise Ratio of the last estimate
+     *
+     * @return The estimated amplitude over the border noise (0 if the estimate failed)
+     */
+    public double getPeakSNR() {
+        if( !lastResult_.hasParameters() ) {
+            return 0;
+        }
+        return lastResult_.getParameters()[GaussianFit.INT] / Math.max( noise_, MIN_NOISE );
+    }
+
+    /**
+     *  Checks Whether the last estimate is good enough to use in place of a Gaussian fit.
+     *  The spot must be bright (peak SNR of MIN_PEAK_SNR and an amplitude of minAmplitude),
+     *  centered within the middle half of its box and no wider than a quarter of the box,
+     *  since the box truncates wider or off-center spots and biases their moments.
+     *
+     * @param minAmplitude The minimum amplitude above the background (i.e. the noise tolerance)
+     * @return <code>true</code> if the last estimate may be used as is
+     */
+    public boolean isReliable( double minAmplitude ) {
+        if( !lastResult_.hasParameters() ) {
+            return false;
+        }
+        double[] params = lastResult_.getParameters();
+        double sigma = params[GaussianFit.S];
+        return getPeakSNR() >= MIN_PEAK_SNR && params[GaussianFit.INT] >= minAmplitude
+                && sigma >= MIN_SIGMA && sigma <= Math.min( width_, height_ ) / 4.0
+                && Math.abs( params[GaussianFit.XC] - width_ / 2.0 ) <= width_ / 4.0
+                && Math.abs( params[GaussianFit.YC] - height_ / 2.0 ) <= height_ / 4.0;
+    }
+
+    /**
+     * Gets the Result of the most recent localize()
+     *
+     * @return The FitResult of the last estimate
+     */
+    public FitResult getLastFitResult() {
+        return lastResult_;
+    }
+
+}
@@ -0,0 +1,466 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+
+/**
+ * Levenberg-Marquardt Fit of up to MAX_EMITTERS Radially Symmetric Gaussians sharing
+ * one background, for spots whose box also contains (part of) a neighbouring fiducial.
+ * <p>
+ * refine() starts from a single Gaussian fit.  While the residual of the current fit 
+ * has a peak above the given threshold (away from the emitters already fit), another 
+ * Gaussian is seeded at that peak and all emitters are fit together.  The extra emitter
+ * is kept only if it reduces chi-square by more than its parameters are expected to by noise.
+ * <p>
+ * The Jacobian is block-structured: each emitter only depends on its own 
+ * [ INT, XC, YC, S ] block and the shared BGR.  Pixels further than CUTOFF_SIGMAS from
+ * an emitter skip that emitter's block entirely (in the model and in J^T*J), so the
+ * cost grows with the overlap of the emitters rather than with the square of the 
+ * number of parameters.
+ * <pre>
+ * Parameter Layout:
+ *      [ BGR, INT_0, XC_0, YC_0, S_0, INT_1, XC_1, YC_1, S_1, ... ]
+ * </pre>
+ * Not Thread-safe.  One instance is expected per FitStackThread.
+ *
+ * @see GaussianLMFit
+ *
+ * @author Justin Hanselman
+ */
+public class MultiGaussianLMFit {
+
+    //Maximum Number of Gaussians in one box
+    public static final int MAX_EMITTERS = 3;
+    //Offsets into the block of an emitter
+    public static final int BLOCK_INT = 0;
+    public static final int BLOCK_XC = 1;
+    public static final int BLOCK_YC = 2;
+    public static final int BLOCK_S = 3;
+    private static final int BLOCK_SIZE = 4;
+
+    //Damping Parameters
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double LAMBDA_INCREASE = 10;
+    private static final double LAMBDA_DECREASE = .1;
+    private static final double MAX_LAMBDA = 1e10;
+    //Relative Chi-Square decrease considered to be converged
+    private static final double CHI_SQR_TOLERANCE = 1e-7;
+    //An emitter contributes less than 4e-6 of its amplitude beyond this many sigma
+    private static final double CUTOFF_SIGMAS = 5;
+    //Chi-Square decrease (in units of the residual variance) required per added parameter
+    private static final double MIN_IMPROVEMENT_PER_PARAM = 6;
+
+    private static final int MAX_PARAMS = 1 + BLOCK_SIZE * MAX_EMITTERS;
+
+    //Reused Working Storage
+    private final double[] params_ = new double[MAX_PARAMS];
+    private final double[] accepted_ = new double[MAX_PARAMS];
+    private final double[] trial_ = new double[MAX_PARAMS];
+    private final double[] delta_ = new double[MAX_PARAMS];
+    private final double[] jtj_ = new double[MAX_PARAMS * MAX_PARAMS];
+    private final double[] jtr_ = new double[MAX_PARAMS];
+    private final double[] system_ = new double[MAX_PARAMS * MAX_PARAMS];
+    private final double[][] rows_ = new double[MAX_EMITTERS][BLOCK_SIZE];
+    private final boolean[] active_ = new boolean[MAX_EMITTERS];
+
+    private int numEmitters_ = 0;
+    private int lastIterations_ = 0;
+    private double residualSumSqr_ = 0;
+    private boolean converged_ = false;
+
+    public MultiGaussianLMFit() {
+    }
+
+    /**
+     * Refits a spot with additional Gaussians while its residual shows another peak.
+     *
+     * @param pixels The 16-bit pixels of the spot (row-major)
+     * @param width The width of the spot
+     * @param height The height of the spot
+     * @param singleParams A converged single Gaussian fit [ INT, BGR, XC, YC, S ] (GaussianFit indices)
+     * @param minPeak The minimum residual peak (in counts above the fit) that is considered another emitter
+     * @param maxIterations The maximum number of iterations for each multi-emitter fit
+     * @return The FitResult of the emitter nearest the center of the spot in GaussianFit indices, 
+     *         or null if no additional emitter was accepted (the single fit stands)
+     */
+    public FitResult refine( short[] pixels, int width, int height, double[] singleParams,
+                                double minPeak, int maxIterations ) {
+        numEmitters_ = 1;
+        accepted_[0] = singleParams[GaussianFit.BGR];
+        accepted_[1 + BLOCK_INT] = singleParams[GaussianFit.INT];
+        accepted_[1 + BLOCK_XC] = singleParams[GaussianFit.XC];
+        accepted_[1 + BLOCK_YC] = singleParams[GaussianFit.YC];
+        accepted_[1 + BLOCK_S] = Math.abs( singleParams[GaussianFit.S] );
+        double acceptedChiSqr = chiSquare( pixels, width, height, accepted_, 1 );
+        double acceptedRSS = acceptedChiSqr;
+        int totalIterations = 0;
+        boolean converged = true;
+        int numPixels = width * height;
+
+        while( numEmitters_ < MAX_EMITTERS ) {
+            int peakIdx = findResidualPeak( pixels, width, height, accepted_, numEmitters_, minPeak );
+            if( peakIdx < 0 ) {
+                break;
+            }
+            //Seed the new emitter at the residual peak with the width of the first emitter
+            int numEmitters = numEmitters_ + 1;
+            int numParams = 1 + BLOCK_SIZE * numEmitters;
+            System.arraycopy( accepted_, 0, params_, 0, numParams - BLOCK_SIZE );
+            int block = numParams - BLOCK_SIZE;
+            params_[block + BLOCK_INT] = (pixels[peakIdx] & 0xffff) - modelValue( accepted_, numEmitters_,
+                                                                                   peakIdx % width, peakIdx / width );
+            params_[block + BLOCK_XC] = peakIdx % width;
+            params_[block + BLOCK_YC] = peakIdx / width;
+            params_[block + BLOCK_S] = accepted_[1 + BLOCK_S];
+
+            double chiSqr = fit( pixels, width, height, numEmitters, maxIterations );
+            totalIterations += lastIterations_;
+            //Residual variance of the larger model
+            double variance = chiSqr / Math.max( 1, numPixels - numParams );
+            if( Double.isNaN( chiSqr ) || !isPlausible( params_, numEmitters, width, height )
+                    || acceptedChiSqr - chiSqr < MIN_IMPROVEMENT_PER_PARAM * BLOCK_SIZE * variance ) {
+                break;
+            }
+            System.arraycopy( params_, 0, accepted_, 0, numParams );
+            numEmitters_ = numEmitters;
+            acceptedChiSqr = chiSqr;
+            acceptedRSS = residualSumSqr_;
+            converged = converged_;
+        }
+
+        if( numEmitters_ == 1 ) {
+            return null;
+        }
+
+        //The spot was centered on the maximum it was produced for
+        int primary = 0;
+        double minDist = Double.POSITIVE_INFINITY;
+        for( int k = 0; k < numEmitters_; ++k ) {
+            int block = 1 + BLOCK_SIZE * k;
+            double dx = accepted_[block + BLOCK_XC] - width / 2;
+            double dy = accepted_[block + BLOCK_YC] - height / 2;
+            if( dx * dx + dy * dy < minDist ) {
+                minDist = dx * dx + dy * dy;
+                primary = k;
+            }
+        }
+        int block = 1 + BLOCK_SIZE * primary;
+        double[] paramsOut = new double[5];
+        paramsOut[GaussianFit.INT] = accepted_[block + BLOCK_INT];
+        paramsOut[GaussianFit.BGR] = accepted_[0];
+        paramsOut[GaussianFit.XC] = accepted_[block + BLOCK_XC];
+        paramsOut[GaussianFit.YC] = accepted_[block + BLOCK_YC];
+        paramsOut[GaussianFit.S] = Math.abs( accepted_[block + BLOCK_S] );
+        return new FitResult( paramsOut, acceptedChiSqr, Math.sqrt( acceptedRSS / numPixels ),
+                                totalIterations, converged );
+    }
+
+    /**
+     * Gets the Number of Gaussians accepted by the last refine()
+     *
+     * @return The number of emitters (1 if the single fit stood)
+     */
+    public int getNumEmitters() {
+        return numEmitters_;
+    }
+
+    /**
+     * Gets the Parameters of one of the emitters accepted by the last refine()
+     *
+     * @param emitter The index of the emitter (0 is the emitter of the single fit)
+     * @return [ INT, BGR, XC, YC, S ] in GaussianFit indices
+     */
+    public double[] getEmitterParameters( int emitter ) {
+        int block = 1 + BLOCK_SIZE * emitter;
+        return new double[] { accepted_[block + BLOCK_INT], accepted_[0], accepted_[block + BLOCK_XC],
+                                accepted_[block + BLOCK_YC], Math.abs( accepted_[block + BLOCK_S] ) };
+    }
+
+    /**
+     * Finds the largest positive residual that is more than one sigma from every fit emitter
+     *
+     * @return The pixel index of the peak, or -1 if no residual is above minPeak
+     */
+    private int findResidualPeak( short[] pixels, int width, int height, double[] params,
+                                    int numEmitters, double minPeak ) {
+        int peakIdx = -1;
+        double peak = minPeak;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double residual = (pixels[idx] & 0xffff) - modelValue( params, numEmitters, x, y );
+                if( residual <= peak ) {
+                    continue;
+                }
+                boolean separate = true;
+                for( int k = 0; k < numEmitters && separate; ++k ) {
+                    int block = 1 + BLOCK_SIZE * k;
+                    double dx = x - params[block + BLOCK_XC];
+                    double dy = y - params[block + BLOCK_YC];
+                    double s = params[block + BLOCK_S];
+                    separate = dx * dx + dy * dy > s * s;
+                }
+                if( separate ) {
+                    peak = residual;
+                    peakIdx = idx;
+                }
+            }
+        }
+        return peakIdx;
+    }
+
+    /**
+     * Rejects fits where an emitter has moved outside of the box, has a non-positive
+     * amplitude, or has collapsed onto another emitter
+     */
+    private boolean isPlausible( double[] params, int numEmitters, int width, int height ) {
+        for( int k = 0; k < numEmitters; ++k ) {
+            int block = 1 + BLOCK_SIZE * k;
+            double xC = params[block + BLOCK_XC];
+            double yC = params[block + BLOCK_YC];
+            double s = Math.abs( params[block + BLOCK_S] );
+            if( !(params[block + BLOCK_INT] > 0) || xC < -.5 || yC < -.5
+                    || xC > width - .5 || yC > height - .5 || s < .3 || s > width ) {
+                return false;
+            }
+            for( int j = 0; j < k; ++j ) {
+                int other = 1 + BLOCK_SIZE * j;
+                double dx = xC - params[other + BLOCK_XC];
+                double dy = yC - params[other + BLOCK_YC];
+                if( dx * dx + dy * dy < .25 * s * s ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private double modelValue( double[] params, int numEmitters, int x, int y ) {
+        double value = params[0];
+        for( int k = 0; k < numEmitters; ++k ) {
+            int block = 1 + BLOCK_SIZE * k;
+            double dx = x - params[block + BLOCK_XC];
+            double dy = y - params[block + BLOCK_YC];
+            double s = params[block + BLOCK_S];
+            double r2 = dx * dx + dy * dy;
+            if( r2 < CUTOFF_SIGMAS * CUTOFF_SIGMAS * s * s ) {
+                value += params[block + BLOCK_INT] * Math.exp( -.5 * r2 / (s * s) );
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Runs Levenberg-Marquardt on params_ with the given number of emitters
+     *
+     * @return The final chi-square (NaN if the fit diverged)
+     */
+    private double fit( short[] pixels, int width, int height, int numEmitters, int maxIterations ) {
+        final int numParams = 1 + BLOCK_SIZE * numEmitters;
+        double lambda = INITIAL_LAMBDA;
+        double chiSqr = buildNormalEquations( pixels, width, height, params_, numEmitters );
+        lastIterations_ = 0;
+        converged_ = false;
+
+        while( lastIterations_ < maxIterations ) {
+            ++lastIterations_;
+            if( Double.isNaN( chiSqr ) || Double.isInfinite( chiSqr ) ) {
+                return Double.NaN;
+            }
+
+            //Search for a step that reduces chi-square, increasing damping on rejection
+            double trialChiSqr = Double.POSITIVE_INFINITY;
+            while( lambda < MAX_LAMBDA ) {
+                if( solveDamped( lambda, numParams ) ) {
+                    for( int k = 0; k < numParams; ++k ) {
+                        trial_[k] = params_[k] + delta_[k];
+                    }
+                    trialChiSqr = chiSquare( pixels, width, height, trial_, numEmitters );
+                    if( trialChiSqr < chiSqr ) {
+                        break;
+                    }
+                }
+                lambda *= LAMBDA_INCREASE;
+            }
+            if( lambda >= MAX_LAMBDA ) {
+                //No downhill step is possible from here, current parameters are the minimum
+                converged_ = true;
+                break;
+            }
+
+            System.arraycopy( trial_, 0, params_, 0, numParams );
+            lambda *= LAMBDA_DECREASE;
+            converged_ = (chiSqr - trialChiSqr) <= CHI_SQR_TOLERANCE * chiSqr;
+            chiSqr = buildNormalEquations( pixels, width, height, params_, numEmitters );
+            if( converged_ ) {
+                break;
+            }
+        }
+        if( Double.isInfinite( chiSqr ) ) {
+            return Double.NaN;
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Accumulates the upper triangle of J^T*J and J^T*r.  For each pixel only the blocks 
+     * of emitters within CUTOFF_SIGMAS (and the shared background) are touched.
+     *
+     * @return The chi-square of the current parameters
+     */
+    private double buildNormalEquations( short[] pixels, int width, int height,
+                                            double[] params, int numEmitters ) {
+        final int n = 1 + BLOCK_SIZE * numEmitters;
+        final double[] jtj = jtj_;
+        final double[] jtr = jtr_;
+        for( int i = 0; i < n * n; ++i ) {
+            jtj[i] = 0;
+        }
+        for( int i = 0; i < n; ++i ) {
+            jtr[i] = 0;
+        }
+
+        double chiSqr = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double model = params[0];
+                for( int k = 0; k < numEmitters; ++k ) {
+                    int block = 1 + BLOCK_SIZE * k;
+                    double a = params[block + BLOCK_INT];
+                    double s = params[block + BLOCK_S];
+                    double dx = x - params[block + BLOCK_XC];
+                    double dy = y - params[block + BLOCK_YC];
+                    double r2 = dx * dx + dy * dy;
+                    double invSSqr = 1.0 / (s * s);
+                    active_[k] = r2 * invSSqr < CUTOFF_SIGMAS * CUTOFF_SIGMAS;
+                    if( !active_[k] ) {
+                        continue;
+                    }
+                    double e = Math.exp( -.5 * r2 * invSSqr );
+                    double q = a * e;
+                    model += q;
+                    double[] row = rows_[k];
+                    row[BLOCK_INT] = e;
+                    row[BLOCK_XC] = dx * q * invSSqr;
+                    row[BLOCK_YC] = dy * q * invSSqr;
+                    row[BLOCK_S] = r2 * q * invSSqr / s;
+                }
+
+                double residual = (pixels[idx] & 0xffff) - model;
+                chiSqr += residual * residual;
+                //Shared Background Row (derivative 1)
+                jtr[0] += residual;
+                jtj[0] += 1;
+                for( int k = 0; k < numEmitters; ++k ) {
+                    if( !active_[k] ) {
+                        continue;
+                    }
+                    final double[] rowK = rows_[k];
+                    final int blockK = 1 + BLOCK_SIZE * k;
+                    for( int i = 0; i < BLOCK_SIZE; ++i ) {
+                        final int p = blockK + i;
+                        final double ri = rowK[i];
+                        jtr[p] += ri * residual;
+                        jtj[p] += ri;
+                        final int off = p * n;
+                        //Diagonal Block
+                        for( int j = i; j < BLOCK_SIZE; ++j ) {
+                            jtj[off + blockK + j] += ri * rowK[j];
+                        }
+                        //Off-Diagonal Blocks of overlapping emitters
+                        for( int m = k + 1; m < numEmitters; ++m ) {
+                            if( !active_[m] ) {
+                                continue;
+                            }
+                            final double[] rowM = rows_[m];
+                            final int blockM = 1 + BLOCK_SIZE * m;
+                            for( int j = 0; j < BLOCK_SIZE; ++j ) {
+                                jtj[off + blockM + j] += ri * rowM[j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        residualSumSqr_ = chiSqr;
+        return chiSqr;
+    }
+
+    /**
+     * Computes chi-square only (no derivatives) for a trial set of parameters
+     */
+    private double chiSquare( short[] pixels, int width, int height, double[] params, int numEmitters ) {
+        double chiSqr = 0;
+        int idx = 0;
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x, ++idx ) {
+                double residual = (pixels[idx] & 0xffff) - modelValue( params, numEmitters, x, y );
+                chiSqr += residual * residual;
+            }
+        }
+        return chiSqr;
+    }
+
+    /**
+     * Solves (J^T*J + lambda*diag(J^T*J)) * delta = J^T*r in place by Cholesky
+     * decomposition into system_ and stores the step in delta_.
+     *
+     * @param lambda The current damping factor
+     * @param n The number of parameters in use
+     * @return <code>false</code> if the damped system was not positive definite
+     */
+    private boolean solveDamped( double lambda, int n ) {
+        final double[] l = system_;
+        //Copy the upper triangle into the lower triangle of the working system, with damping
+        for( int j = 0; j < n; ++j ) {
+            for( int k = 0; k <= j; ++k ) {
+                l[j * n + k] = jtj_[k * n + j];
+            }
+            l[j * n + j] *= (1 + lambda);
+        }
+
+        //Cholesky Decomposition (L stored in lower triangle)
+        for( int j = 0; j < n; ++j ) {
+            double sum = l[j * n + j];
+            for( int k = 0; k < j; ++k ) {
+                sum -= l[j * n + k] * l[j * n + k];
+            }
+            if( sum <= 0 || Double.isNaN( sum ) ) {
+                return false;
+            }
+            double diag = Math.sqrt( sum );
+            l[j * n + j] = diag;
+            for( int i = j + 1; i < n; ++i ) {
+                double s = l[i * n + j];
+                for( int k = 0; k < j; ++k ) {
+                    s -= l[i * n + k] * l[j * n + k];
+                }
+                l[i * n + j] = s / diag;
+            }
+        }
+
+        //Forward Substitution (L*z = J^T*r)
+        for( int i = 0; i < n; ++i ) {
+            double s = jtr_[i];
+            for( int k = 0; k < i; ++k ) {
+                s -= l[i * n + k] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        //Back Substitution (L^T*delta = z)
+        for( int i = n - 1; i >= 0; --i ) {
+            double s = delta_[i];
+            for( int k = i + 1; k < n; ++k ) {
+                s -= l[k * n + i] * delta_[k];
+            }
+            delta_[i] = s / l[i * n + i];
+        }
+        return true;
+    }
+
+}
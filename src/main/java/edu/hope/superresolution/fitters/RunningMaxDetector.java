@@ -0,0 +1,284 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ *  Local Maxima Detector using a running maximum (van Herk/Gil-Werman) dilation.
+ * <p>
+ *  The (2n+1) x (2n+1) maximum of every pixel is computed with a horizontal and then a vertical
+ *  running maximum.  Each pass takes 3 comparisons per pixel regardless of n, so the cost of
+ *  detection does not grow with the suppression radius.  A pixel is a local maximum if it is
+ *  equal to its dilated value and no pixel before it (in row order) in its neighborhood has
+ *  the same value, so that a plateau reports only one maximum.  Unlike the block search of
+ *  FindLocalMaxima.FindMax(), every maximum of a neighborhood is found, not just one per block.
+ * <p>
+ *  Values are compared as ints (float values are mapped to ints of the same order), since
+ *  an int maximum does not branch.  Pixels outside of the image are ignored.  All scratch
+ *  arrays only grow and are kept between calls, so a detector should be owned by a single thread.
+ *
+ * @see FindLocalMaxima.DetectorType
+ *
+ * @author Justin Hanselman
+ */
+public class RunningMaxDetector {
+
+    //Scratch Buffers
+    private int[] values_ = new int[0];
+    private int[] rowMax_ = new int[0];
+    private int[] dilated_ = new int[0];
+    private int[] prefix_ = new int[0];
+    private int[] suffix_ = new int[0];
+    private int[] padded_ = new int[0];
+    private int[] rowPrefix_ = new int[0];
+    private int[] rowSuffix_ = new int[0];
+
+    public RunningMaxDetector() {
+    }
+
+    /**
+     *  Maps a float to an int such that the order of all non-NaN floats is kept
+     *
+     * @param value The float value
+     * @return The ordered int
+     */
+    static int toOrderedInt( float value ) {
+        int bits = Float.floatToRawIntBits( value );
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /**
+     *  Finds the local maxima within the roi of an image
+     *
+     * @param iProc The image to search
+     * @param roi The region of iProc to search (must lie within the image)
+     * @param n The minimum distance to another local maximum
+     * @param noThreshold Whether every local maximum is accepted regardless of the threshold
+     * @param threshold The value that a maximum must exceed
+     * @param maxima The Polygon to add the maxima to
+     */
+    public void findMaxima( ImageProcessor iProc, Rectangle roi, int n, boolean noThreshold,
+                            int threshold, Polygon maxima ) {
+        //Only the roi and the neighborhoods of its pixels are needed
+        Rectangle region = new Rectangle( roi.x - n, roi.y - n, roi.width + 2 * n, roi.height + 2 * n )
+                .intersection( new Rectangle( 0, 0, iProc.getWidth(), iProc.getHeight() ) );
+        values_ = ensureCapacity( values_, region.width * region.height );
+        boolean isFloat = copyRegion( iProc, region );
+        Rectangle regionRoi = new Rectangle( roi.x - region.x, roi.y - region.y, roi.width, roi.height );
+        findMaxima( region.width, region.height, regionRoi, n, noThreshold,
+                    isFloat ? toOrderedInt( threshold ) : threshold, region.x, region.y, maxima );
+    }
+
+    /**
+     *  Finds the local maxima within the roi of a float image.  Values beyond the
+     *  array are treated as outside of the image.
+     *
+     * @param values The row-major pixel values
+     * @param width The width of the image in values
+     * @param height The height of the image in values
+     * @param roi The region of values to search
+     * @param n The minimum distance to another local maximum
+     * @param noThreshold Whether every local maximum is accepted regardless of the threshold
+     * @param threshold The value that a maximum must exceed
+     * @param xOffset Added to the x coordinate of each maximum
+     * @param yOffset Added to the y coordinate of each maximum
+     * @param maxima The Polygon to add the maxima to
+     */
+    public void findMaxima( float[] values, int width, int height, Rectangle roi, int n,
+                            boolean noThreshold, int threshold, int xOffset, int yOffset, Polygon maxima ) {
+        int size = width * height;
+        values_ = ensureCapacity( values_, size );
+        for( int i = 0; i < size; ++i ) {
+            values_[i] = toOrderedInt( values[i] );
+        }
+        findMaxima( width, height, roi, n, noThreshold, toOrderedInt( threshold ), xOffset, yOffset, maxima );
+    }
+
+    /**
+     *  Finds the local maxima of values_
+     */
+    private void findMaxima( int width, int height, Rectangle roi, int n, boolean noThreshold,
+                             int threshold, int xOffset, int yOffset, Polygon maxima ) {
+        dilate( width, height, n );
+        int[] values = values_;
+        int[] dilated = dilated_;
+        int xEnd = Math.min( roi.x + roi.width, width );
+        int yEnd = Math.min( roi.y + roi.height, height );
+        for( int y = Math.max( roi.y, 0 ); y < yEnd; ++y ) {
+            int offset = y * width;
+            for( int x = Math.max( roi.x, 0 ); x < xEnd; ++x ) {
+                int value = values[ offset + x ];
+                if( value == dilated[ offset + x ] && (noThreshold || value > threshold)
+                        && !hasEarlierTie( values, width, x, y, n, value ) ) {
+                    maxima.addPoint( x + xOffset, y + yOffset );
+                }
+            }
+        }
+    }
+
+    /**
+     *  Checks the neighborhood of a maximum for an equal pixel that precedes it in row order
+     */
+    private static boolean hasEarlierTie( int[] values, int width, int x, int y, int n, int value ) {
+        int x0 = Math.max( x - n, 0 );
+        int x1 = Math.min( x + n, width - 1 );
+        for( int y2 = Math.max( y - n, 0 ); y2 <= y; ++y2 ) {
+            int offset = y2 * width;
+            int xLast = (y2 == y) ? x - 1 : x1;
+            for( int x2 = x0; x2 <= xLast; ++x2 ) {
+                if( values[ offset + x2 ] == value ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Fills dilated_ with the (2n+1) x (2n+1) maximum of each of values_
+     */
+    private void dilate( int width, int height, int n ) {
+        int size = width * height;
+        rowMax_ = ensureCapacity( rowMax_, size );
+        dilated_ = ensureCapacity( dilated_, size );
+        horizontalMax( values_, width, height, n, rowMax_ );
+        verticalMax( rowMax_, width, height, n, dilated_ );
+    }
+
+    /**
+     *  Running maximum of 2n+1 columns.  Each row is padded by n on both sides and split
+     *  into blocks of 2n+1, so that the maximum of padded columns [x, x + 2n] is the maximum
+     *  of the suffix of one block at x and the prefix of the next block at x + 2n.
+     */
+    private void horizontalMax( int[] values, int width, int height, int n, int[] result ) {
+        int window = 2 * n + 1;
+        int paddedWidth = width + 2 * n;
+        padded_ = ensureCapacity( padded_, paddedWidth );
+        rowPrefix_ = ensureCapacity( rowPrefix_, paddedWidth );
+        rowSuffix_ = ensureCapacity( rowSuffix_, paddedWidth );
+        int[] padded = padded_;
+        int[] prefix = rowPrefix_;
+        int[] suffix = rowSuffix_;
+        Arrays.fill( padded, 0, n, Integer.MIN_VALUE );
+        Arrays.fill( padded, n + width, paddedWidth, Integer.MIN_VALUE );
+        for( int y = 0; y < height; ++y ) {
+            int offset = y * width;
+            System.arraycopy( values, offset, padded, n, width );
+            for( int start = 0; start < paddedWidth; start += window ) {
+                int end = Math.min( start + window, paddedWidth );
+                int max = Integer.MIN_VALUE;
+                for( int k = start; k < end; ++k ) {
+                    max = Math.max( max, padded[k] );
+                    prefix[k] = max;
+                }
+                max = Integer.MIN_VALUE;
+                for( int k = end - 1; k >= start; --k ) {
+                    max = Math.max( max, padded[k] );
+                    suffix[k] = max;
+                }
+            }
+            for( int x = 0; x < width; ++x ) {
+                result[ offset + x ] = Math.max( suffix[x], prefix[x + 2 * n] );
+            }
+        }
+    }
+
+    /**
+     *  Running maximum of 2n+1 rows, as horizontalMax() but a whole row at a time
+     */
+    private void verticalMax( int[] values, int width, int height, int n, int[] result ) {
+        int window = 2 * n + 1;
+        int paddedHeight = height + 2 * n;
+        prefix_ = ensureCapacity( prefix_, paddedHeight * width );
+        suffix_ = ensureCapacity( suffix_, paddedHeight * width );
+        int[] prefix = prefix_;
+        int[] suffix = suffix_;
+        for( int start = 0; start < paddedHeight; start += window ) {
+            int end = Math.min( start + window, paddedHeight );
+            for( int k = start; k < end; ++k ) {
+                runningMaxRow( values, width, height, k - n, k * width, k == start, -width, prefix );
+            }
+            for( int k = end - 1; k >= start; --k ) {
+                runningMaxRow( values, width, height, k - n, k * width, k == end - 1, width, suffix );
+            }
+        }
+        for( int y = 0; y < height; ++y ) {
+            int offset = y * width;
+            int prefixOffset = (y + 2 * n) * width;
+            for( int x = 0; x < width; ++x ) {
+                result[ offset + x ] = Math.max( suffix[ offset + x ], prefix[ prefixOffset + x ] );
+            }
+        }
+    }
+
+    /**
+     *  Sets a row of a prefix or suffix to the maximum of row y of values and the
+     *  neighboring row of the block (at offset + step), or to row y if it starts the block
+     */
+    private static void runningMaxRow( int[] values, int width, int height, int y, int offset,
+                                       boolean first, int step, int[] running ) {
+        if( y < 0 || y >= height ) {
+            //Padded rows are outside of the image
+            if( first ) {
+                Arrays.fill( running, offset, offset + width, Integer.MIN_VALUE );
+            } else {
+                System.arraycopy( running, offset + step, running, offset, width );
+            }
+        } else if( first ) {
+            System.arraycopy( values, y * width, running, offset, width );
+        } else {
+            int rowOffset = y * width;
+            int neighborOffset = offset + step;
+            for( int x = 0; x < width; ++x ) {
+                running[ offset + x ] = Math.max( running[ neighborOffset + x ], values[ rowOffset + x ] );
+            }
+        }
+    }
+
+    private static int[] ensureCapacity( int[] buffer, int size ) {
+        return (buffer.length >= size) ? buffer : new int[ size ];
+    }
+
+    /**
+     *  Copies a region of the image into values_ (getPixel() for non 8, 16 or 32-bit images)
+     *
+     * @return <code>true</code> if the values were mapped from floats
+     */
+    private boolean copyRegion( ImageProcessor iProc, Rectangle region ) {
+        int width = iProc.getWidth();
+        Object pixels = iProc.getPixels();
+        for( int y = 0; y < region.height; ++y ) {
+            int row = (region.y + y) * width + region.x;
+            int offset = y * region.width;
+            if( pixels instanceof short[] ) {
+                short[] shortPixels = (short[]) pixels;
+                for( int x = 0; x < region.width; ++x ) {
+                    values_[ offset + x ] = shortPixels[ row + x ] & 0xffff;
+                }
+            } else if( pixels instanceof byte[] ) {
+                byte[] bytePixels = (byte[]) pixels;
+                for( int x = 0; x < region.width; ++x ) {
+                    values_[ offset + x ] = bytePixels[ row + x ] & 0xff;
+                }
+            } else if( pixels instanceof float[] ) {
+                float[] floatPixels = (float[]) pixels;
+                for( int x = 0; x < region.width; ++x ) {
+                    values_[ offset + x ] = toOrderedInt( floatPixels[ row + x ] );
+                }
+            } else {
+                for( int x = 0; x < region.width; ++x ) {
+                    values_[ offset + x ] = iProc.getPixel( region.x + x, region.y + y );
+                }
+            }
+        }
+        return pixels instanceof float[];
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+
+/**
+ *  Read-only View of a box of a frame's pixels, used in place of the ImageProcessor
+ *  that SpotData.getSpotProcessor() crops for every candidate.
+ * <p>
+ *  The view keeps the frame's pixel array (not its ImageProcessor) with the origin
+ *  and size of the box, so creating one copies no pixels and changes no Roi on the
+ *  frame.  It may be created and read from any thread without a lock.  Fitters
+ *  in this package read the box directly from getShortPixels() at getOffset() with
+ *  rows getStride() apart; anything else may ask for a copy with toProcessor().
+ * <p>
+ *  The frame's pixels must not be modified while the view is in use.  Stacks keep
+ *  each slice in its own array, so moving an ImagePlus to another slice does not
+ *  affect views of the previous one.  Images that are not 8, 16 or 32-bit are copied
+ *  into a float array on creation.
+ *
+ * @see SpotViewData
+ *
+ * @author Justin Hanselman
+ */
+public class SpotView {
+
+    private final Object pixels_;
+    private final int stride_;
+    private final int offset_;
+    private final int x_;
+    private final int y_;
+    private final int width_;
+    private final int height_;
+
+    private SpotView( Object pixels, int stride, int offset, int x, int y, int width, int height ) {
+        pixels_ = pixels;
+        stride_ = stride;
+        offset_ = offset;
+        x_ = x;
+        y_ = y;
+        width_ = width;
+        height_ = height;
+    }
+
+    /**
+     *  Creates a View of the box that SpotData.getSpotProcessor( frame, halfSize, x, y )
+     *  would crop.  As with the crop, the box is clipped to the frame.
+     *
+     * @param frame The frame containing the spot
+     * @param halfSize The half size of the box
+     * @param x The center x of the box (pixels)
+     * @param y The center y of the box (pixels)
+     * @return The view, or null if the box does not overlap the frame
+     */
+    public static SpotView create( ImageProcessor frame, int halfSize, int x, int y ) {
+        return create( frame, new Rectangle( x - halfSize, y - halfSize, 2 * halfSize, 2 * halfSize ) );
+    }
+
+    /**
+     *  Creates a View of a box of the frame, clipped to the frame
+     *
+     * @param frame The frame containing the box
+     * @param bounds The box (frame pixel coordinates)
+     * @return The view, or null if the box does not overlap the frame
+     */
+    public static SpotView create( ImageProcessor frame, Rectangle bounds ) {
+        Rectangle box = bounds.intersection( new Rectangle( 0, 0, frame.getWidth(), frame.getHeight() ) );
+        if( box.isEmpty() ) {
+            return null;
+        }
+        Object pixels = frame.getPixels();
+        if( pixels instanceof short[] || pixels instanceof byte[] || pixels instanceof float[] ) {
+            int stride = frame.getWidth();
+            return new SpotView( pixels, stride, box.y * stride + box.x, box.x, box.y, box.width, box.height );
+        }
+        float[] copy = new float[ box.width * box.height ];
+        for( int j = 0; j < box.height; ++j ) {
+            for( int i = 0; i < box.width; ++i ) {
+                copy[ j * box.width + i ] = frame.getPixelValue( box.x + i, box.y + j );
+            }
+        }
+        //The copy holds only the box, but the view still reports where the box is in the frame
+        return new SpotView( copy, box.width, 0, box.x, box.y, box.width, box.height );
+    }
+
+    /**
+     *  Gets the x of the box's left column in the frame
+     */
+    public int getX() {
+        return x_;
+    }
+
+    /**
+     *  Gets the y of the box's top row in the frame
+     */
+    public int getY() {
+        return y_;
+    }
+
+    public int getWidth() {
+        return width_;
+    }
+
+    public int getHeight() {
+        return height_;
+    }
+
+    /**
+     *  Gets the frame's 16-bit pixel array
+     *
+     * @return The pixels of the whole frame, or null if the frame is not 16-bit
+     */
+    public short[] getShortPixels() {
+        return (pixels_ instanceof short[]) ? (short[]) pixels_ : null;
+    }
+
+    /**
+     *  Gets the index of the box's top-left pixel in the pixel array
+     */
+    public int getOffset() {
+        return offset_;
+    }
+
+    /**
+     *  Gets the distance between rows of the box in the pixel array
+     */
+    public int getStride() {
+        return stride_;
+    }
+
+    /**
+     *  Gets the value of a pixel of the box (as ImageProcessor.getPixelValue())
+     *
+     * @param x The column in the box
+     * @param y The row in the box
+     * @return The pixel value
+     */
+    public float getPixelValue( int x, int y ) {
+        int idx = getOffset() + y * stride_ + x;
+        if( pixels_ instanceof short[] ) {
+            return ((short[]) pixels_)[idx] & 0xffff;
+        } else if( pixels_ instanceof byte[] ) {
+            return ((byte[]) pixels_)[idx] & 0xff;
+        }
+        return ((float[]) pixels_)[idx];
+    }
+
+    /**
+     *  Copies the box into its own ImageProcessor, for code that needs one
+     *
+     * @return A new ImageProcessor of the box's size and pixel type
+     */
+    public ImageProcessor toProcessor() {
+        int offset = getOffset();
+        if( pixels_ instanceof short[] ) {
+            short[] copy = new short[ width_ * height_ ];
+            for( int j = 0; j < height_; ++j ) {
+                System.arraycopy( pixels_, offset + j * stride_, copy, j * width_, width_ );
+            }
+            return new ShortProcessor( width_, height_, copy, null );
+        } else if( pixels_ instanceof byte[] ) {
+            byte[] copy = new byte[ width_ * height_ ];
+            for( int j = 0; j < height_; ++j ) {
+                System.arraycopy( pixels_, offset + j * stride_, copy, j * width_, width_ );
+            }
+            return new ByteProcessor( width_, height_, copy, null );
+        }
+        float[] copy = new float[ width_ * height_ ];
+        for( int j = 0; j < height_; ++j ) {
+            System.arraycopy( pixels_, offset + j * stride_, copy, j * width_, width_ );
+        }
+        return new FloatProcessor( width_, height_, copy, null );
+    }
+
+}
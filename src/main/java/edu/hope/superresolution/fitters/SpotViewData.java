@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.valelab.gaussianfit.data.SpotData;
+import ij.process.ImageProcessor;
+
+/**
+ *  SpotData whose spot image is a SpotView of the frame instead of a cropped ImageProcessor.
+ * <p>
+ *  FitStackThreads that can read the view (see getSpotView()) fit it without a copy.
+ *  Others still call getImageProcessor(), which copies the view once on the calling
+ *  (fitting) thread and keeps the copy.
+ *
+ * @see SpotView
+ *
+ * @author Justin Hanselman
+ */
+public class SpotViewData extends SpotData {
+
+    private final SpotView spotView_;
+
+    /**
+     *  Constructor - Arguments as SpotData, with the spot image as a view
+     *
+     * @param spotView The view of the spot image in its frame
+     */
+    public SpotViewData( SpotView spotView, int channel, int slice, int frame,
+                         int position, int nr, int x, int y ) {
+        super( null, channel, slice, frame, position, nr, x, y );
+        spotView_ = spotView;
+    }
+
+    public SpotView getSpotView() {
+        return spotView_;
+    }
+
+    /**
+     *  Gets a copy of the spot image, made from the view on first use
+     *
+     * @return The spot image as its own ImageProcessor
+     */
+    @Override
+    public ImageProcessor getImageProcessor() {
+        ImageProcessor ip = super.getImageProcessor();
+        if( ip == null ) {
+            ip = spotView_.toProcessor();
+            setImageProcessor( ip );
+        }
+        return ip;
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+/**
+ *  Summed-Area Tables (integral images) of the pixel values and of their first moments
+ *  in x and y over a region of an image.
+ * <p>
+ *  After one pass over the region, the sum, border sum and centroid of any box within it
+ *  are a constant number of lookups.  This is intended to be built once per frame over
+ *  the fit roi so that every spot produced from the frame shares it (see
+ *  ImageRegionFitThreadTest#addMomentEstimate()).
+ * <p>
+ *  Values are summed as longs: 16 and 8-bit pixels are exact, other pixel types are rounded
+ *  from getPixelValue().  The tables only grow and are kept between builds, so a table
+ *  should be owned by a single thread.
+ *
+ * @see MomentEstimateFitProcess
+ *
+ * @author Justin Hanselman
+ */
+public class SummedAreaTable {
+
+    private final Rectangle region_ = new Rectangle();
+    //Tables are (width + 1) x (height + 1) with a leading row and column of 0
+    private int stride_ = 0;
+    private long[] sum_ = new long[0];
+    private long[] xMoment_ = new long[0];
+    private long[] yMoment_ = new long[0];
+
+    public SummedAreaTable() {
+    }
+
+    /**
+     *  Builds the tables for a region of an image
+     *
+     * @param iProc The image
+     * @param region The region to sum (clipped to the image)
+     */
+    public void build( ImageProcessor iProc, Rectangle region ) {
+        region_.setBounds( region.intersection( new Rectangle( 0, 0, iProc.getWidth(), iProc.getHeight() ) ) );
+        if( region_.isEmpty() ) {
+            region_.setBounds( 0, 0, 0, 0 );
+            stride_ = 0;
+            return;
+        }
+        int width = region_.width;
+        int height = region_.height;
+        stride_ = width + 1;
+        int size = stride_ * (height + 1);
+        sum_ = ensureCapacity( sum_, size );
+        xMoment_ = ensureCapacity( xMoment_, size );
+        yMoment_ = ensureCapacity( yMoment_, size );
+        for( int i = 0; i < stride_; ++i ) {
+            sum_[i] = 0;
+            xMoment_[i] = 0;
+            yMoment_[i] = 0;
+        }
+
+        int imageWidth = iProc.getWidth();
+        Object pixels = iProc.getPixels();
+        short[] shortPixels = (pixels instanceof short[]) ? (short[]) pixels : null;
+        byte[] bytePixels = (pixels instanceof byte[]) ? (byte[]) pixels : null;
+        for( int y = 0; y < height; ++y ) {
+            int row = (region_.y + y) * imageWidth + region_.x;
+            int above = y * stride_;
+            int offset = above + stride_;
+            sum_[offset] = 0;
+            xMoment_[offset] = 0;
+            yMoment_[offset] = 0;
+            long rowSum = 0, rowXMoment = 0;
+            for( int x = 0; x < width; ++x ) {
+                long value;
+                if( shortPixels != null ) {
+                    value = shortPixels[ row + x ] & 0xffff;
+                } else if( bytePixels != null ) {
+                    value = bytePixels[ row + x ] & 0xff;
+                } else {
+                    value = Math.round( iProc.getPixelValue( region_.x + x, region_.y + y ) );
+                }
+                rowSum += value;
+                rowXMoment += value * x;
+                sum_[ offset + x + 1 ] = sum_[ above + x + 1 ] + rowSum;
+                xMoment_[ offset + x + 1 ] = xMoment_[ above + x + 1 ] + rowXMoment;
+                yMoment_[ offset + x + 1 ] = yMoment_[ above + x + 1 ] + rowSum * y;
+            }
+        }
+    }
+
+    /**
+     *  Gets the region that was summed by the last build()
+     *
+     * @return A copy of the region (in image coordinates)
+     */
+    public Rectangle getRegion() {
+        return new Rectangle( region_ );
+    }
+
+    /**
+     *  Checks that a box lies within the summed region
+     *
+     * @param x The left of the box (image coordinates)
+     * @param y The top of the box (image coordinates)
+     * @param width The width of the box
+     * @param height The height of the box
+     * @return <code>true</code> if the box may be looked up
+     */
+    public boolean contains( int x, int y, int width, int height ) {
+        return width > 0 && height > 0 && x >= region_.x && y >= region_.y
+                && x + width <= region_.x + region_.width && y + height <= region_.y + region_.height;
+    }
+
+    /**
+     *  Gets the sum of the pixels of a box (see contains())
+     *
+     * @return The sum of the pixel values
+     */
+    public long getSum( int x, int y, int width, int height ) {
+        return lookup( sum_, x, y, width, height );
+    }
+
+    /**
+     *  Gets the sum of the pixels on the outermost rows and columns of a box (see contains())
+     *
+     * @return The sum of the border pixel values
+     */
+    public long getBorderSum( int x, int y, int width, int height ) {
+        long sum = getSum( x, y, width, height );
+        if( width <= 2 || height <= 2 ) {
+            return sum;
+        }
+        return sum - getSum( x + 1, y + 1, width - 2, height - 2 );
+    }
+
+    /**
+     *  Gets the number of pixels on the outermost rows and columns of a box
+     *
+     * @return The number of pixels summed by getBorderSum()
+     */
+    public static int getBorderCount( int width, int height ) {
+        if( width <= 2 || height <= 2 ) {
+            return width * height;
+        }
+        return 2 * (width + height) - 4;
+    }
+
+    /**
+     *  Gets the sum of each pixel value times its column relative to the left of a box (see contains())
+     *
+     * @return The first moment in x about the box's left column
+     */
+    public long getXMoment( int x, int y, int width, int height ) {
+        return lookup( xMoment_, x, y, width, height ) - (x - region_.x) * getSum( x, y, width, height );
+    }
+
+    /**
+     *  Gets the sum of each pixel value times its row relative to the top of a box (see contains())
+     *
+     * @return The first moment in y about the box's top row
+     */
+    public long getYMoment( int x, int y, int width, int height ) {
+        return lookup( yMoment_, x, y, width, height ) - (y - region_.y) * getSum( x, y, width, height );
+    }
+
+    /**
+     *  Box Lookup in a table by inclusion-exclusion of its corners
+     */
+    private long lookup( long[] table, int x, int y, int width, int height ) {
+        int left = x - region_.x;
+        int top = (y - region_.y) * stride_;
+        int bottom = top + height * stride_;
+        return table[ bottom + left + width ] - table[ bottom + left ]
+                - table[ top + left + width ] + table[ top + left ];
+    }
+
+    private static long[] ensureCapacity( long[] buffer, int size ) {
+        return (buffer.length >= size) ? buffer : new long[ size ];
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Parallel Alternative to FindLocalMaxima.FindMax() for large Rois (e.g. full-frame fiducial discovery).
+ * <p>
+ *  The roi is split into bands that are searched concurrently on a shared pool of daemon
+ *  threads (the calling thread searches the first band).  Every band reads the n pixels
+ *  around it (and the prefilter's margin) directly from the image, so no halo has to be
+ *  merged, and the bands are concatenated in the order that the serial search produces them:
+ * <pre>
+ *  BLOCK       - Bands of whole columns of blocks (widths are multiples of 2n+1, aligned to the roi),
+ *                since the block search runs down columns of blocks.
+ *  RUNNING_MAX - Bands of rows, since the running maximum search runs across rows.
+ * </pre>
+ *  The result is identical, point for point, to FindLocalMaxima.FindMax() on the same roi.
+ *  For WAVELET, the noise that snr multiplies is first measured over the whole roi on the
+ *  calling thread (see FindLocalMaxima.getWaveletNoise()), so every band uses the same one.
+ *  Only the pixels of the ImageProcessor are read, so concurrent searches of an image
+ *  need no lock.  Rois too small to split are searched on the calling thread.
+ *
+ * @see FindLocalMaxima
+ *
+ * @author Justin Hanselman
+ */
+public class TiledMaximaFinder {
+
+    //Minimum extent of a band (in pixels) along the split axis
+    public static final int MIN_BAND_SIZE = 64;
+
+    private static final int numThreads_ = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService executor_ = Executors.newFixedThreadPool( numThreads_, new ThreadFactory() {
+        private final AtomicInteger count_ = new AtomicInteger( 0 );
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread thread = new Thread( r, "TiledMaximaFinder-" + count_.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    });
+
+    //Static Utility Class
+    private TiledMaximaFinder() {
+    }
+
+    /**
+     *  Finds local maxima in the Roi of an Image.  Parameters are identical to
+     *  FindLocalMaxima.FindMax().
+     *
+     * @param iProc - ImageProcessor object in which to look for local maxima
+     * @param n - minimum distance to other local maximum
+     * @param snr - The minimum Signal To Noise Ratio Acceptable (to be multiplied by noiseMax and offset from threshold)
+     * @param noiseMax - the maximum anticipated value of the noise from mean
+     * @param threshold - value below which a maximum will be rejected
+     * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+     * @param detectorType - The search for maxima after prefiltering
+     * @return Polygon with maxima
+     *
+     * @see FindLocalMaxima#FindMax(ij.process.ImageProcessor, int, double, int, int, edu.hope.superresolution.fitters.FindLocalMaxima.FilterType, edu.hope.superresolution.fitters.FindLocalMaxima.DetectorType)
+     */
+    public static Polygon findMax( ImageProcessor iProc, int n, double snr, int noiseMax, int threshold,
+                                   FindLocalMaxima.FilterType filterType, FindLocalMaxima.DetectorType detectorType ) {
+        return findMax( iProc, iProc.getRoi(), n, snr, noiseMax, threshold, filterType, detectorType );
+    }
+
+    /**
+     *  Finds local maxima in a region of an Image, without reading or setting the Roi of
+     *  the ImageProcessor (which may be shared by other searches).
+     *
+     * @param iProc - ImageProcessor object in which to look for local maxima
+     * @param roi - The region to search
+     * @param n - minimum distance to other local maximum
+     * @param snr - The minimum Signal To Noise Ratio Acceptable (to be multiplied by noiseMax and offset from threshold)
+     * @param noiseMax - the maximum anticipated value of the noise from mean
+     * @param threshold - value below which a maximum will be rejected
+     * @param filterType - Prefilter the image.  Either none, Gaussian1_5 or Wavelet
+     * @param detectorType - The search for maxima after prefiltering
+     * @return Polygon with maxima
+     *
+     * @see #findMax(ij.process.ImageProcessor, int, double, int, int, edu.hope.superresolution.fitters.FindLocalMaxima.FilterType, edu.hope.superresolution.fitters.FindLocalMaxima.DetectorType)
+     */
+    public static Polygon findMax( ImageProcessor iProc, Rectangle roi, int n, double snr, int noiseMax, int threshold,
+                                   FindLocalMaxima.FilterType filterType, FindLocalMaxima.DetectorType detectorType ) {
+        return findMax( iProc, roi, n, snr, noiseMax, threshold, filterType, detectorType, numThreads_ );
+    }
+
+    /**
+     *  findMax() split into at most maxBands bands, regardless of the number of processors
+     */
+    static Polygon findMax( ImageProcessor iProc, Rectangle roi, int n, double snr, int noiseMax, int threshold,
+                            FindLocalMaxima.FilterType filterType, FindLocalMaxima.DetectorType detectorType,
+                            int maxBands ) {
+        List<Rectangle> bands = createBands( roi, n, detectorType, maxBands );
+        if( bands.size() < 2 ) {
+            return FindLocalMaxima.FindMax( iProc, roi, n, snr, noiseMax, threshold, filterType, detectorType );
+        }
+
+        //Every band is compared to the noise of the whole roi, as the serial search is
+        double waveletNoise = Double.NaN;
+        if( filterType == FindLocalMaxima.FilterType.WAVELET && snr != 0 ) {
+            waveletNoise = FindLocalMaxima.getWaveletNoise( iProc, roi, n );
+        }
+        List<Future<Polygon>> results = new ArrayList<Future<Polygon>>( bands.size() - 1 );
+        for( int i = 1; i < bands.size(); ++i ) {
+            results.add( executor_.submit( new BandSearch( iProc, bands.get(i), n, snr, noiseMax,
+                                                            threshold, filterType, detectorType, waveletNoise ) ) );
+        }
+        Polygon maxima = FindLocalMaxima.FindMax( iProc, bands.get(0), n, snr, noiseMax, threshold,
+                                                  filterType, detectorType, waveletNoise );
+        try {
+            for( Future<Polygon> result : results ) {
+                Polygon bandMaxima = result.get();
+                for( int i = 0; i < bandMaxima.npoints; ++i ) {
+                    maxima.addPoint( bandMaxima.xpoints[i], bandMaxima.ypoints[i] );
+                }
+            }
+        } catch( InterruptedException iex ) {
+            for( Future<Polygon> result : results ) {
+                result.cancel( true );
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Unexpected interruption" );
+        } catch( ExecutionException ex ) {
+            if( ex.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException( ex.getCause() );
+        }
+        return maxima;
+    }
+
+    /**
+     *  Splits a roi into at most maxBands bands of at least MIN_BAND_SIZE that may be
+     *  searched independently and concatenated in order.
+     *
+     * @param roi The roi to split
+     * @param n The minimum distance between local maxima
+     * @param detectorType The detector that will search the bands
+     * @param maxBands The maximum number of bands
+     * @return The bands, in the order of the serial search
+     */
+    static List<Rectangle> createBands( Rectangle roi, int n, FindLocalMaxima.DetectorType detectorType, int maxBands ) {
+        boolean columns = (detectorType == FindLocalMaxima.DetectorType.BLOCK);
+        int extent = columns ? roi.width : roi.height;
+        //Block columns may not be split
+        int unit = columns ? 2 * n + 1 : 1;
+        int numBands = Math.max( 1, Math.min( maxBands, extent / Math.max( MIN_BAND_SIZE, unit ) ) );
+        int bandSize = ((extent / numBands + unit - 1) / unit) * unit;
+
+        List<Rectangle> bands = new ArrayList<Rectangle>( numBands );
+        for( int start = 0; start < extent; start += bandSize ) {
+            int size = Math.min( bandSize, extent - start );
+            if( columns ) {
+                bands.add( new Rectangle( roi.x + start, roi.y, size, roi.height ) );
+            } else {
+                bands.add( new Rectangle( roi.x, roi.y + start, roi.width, size ) );
+            }
+        }
+        return bands;
+    }
+
+    /**
+     *  Search of a single band
+     */
+    private static class BandSearch implements Callable<Polygon> {
+
+        private final ImageProcessor iProc_;
+        private final Rectangle band_;
+        private final int n_;
+        private final double snr_;
+        private final int noiseMax_;
+        private final int threshold_;
+        private final FindLocalMaxima.FilterType filterType_;
+        private final FindLocalMaxima.DetectorType detectorType_;
+        private final double waveletNoise_;
+
+        public BandSearch( ImageProcessor iProc, Rectangle band, int n, double snr, int noiseMax, int threshold,
+                           FindLocalMaxima.FilterType filterType, FindLocalMaxima.DetectorType detectorType,
+                           double waveletNoise ) {
+            iProc_ = iProc;
+            band_ = band;
+            n_ = n;
+            snr_ = snr;
+            noiseMax_ = noiseMax;
+            threshold_ = threshold;
+            filterType_ = filterType;
+            detectorType_ = detectorType;
+            waveletNoise_ = waveletNoise;
+        }
+
+        @Override
+        public Polygon call() {
+            return FindLocalMaxima.FindMax( iProc_, band_, n_, snr_, noiseMax_, threshold_, filterType_, 
+                                            detectorType_, waveletNoise_ );
+        }
+    }
+
+}
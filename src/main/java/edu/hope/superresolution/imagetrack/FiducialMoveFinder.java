@@ -115,32 +115,54 @@ public class FiducialMoveFinder {
         //Shift Traits
         curIP_ = curIP;
         curFAreaProcessor_ = prevFAreas_.get(0).getFiducialAreaProcessor();
-        curFAreaProcessor_.enableAsyncProcessing(false);  //Make Sure that We Are not Async Processing in Constructor
         
         originalSearchAreas_ = new ArrayList< Roi >( prevFAreas_.size() );
-        curFAreas_ = new ArrayList< FiducialArea >( prevFAreas_.size() );
-        //Copy FiducialAreas into curFAreas (First Assumes Same Track Area)
         int numRealAreas = 0;
         for( FiducialArea fArea : prevFAreas ) {
             //This a check for a loss of threshold or spot
            //if ( fArea.getRawSelectedSpot() != null ) {
-                Roi trackArea = fArea.getTrackSearchArea();
-                originalSearchAreas_.add(trackArea);
+                originalSearchAreas_.add(fArea.getTrackSearchArea());
                 if ( !fArea.getRawSelectedSpot().isVirtual() ) {
                     //If Not Virtual, let it affect FailRatio
                     ++numRealAreas;
                 }
-                curFAreas_.add(new FiducialArea(curIP_, trackArea, fArea));
             /*} else {
                 ReportingUtils.showError( "There was a null selected Spot");
             }*/
         }
+        //Copy FiducialAreas into curFAreas (First Assumes Same Track Area)
+        curFAreas_ = searchTrackAreas( prevFAreas_, curIP_ );
         
         endKeyPlacedIndicator_.set(false);
         maxMissingFrames_ = maxMissingFrames;
         
     }
     
+    /**
+     *  Searches a new ImagePlus for the Fiducials of a set of Fiducial Areas.  Each new area 
+     *  is searched in the track search area of its previous area, and all areas of the frame 
+     *  are fit at once.  This is the search of the Tracking Constructor, and blocks until the fits 
+     *  are done (asynchronous processing is turned off on the areas' FiducialAreaProcessor).
+     *  <p>
+     *  The result may be matched later with the Recorrective Constructor, against prevFAreas
+     *  or against areas that were tracked from them (see TrackingPipeline).
+     * 
+     * @param prevFAreas - The Previous Fiducial Areas with selectedSpots to search for in the new ImagePlus
+     * @param curIP - The new ImagePlus to Search
+     * @return The new Fiducial Areas, in the order of prevFAreas
+     */
+    public static List<FiducialArea> searchTrackAreas( List<FiducialArea> prevFAreas, ImagePlus curIP ) {
+        prevFAreas.get(0).getFiducialAreaProcessor().enableAsyncProcessing(false);
+        List< FiducialArea > curFAreas = new ArrayList< FiducialArea >( prevFAreas.size() );
+        for( FiducialArea fArea : prevFAreas ) {
+            //Searched below with the other areas of the frame
+            curFAreas.add(new FiducialArea(curIP, fArea.getTrackSearchArea(), fArea, true));
+        }
+        //Fit all track areas of the frame at once (blocks, since this is not async)
+        FiducialArea.searchAll( curIP, curFAreas );
+        return curFAreas;
+    }
+    
     /*
     *   Returns the matches_ list, a synchronized list
     *   Note, modifying operations on this list should be carefully synchronized
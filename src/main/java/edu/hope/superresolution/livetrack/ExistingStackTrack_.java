@@ -10,6 +10,7 @@ import edu.hope.superresolution.autofocus.FiducialAutoFocus;
 import edu.hope.superresolution.exceptions.NoFiducialException;
 import edu.hope.superresolution.models.FiducialLocationModel;
 import edu.hope.superresolution.models.LocationAcquisitionModel;
+import edu.hope.superresolution.models.TrackingPipeline;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
@@ -56,15 +57,29 @@ public class ExistingStackTrack_ implements PlugInFilter {
                 //Workaround to determine stackDepth
                 int stackSize = imp_.getImageStackSize();
 
-                for( int i = 1; i <= stackSize; i++ ) {
-                    imp_.setSlice(i);
-                    try {
-                        FiducialLocationModel fModel = locAcq_.pushNextFiducialLocationModel(imp_.getProcessor(), true);
-                    } catch(NoFiducialException ex) {
-                        IJMMReportingUtils.showError("Could Not Find a Fiducial!");
-                        
+                //Slices are searched while the previous slice is matched (see TrackingPipeline)
+                TrackingPipeline pipeline = new TrackingPipeline( locAcq_, new TrackingPipeline.TrackCallback() {
+                    @Override
+                    public void onFrameTracked(int frameIdx, FiducialLocationModel locModel) {
                     }
-                    
+
+                    @Override
+                    public void onFrameNotTracked(int frameIdx, Exception ex) {
+                        if( ex instanceof NoFiducialException ) {
+                            IJMMReportingUtils.showError("Could Not Find a Fiducial!");
+                        }
+                    }
+                }, true );
+                pipeline.start();
+                try {
+                    for( int i = 1; i <= stackSize; i++ ) {
+                        //A processor of its own per slice, since slices are still queued when the next is read
+                        pipeline.submitFrame( imp_.getStack().getProcessor(i) );
+                    }
+                    pipeline.finish();
+                } catch( InterruptedException ex ) {
+                    pipeline.stop();
+                    Thread.currentThread().interrupt();
                 }
             } 
         };
@@ -9,6 +9,7 @@ import com.google.common.eventbus.EventBus;
 import edu.hope.superresolution.MMgaussianfitmods.datasubs.BoundedSpotData;
 import edu.hope.superresolution.MMgaussianfitmods.datasubs.ExtendedGaussianInfo;
 import edu.hope.superresolution.Utils.IJMMReportingUtils;
+import edu.hope.superresolution.fitters.BackgroundNoiseModel;
 import edu.hope.superresolution.genericstructures.CopySourceListReference;
 import ij.gui.Roi;
 import java.awt.Color;
@@ -242,6 +243,8 @@ public class FiducialArea extends StateBroadcaster {
     
     private Roi origSelectionArea_ = null;  //This correlates to the original Specified search Area
     private Roi trackSearchArea_ = null; //  This correlates to the searchArea ( typically movement Anticipating)
+    private Roi pendingSearchArea_ = null;  //Search Area of a deferred search, until searchAll()
+    private ExtendedGaussianInfo searchSettings_ = null;  //Track settings of the pending search (null for the processor's)
     //Booleans to indicate the state of the process
     private boolean isChanging_ = false;  //Whether or not FiducialArea is being updated
     private boolean hasChanged_ = false;  //Whether or not it has been updated
@@ -255,6 +258,7 @@ public class FiducialArea extends StateBroadcaster {
     private final Object spotLock_ = new Object();
     
     private final int virtualFrameTrackNumber_;  //whether or not Fiducial Area is the result of a track on a virtual spot
+    private final BackgroundNoiseModel backgroundModel_;  //Background and Noise of the search area (shared along a track)
     
     //Defocus Tracking members
     private double refSigmaNaut_ = 0;  //Gaussian SigmaNaut from referenced in focus plane (this is 0 unless being tracked)
@@ -283,6 +287,7 @@ public class FiducialArea extends StateBroadcaster {
         }
         
         virtualFrameTrackNumber_ = 0;
+        backgroundModel_ = new BackgroundNoiseModel();
         
         setSearchArea(roi);   
     }
@@ -295,10 +300,27 @@ public class FiducialArea extends StateBroadcaster {
     *                        Used for fAreaProcessor and virtualFrameTrackNumber_
     */
     public FiducialArea( ImagePlus ip, Roi roi, FiducialArea baseFArea ) {
+        this( ip, roi, baseFArea, false );
+    }
+    
+    /**
+    *   Modified Copy Constructor - Implied Track, with the search optionally deferred
+    *   @param ip - new ImagePlus meant to be evaluated by new Fiducial Area
+    *   @param roi - new Roi for this Fiducial Area (typically shifted)
+    *   @param baseFArea - Fiducial Area that is used as the previous model in a track
+    *                        Used for fAreaProcessor and virtualFrameTrackNumber_
+    *   @param deferSearch - <code>true</code> to leave the search of roi to searchAll(), so that 
+    *                        all areas of a frame are fit together.  Either way, the track settings
+    *                        are kept with this area instead of being applied to the shared processor.
+    * 
+    *   @see #searchAll(ij.ImagePlus, java.util.List) 
+    */
+    public FiducialArea( ImagePlus ip, Roi roi, FiducialArea baseFArea, boolean deferSearch ) {
         
         //Depending on References, we may want to change the copy
         ip_ = ip;
         fiducialAreaProcessor_ = baseFArea.fiducialAreaProcessor_;
+        backgroundModel_ = baseFArea.backgroundModel_;
         
         //If the base spot was virtual, increment the virtual track number of this
         if( baseFArea.getRawSelectedSpot().isVirtual() ) {
@@ -319,27 +341,43 @@ public class FiducialArea extends StateBroadcaster {
         
                 
         //Update the settings for this track to adjust for intensity decay
-        //This is Not Ideal for Multi-threading (offers some concurrency opportunities for error if expanded on)
-        ExtendedGaussianInfo revertSettings, settings;
+        //Only this area's search uses the track settings, since other searches share the processor
         fiducialAreaProcessor_.lockSettings();
         try {
-            settings = fiducialAreaProcessor_.getCurrentSettings();
+            ExtendedGaussianInfo settings = fiducialAreaProcessor_.getCurrentSettings();
             frameTravelAnticipated_ = settings.getMaxTrackTravel();
-            revertSettings = new ExtendedGaussianInfo(settings);
-            if ( settings.getIntensityThreshold() > selectedSpot_.getMaxIntensity() * .8 ) {
-                settings.setIntensityThreshold( (int) (selectedSpot_.getMaxIntensity() * .8) );
-                ij.IJ.log( " Intensity lowered ");
-            }
+            searchSettings_ = new ExtendedGaussianInfo(settings);
         } finally {
             fiducialAreaProcessor_.unlockSettings();
         }
+        applyTrackSettings( searchSettings_ );
         
-        setSearchArea(roi);
-        //Reset the settings to the regular search Settings
-        fiducialAreaProcessor_.updateCurrentSettings( revertSettings );
+        pendingSearchArea_ = roi;
+        if( !deferSearch ) {
+            //Searched alone, with the track settings of this area
+            searchAll( ip, Collections.singletonList( this ) );
+        }
 
     }
     
+    /**
+     * Adjusts settings for the search of a track from the previous frame's selected spot
+     * 
+     * @param settings - This area's copy of the settings to modify (discarded after the search)
+     */
+    private void applyTrackSettings( ExtendedGaussianInfo settings ) {
+        //Adaptive thresholds follow the background and noise of the track instead
+        if ( !settings.getUseAdaptiveThresholds()
+                && settings.getIntensityThreshold() > selectedSpot_.getMaxIntensity() * .8 ) {
+            settings.setIntensityThreshold( (int) (selectedSpot_.getMaxIntensity() * .8) );
+            ij.IJ.log( " Intensity lowered ");
+        }
+        //Background and noise of the previous frames of this track
+        settings.setBackgroundNoiseModel( backgroundModel_ );
+        //Seed the fits with the previous frame's fit of this fiducial
+        settings.setWarmStartSpot( selectedSpot_ );
+    }
+    
     public int getVirtualFrameTrackNumber() {
         return virtualFrameTrackNumber_;
     }
@@ -397,6 +435,114 @@ public class FiducialArea extends StateBroadcaster {
     //  Returns whether successful or not
     public final boolean setSearchArea( Roi roi ) {
         
+        if( !beginSearch( roi ) ) {
+            return false;
+        }
+        boolean runProcess;
+        
+        imLock_.lock();
+        try {
+          //Gaussian Fit To fiducials
+          //BoundedSpotListAction may be called in Constructor, but will act after items are populated (this should be mitigated)
+          runProcess = fiducialAreaProcessor_.fitRoiForImagePlus( ip_, roi, new BoundedSpotListAction(this)  );       
+        } finally {
+            imLock_.unlock();
+        }
+        
+        endSearch( runProcess );
+        //BoundedSpotListAction is Called to Finish population    
+        return true;
+      
+    }
+    
+    /**
+     * Searches the Fiducial Areas of a frame with a single call to their FiducialAreaProcessor,
+     * so that they are fit at the same time instead of one after another.  Each area is 
+     * searched in its deferred search area (see FiducialArea( ImagePlus, Roi, FiducialArea, boolean )) 
+     * with its track settings, or otherwise in its current selection area, and repopulated 
+     * through its own BoundedSpotListAction.
+     * <p>
+     * Areas that do not share a processor are grouped by processor, and each group is fit with
+     * a single call to its own processor.
+     * 
+     * @param ip - The ImagePlus to search, which becomes the ImagePlus of every area
+     * @param fAreas - The Fiducial Areas of the frame
+     * @return <code>true</code> if any processor started a search
+     * 
+     * @see FiducialAreaProcessor#fitRoisForImagePlus(ij.ImagePlus, java.util.List, java.util.List, java.util.List) 
+     */
+    public static boolean searchAll( ImagePlus ip, List<FiducialArea> fAreas ) {
+        boolean runProcess = false;
+        List<FiducialArea> remaining = new ArrayList<FiducialArea>( fAreas );
+        while( !remaining.isEmpty() ) {
+            FiducialAreaProcessor processor = remaining.get(0).fiducialAreaProcessor_;
+            List<FiducialArea> group = new ArrayList<FiducialArea>( remaining.size() );
+            for( Iterator<FiducialArea> it = remaining.iterator(); it.hasNext(); ) {
+                FiducialArea fArea = it.next();
+                if( fArea.fiducialAreaProcessor_ == processor ) {
+                    group.add( fArea );
+                    it.remove();
+                }
+            }
+            if( searchWithProcessor( ip, processor, group ) ) {
+                runProcess = true;
+            }
+        }
+        return runProcess;
+    }
+    
+    /**
+     * Searches Fiducial Areas that share a FiducialAreaProcessor with a single call to it
+     * (see searchAll())
+     * 
+     * @param ip - The ImagePlus to search, which becomes the ImagePlus of every area
+     * @param processor - The processor of every area
+     * @param fAreas - The Fiducial Areas of the frame that use processor
+     * @return <code>true</code> if the processor started a search
+     */
+    private static boolean searchWithProcessor( ImagePlus ip, FiducialAreaProcessor processor, 
+                                                  List<FiducialArea> fAreas ) {
+        List<FiducialArea> searched = new ArrayList<FiducialArea>( fAreas.size() );
+        List<Roi> rois = new ArrayList<Roi>( fAreas.size() );
+        List<ExtendedGaussianInfo> roiSettings = new ArrayList<ExtendedGaussianInfo>( fAreas.size() );
+        List<ListCallback> callbacks = new ArrayList<ListCallback>( fAreas.size() );
+        for( FiducialArea fArea : fAreas ) {
+            Roi roi;
+            fArea.imLock_.lock();
+            try {
+                fArea.ip_ = ip;
+                roi = (fArea.pendingSearchArea_ != null) ? fArea.pendingSearchArea_ : fArea.origSelectionArea_;
+                fArea.pendingSearchArea_ = null;
+            } finally {
+                fArea.imLock_.unlock();
+            }
+            if( fArea.beginSearch( roi ) ) {
+                searched.add( fArea );
+                rois.add( roi );
+                roiSettings.add( fArea.searchSettings_ );
+                callbacks.add( fArea.new BoundedSpotListAction( fArea ) );
+            }
+            fArea.searchSettings_ = null;
+        }
+        if( searched.isEmpty() ) {
+            return false;
+        }
+        
+        boolean runProcess = processor.fitRoisForImagePlus( ip, rois, roiSettings, callbacks );
+        for( FiducialArea fArea : searched ) {
+            fArea.endSearch( runProcess );
+        }
+        return runProcess;
+    }
+    
+    /**
+     * Stores a new search area and marks this area as changing, ahead of a fit of the area
+     * 
+     * @param roi - The new search area
+     * @return <code>false</code> if a search is already in progress or the area has no bounds (nothing to fit)
+     */
+    private boolean beginSearch( Roi roi ) {
+        
         //Currently Operation is not finished
         if( getIsChanging() && !getHasChanged() )
         {
@@ -424,25 +570,16 @@ public class FiducialArea extends StateBroadcaster {
         origSelectionArea_ = roi;
         //Dispatch Roi Change Event
         dispatchEvent( new RoiChangeEvent( this, prevRoi, origSelectionArea_ ) );
-        boolean runProcess;
-        
-        imLock_.lock();
-        try {
-          //Gaussian Fit To fiducials
-          //BoundedSpotListAction may be called in Constructor, but will act after items are populated (this should be mitigated)
-          runProcess = fiducialAreaProcessor_.fitRoiForImagePlus( ip_, roi, new BoundedSpotListAction(this)  );       
-        } finally {
-            imLock_.unlock();
-        }
-        
+        return true;
+    }
+    
+    //Marks the end of a fit started after beginSearch()
+    private void endSearch( boolean runProcess ) {
         setIsChanging( runProcess );
 
         if( !getIsChanging() ) {
             setHasChanged(true);
         }
-        //BoundedSpotListAction is Called to Finish population    
-        return true;
-      
     }
     
     private void setHasChanged( boolean state ) {
@@ -128,6 +128,23 @@ public class FiducialLocationModel extends ModelUpdateDispatcher implements Fidu
      */
     public FiducialLocationModel( ImagePlus ip, FiducialLocationModel fLocationModel, 
                                         String acquisitionTitle ) throws NoFiducialException {
+        this( ip, fLocationModel, null, acquisitionTitle );
+    }
+    
+    /**
+     *  Track Copy Constructor for Fiducial Areas that were already searched in ip
+     *   (Matches them to the Fiducials of the Previous FiducialLocationModel)
+     * 
+     * @param ip - New ImagePlus
+     * @param fLocationModel - Location Model to copy and track from on new ImagePlus
+     * @param searchedAreas - The Fiducial Areas of ip, one per area of fLocationModel and in 
+     *                        the same order (see FiducialMoveFinder.searchTrackAreas()), 
+     *                        or null to search ip from the areas of fLocationModel
+     * @param acquisitionTitle - The Title Used For Graphical Displays of the Acquisition
+     * @throws NoFiducialException - Thrown if there are no viable options For Fiducials In the Track
+     */
+    public FiducialLocationModel( ImagePlus ip, FiducialLocationModel fLocationModel, 
+                                        List<FiducialArea> searchedAreas, String acquisitionTitle ) throws NoFiducialException {
         
         acquisitionTitle_ = acquisitionTitle;
         
@@ -142,9 +159,15 @@ public class FiducialLocationModel extends ModelUpdateDispatcher implements Fidu
         }
         //Create a Movement Finder Based off of previous FiducialAreaList
         int maxMissingFrames = 15;
-        fMoveFinder_ = new FiducialMoveFinder( fLocationModel.fiducialAreaList_, 
-                                                ip_, maxMissingFrames, minNumFiducialsForTrack_,
-                                                acquisitionTitle_ );
+        if( searchedAreas == null ) {
+            fMoveFinder_ = new FiducialMoveFinder( fLocationModel.fiducialAreaList_, 
+                                                    ip_, maxMissingFrames, minNumFiducialsForTrack_,
+                                                    acquisitionTitle_ );
+        } else {
+            fMoveFinder_ = new FiducialMoveFinder( fLocationModel.fiducialAreaList_, searchedAreas,
+                                                    maxMissingFrames, minNumFiducialsForTrack_,
+                                                    acquisitionTitle_ );
+        }
         TravelMatchCase mCase = fMoveFinder_.CorrelateDifferences();
         if( mCase == null ) {
             throw new NoFiducialException();
@@ -175,6 +198,17 @@ public class FiducialLocationModel extends ModelUpdateDispatcher implements Fidu
         return new FiducialLocationModel( ip, fLocationModel, acquisitionTitle );
     }
     
+    /**
+     * Static method for creating a FiducialLocation Model from Fiducial Areas that were already 
+     * searched in ip from fLocationModel or a model that it was tracked from.
+     * 
+     * @see #FiducialLocationModel(ij.ImagePlus, edu.hope.superresolution.models.FiducialLocationModel, java.util.List, java.lang.String) 
+     */
+    public static FiducialLocationModel createTrackedFiducialLocationModel( ImagePlus ip, FiducialLocationModel fLocationModel, 
+                                        List<FiducialArea> searchedAreas, String acquisitionTitle ) throws NoFiducialException {
+        return new FiducialLocationModel( ip, fLocationModel, searchedAreas, acquisitionTitle );
+    }
+    
     public static FiducialLocationModel createTrackedFiducialLocationModel( ImageProcessor iProc, FiducialLocationModel fLocationModel,
                                             String acquisitionTitle ) throws NoFiducialException, NoTrackException {
         return new FiducialLocationModel( iProc, fLocationModel, acquisitionTitle );
@@ -458,9 +492,8 @@ public class FiducialLocationModel extends ModelUpdateDispatcher implements Fidu
         }
         
         ip_ = ip;
-        for( FiducialArea fArea : fiducialAreaList_ ) {
-            fArea.updateImagePlus( ip_ );
-        }
+        //All areas are fit at once
+        FiducialArea.searchAll( ip_, fiducialAreaList_ );
         
         return true;
     }
@@ -479,9 +512,8 @@ public class FiducialLocationModel extends ModelUpdateDispatcher implements Fidu
         if( iproc == null) return false;
         
         ip_.setProcessor(iproc);
-        for( FiducialArea fArea : fiducialAreaList_ ) {
-            fArea.updateImagePlus( ip_ );
-        }
+        //All areas are fit at once
+        FiducialArea.searchAll( ip_, fiducialAreaList_ );
         
         return true;
     }
@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.micromanager.api.ScriptInterface;
@@ -354,9 +355,11 @@ public class LocationAcquisitionModel {
      *  Overloaded Version of pushNextFiducialLocationModel, only requiring an ImageProcessor
      *   from which the new LocationModel will create an ImagePlus for reference.
      * <p>
-     *  See the reference to the other overloaded function for parameters
+     *  See the reference to the other overloaded function for parameters.  To track a sequence
+     *  of frames, a TrackingPipeline overlaps the search of each frame with the match of the last.
      * 
      * @see #pushNextFiducialLocationModel(ij.ImagePlus, boolean) 
+     * @see TrackingPipeline
      * 
      */
     public FiducialLocationModel pushNextFiducialLocationModel( ImageProcessor iProc, boolean setSelected ) throws NoFiducialException {
@@ -381,6 +384,37 @@ public class LocationAcquisitionModel {
             } 
         }
         
+        addFiducialLocationModel( locModel, setSelected );
+        return locModel;
+    }
+    
+    /**
+     *  Pushes a FiducialLocationModel that tracks the last FiducialLocationModel from Fiducial 
+     *  Areas that were already searched (i.e. by a TrackingPipeline while the last model was matched).
+     * 
+     * @param ip The ImagePlus that the Fiducial Areas were searched in
+     * @param searchedAreas The searched Fiducial Areas, one per area of the last FiducialLocationModel
+     *                      and in the same order
+     * @param setSelected Whether or not, the new Location Model is Selected ( mainly for display )
+     * @return The New FiducialLocationModel that was just appended to fLocationAcquistions_
+     * @throws NoFiducialException If the Fiducials of the last model are not matched in searchedAreas
+     * 
+     * @see FiducialLocationModel#createTrackedFiducialLocationModel(ij.ImagePlus, edu.hope.superresolution.models.FiducialLocationModel, java.util.List, java.lang.String) 
+     */
+    public FiducialLocationModel pushTrackedFiducialLocationModel( ImagePlus ip, List<FiducialArea> searchedAreas,
+                                                                        boolean setSelected ) throws NoFiducialException {
+        FiducialLocationModel lastModel = getLastFiducialLocationModel();
+        if( lastModel == null || lastModel.getFiducialAreaList().size() != searchedAreas.size() ) {
+            throw new IllegalArgumentException( "Searched Fiducial Areas do not correspond to the last Fiducial Location Model" );
+        }
+        FiducialLocationModel locModel = FiducialLocationModel.createTrackedFiducialLocationModel( ip, 
+                                                lastModel, searchedAreas, uniqueAcquisitionTitle_ );
+        addFiducialLocationModel( locModel, setSelected );
+        return locModel;
+    }
+    
+    //Appends a new FiducialLocationModel to fLocationAcquisitions_ and selects it if requested
+    private void addFiducialLocationModel( FiducialLocationModel locModel, boolean setSelected ) {
         fLocationAcquisitions_.add( locModel );
         if( setSelected || selectedLocationsAcquisition_ == null ) {
             try {
@@ -390,8 +424,6 @@ public class LocationAcquisitionModel {
                 IJMMReportingUtils.logError( ex, ex.getMessage() );
             }
         }
-        
-        return locModel;
     }
     
     
@@ -405,6 +437,18 @@ public class LocationAcquisitionModel {
         return fLocationAcquisitions_.get( idx );
     }
     
+    /**
+     *  Get the last FiducialLocationModel in fLocationAcquisitions_, which the next pushed model tracks
+     * 
+     * @return The last FiducialLocationModel, or null if none have been pushed
+     */
+    public FiducialLocationModel getLastFiducialLocationModel( ) {
+        if( fLocationAcquisitions_.isEmpty() ) {
+            return null;
+        }
+        return fLocationAcquisitions_.get( fLocationAcquisitions_.size() - 1 );
+    }
+    
     /**
      *  Set The Current Selected Location Acquisition from index.
      * <p>
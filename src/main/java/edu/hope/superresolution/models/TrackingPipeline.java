@@ -0,0 +1,426 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.models;
+
+import edu.hope.superresolution.MMgaussianfitmods.datasubs.BoundedSpotData;
+import edu.hope.superresolution.Utils.IJMMReportingUtils;
+import edu.hope.superresolution.exceptions.NoFiducialException;
+import edu.hope.superresolution.imagetrack.FiducialMoveFinder;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  Tracks a sequence of frames onto a LocationAcquisitionModel in stages that run at the same time,
+ *  instead of one frame at a time through pushNextFiducialLocationModel().
+ * <pre>
+ *     Acquire       - submitFrame() queues a frame (on the calling thread)
+ *     Detect + Fit  - The Fiducial Areas of the frame are searched from the last pushed model
+ *                     (see FiducialMoveFinder.searchTrackAreas(), fit on the shared FitExecutor)
+ *     Match + Apply - The areas are matched to the last pushed model, and the new model is pushed
+ *                     onto the LocationAcquisitionModel and passed to the TrackCallback
+ * </pre>
+ *  The stages are connected by bounded queues, so a fast acquisition waits in submitFrame()
+ *  instead of queueing frames without limit.  While frame N is matched, frame N+1 is searched.
+ * <p>
+ *  Frame N+1 is therefore searched from the areas of an earlier model (usually N-1's) than the
+ *  one that it is matched to.  The search is only used if every fiducial of the model it is
+ *  matched to is a real spot whose track search area lies within the area that was searched, and
+ *  which is no dimmer than the spot the area was searched from (the track intensity threshold 
+ *  follows the spot, see FiducialArea), so that every spot a search from that model would find 
+ *  was found.  Track search areas all extend by the maximum track travel, so this holds while the
+ *  fiducials stay on the same pixels and do not fade.
+ *  Otherwise the frame is tracked again from the last model on the Match stage, exactly as
+ *  pushNextFiducialLocationModel() would (see getNumRetrackedFrames()).
+ * <p>
+ *  Each stage is a single thread and frames pass through the queues in order, so frames are
+ *  matched, pushed and passed to the TrackCallback in the order they were submitted.  The
+ *  TrackCallback is called on the Match stage thread.  If either stage fails (including an 
+ *  exception from the TrackCallback), the pipeline is stopped and finish() throws the failure.
+ *
+ * @see LocationAcquisitionModel#pushTrackedFiducialLocationModel(ij.ImagePlus, java.util.List, boolean)
+ * @see FiducialMoveFinder#searchTrackAreas(java.util.List, ij.ImagePlus)
+ *
+ * @author Justin Hanselman
+ */
+public class TrackingPipeline {
+
+    //Number of frames that may wait between two stages
+    public static final int DEFAULT_QUEUE_CAPACITY = 2;
+    //Time (ms) a queue is waited on before checking whether the pipeline was stopped
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    /**
+     *  Callback for the results of each frame, in the order that the frames were submitted
+     */
+    public interface TrackCallback {
+
+        /**
+         *  Called once the model of a frame has been pushed onto the LocationAcquisitionModel
+         *
+         * @param frameIdx The index of the frame, as returned by submitFrame()
+         * @param locModel The new FiducialLocationModel of the frame
+         */
+        public void onFrameTracked( int frameIdx, FiducialLocationModel locModel );
+
+        /**
+         *  Called if a frame could not be tracked.  The next frame is tracked from the last model.
+         *
+         * @param frameIdx The index of the frame, as returned by submitFrame()
+         * @param ex The reason (a NoFiducialException if no fiducials were matched)
+         */
+        public void onFrameNotTracked( int frameIdx, Exception ex );
+    }
+
+    /**
+     *  A Frame as it is passed between stages.  A frameIdx_ of -1 marks the end of the frames.
+     */
+    private static class TrackFrame {
+
+        private final int frameIdx_;
+        private final ImageProcessor iProc_;
+        //Set by the Detect stage (searchedAreas_ stays null if the frame was not searched)
+        private ImagePlus ip_ = null;
+        private FiducialLocationModel searchedFrom_ = null;
+        private List<FiducialArea> searchedAreas_ = null;
+
+        TrackFrame( int frameIdx, ImageProcessor iProc ) {
+            frameIdx_ = frameIdx;
+            iProc_ = iProc;
+        }
+
+        boolean isEnd() {
+            return frameIdx_ < 0;
+        }
+    }
+
+    private final LocationAcquisitionModel acqModel_;
+    private final TrackCallback callback_;
+    private final boolean setSelected_;
+    private final BlockingQueue<TrackFrame> acquiredFrames_;
+    private final BlockingQueue<TrackFrame> searchedFrames_;
+
+    //Last model pushed by the Match stage, which the Detect stage searches from
+    private volatile FiducialLocationModel lastModel_ = null;
+    private volatile boolean stopNow_ = false;
+    //First exception that ended a stage (reported by finish())
+    private final AtomicReference<Throwable> failure_ = new AtomicReference<Throwable>();
+    private Thread detectThread_ = null;
+    private Thread matchThread_ = null;
+    private int numSubmitted_ = 0;
+    private final AtomicInteger numRetracked_ = new AtomicInteger();
+
+    /**
+     *  Constructor
+     *
+     * @param acqModel The LocationAcquisitionModel to push the model of each frame onto
+     * @param callback The callback for the results of each frame
+     * @param setSelected Whether or not each new model is selected ( mainly for display )
+     */
+    public TrackingPipeline( LocationAcquisitionModel acqModel, TrackCallback callback, boolean setSelected ) {
+        this( acqModel, callback, setSelected, DEFAULT_QUEUE_CAPACITY );
+    }
+
+    /**
+     *  Constructor
+     *
+     * @param acqModel The LocationAcquisitionModel to push the model of each frame onto
+     * @param callback The callback for the results of each frame
+     * @param setSelected Whether or not each new model is selected ( mainly for display )
+     * @param queueCapacity The number of frames that may wait between two stages
+     */
+    public TrackingPipeline( LocationAcquisitionModel acqModel, TrackCallback callback, boolean setSelected,
+                                int queueCapacity ) {
+        acqModel_ = acqModel;
+        callback_ = callback;
+        setSelected_ = setSelected;
+        acquiredFrames_ = new ArrayBlockingQueue<TrackFrame>( Math.max( 1, queueCapacity ) );
+        searchedFrames_ = new ArrayBlockingQueue<TrackFrame>( Math.max( 1, queueCapacity ) );
+    }
+
+    /**
+     *  Starts the Detect and Match stages.  Frames are tracked from the last model of the
+     *  LocationAcquisitionModel at this point.
+     *
+     * @return <code>false</code> if the pipeline was already started
+     */
+    public synchronized boolean start() {
+        if( detectThread_ != null ) {
+            return false;
+        }
+        lastModel_ = acqModel_.getLastFiducialLocationModel();
+        detectThread_ = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                runDetectStage();
+            }
+        }, "TrackingPipeline-detect" );
+        matchThread_ = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                runMatchStage();
+            }
+        }, "TrackingPipeline-match" );
+        detectThread_.setDaemon( true );
+        matchThread_.setDaemon( true );
+        detectThread_.start();
+        matchThread_.start();
+        return true;
+    }
+
+    /**
+     *  Queues the next frame to track, waiting while the Detect stage is behind.
+     *  The ImageProcessor must not be modified until its frame is passed to the TrackCallback
+     *  (i.e. use a processor from getStack().getProcessor() rather than the ImagePlus's).
+     *
+     * @param iProc The ImageProcessor of the frame
+     * @return The index of the frame (counted from 0), or -1 if the pipeline was stopped
+     * @throws InterruptedException
+     * @throws IllegalStateException If the pipeline was not started
+     */
+    public synchronized int submitFrame( ImageProcessor iProc ) throws InterruptedException {
+        if( detectThread_ == null ) {
+            throw new IllegalStateException( "TrackingPipeline has not been started" );
+        }
+        TrackFrame frame = new TrackFrame( numSubmitted_, iProc );
+        if( !offer( acquiredFrames_, frame ) ) {
+            return -1;
+        }
+        return numSubmitted_++;
+    }
+
+    /**
+     *  Ends the frames and waits for every submitted frame to be passed to the TrackCallback
+     *
+     * @throws InterruptedException
+     * @throws IllegalStateException If a stage failed, in which case the frames after the 
+     *                               failure were dropped (the cause is the failure)
+     */
+    public synchronized void finish() throws InterruptedException {
+        if( detectThread_ == null ) {
+            return;
+        }
+        offer( acquiredFrames_, new TrackFrame( -1, null ) );
+        detectThread_.join();
+        matchThread_.join();
+        Throwable failure = failure_.get();
+        if( failure != null ) {
+            throw new IllegalStateException( "TrackingPipeline stage failed: " + failure.getMessage(), failure );
+        }
+    }
+
+    /**
+     *  Stops the stages after the frame that each is on.  Frames that are still queued are dropped.
+     */
+    public void stop() {
+        stopNow_ = true;
+    }
+
+    /**
+     *  Gets the Number of frames that were searched from an earlier model, but had to be
+     *  tracked again from the last model since its fiducials moved too far or blinked.
+     *
+     * @return The number of frames that were searched twice
+     */
+    public int getNumRetrackedFrames() {
+        return numRetracked_.get();
+    }
+
+    //Puts on a queue, waiting while it is full.  Returns false if the pipeline was stopped first.
+    private boolean offer( BlockingQueue<TrackFrame> queue, TrackFrame frame ) throws InterruptedException {
+        while( !queue.offer( frame, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS ) ) {
+            if( stopNow_ ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Takes from a queue, waiting while it is empty.  Returns null if the pipeline was stopped first.
+    private TrackFrame take( BlockingQueue<TrackFrame> queue ) throws InterruptedException {
+        TrackFrame frame = null;
+        while( frame == null && !stopNow_ ) {
+            frame = queue.poll( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        }
+        return frame;
+    }
+
+    private void runDetectStage() {
+        boolean endPassed = false;
+        try {
+            TrackFrame frame;
+            while( (frame = take( acquiredFrames_ )) != null ) {
+                if( !frame.isEnd() ) {
+                    search( frame );
+                }
+                if( !offer( searchedFrames_, frame ) ) {
+                    return;
+                }
+                if( frame.isEnd() ) {
+                    endPassed = true;
+                    return;
+                }
+            }
+        } catch( InterruptedException ex ) {
+            ij.IJ.log( "Thread interruped  " + Thread.currentThread().getName() );
+        } catch( Throwable ex ) {
+            fail( ex );
+        } finally {
+            //Otherwise the other stage and submitFrame() would wait on this stage forever
+            if( !endPassed ) {
+                stopNow_ = true;
+            }
+        }
+    }
+
+    /**
+     *  Searches a frame from the last pushed model.  The frame is left unsearched (for the Match
+     *  stage to track) if there is no model with Fiducial Areas yet or the search fails.
+     */
+    private void search( TrackFrame frame ) {
+        FiducialLocationModel baseModel = lastModel_;
+        frame.ip_ = new ImagePlus( "Track Frame:" + frame.frameIdx_, frame.iProc_ );
+        if( baseModel == null ) {
+            return;
+        }
+        //Copied, since the list is synchronized and may be edited from the GUI
+        List<FiducialArea> baseAreas = new ArrayList<FiducialArea>( baseModel.getFiducialAreaList() );
+        if( baseAreas.isEmpty() ) {
+            return;
+        }
+        try {
+            frame.searchedAreas_ = FiducialMoveFinder.searchTrackAreas( baseAreas, frame.ip_ );
+            frame.searchedFrom_ = baseModel;
+        } catch( RuntimeException ex ) {
+            IJMMReportingUtils.logError( ex, "Failed to search frame " + frame.frameIdx_ + " ahead of its track" );
+        }
+    }
+
+    private void runMatchStage() {
+        try {
+            TrackFrame frame;
+            while( (frame = take( searchedFrames_ )) != null && !frame.isEnd() ) {
+                FiducialLocationModel locModel;
+                try {
+                    locModel = track( frame );
+                } catch( NoFiducialException ex ) {
+                    callback_.onFrameNotTracked( frame.frameIdx_, ex );
+                    continue;
+                } catch( RuntimeException ex ) {
+                    IJMMReportingUtils.logError( ex, "Failed to track frame " + frame.frameIdx_ );
+                    callback_.onFrameNotTracked( frame.frameIdx_, ex );
+                    continue;
+                }
+                lastModel_ = locModel;
+                callback_.onFrameTracked( frame.frameIdx_, locModel );
+            }
+        } catch( InterruptedException ex ) {
+            ij.IJ.log( "Thread interruped  " + Thread.currentThread().getName() );
+        } catch( Throwable ex ) {
+            fail( ex );
+        } finally {
+            //The Detect stage has passed the end by now, unless it must be stopped
+            stopNow_ = true;
+        }
+    }
+
+    //Records the first exception that ended a stage, for finish() (which holds this monitor)
+    private void fail( Throwable ex ) {
+        IJMMReportingUtils.logError( ex, "TrackingPipeline stage failed on " + Thread.currentThread().getName() );
+        failure_.compareAndSet( null, ex );
+    }
+
+    /**
+     *  Matches a searched frame to the last model, or tracks the frame from the last model if
+     *  its search cannot be used
+     */
+    private FiducialLocationModel track( TrackFrame frame ) throws NoFiducialException {
+        FiducialLocationModel prevModel = acqModel_.getLastFiducialLocationModel();
+        if( frame.searchedAreas_ != null ) {
+            if( isSearchUsable( frame.searchedFrom_, prevModel ) ) {
+                return acqModel_.pushTrackedFiducialLocationModel( frame.ip_, frame.searchedAreas_, setSelected_ );
+            }
+            numRetracked_.incrementAndGet();
+        }
+        return acqModel_.pushNextFiducialLocationModel( frame.iProc_, setSelected_ );
+    }
+
+    /**
+     *  Checks Whether Fiducial Areas searched from one model may be matched to another.  Either
+     *  they are the same model, or every area of prevModel has a real spot, as bright as the spot
+     *  of the corresponding area of searchedFrom (which is also real), and a track search area
+     *  within the track search area of that area.
+     *
+     * @param searchedFrom The model that the areas were searched from
+     * @param prevModel The model that the areas would be matched to
+     * @return <code>true</code> if the search is as good as a search from prevModel
+     */
+    private static boolean isSearchUsable( FiducialLocationModel searchedFrom, FiducialLocationModel prevModel ) {
+        if( searchedFrom == prevModel ) {
+            return true;
+        }
+        if( prevModel == null ) {
+            return false;
+        }
+        List<FiducialArea> fromAreas = new ArrayList<FiducialArea>( searchedFrom.getFiducialAreaList() );
+        List<FiducialArea> prevAreas = new ArrayList<FiducialArea>( prevModel.getFiducialAreaList() );
+        if( fromAreas.size() != prevAreas.size() ) {
+            return false;
+        }
+        for( int i = 0; i < fromAreas.size(); ++i ) {
+            BoundedSpotData fromSpot = fromAreas.get(i).getRawSelectedSpot();
+            BoundedSpotData prevSpot = prevAreas.get(i).getRawSelectedSpot();
+            //Virtual spots change the virtual track count of the areas searched from them
+            if( fromSpot == null || prevSpot == null || fromSpot.isVirtual() || prevSpot.isVirtual() ) {
+                return false;
+            }
+            if( !coversTrackSearch( fromAreas.get(i).getTrackSearchArea(), prevAreas.get(i).getTrackSearchArea() )
+                    || !coversTrackThreshold( fromSpot, prevSpot ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Checks Whether a search from one spot kept every spot that a search from another would.
+     *  A track search lowers the intensity threshold below the maximum intensity of the spot it
+     *  is searched from, so a search from a brighter spot may drop the spots of a fading fiducial.
+     *
+     * @param fromSpot The spot that the area was searched from
+     * @param trackSpot The spot that the area is matched from
+     * @return <code>true</code> if fromSpot is no brighter than trackSpot
+     */
+    static boolean coversTrackThreshold( BoundedSpotData fromSpot, BoundedSpotData trackSpot ) {
+        return fromSpot.getMaxIntensity() <= trackSpot.getMaxIntensity();
+    }
+
+    /**
+     *  Checks Whether a search of one track search area found every spot that a search of another
+     *  would.  The next spot of a fiducial may be anywhere in the track search area of its last
+     *  spot, so being near the center of the searched area is not enough.
+     *
+     * @param searchedArea The track search area that was searched
+     * @param trackArea The track search area that the spot is matched from
+     * @return <code>true</code> if trackArea lies within searchedArea (in pixels)
+     */
+    static boolean coversTrackSearch( Roi searchedArea, Roi trackArea ) {
+        if( searchedArea == null || trackArea == null ) {
+            return false;
+        }
+        Rectangle bounds = searchedArea.getBounds();
+        return bounds.contains( trackArea.getBounds() );
+    }
+
+}
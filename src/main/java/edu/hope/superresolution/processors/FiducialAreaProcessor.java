@@ -135,6 +135,59 @@ public abstract class FiducialAreaProcessor implements iFiducialAreaProcessor {
         return tempRef;
     }
     
+    /**
+     * Sets Whether fits made by this processor use the single-precision (float) models
+     * and Levenberg-Marquardt solver.  Takes effect for the next fit that copies the settings.
+     * 
+     * @param useFloatPrecision <code>true</code> to fit in single-precision
+     * 
+     * @see ExtendedGaussianInfo#setUseFloatPrecision(boolean) 
+     */
+    public void setUseFloatPrecision( boolean useFloatPrecision ) {
+        lockSettings();
+        try {
+            currentSettings_.setUseFloatPrecision( useFloatPrecision );
+        } finally {
+            unlockSettings();
+        }
+    }
+    
+    public boolean getUseFloatPrecision() {
+        lockSettings();
+        try {
+            return currentSettings_.getUseFloatPrecision();
+        } finally {
+            unlockSettings();
+        }
+    }
+    
+    /**
+     * Sets Whether fits made by this processor are replaced by moment estimates for bright,
+     * well centered spots (fast drift tracking).  Other spots fall back to the full fit.
+     * Takes effect for the next fit that copies the settings.
+     * 
+     * @param useQuickLocalizer <code>true</code> to localize reliable spots without a fit
+     * 
+     * @see ExtendedGaussianInfo#setUseQuickLocalizer(boolean) 
+     */
+    public void setUseQuickLocalizer( boolean useQuickLocalizer ) {
+        lockSettings();
+        try {
+            currentSettings_.setUseQuickLocalizer( useQuickLocalizer );
+        } finally {
+            unlockSettings();
+        }
+    }
+    
+    public boolean getUseQuickLocalizer() {
+        lockSettings();
+        try {
+            return currentSettings_.getUseQuickLocalizer();
+        } finally {
+            unlockSettings();
+        }
+    }
+    
     /**
      * Get the MicroscopeModel that this processor is tuned for.  This needs to 
      * be locked using lockSettings() and unlockSettings() if modification is intended.
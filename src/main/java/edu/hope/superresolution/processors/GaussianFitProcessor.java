@@ -3,6 +3,7 @@ package edu.hope.superresolution.processors;
 
 import edu.hope.superresolution.MMgaussianfitmods.datasubs.ExtendedGaussianInfo;
 import edu.hope.superresolution.fitters.FindLocalMaxima;
+import edu.hope.superresolution.fitters.FitExecutor;
 import edu.hope.superresolution.fitters.GaussianFitThread;
 import edu.hope.superresolution.fitters.GaussianWithSimpleDefocusFitThread;
 import edu.hope.superresolution.fitters.GenericBaseGaussianFitThread;
@@ -14,6 +15,7 @@ import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.utils.ReportingUtils;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import java.util.ArrayList;
 import java.util.List;
 import javax.swing.JOptionPane;
 
@@ -35,7 +37,11 @@ public class GaussianFitProcessor extends FiducialAreaProcessor {
     
     //Current GaussianFitThread
     private volatile GenericBaseGaussianFitThread gft_;
-    private final Object gftLock_ = new Object();  //Used to ensure only 1 thread manipulates any gft_ to run
+    //GaussianFitThreads of the current fitRoisForImagePlus() call (empty if there are none)
+    private volatile List<GenericBaseGaussianFitThread> gftBatch_ = new ArrayList<GenericBaseGaussianFitThread>();
+    private final Object gftLock_ = new Object();  //Used to ensure only 1 thread manipulates any gft_ or gftBatch_ to run
+    //GaussianFitThreads of the last fit call (gft_, or gftBatch_), for getLastAverageIterations()
+    private volatile List<GenericBaseGaussianFitThread> lastFits_ = new ArrayList<GenericBaseGaussianFitThread>();
     
     public GaussianFitProcessor( final ExtendedGaussianInfo settingsRef, 
                                    final MicroscopeModel microscopeModel ) {
@@ -61,16 +67,10 @@ public class GaussianFitProcessor extends FiducialAreaProcessor {
         
         synchronized (gftLock_) {
             //Check First to see if this is an asynchronous call
-            if (gft_ != null && isAsyncProcessEnabled()) {
+            if (isAsyncProcessEnabled()) {
                 //Block for the rest of thread to finish 
                 //This should be changed to a Queue later if optimization or more processes are desired
-                try {
-                    while (gft_.isRunning()) {
-                        gftLock_.wait();
-                    }
-                } catch (InterruptedException ex) {
-                    ReportingUtils.logError(ex);
-                }
+                waitForRunningFits();
             }
             //ij.IJ.log("Calling Specific FitThread");
             if (gft_ == null || !gft_.isRunning()) {
@@ -83,6 +83,9 @@ public class GaussianFitProcessor extends FiducialAreaProcessor {
             if (!gft_.init()) {
                 return false;
             }
+            List<GenericBaseGaussianFitThread> lastFits = new ArrayList<GenericBaseGaussianFitThread>( 1 );
+            lastFits.add( gft_ );
+            lastFits_ = lastFits;
         }
 
         if (!isAsyncProcessEnabled()) {
@@ -103,6 +106,112 @@ public class GaussianFitProcessor extends FiducialAreaProcessor {
         return fitRoiForImagePlus( ip, fArea.getSelectionArea(), resultListCallback );
     }
     
+    /**
+     * Fits all Rois of a frame at once, instead of one after another as fitRoiForImagePlus() would.
+     * Every Roi is searched on its own region worker of the shared FitExecutor and the fit 
+     * workers are divided between the Rois, so that a frame takes as long as its slowest 
+     * Roi rather than the sum of all of them.  Each Roi's spots are returned to its own callback.
+     * <p>
+     * As with fitRoiForImagePlus(), asynchronous calls first wait for the fits already running 
+     * on this processor.  If asynchronous processing is not enabled, this waits up to 
+     * MAX_WAIT_TIME for each of the Rois, as fitRoiForImagePlus() does for its one.
+     * 
+     * @param ip The ImagePlus in which the fitting should occur
+     * @param rois The Rois in which to apply fitting
+     * @param roiSettings The settings to fit each Roi with (null entries for the current settings)
+     * @param resultListCallbacks The callback of each Roi, to return its fitted fiducials
+     * @return true if the fits were started
+     */
+    @Override
+    public boolean fitRoisForImagePlus( ImagePlus ip, List<Roi> rois, List<ExtendedGaussianInfo> roiSettings,
+                                          List<ListCallback> resultListCallbacks ) {
+        int numRois = rois.size();
+        if( numRois == 0 ) {
+            return false;
+        }
+        //Share the fit workers instead of queueing a full set of FitStackThreads behind each Roi
+        int numFitStacks = Math.max( 1, FitExecutor.getSharedExecutor().getNumFitWorkers() / numRois );
+        List<GenericBaseGaussianFitThread> started = new ArrayList<GenericBaseGaussianFitThread>( numRois );
+        synchronized (gftLock_) {
+            if (isAsyncProcessEnabled()) {
+                waitForRunningFits();
+            }
+            for( int i = 0; i < numRois; ++i ) {
+                ExtendedGaussianInfo settings = roiSettings.get(i);
+                //This is safe because settings are copied into Thread
+                GenericBaseGaussianFitThread fitThread = new GaussianFitThread( ip, rois.get(i), 
+                        new GaussianFitProcessor.GaussianFitListAction( resultListCallbacks.get(i) ),
+                        (settings != null) ? settings : getCurrentSettings(), FindLocalMaxima.FilterType.NONE );
+                fitThread.setNumFitStacks( numFitStacks );
+                if( fitThread.init() ) {
+                    started.add( fitThread );
+                }
+            }
+            gftBatch_ = started;
+            lastFits_ = started;
+        }
+        
+        if (!isAsyncProcessEnabled()) {
+            try {
+                for( GenericBaseGaussianFitThread fitThread : started ) {
+                    fitThread.join( MAX_WAIT_TIME );
+                }
+            } catch (InterruptedException ex) {
+                JOptionPane.showMessageDialog(null, "Error process Interrupted: " + ex.getMessage());
+            }
+        }
+        
+        return !started.isEmpty();
+    }
+    
+    /**
+     * Gets the Average Number of optimizer iterations per spot fit by the last call of 
+     * fitRoiForImagePlus() or fitRoisForImagePlus(), over all of its Rois.  Tracked searches 
+     * seed their fits from the previous frame, so this measures the iterations saved against 
+     * an untracked search.  Fits that are still running are not counted.
+     * 
+     * @return The average iterations per fit, or 0 if none were counted
+     * 
+     * @see edu.hope.superresolution.fitters.ImageRegionFitThreadTest#getLastAverageIterations() 
+     */
+    public double getLastAverageIterations() {
+        long totalIterations = 0;
+        int numFits = 0;
+        for( GenericBaseGaussianFitThread fitThread : lastFits_ ) {
+            if( !fitThread.isRunning() ) {
+                totalIterations += fitThread.getLastTotalIterations();
+                numFits += fitThread.getLastNumFits();
+            }
+        }
+        return (numFits > 0) ? ((double) totalIterations) / numFits : 0;
+    }
+    
+    /**
+     * Blocks until neither gft_ nor any fit of gftBatch_ is running.  Must hold gftLock_, 
+     * which is notified as each fit ends.
+     */
+    private void waitForRunningFits() {
+        try {
+            while (isFitRunning()) {
+                gftLock_.wait();
+            }
+        } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+        }
+    }
+    
+    private boolean isFitRunning() {
+        if (gft_ != null && gft_.isRunning()) {
+            return true;
+        }
+        for( GenericBaseGaussianFitThread fitThread : gftBatch_ ) {
+            if( fitThread.isRunning() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     
     //local Callback Object for use with GaussianFitThread
     public class GaussianFitListAction implements FitThreadCallback<SpotData> {
@@ -141,8 +250,9 @@ public class GaussianFitProcessor extends FiducialAreaProcessor {
             //Unblock Waiting Threads From Creating Another Thread And Running It
             //In the Future this may be better of being handled by an Asynchronous Manager
             //But currently, it only permits the given number of threads to spawn and run ( 1 )
+            //Every fit of a batch ends separately, so each waiter checks whether all have ended
             synchronized( gftLock_ ) {
-                gftLock_.notify();
+                gftLock_.notifyAll();
             }
             
         }
@@ -2,9 +2,11 @@ package edu.hope.superresolution.processors;
 
 
 import ij.gui.Roi;
+import edu.hope.superresolution.MMgaussianfitmods.datasubs.ExtendedGaussianInfo;
 import edu.hope.superresolution.genericstructures.ListCallback;
 import edu.hope.superresolution.models.FiducialArea;
 import ij.ImagePlus;
+import java.util.List;
 
 /*
  * To change this license header, choose License Headers in Project Properties.
@@ -31,6 +33,14 @@ public interface iFiducialAreaProcessor {
     
     public boolean fitFiducialAreaForImagePlus( ImagePlus ip, FiducialArea fArea, ListCallback resultListCallback );
     
+    /*
+    *   Fits all Rois of a frame at once.  Each Roi is fit with its own settings (null for the 
+    *   processor's) and its spots are returned to its own callback.
+    *   @return - whether or not the fits were performed
+    */
+    public boolean fitRoisForImagePlus( ImagePlus ip, List<Roi> rois, List<ExtendedGaussianInfo> roiSettings, 
+                                          List<ListCallback> resultListCallbacks );
+    
     //Required For BoundedSpot Size Calculations
     public double getPixelSize( );
     
@@ -458,7 +458,7 @@ public class ModifiedLocalizationParamForm extends javax.swing.JFrame implements
         jLabel14.setBounds(80, 360, 54, 14);
 
         preFilterComboBox_.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
-        preFilterComboBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "None", "Gaussian1-5" }));
+        preFilterComboBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "None", "Gaussian1-5", "Wavelet" }));
         preFilterComboBox_.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
                 preFilterComboBox_ActionPerformed(evt);
@@ -798,6 +798,8 @@ public class ModifiedLocalizationParamForm extends javax.swing.JFrame implements
           preFilterType_ = FindLocalMaxima.FilterType.NONE;
        if (item.equals("Gaussian1-5"))
           preFilterType_ = FindLocalMaxima.FilterType.GAUSSIAN1_5;
+       if (item.equals("Wavelet"))
+          preFilterType_ = FindLocalMaxima.FilterType.WAVELET;
     }//GEN-LAST:event_preFilterComboBox_ActionPerformed
 
     private void fitDimensionsComboBox1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_fitDimensionsComboBox1ActionPerformed
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitprocesses;
+
+import edu.hope.superresolution.fitters.GaussianFit;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Reuse and Keying Tests for FitProcessPool
+ *
+ * @author Justin Hanselman
+ */
+public class FitProcessPoolNGTest {
+
+    public FitProcessPoolNGTest() {
+    }
+
+    private static FitProcessPool.Factory<GaussianFit> createFactory( final int shape, final OptimizationModes mode ) {
+        return new FitProcessPool.Factory<GaussianFit>() {
+            @Override
+            public GaussianFit create() {
+                return new GaussianFit( shape, mode, 100 );
+            }
+        };
+    }
+
+    @Test
+    public void testReleasedInstanceIsReused() {
+        FitProcessPool pool = new FitProcessPool( 4 );
+        FitProcessPool.Key key = new FitProcessPool.Key( GaussianFit.class, 1,
+                                                         OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 );
+        FitProcessPool.Factory<GaussianFit> factory = createFactory( 1, OptimizationModes.Levenberg_Marquardt );
+        //Simulates one fit thread per frame
+        GaussianFit first = pool.acquire( key, GaussianFit.class, factory );
+        pool.release( key, first );
+        for( int frame = 0; frame < 100; ++frame ) {
+            GaussianFit fit = pool.acquire( key, GaussianFit.class, factory );
+            assertSame( fit, first );
+            pool.release( key, fit );
+        }
+        assertEquals( pool.getNumCreated(), 1 );
+        assertEquals( pool.getNumReused(), 100 );
+    }
+
+    @Test
+    public void testInstancesAreKeyedByShapeAndMode() {
+        FitProcessPool pool = new FitProcessPool( 4 );
+        FitProcessPool.Key lmKey = new FitProcessPool.Key( GaussianFit.class, 1,
+                                                           OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 );
+        FitProcessPool.Key simplexKey = new FitProcessPool.Key( GaussianFit.class, 1,
+                                                                OptimizationModes.Simplex.getIntValue(), 100 );
+        FitProcessPool.Key ellipseKey = new FitProcessPool.Key( GaussianFit.class, 2,
+                                                                OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 );
+        assertEquals( lmKey, new FitProcessPool.Key( GaussianFit.class, 1,
+                                                     OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 ) );
+        assertEquals( lmKey.hashCode(), new FitProcessPool.Key( GaussianFit.class, 1,
+                                                                OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 ).hashCode() );
+        assertFalse( lmKey.equals( simplexKey ) );
+        assertFalse( lmKey.equals( ellipseKey ) );
+
+        GaussianFit lmFit = pool.acquire( lmKey, GaussianFit.class, createFactory( 1, OptimizationModes.Levenberg_Marquardt ) );
+        pool.release( lmKey, lmFit );
+        GaussianFit simplexFit = pool.acquire( simplexKey, GaussianFit.class, createFactory( 1, OptimizationModes.Simplex ) );
+        assertNotSame( simplexFit, lmFit );
+        assertEquals( simplexFit.getOptimizerMode(), OptimizationModes.Simplex );
+        GaussianFit ellipseFit = pool.acquire( ellipseKey, GaussianFit.class, createFactory( 2, OptimizationModes.Levenberg_Marquardt ) );
+        assertNotSame( ellipseFit, lmFit );
+        assertSame( pool.acquire( lmKey, GaussianFit.class, createFactory( 1, OptimizationModes.Levenberg_Marquardt ) ), lmFit );
+    }
+
+    @Test
+    public void testConcurrentThreadsGetDistinctInstances() {
+        FitProcessPool pool = new FitProcessPool( 2 );
+        FitProcessPool.Key key = new FitProcessPool.Key( GaussianFit.class, 1,
+                                                         OptimizationModes.Levenberg_Marquardt.getIntValue(), 100 );
+        FitProcessPool.Factory<GaussianFit> factory = createFactory( 1, OptimizationModes.Levenberg_Marquardt );
+        GaussianFit a = pool.acquire( key, GaussianFit.class, factory );
+        GaussianFit b = pool.acquire( key, GaussianFit.class, factory );
+        GaussianFit c = pool.acquire( key, GaussianFit.class, factory );
+        assertNotSame( a, b );
+        assertNotSame( b, c );
+        pool.release( key, a );
+        pool.release( key, b );
+        //Beyond maxIdlePerKey, left to the garbage collector
+        pool.release( key, c );
+        GaussianFit first = pool.acquire( key, GaussianFit.class, factory );
+        GaussianFit second = pool.acquire( key, GaussianFit.class, factory );
+        GaussianFit third = pool.acquire( key, GaussianFit.class, factory );
+        assertSame( first, b );
+        assertSame( second, a );
+        assertNotSame( third, c );
+        assertEquals( pool.getNumCreated(), 4 );
+    }
+
+}
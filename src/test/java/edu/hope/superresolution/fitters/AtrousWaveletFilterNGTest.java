@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the region restricted AtrousWaveletFilter and its use in FindLocalMaxima.FindMax
+ *
+ * @author Justin Hanselman
+ */
+public class AtrousWaveletFilterNGTest {
+
+    private static final int FRAME_WIDTH = 300;
+    private static final int FRAME_HEIGHT = 200;
+    private static final double[] B3_SPLINE = { 1 / 16., 4 / 16., 6 / 16., 4 / 16., 1 / 16. };
+    //The frame is padded so that the smoothed planes are those of the frame with its edges replicated
+    private static final int PAD = AtrousWaveletFilter.MARGIN;
+    private static final int PADDED_WIDTH = FRAME_WIDTH + 2 * PAD;
+    private static final int PADDED_HEIGHT = FRAME_HEIGHT + 2 * PAD;
+
+    public AtrousWaveletFilterNGTest() {
+    }
+
+    /**
+     * Gaussian noise about a background that rises from left to right
+     */
+    private static ShortProcessor createFrame( Random rand, double noise ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int y = 0; y < FRAME_HEIGHT; ++y ) {
+            for( int x = 0; x < FRAME_WIDTH; ++x ) {
+                pixels[ y * FRAME_WIDTH + x ] = (short) Math.round( 200 + 2 * x + noise * rand.nextGaussian() );
+            }
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    private static void addSpot( ShortProcessor iProc, int spotX, int spotY, double amplitude ) {
+        short[] pixels = (short[]) iProc.getPixels();
+        for( int y = spotY - 6; y <= spotY + 6; ++y ) {
+            for( int x = spotX - 6; x <= spotX + 6; ++x ) {
+                double r2 = (x - spotX) * (x - spotX) + (y - spotY) * (y - spotY);
+                pixels[ y * FRAME_WIDTH + x ] += (short) Math.round( amplitude * Math.exp( -r2 / (2 * 1.5 * 1.5) ) );
+            }
+        }
+    }
+
+    /**
+     * Direct 2D convolution of a padded plane with the B3-spline kernel, taps step pixels apart
+     */
+    private static double[] bruteForceSmooth( double[] plane, int step ) {
+        double[] smoothed = new double[ plane.length ];
+        for( int y = 0; y < PADDED_HEIGHT; ++y ) {
+            for( int x = 0; x < PADDED_WIDTH; ++x ) {
+                double sum = 0;
+                for( int ky = -2; ky <= 2; ++ky ) {
+                    for( int kx = -2; kx <= 2; ++kx ) {
+                        int px = Math.min( Math.max( x + kx * step, 0 ), PADDED_WIDTH - 1 );
+                        int py = Math.min( Math.max( y + ky * step, 0 ), PADDED_HEIGHT - 1 );
+                        sum += B3_SPLINE[ kx + 2 ] * B3_SPLINE[ ky + 2 ] * plane[ py * PADDED_WIDTH + px ];
+                    }
+                }
+                smoothed[ y * PADDED_WIDTH + x ] = sum;
+            }
+        }
+        return smoothed;
+    }
+
+    @Test
+    public void testRegionMatchesDirectConvolution() {
+        ShortProcessor iProc = createFrame( new Random( 1 ), 30 );
+        short[] pixels = (short[]) iProc.getPixels();
+        double[] source = new double[ PADDED_WIDTH * PADDED_HEIGHT ];
+        for( int y = 0; y < PADDED_HEIGHT; ++y ) {
+            for( int x = 0; x < PADDED_WIDTH; ++x ) {
+                int px = Math.min( Math.max( x - PAD, 0 ), FRAME_WIDTH - 1 );
+                int py = Math.min( Math.max( y - PAD, 0 ), FRAME_HEIGHT - 1 );
+                source[ y * PADDED_WIDTH + x ] = pixels[ py * FRAME_WIDTH + px ] & 0xffff;
+            }
+        }
+        double[] smooth1 = bruteForceSmooth( source, 1 );
+        double[] smooth2 = bruteForceSmooth( smooth1, 2 );
+
+        AtrousWaveletFilter filter = new AtrousWaveletFilter();
+        //Regions in the interior and against each corner
+        Rectangle[] regions = { new Rectangle( 100, 50, 20, 30 ), new Rectangle( 0, 0, 15, 15 ),
+                                new Rectangle( FRAME_WIDTH - 12, FRAME_HEIGHT - 9, 12, 9 ) };
+        for( Rectangle region : regions ) {
+            float[] filtered = filter.filter( iProc, region );
+            for( int y = 0; y < region.height; ++y ) {
+                for( int x = 0; x < region.width; ++x ) {
+                    int offset = (region.y + y + PAD) * PADDED_WIDTH + region.x + x + PAD;
+                    assertEquals( filtered[ y * region.width + x ], smooth1[offset] - smooth2[offset], 1e-2 );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNoiseOfFirstPlane() {
+        ShortProcessor iProc = createFrame( new Random( 2 ), 50 );
+        AtrousWaveletFilter filter = new AtrousWaveletFilter();
+        filter.filter( iProc, new Rectangle( 20, 20, 200, 150 ) );
+        //Standard deviation of white noise in the first plane: sqrt( 1 - 2 * (6/16)^2 + (70/256)^2 )
+        double planeSigma = Math.sqrt( 1 - 2 * (36 / 256.) + (70 / 256.) * (70 / 256.) );
+        assertEquals( filter.getNoise(), 50 * planeSigma, 2 );
+    }
+
+    @Test
+    public void testFindMaxOnNoisyBackground() {
+        ShortProcessor iProc = createFrame( new Random( 3 ), 40 );
+        addSpot( iProc, 80, 60, 600 );
+        addSpot( iProc, 213, 137, 600 );
+        iProc.setRoi( new Rectangle( 10, 10, FRAME_WIDTH - 20, FRAME_HEIGHT - 20 ) );
+
+        //The raw threshold is crossed by the background and its noise all over the right of the frame
+        Polygon raw = FindLocalMaxima.FindMax( iProc, 4, 6, 40, 700, FindLocalMaxima.FilterType.NONE );
+        assertTrue( raw.npoints > 10 );
+
+        for( FindLocalMaxima.DetectorType detectorType : FindLocalMaxima.DetectorType.values() ) {
+            Polygon maxima = FindLocalMaxima.FindMax( iProc, 4, 6, 40, 700,
+                                                      FindLocalMaxima.FilterType.WAVELET, detectorType );
+            assertEquals( maxima.npoints, 2, detectorType.toString() );
+            assertTrue( hasPoint( maxima, 80, 60 ) );
+            assertTrue( hasPoint( maxima, 213, 137 ) );
+        }
+    }
+
+    @Test
+    public void testMeasureNoiseMatchesFilter() {
+        ShortProcessor iProc = createFrame( new Random( 4 ), 50 );
+        AtrousWaveletFilter filter = new AtrousWaveletFilter();
+        Rectangle region = new Rectangle( 3, 5, 250, 170 );
+        filter.filter( iProc, region );
+        double noise = filter.getNoise();
+        assertEquals( new AtrousWaveletFilter().measureNoise( iProc, region ), noise, 0 );
+    }
+
+    @Test
+    public void testFindMaxKeepsIntensityThreshold() {
+        ShortProcessor iProc = createFrame( new Random( 5 ), 40 );
+        addSpot( iProc, 80, 60, 600 );
+        addSpot( iProc, 213, 137, 600 );
+        iProc.setRoi( new Rectangle( 10, 10, FRAME_WIDTH - 20, FRAME_HEIGHT - 20 ) );
+
+        //Both spots are well above the plane noise, but only the one on the brighter background
+        // is above the threshold in the image
+        for( FindLocalMaxima.DetectorType detectorType : FindLocalMaxima.DetectorType.values() ) {
+            Polygon maxima = FindLocalMaxima.FindMax( iProc, 4, 6, 40, 1100,
+                                                      FindLocalMaxima.FilterType.WAVELET, detectorType );
+            assertEquals( maxima.npoints, 1, detectorType.toString() );
+            assertTrue( hasPoint( maxima, 213, 137 ) );
+        }
+    }
+
+    private static boolean hasPoint( Polygon maxima, int x, int y ) {
+        for( int i = 0; i < maxima.npoints; ++i ) {
+            if( maxima.xpoints[i] == x && maxima.ypoints[i] == y ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
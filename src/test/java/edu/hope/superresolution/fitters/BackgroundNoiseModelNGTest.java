@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the running background and noise estimate of BackgroundNoiseModel
+ *
+ * @author Justin Hanselman
+ */
+public class BackgroundNoiseModelNGTest {
+
+    private static final int FRAME_WIDTH = 200;
+    private static final int FRAME_HEIGHT = 150;
+    private static final Rectangle ROI = new Rectangle( 20, 10, 160, 120 );
+
+    public BackgroundNoiseModelNGTest() {
+    }
+
+    /**
+     * Gaussian noise about a background with bright square fiducials at the given points
+     */
+    private static ShortProcessor createFrame( Random rand, double background, double noise,
+                                               Polygon fiducials, int halfBox ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int y = 0; y < FRAME_HEIGHT; ++y ) {
+            for( int x = 0; x < FRAME_WIDTH; ++x ) {
+                double value = background + noise * rand.nextGaussian();
+                for( int i = 0; i < fiducials.npoints; ++i ) {
+                    if( Math.abs( x - fiducials.xpoints[i] ) <= halfBox
+                            && Math.abs( y - fiducials.ypoints[i] ) <= halfBox ) {
+                        value += 5000;
+                    }
+                }
+                pixels[ y * FRAME_WIDTH + x ] = (short) Math.max( 0, Math.min( 65535, Math.round( value ) ) );
+            }
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    @Test
+    public void testEstimatesBackgroundAndNoise() {
+        Random rand = new Random( 7 );
+        Polygon fiducials = new Polygon( new int[]{ 50, 120, 150 }, new int[]{ 40, 60, 100 }, 3 );
+        BackgroundNoiseModel model = new BackgroundNoiseModel();
+        assertFalse( model.hasEstimate() );
+        assertTrue( model.update( createFrame( rand, 300, 20, fiducials, 4 ), ROI ) );
+        assertTrue( model.hasEstimate() );
+        //Robust to the fiducials even before they are excluded
+        assertEquals( model.getBackground(), 300, 3 );
+        assertEquals( model.getNoise(), 20, 2 );
+        assertEquals( model.getThreshold( 6 ), (int) Math.round( model.getBackground() + 6 * model.getNoise() ) );
+        assertEquals( model.getNoiseTolerance(), (int) Math.ceil( 3 * model.getNoise() ) );
+    }
+
+    @Test
+    public void testExcludedBoxesAreNotSampled() {
+        Random rand = new Random( 8 );
+        //A fiducial that covers most of the roi
+        Polygon fiducials = new Polygon( new int[]{ 100 }, new int[]{ 70 }, 1 );
+        ShortProcessor frame = createFrame( rand, 300, 20, fiducials, 50 );
+        BackgroundNoiseModel included = new BackgroundNoiseModel();
+        included.update( frame, ROI );
+        assertTrue( included.getBackground() > 1000 );
+
+        BackgroundNoiseModel excluded = new BackgroundNoiseModel();
+        excluded.setExcludedPoints( fiducials, 50 );
+        assertTrue( excluded.update( frame, ROI ) );
+        assertEquals( excluded.getBackground(), 300, 5 );
+
+        //Nothing left to sample
+        BackgroundNoiseModel empty = new BackgroundNoiseModel();
+        empty.setExcludedPoints( fiducials, 200 );
+        assertFalse( empty.update( frame, ROI ) );
+        assertFalse( empty.hasEstimate() );
+    }
+
+    @Test
+    public void testRunningEstimateFollowsBackground() {
+        Random rand = new Random( 9 );
+        Polygon none = new Polygon();
+        BackgroundNoiseModel model = new BackgroundNoiseModel( .2 );
+        model.update( createFrame( rand, 300, 20, none, 0 ), ROI );
+        //One frame moves the estimate by the weight
+        model.update( createFrame( rand, 500, 20, none, 0 ), ROI );
+        assertEquals( model.getBackground(), 340, 5 );
+        for( int i = 0; i < 30; ++i ) {
+            model.update( createFrame( rand, 500, 20, none, 0 ), ROI );
+        }
+        assertEquals( model.getBackground(), 500, 3 );
+        assertEquals( model.getNumUpdates(), 32 );
+    }
+
+    @Test
+    public void testFlatImageHasMinimumNoise() {
+        BackgroundNoiseModel model = new BackgroundNoiseModel();
+        model.update( createFrame( new Random( 10 ), 300, 0, new Polygon(), 0 ), ROI );
+        assertEquals( model.getBackground(), 300, 0 );
+        assertEquals( model.getNoise(), BackgroundNoiseModel.MIN_NOISE, 0 );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testInvalidWeight() {
+        new BackgroundNoiseModel( 0 );
+    }
+
+}
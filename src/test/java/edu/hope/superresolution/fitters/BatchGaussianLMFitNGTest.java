@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Agreement Tests for the batched BatchGaussianLMFit against fitting each spot
+ * individually with GaussianLMFit.  The throughput comparison is in the "benchmark"
+ * group, which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class BatchGaussianLMFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_SPOTS = 200;
+    private static final int NUM_REPEATS = 20;
+    private static final double BASE_LEVEL = 100;
+
+    public BatchGaussianLMFitNGTest() {
+    }
+
+    private static ShortProcessor[] createSpots( Random rand ) {
+        ShortProcessor[] spots = new ShortProcessor[NUM_SPOTS];
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            spots[i] = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 500 + 3000 * rand.nextDouble(),
+                                                                         200, xC, yC, 1.2 + .6 * rand.nextDouble(), rand );
+        }
+        return spots;
+    }
+
+    private static void compareToSingleFits( int mode ) {
+        ShortProcessor[] spots = createSpots( new Random( 17 + mode ) );
+        GaussianLMFit single = new GaussianLMFit( mode, OptimizationModes.Levenberg_Marquardt, BASE_LEVEL );
+        BatchGaussianLMFit batch = new BatchGaussianLMFit( mode, BASE_LEVEL );
+        for( ShortProcessor spot : spots ) {
+            batch.addSpot( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE );
+        }
+        assertEquals( batch.getNumSpots(), NUM_SPOTS );
+        batch.fitAll( 200 );
+
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            double[] expected = single.dofit( spots[i], 200 );
+            double[] actual = batch.getParameters( i );
+            assertEquals( actual.length, expected.length );
+            for( int k = 0; k < actual.length; ++k ) {
+                assertEquals( actual[k], expected[k], 1e-3 * Math.max( 1, Math.abs( expected[k] ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void testSymmetricMatchesSingleFits() {
+        compareToSingleFits( 1 );
+    }
+
+    @Test
+    public void testXYMatchesSingleFits() {
+        compareToSingleFits( 2 );
+    }
+
+    @Test
+    public void testStorageReusedAcrossBatches() {
+        ShortProcessor[] spots = createSpots( new Random( 5 ) );
+        BatchGaussianLMFit batch = new BatchGaussianLMFit( 1, BASE_LEVEL );
+        double[][] first = new double[NUM_SPOTS][];
+        for( int repeat = 0; repeat < 2; ++repeat ) {
+            batch.clear();
+            for( ShortProcessor spot : spots ) {
+                batch.addSpot( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE );
+            }
+            batch.fitAll( 200 );
+            for( int i = 0; i < NUM_SPOTS; ++i ) {
+                if( repeat == 0 ) {
+                    first[i] = batch.getParameters( i );
+                } else {
+                    assertEquals( batch.getParameters( i ), first[i] );
+                }
+            }
+        }
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkBatchFitTime() {
+        ShortProcessor[] spots = createSpots( new Random( 11 ) );
+        GaussianLMFit single = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, BASE_LEVEL );
+        BatchGaussianLMFit batch = new BatchGaussianLMFit( 1, BASE_LEVEL );
+        //Warm-up
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            for( ShortProcessor spot : spots ) {
+                single.dofit( spot, 200 );
+            }
+            batch.clear();
+            for( ShortProcessor spot : spots ) {
+                batch.addSpot( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE );
+            }
+            batch.fitAll( 200 );
+        }
+
+        long startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            for( ShortProcessor spot : spots ) {
+                single.dofit( spot, 200 );
+            }
+        }
+        long singleTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            batch.clear();
+            for( ShortProcessor spot : spots ) {
+                batch.addSpot( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE );
+            }
+            batch.fitAll( 200 );
+        }
+        long batchTime = System.nanoTime() - startTime;
+
+        assertTrue( batchTime < singleTime );
+    }
+
+}
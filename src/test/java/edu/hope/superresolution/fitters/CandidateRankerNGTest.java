@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the ranking of candidate points by CandidateRanker and the fit budget count
+ *
+ * @author Justin Hanselman
+ */
+public class CandidateRankerNGTest {
+
+    private static final int FRAME_WIDTH = 120;
+    private static final int FRAME_HEIGHT = 80;
+    private static final int HALF_BOX = 6;
+
+    public CandidateRankerNGTest() {
+    }
+
+    private static void addGaussian( double[] frame, double xC, double yC, double amplitude, double sigma ) {
+        for( int y = 0; y < FRAME_HEIGHT; ++y ) {
+            for( int x = 0; x < FRAME_WIDTH; ++x ) {
+                double r2 = (x - xC) * (x - xC) + (y - yC) * (y - yC);
+                frame[ y * FRAME_WIDTH + x ] += amplitude * Math.exp( -r2 / (2 * sigma * sigma) );
+            }
+        }
+    }
+
+    private static SummedAreaTable createTable( double[] frame, Random rand, double noise ) {
+        short[] pixels = new short[ frame.length ];
+        for( int i = 0; i < frame.length; ++i ) {
+            pixels[i] = (short) Math.round( 300 + frame[i] + noise * rand.nextGaussian() );
+        }
+        SummedAreaTable table = new SummedAreaTable();
+        table.build( new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null ),
+                     new Rectangle( 0, 0, FRAME_WIDTH, FRAME_HEIGHT ) );
+        return table;
+    }
+
+    private static void assertPoint( int[] actual, int x, int y ) {
+        assertEquals( actual[0], x );
+        assertEquals( actual[1], y );
+    }
+
+    @Test
+    public void testSpotsRankAboveNoiseAndBroadMaxima() {
+        double[] frame = new double[ FRAME_WIDTH * FRAME_HEIGHT ];
+        //Bright and dim fiducials, and a broad blob as bright as the dim fiducial
+        addGaussian( frame, 20, 20, 1500, 1.4 );
+        addGaussian( frame, 60, 40, 600, 1.4 );
+        addGaussian( frame, 95, 25, 600, 6 );
+        SummedAreaTable table = createTable( frame, new Random( 11 ), 20 );
+
+        int[][] candidates = { { 40, 65 }, { 95, 25 }, { 12, 60 }, { 60, 40 }, { 75, 70 }, { 20, 20 } };
+        CandidateRanker ranker = new CandidateRanker();
+        ranker.rank( table, candidates, HALF_BOX );
+        assertPoint( candidates[0], 20, 20 );
+        assertPoint( candidates[1], 60, 40 );
+        assertPoint( candidates[2], 95, 25 );
+        for( int i = 1; i < candidates.length; ++i ) {
+            assertTrue( ranker.getScore( i - 1 ) >= ranker.getScore( i ) );
+        }
+        //The noise maxima score a small fraction of the dim fiducial
+        assertTrue( ranker.getScore( 3 ) < .2 * ranker.getScore( 1 ) );
+    }
+
+    @Test
+    public void testCandidatesOutsideTableRankLast() {
+        double[] frame = new double[ FRAME_WIDTH * FRAME_HEIGHT ];
+        addGaussian( frame, 2, 2, 3000, 1.4 );
+        addGaussian( frame, 60, 40, 300, 1.4 );
+        SummedAreaTable table = createTable( frame, new Random( 12 ), 5 );
+        int[][] candidates = { { 2, 2 }, { 60, 40 } };
+        CandidateRanker ranker = new CandidateRanker();
+        ranker.rank( table, candidates, HALF_BOX );
+        assertPoint( candidates[0], 60, 40 );
+        assertEquals( ranker.getScore( 1 ), -1.0, 0 );
+    }
+
+    @Test
+    public void testNumToFit() {
+        int[][] ranked = { { 10, 10 }, { 50, 10 }, { 90, 10 }, { 10, 50 }, { 50, 50 }, { 90, 50 } };
+        //No budget or a budget larger than the candidates
+        assertEquals( CandidateRanker.getNumToFit( ranked, 0, 0, 0, -1 ), 6 );
+        assertEquals( CandidateRanker.getNumToFit( ranked, 10, 0, 0, -1 ), 6 );
+        //No expected position
+        assertEquals( CandidateRanker.getNumToFit( ranked, 2, 0, 0, -1 ), 2 );
+        //Expected position among the budget
+        assertEquals( CandidateRanker.getNumToFit( ranked, 2, 52, 12, 5 ), 2 );
+        //Expected position further down the ranking
+        assertEquals( CandidateRanker.getNumToFit( ranked, 2, 48, 51, 5 ), 5 );
+        //Expected position not found
+        assertEquals( CandidateRanker.getNumToFit( ranked, 2, 30, 30, 5 ), 2 );
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the region restricted DoGFilter and its use in FindLocalMaxima.FindMax
+ *
+ * @author Justin Hanselman
+ */
+public class DoGFilterNGTest {
+
+    private static final int FRAME_WIDTH = 300;
+    private static final int FRAME_HEIGHT = 200;
+
+    public DoGFilterNGTest() {
+    }
+
+    private static ShortProcessor createFrame( Random rand ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = (short) (100 + rand.nextInt( 50 ));
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    private static double gaussian( double sigma, int offset, int radius ) {
+        double sum = 0;
+        for( int i = -radius; i <= radius; ++i ) {
+            sum += Math.exp( -.5 * i * i / (sigma * sigma) );
+        }
+        return Math.exp( -.5 * offset * offset / (sigma * sigma) ) / sum;
+    }
+
+    /**
+     * Direct 2D convolution of one pixel with edge pixels replicated
+     */
+    private static double bruteForceBlur( ShortProcessor iProc, int x, int y, double sigma, int radius ) {
+        short[] pixels = (short[]) iProc.getPixels();
+        double sum = 0;
+        for( int dy = -radius; dy <= radius; ++dy ) {
+            for( int dx = -radius; dx <= radius; ++dx ) {
+                int px = Math.min( Math.max( x + dx, 0 ), FRAME_WIDTH - 1 );
+                int py = Math.min( Math.max( y + dy, 0 ), FRAME_HEIGHT - 1 );
+                sum += gaussian( sigma, dx, radius ) * gaussian( sigma, dy, radius )
+                        * (pixels[ py * FRAME_WIDTH + px ] & 0xffff);
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void testRegionMatchesDirectConvolution() {
+        ShortProcessor iProc = createFrame( new Random( 1 ) );
+        DoGFilter filter = new DoGFilter( 0.4, 2.0, 0.01 );
+        //Regions in the interior and against each corner
+        Rectangle[] regions = { new Rectangle( 100, 50, 20, 30 ), new Rectangle( 0, 0, 15, 15 ),
+                                new Rectangle( FRAME_WIDTH - 12, FRAME_HEIGHT - 9, 12, 9 ) };
+        for( Rectangle region : regions ) {
+            float[] filtered = filter.filter( iProc, region );
+            for( int y = 0; y < region.height; ++y ) {
+                for( int x = 0; x < region.width; ++x ) {
+                    double expected = bruteForceBlur( iProc, region.x + x, region.y + y, 0.4, 3 )
+                                        - bruteForceBlur( iProc, region.x + x, region.y + y, 2.0, 8 );
+                    assertEquals( filtered[ y * region.width + x ], Math.max( 0, expected ), 1e-2 );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFindMaxInRoiFindsSpot() {
+        ShortProcessor iProc = createFrame( new Random( 2 ) );
+        short[] pixels = (short[]) iProc.getPixels();
+        int spotX = 213;
+        int spotY = 77;
+        for( int y = spotY - 5; y <= spotY + 5; ++y ) {
+            for( int x = spotX - 5; x <= spotX + 5; ++x ) {
+                double r2 = (x - spotX) * (x - spotX) + (y - spotY) * (y - spotY);
+                pixels[ y * FRAME_WIDTH + x ] += (short) (3000 * Math.exp( -r2 / (2 * 1.5 * 1.5) ));
+            }
+        }
+        iProc.setRoi( new Rectangle( spotX - 10, spotY - 8, 21, 17 ) );
+        Polygon maxima = FindLocalMaxima.FindMax( iProc, 3, 0, 0, 500, FindLocalMaxima.FilterType.GAUSSIAN1_5 );
+        assertEquals( maxima.npoints, 1 );
+        assertEquals( maxima.xpoints[0], spotX );
+        assertEquals( maxima.ypoints[0], spotY );
+    }
+
+}
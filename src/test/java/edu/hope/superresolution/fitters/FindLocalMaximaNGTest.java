@@ -0,0 +1,128 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Agreement Tests for the direct array implementations of FindLocalMaxima.FindMax 
+ * against the getPixel() implementation.  The throughput comparison is in the 
+ * "benchmark" group, which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class FindLocalMaximaNGTest {
+
+    private static final int NUM_IMAGES = 50;
+    private static final int FRAME_SIZE = 1024;
+    private static final int NUM_REPEATS = 10;
+
+    public FindLocalMaximaNGTest() {
+    }
+
+    /**
+     * Creates a noisy frame with bright single pixel spots, scaled to maxValue
+     */
+    private static int[] createFrame( int width, int height, int maxValue, Random rand ) {
+        int[] values = new int[ width * height ];
+        for( int i = 0; i < values.length; ++i ) {
+            values[i] = maxValue / 10 + rand.nextInt( maxValue / 20 );
+        }
+        for( int i = 0; i < values.length / 50; ++i ) {
+            values[ rand.nextInt( values.length ) ] = maxValue - rand.nextInt( maxValue / 20 );
+        }
+        return values;
+    }
+
+    private static ShortProcessor createShortProcessor( int width, int height, Random rand ) {
+        int[] values = createFrame( width, height, 60000, rand );
+        short[] pixels = new short[ values.length ];
+        for( int i = 0; i < values.length; ++i ) {
+            pixels[i] = (short) values[i];
+        }
+        return new ShortProcessor( width, height, pixels, null );
+    }
+
+    private static ByteProcessor createByteProcessor( int width, int height, Random rand ) {
+        //Flat values produce ties between pixels in a block
+        int[] values = createFrame( width, height, 80, rand );
+        byte[] pixels = new byte[ values.length ];
+        for( int i = 0; i < values.length; ++i ) {
+            pixels[i] = (byte) values[i];
+        }
+        return new ByteProcessor( width, height, pixels );
+    }
+
+    private static void assertSameMaxima( ImageProcessor iProc, int n, int threshold ) {
+        Polygon expected = new Polygon();
+        FindLocalMaxima.findMaxGeneric( iProc, iProc.getRoi(), n, threshold == 0, threshold, expected );
+        Polygon actual = FindLocalMaxima.FindMax( iProc, n, 0, 0, threshold, FindLocalMaxima.FilterType.NONE );
+        assertEquals( actual.npoints, expected.npoints );
+        for( int i = 0; i < expected.npoints; ++i ) {
+            assertEquals( actual.xpoints[i], expected.xpoints[i] );
+            assertEquals( actual.ypoints[i], expected.ypoints[i] );
+        }
+    }
+
+    private static void compareToGeneric( boolean useShort ) {
+        Random rand = new Random( useShort ? 3 : 4 );
+        for( int i = 0; i < NUM_IMAGES; ++i ) {
+            int width = 20 + rand.nextInt( 200 );
+            int height = 20 + rand.nextInt( 200 );
+            ImageProcessor iProc = useShort ? createShortProcessor( width, height, rand )
+                                            : createByteProcessor( width, height, rand );
+            if( i % 2 == 1 ) {
+                iProc.setRoi( new Rectangle( rand.nextInt( width / 3 ), rand.nextInt( height / 3 ), width / 2, height / 2 ) );
+            }
+            for( int n = 1; n <= 4; ++n ) {
+                assertSameMaxima( iProc, n, 0 );
+                assertSameMaxima( iProc, n, useShort ? 20000 : 50 );
+            }
+        }
+    }
+
+    @Test
+    public void testShortMatchesGeneric() {
+        compareToGeneric( true );
+    }
+
+    @Test
+    public void testByteMatchesGeneric() {
+        compareToGeneric( false );
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkShortSearchTime() {
+        ShortProcessor iProc = createShortProcessor( FRAME_SIZE, FRAME_SIZE, new Random( 7 ) );
+        //Warm-up
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            FindLocalMaxima.findMaxGeneric( iProc, iProc.getRoi(), 3, true, 0, new Polygon() );
+            FindLocalMaxima.FindMax( iProc, 3, 0, 0, 0, FindLocalMaxima.FilterType.NONE );
+        }
+
+        long startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            FindLocalMaxima.findMaxGeneric( iProc, iProc.getRoi(), 3, true, 0, new Polygon() );
+        }
+        long genericTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            FindLocalMaxima.FindMax( iProc, 3, 0, 0, 0, FindLocalMaxima.FilterType.NONE );
+        }
+        long typedTime = System.nanoTime() - startTime;
+
+        assertTrue( typedTime < genericTime );
+    }
+
+}
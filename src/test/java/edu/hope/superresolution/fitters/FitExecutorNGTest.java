@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that FitExecutor reuses a bounded number of workers, and that region tasks
+ * waiting on their fit tasks cannot starve them
+ *
+ * @author Justin Hanselman
+ */
+public class FitExecutorNGTest {
+
+    public FitExecutorNGTest() {
+    }
+
+    /**
+     * Fit task that records the number of fit tasks running at once
+     */
+    private static class CountingTask implements Runnable {
+
+        private final AtomicInteger running_;
+        private final AtomicInteger maxRunning_;
+        private final AtomicInteger completed_;
+
+        CountingTask( AtomicInteger running, AtomicInteger maxRunning, AtomicInteger completed ) {
+            running_ = running;
+            maxRunning_ = maxRunning;
+            completed_ = completed;
+        }
+
+        @Override
+        public void run() {
+            int now = running_.incrementAndGet();
+            synchronized( maxRunning_ ) {
+                maxRunning_.set( Math.max( maxRunning_.get(), now ) );
+            }
+            try {
+                Thread.sleep( 2 );
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+            running_.decrementAndGet();
+            completed_.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testWorkersAreBoundedAndReused() throws Exception {
+        final FitExecutor executor = new FitExecutor( 2, 3 );
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        try {
+            //Simulates a dozen Rois per frame for several frames
+            List<Future<?>> regions = new ArrayList<Future<?>>();
+            for( int roi = 0; roi < 60; ++roi ) {
+                regions.add( executor.submitRegion( new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Future<?>> fits = new ArrayList<Future<?>>();
+                        for( int i = 0; i < executor.getNumFitWorkers(); ++i ) {
+                            fits.add( executor.submitFit( new CountingTask( running, maxRunning, completed ) ) );
+                        }
+                        //Region tasks wait on their fits, as ImageRegionFitThreadTest does
+                        for( Future<?> fit : fits ) {
+                            try {
+                                fit.get();
+                            } catch( Exception ex ) {
+                                throw new RuntimeException( ex );
+                            }
+                        }
+                    }
+                } ) );
+            }
+            for( Future<?> region : regions ) {
+                region.get( 30, TimeUnit.SECONDS );
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue( executor.awaitTermination( 10000 ) );
+        assertEquals( completed.get(), 60 * 3 );
+        assertTrue( maxRunning.get() <= 3 );
+        assertTrue( executor.getNumThreadsStarted() <= 2 + 3 );
+    }
+
+    @Test
+    public void testWorkersAreDaemons() throws Exception {
+        FitExecutor executor = new FitExecutor( 1, 1 );
+        final boolean[] isDaemon = new boolean[2];
+        try {
+            executor.submitRegion( new Runnable() {
+                @Override
+                public void run() {
+                    isDaemon[0] = Thread.currentThread().isDaemon();
+                }
+            } ).get();
+            executor.submitFit( new Runnable() {
+                @Override
+                public void run() {
+                    isDaemon[1] = Thread.currentThread().isDaemon();
+                }
+            } ).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue( isDaemon[0] );
+        assertTrue( isDaemon[1] );
+        assertEquals( executor.getNumFitWorkers(), 1 );
+    }
+
+    @Test
+    public void testSharedExecutorIsBounded() {
+        FitExecutor shared = FitExecutor.getSharedExecutor();
+        assertSame( FitExecutor.getSharedExecutor(), shared );
+        assertTrue( shared.getNumFitWorkers() >= 1 );
+        assertTrue( shared.getNumFitWorkers() <= FitExecutor.MAX_FIT_WORKERS );
+        //Never shut down by its users
+        shared.shutdown();
+        assertNotNull( shared.submitFit( new Runnable() {
+            @Override
+            public void run() {
+            }
+        } ) );
+    }
+
+}
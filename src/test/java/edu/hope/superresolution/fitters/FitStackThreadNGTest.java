@@ -0,0 +1,280 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import edu.hope.superresolution.fitprocesses.WarmStartFitProcess;
+import edu.hope.superresolution.genericstructures.BlockingQueueEndConditionTest;
+import edu.valelab.gaussianfit.data.SpotData;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the producer of an ImageRegionFitThreadTest can tell when every
+ * FitStackThread has ended, so that it stops waiting on a queue that is never drained
+ *
+ * @author Justin Hanselman
+ */
+public class FitStackThreadNGTest {
+
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int NUM_STACKS = 3;
+    private static final long OFFER_TIMEOUT_MS = 10;
+    private static final long MAX_WAIT_MS = 10000;
+
+    private static final BlockingQueueEndConditionTest<SpotData> END_TEST =
+            new BlockingQueueEndConditionTest<SpotData>() {
+                @Override
+                public boolean isEndCondition( SpotData spot ) {
+                    return spot.getFrame() == -1;
+                }
+            };
+
+    public FitStackThreadNGTest() {
+    }
+
+    /**
+     * FitProcess that is never used, since every fit fails before it
+     */
+    private static class UnusedFitProcess implements FitProcessContainer {
+
+        private OptimizationModes mode_ = OptimizationModes.Levenberg_Marquardt;
+
+        @Override
+        public double[] dofit( ImageProcessor spotImage, int numIterations ) {
+            return null;
+        }
+
+        @Override
+        public int getNumParams() {
+            return 0;
+        }
+
+        @Override
+        public OptimizationModes setOptimizerMode( OptimizationModes mode ) {
+            OptimizationModes prevMode = mode_;
+            mode_ = mode;
+            return prevMode;
+        }
+
+        @Override
+        public OptimizationModes getOptimizerMode() {
+            return mode_;
+        }
+    }
+
+    /**
+     * FitStackThread whose every fit fails fatally
+     */
+    private static class FailingFitStackThread extends FitStackThread {
+
+        FailingFitStackThread( BlockingQueue<SpotData> sourceList, List<SpotData> resultList ) {
+            super( sourceList, END_TEST, resultList, null, 3, 1, new UnusedFitProcess(),
+                    OptimizationModes.Levenberg_Marquardt );
+        }
+
+        @Override
+        protected SpotData runFitProcess( SpotData spot ) throws IllegalThreadStateException {
+            throw new IllegalThreadStateException( "Every fit fails" );
+        }
+    }
+
+    /**
+     * FitProcess that records whether the current fit was seeded
+     */
+    private static class RecordingWarmStartProcess extends UnusedFitProcess implements WarmStartFitProcess {
+
+        private static final int ITERATIONS = 3;
+        private boolean seeded_ = false;
+
+        @Override
+        public void setWarmStart( double intensity, double background, double sigma ) {
+            seeded_ = true;
+        }
+
+        @Override
+        public void clearWarmStart() {
+            seeded_ = false;
+        }
+
+        @Override
+        public int getLastIterations() {
+            return ITERATIONS;
+        }
+    }
+
+    /**
+     * Batching FitStackThread that records which spots were fit seeded, unseeded or in a batch
+     */
+    private static class RecordingBatchFitStackThread extends FitStackThread {
+
+        private final RecordingWarmStartProcess process_;
+        private final List<SpotData> seededFits_ = new ArrayList<SpotData>();
+        private final List<SpotData> unseededFits_ = new ArrayList<SpotData>();
+        private final List<SpotData> batchFits_ = new ArrayList<SpotData>();
+
+        RecordingBatchFitStackThread( BlockingQueue<SpotData> sourceList, List<SpotData> resultList,
+                                        RecordingWarmStartProcess process ) {
+            super( sourceList, END_TEST, resultList, null, 3, 1, process, OptimizationModes.Levenberg_Marquardt );
+            process_ = process;
+        }
+
+        @Override
+        protected int getBatchSize() {
+            return QUEUE_CAPACITY * 2;
+        }
+
+        @Override
+        protected SpotData runFitProcess( SpotData spot ) throws IllegalThreadStateException {
+            if( process_.seeded_ ) {
+                seededFits_.add( spot );
+            } else {
+                unseededFits_.add( spot );
+            }
+            return spot;
+        }
+
+        @Override
+        protected List<SpotData> runBatchFitProcess( List<SpotData> spots ) throws IllegalThreadStateException {
+            batchFits_.addAll( spots );
+            return new ArrayList<SpotData>( spots );
+        }
+    }
+
+    private static FitStackThread[] initStacks( BlockingQueue<SpotData> queue, List<SpotData> results ) {
+        FitStackThread[] stacks = new FitStackThread[NUM_STACKS];
+        for (int i = 0; i < NUM_STACKS; ++i) {
+            stacks[i] = new FailingFitStackThread( queue, results );
+            stacks[i].init();
+        }
+        return stacks;
+    }
+
+    @Test
+    public void testProducerGivesUpWhenEveryFitFails() throws Exception {
+        BlockingQueue<SpotData> queue = new ArrayBlockingQueue<SpotData>( QUEUE_CAPACITY );
+        List<SpotData> results = Collections.synchronizedList( new ArrayList<SpotData>() );
+        FitStackThread[] stacks = initStacks( queue, results );
+
+        //Offer the way ImageRegionFitThreadTest does, with far more spots than the queue holds
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MS;
+        int numSpots = 100 * QUEUE_CAPACITY;
+        int queued = 0;
+        boolean gaveUp = false;
+        while ( queued < numSpots ) {
+            SpotData spot = new SpotData( null, 1, 1, 1, 1, queued, 5, 5 );
+            if ( queue.offer( spot, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS ) ) {
+                ++queued;
+                continue;
+            }
+            if ( !ImageRegionFitThreadTest.hasLiveFitStacks( stacks ) ) {
+                gaveUp = true;
+                break;
+            }
+            assertTrue( System.currentTimeMillis() < deadline,
+                    "The producer is still waiting on a queue that no FitStackThread takes from" );
+        }
+
+        assertTrue( gaveUp );
+        //Each failed FitStackThread took exactly one spot
+        assertEquals( queued, NUM_STACKS + QUEUE_CAPACITY );
+        for ( FitStackThread stack : stacks ) {
+            assertTrue( stack.isDone() );
+        }
+        assertTrue( results.isEmpty() );
+    }
+
+    @Test
+    public void testBatchesSeedWarmStartCandidate() throws Exception {
+        BlockingQueue<SpotData> queue = new ArrayBlockingQueue<SpotData>( QUEUE_CAPACITY * 2 );
+        List<SpotData> results = Collections.synchronizedList( new ArrayList<SpotData>() );
+        SpotData seed = new SpotData( null, 1, 1, 1, 1, 0, 5, 5 );
+        FitStackThread.storeRawFitParameters( seed, 1000, 100, 1.5 );
+
+        SpotData candidate = null;
+        for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+            SpotData spot = new SpotData( null, 1, 1, 2, 1, i, 5 + i, 5 );
+            if ( i == 1 ) {
+                spot.addKeyValue( FitStackThread.WARM_START_CANDIDATE_KEY, 1 );
+                candidate = spot;
+            }
+            queue.put( spot );
+        }
+        queue.put( new SpotData( null, -1, 1, -1, -1, -1, -1, -1 ) );
+
+        RecordingBatchFitStackThread stack = new RecordingBatchFitStackThread( queue, results, 
+                                                        new RecordingWarmStartProcess() );
+        stack.setWarmStartSpot( seed );
+        stack.init();
+        stack.join();
+
+        //The batch fit cannot be seeded, so the candidate is fit on its own
+        assertEquals( stack.seededFits_.size(), 1 );
+        assertSame( stack.seededFits_.get(0), candidate );
+        assertTrue( stack.unseededFits_.isEmpty() );
+        assertEquals( stack.batchFits_.size(), QUEUE_CAPACITY - 1 );
+        assertFalse( stack.batchFits_.contains( candidate ) );
+        assertEquals( results.size(), QUEUE_CAPACITY );
+        assertEquals( stack.getTotalIterations(), (long) RecordingWarmStartProcess.ITERATIONS );
+        assertEquals( stack.getNumFits(), QUEUE_CAPACITY );
+    }
+
+    @Test
+    public void testDroppedBatchSpotsAreNotCounted() throws Exception {
+        BlockingQueue<SpotData> queue = new ArrayBlockingQueue<SpotData>( QUEUE_CAPACITY * 2 );
+        List<SpotData> results = Collections.synchronizedList( new ArrayList<SpotData>() );
+        for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+            queue.put( new SpotData( null, 1, 1, 2, 1, i, 5 + i, 5 ) );
+        }
+        queue.put( new SpotData( null, -1, 1, -1, -1, -1, -1, -1 ) );
+
+        //Every other spot is dropped by the batch fit
+        RecordingBatchFitStackThread stack = new RecordingBatchFitStackThread( queue, results, 
+                                                        new RecordingWarmStartProcess() ) {
+            @Override
+            protected List<SpotData> runBatchFitProcess( List<SpotData> spots ) throws IllegalThreadStateException {
+                List<SpotData> fits = super.runBatchFitProcess( spots );
+                for (int i = 0; i < fits.size(); ++i) {
+                    if ( fits.get(i).getNr() % 2 == 1 ) {
+                        fits.set( i, null );
+                    }
+                }
+                return fits;
+            }
+        };
+        stack.init();
+        stack.join();
+
+        assertEquals( stack.batchFits_.size(), QUEUE_CAPACITY );
+        assertEquals( results.size(), QUEUE_CAPACITY / 2 );
+        assertEquals( stack.getNumFits(), results.size() );
+    }
+
+    @Test
+    public void testFitStacksLiveUntilEndCondition() throws Exception {
+        BlockingQueue<SpotData> queue = new ArrayBlockingQueue<SpotData>( QUEUE_CAPACITY );
+        List<SpotData> results = Collections.synchronizedList( new ArrayList<SpotData>() );
+        assertFalse( ImageRegionFitThreadTest.hasLiveFitStacks( new FitStackThread[NUM_STACKS] ) );
+
+        FitStackThread[] stacks = initStacks( queue, results );
+        //Waiting on an empty queue is not an end
+        assertTrue( ImageRegionFitThreadTest.hasLiveFitStacks( stacks ) );
+
+        queue.put( new SpotData( null, -1, 1, -1, -1, -1, -1, -1 ) );
+        for ( FitStackThread stack : stacks ) {
+            stack.join();
+        }
+        assertFalse( ImageRegionFitThreadTest.hasLiveFitStacks( stacks ) );
+    }
+}
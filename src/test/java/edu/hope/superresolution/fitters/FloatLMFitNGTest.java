@@ -0,0 +1,189 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+import org.testng.annotations.Test;
+
+/**
+ * Precision Comparison of the single-precision FloatLMFit (and its float models) against
+ * the double-precision GaussianLMFit and GaussianWithDefocusPrimitiveModel on synthetic spots.
+ * <p>
+ * Differences are asserted against the localization precision of the spots.  The timing
+ * comparison is in the "benchmark" group, which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class FloatLMFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_SPOTS = 200;
+    private static final int NUM_REPEATS = 20;
+    private static final double BASE_LEVEL = 100;
+
+    public FloatLMFitNGTest() {
+    }
+
+    private static ShortProcessor[] createSpots( Random rand, double[][] truth ) {
+        ShortProcessor[] spots = new ShortProcessor[NUM_SPOTS];
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            truth[i][0] = xC;
+            truth[i][1] = yC;
+            spots[i] = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 500 + 3000 * rand.nextDouble(),
+                                                                         200, xC, yC, 1.2 + .6 * rand.nextDouble(), rand );
+        }
+        return spots;
+    }
+
+    private static double[] initialParameters( int numParams ) {
+        double[] params0 = new double[numParams];
+        params0[GaussianFit.INT] = 1000;
+        params0[GaussianFit.BGR] = 150;
+        params0[GaussianFit.XC] = SPOT_SIZE / 2;
+        params0[GaussianFit.YC] = SPOT_SIZE / 2;
+        for( int k = GaussianFit.S; k < numParams; ++k ) {
+            params0[k] = 1.4;
+        }
+        return params0;
+    }
+
+    private static void compareGaussianToDouble( int mode, OptimizationModes fitMode ) {
+        double[][] truth = new double[NUM_SPOTS][2];
+        ShortProcessor[] spots = createSpots( new Random( 3 + mode ), truth );
+        GaussianLMFit doubleFit = new GaussianLMFit( mode, fitMode, BASE_LEVEL );
+        FloatLMFit floatFit = new FloatLMFit( new GaussianFloatModel( mode ) );
+        boolean weighted = fitMode == OptimizationModes.Levenberg_Marquardt_Weighted;
+        double[] params0 = initialParameters( mode + 4 );
+
+        double maxPositionDiff = 0, maxSigmaDiff = 0;
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            short[] pixels = (short[]) spots[i].getPixels();
+            double[] expected = doubleFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 200 );
+            double[] actual = floatFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 200, weighted );
+            assertEquals( actual.length, expected.length );
+            maxPositionDiff = Math.max( maxPositionDiff, Math.abs( actual[GaussianFit.XC] - expected[GaussianFit.XC] ) );
+            maxPositionDiff = Math.max( maxPositionDiff, Math.abs( actual[GaussianFit.YC] - expected[GaussianFit.YC] ) );
+            maxSigmaDiff = Math.max( maxSigmaDiff, Math.abs( actual[GaussianFit.S] - expected[GaussianFit.S] ) );
+            assertEquals( actual[GaussianFit.INT], expected[GaussianFit.INT], 1e-2 * expected[GaussianFit.INT] );
+            assertEquals( actual[GaussianFit.BGR], expected[GaussianFit.BGR], 1 );
+            assertEquals( floatFit.getLastFitResult().getChiSquare(), doubleFit.getLastFitResult().getChiSquare(),
+                            1e-3 * doubleFit.getLastFitResult().getChiSquare() );
+        }
+        //Well below the localization precision (~.03 px) of these spots
+        assertTrue( maxPositionDiff < 1e-3 );
+        assertTrue( maxSigmaDiff < 1e-3 );
+    }
+
+    @Test
+    public void testSymmetricMatchesDouble() {
+        compareGaussianToDouble( 1, OptimizationModes.Levenberg_Marquardt );
+    }
+
+    @Test
+    public void testXYMatchesDouble() {
+        compareGaussianToDouble( 2, OptimizationModes.Levenberg_Marquardt );
+    }
+
+    @Test
+    public void testWeightedMatchesDouble() {
+        compareGaussianToDouble( 1, OptimizationModes.Levenberg_Marquardt_Weighted );
+    }
+
+    @Test
+    public void testDefocusFloatModelMatchesPrimitiveModel() {
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 9 ) );
+        double[] params = { 2000, 200, 7.2, 6.8, 1.5, 35 };
+        GaussianWithDefocusPrimitiveModel primitiveModel = new GaussianWithDefocusPrimitiveModel();
+        primitiveModel.setPixels( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE );
+        Pair<RealVector, RealMatrix> expected = primitiveModel.value( new ArrayRealVector( params ) );
+
+        GaussianWithDefocusFloatModel floatModel = new GaussianWithDefocusFloatModel();
+        int numPixels = SPOT_SIZE * SPOT_SIZE;
+        float[] fParams = new float[params.length];
+        for( int k = 0; k < params.length; ++k ) {
+            fParams[k] = (float) params[k];
+        }
+        float[] values = new float[numPixels];
+        float[][] jacobian = new float[params.length][numPixels];
+        floatModel.evaluate( fParams, SPOT_SIZE, SPOT_SIZE, values, jacobian );
+
+        for( int i = 0; i < numPixels; ++i ) {
+            double value = expected.getFirst().getEntry( i );
+            assertEquals( values[i], value, 1e-5 * Math.abs( value ) + 1e-3 );
+            for( int k = 0; k < params.length; ++k ) {
+                double derivative = expected.getSecond().getEntry( i, k );
+                assertEquals( jacobian[k][i], derivative, 1e-4 * Math.abs( derivative ) + 1e-3 );
+            }
+        }
+    }
+
+    @Test
+    public void testDefocusFloatFitMatchesDouble() {
+        Random rand = new Random( 42 );
+        GaussianWithDefocusFit doubleFit = new GaussianWithDefocusFit( true );
+        GaussianWithDefocusFit floatFit = new GaussianWithDefocusFit( true );
+        floatFit.setFloatPrecision( true );
+        double doubleSqrError = 0, floatSqrError = 0;
+        for( int i = 0; i < 50; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            double[] expected = doubleFit.dofit( spot, 200 );
+            double[] actual = floatFit.dofit( spot, 200 );
+            assertEquals( actual.length, expected.length );
+            assertEquals( actual[GaussianWithDefocusFit.IDX_XC], xC, .25 );
+            assertEquals( actual[GaussianWithDefocusFit.IDX_YC], yC, .25 );
+            doubleSqrError += (expected[GaussianWithDefocusFit.IDX_XC] - xC) * (expected[GaussianWithDefocusFit.IDX_XC] - xC);
+            floatSqrError += (actual[GaussianWithDefocusFit.IDX_XC] - xC) * (actual[GaussianWithDefocusFit.IDX_XC] - xC);
+        }
+        //Single precision should not cost any measurable localization precision
+        assertEquals( Math.sqrt( floatSqrError / 50 ), Math.sqrt( doubleSqrError / 50 ), .01 );
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkFloatFitTime() {
+        double[][] truth = new double[NUM_SPOTS][2];
+        ShortProcessor[] spots = createSpots( new Random( 13 ), truth );
+        GaussianLMFit doubleFit = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, BASE_LEVEL );
+        FloatLMFit floatFit = new FloatLMFit( new GaussianFloatModel( 1 ) );
+        double[] params0 = initialParameters( 5 );
+        //Warm-up
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            for( ShortProcessor spot : spots ) {
+                doubleFit.fit( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params0, 200 );
+                floatFit.fit( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params0, 200, false );
+            }
+        }
+
+        long startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            for( ShortProcessor spot : spots ) {
+                doubleFit.fit( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params0, 200 );
+            }
+        }
+        long doubleTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            for( ShortProcessor spot : spots ) {
+                floatFit.fit( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params0, 200, false );
+            }
+        }
+        long floatTime = System.nanoTime() - startTime;
+
+        assertTrue( floatTime < doubleTime );
+    }
+
+}
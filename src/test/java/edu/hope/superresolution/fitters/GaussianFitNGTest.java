@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Warm Start Tests for GaussianFit
+ * <p>
+ * Simulates a slowly drifting fiducial and compares the iterations needed when every
+ * frame is estimated from scratch against seeding each frame with the previous fit.
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_FRAMES = 200;
+    private static final double BASE_LEVEL = 100;
+
+    public GaussianFitNGTest() {
+    }
+
+    /**
+     * Tracks a drifting spot and returns the average iterations per frame
+     *
+     * @param fit The fitter to use
+     * @param warmStart Whether or not to seed each frame with the previous frame's fit
+     * @param xErrors Filled with the absolute x error per frame
+     */
+    private static double trackDriftingSpot( GaussianFit fit, boolean warmStart, double[] xErrors ) {
+        Random rand = new Random( 21 );
+        int center = SPOT_SIZE / 2;
+        long totalIterations = 0;
+        fit.clearWarmStart();
+        for( int frame = 0; frame < NUM_FRAMES; ++frame ) {
+            //Drift up to +/- .4 pixels around the center pixel
+            double xC = center + .4 * Math.sin( frame * .05 );
+            double yC = center + .4 * Math.cos( frame * .05 );
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            double[] params = fit.dofit( spot, 1000 );
+            totalIterations += fit.getLastIterations();
+            xErrors[frame] = Math.abs( params[GaussianFit.XC] - xC );
+            if( warmStart ) {
+                fit.setWarmStart( params[GaussianFit.INT], params[GaussianFit.BGR], params[GaussianFit.S] );
+            }
+        }
+        return ((double) totalIterations) / NUM_FRAMES;
+    }
+
+    private static void compareWarmStart( OptimizationModes mode ) {
+        double[] coldErrors = new double[NUM_FRAMES];
+        double[] warmErrors = new double[NUM_FRAMES];
+        double cold = trackDriftingSpot( new GaussianFit( 1, mode, BASE_LEVEL ), false, coldErrors );
+        double warm = trackDriftingSpot( new GaussianFit( 1, mode, BASE_LEVEL ), true, warmErrors );
+        assertTrue( warm < cold );
+        //Seeding must not cost accuracy
+        double coldMean = 0, warmMean = 0;
+        for( int i = 0; i < NUM_FRAMES; ++i ) {
+            coldMean += coldErrors[i] / NUM_FRAMES;
+            warmMean += warmErrors[i] / NUM_FRAMES;
+        }
+        assertTrue( warmMean <= coldMean + .02 );
+    }
+
+    @Test
+    public void testWarmStartReducesSimplexIterations() {
+        compareWarmStart( OptimizationModes.Simplex );
+    }
+
+    @Test
+    public void testWarmStartReducesLevenbergMarquardtIterations() {
+        compareWarmStart( OptimizationModes.Levenberg_Marquardt );
+    }
+
+}
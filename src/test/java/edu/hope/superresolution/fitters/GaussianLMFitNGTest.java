@@ -0,0 +1,237 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.Utils.AdditionalGaussianUtils;
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import edu.valelab.gaussianfit.fitting.ParametricGaussianFunction;
+import ij.process.ShortProcessor;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.apache.commons.math.optimization.fitting.CurveFitter;
+import org.apache.commons.math.optimization.general.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.special.Erf;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Agreement and Allocation Tests for the closed-form Levenberg-Marquardt GaussianLMFit
+ * <p>
+ * The legacy CurveFitter path (one observed point per pixel through commons-math)
+ * is reproduced here for comparison, since GaussianFit now delegates to GaussianLMFit.
+ * The fit times are compared in the "benchmark" group, which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianLMFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_WARMUP_FITS = 2000;
+    private static final int NUM_TIMED_FITS = 2000;
+
+    private static com.sun.management.ThreadMXBean threadBean_;
+
+    public GaussianLMFitNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        threadBean_ = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadBean_.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    //Legacy GaussianFit Levenberg-Marquardt path
+    private static double[] curveFit( ShortProcessor spot, int mode, double[] params0 ) throws Exception {
+        CurveFitter cF = new CurveFitter( new LevenbergMarquardtOptimizer() );
+        short[] pixels = (short[]) spot.getPixels();
+        for( int i = 0; i < pixels.length; i++ ) {
+            cF.addObservedPoint( i, (int) pixels[i] & 0xffff );
+        }
+        return cF.fit( new ParametricGaussianFunction( mode, spot.getWidth(), spot.getHeight() ), params0 );
+    }
+
+    @Test
+    public void testSymmetricMatchesCurveFitter() throws Exception {
+        Random rand = new Random( 42 );
+        GaussianLMFit lmFit = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+        for( int i = 0; i < 50; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            double[] params0 = { 2000, 200, 7, 7, 1 };
+            double[] legacy = curveFit( spot, 1, params0 );
+            double[] fast = lmFit.fit( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params0, 100 );
+            assertEquals( fast.length, legacy.length );
+            for( int k = 0; k < fast.length; ++k ) {
+                assertEquals( fast[k], legacy[k], 1e-2 * Math.max( 1, Math.abs( legacy[k] ) ) );
+            }
+            assertEquals( fast[GaussianFit.XC], xC, .1 );
+            assertEquals( fast[GaussianFit.YC], yC, .1 );
+        }
+    }
+
+    @Test
+    public void testXYAndEllipticalShapes() throws Exception {
+        Random rand = new Random( 3 );
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.3, 6.6, 1.5, rand );
+        short[] pixels = (short[]) spot.getPixels();
+
+        GaussianLMFit xyFit = new GaussianLMFit( 2, OptimizationModes.Levenberg_Marquardt, 200 );
+        double[] xy = xyFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, new double[] { 2000, 200, 7, 7, 1, 1 }, 100 );
+        assertEquals( xy[GaussianFit.XC], 7.3, .1 );
+        assertEquals( xy[GaussianFit.YC], 6.6, .1 );
+        assertEquals( xy[GaussianFit.S1], 1.5, .1 );
+        assertEquals( xy[GaussianFit.S2], 1.5, .1 );
+
+        //Elliptical parameters are inverse variances (1/sigma^2) with a cross term
+        GaussianLMFit ellipseFit = new GaussianLMFit( 3, OptimizationModes.Levenberg_Marquardt, 200 );
+        double[] ellipse = ellipseFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, new double[] { 2000, 200, 7, 7, 1, 0, 1 }, 100 );
+        assertEquals( ellipse[GaussianFit.XC], 7.3, .1 );
+        assertEquals( ellipse[GaussianFit.YC], 6.6, .1 );
+        assertEquals( ellipse[GaussianFit.S1], 1 / 2.25, .1 );
+        assertEquals( ellipse[GaussianFit.S2], 0, .1 );
+        assertEquals( ellipse[GaussianFit.S3], 1 / 2.25, .1 );
+    }
+
+    //Pixel value of a Gaussian integrated over the pixel (peak amplitude convention)
+    private static double integratedTerm( int i, double center, double sigma ) {
+        double norm = 1.0 / (Math.sqrt( 2 ) * sigma);
+        return Math.sqrt( Math.PI / 2 ) * sigma
+                * (Erf.erf( (i - center + .5) * norm ) - Erf.erf( (i - center - .5) * norm ));
+    }
+
+    @Test
+    public void testTabulatedErf() {
+        for( double x = -7; x < 7; x += .001 ) {
+            assertEquals( AdditionalGaussianUtils.tabulatedErf( x ), Erf.erf( x ), 1e-9 );
+        }
+    }
+
+    @Test
+    public void testIntegratedModelRemovesSigmaBias() {
+        Random rand = new Random( 8 );
+        GaussianLMFit sampled = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+        GaussianLMFit integrated = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+        assertTrue( integrated.setIntegratedModel( true ) );
+        double sigma = 1.0;
+        double sampledBias = 0, integratedBias = 0, integratedErr = 0;
+        int numSpots = 500;
+        for( int i = 0; i < numSpots; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            short[] pixels = new short[SPOT_SIZE * SPOT_SIZE];
+            for( int y = 0; y < SPOT_SIZE; ++y ) {
+                for( int x = 0; x < SPOT_SIZE; ++x ) {
+                    double mean = 3000 * integratedTerm( x, xC, sigma ) * integratedTerm( y, yC, sigma ) + 200;
+                    pixels[y * SPOT_SIZE + x] = (short) Math.round( mean + rand.nextGaussian() * Math.sqrt( mean ) );
+                }
+            }
+            double[] params0 = { 3000, 200, 7, 7, 1.2 };
+            sampledBias += sampled.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 )[GaussianFit.S] - sigma;
+            double[] fit = integrated.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 );
+            integratedBias += fit[GaussianFit.S] - sigma;
+            integratedErr += Math.abs( fit[GaussianFit.XC] - xC );
+        }
+        System.out.println( "Sigma bias: sampled = " + sampledBias / numSpots
+                                + ", integrated = " + integratedBias / numSpots );
+        //Sampling at pixel centers overestimates sigma by ~1/24 pixel^2 / sigma
+        assertTrue( Math.abs( integratedBias / numSpots ) < Math.abs( sampledBias / numSpots ) / 10 );
+        assertEquals( integratedErr / numSpots, 0, .02 );
+    }
+
+    @Test
+    public void testFitResultMatchesSecondPass() {
+        Random rand = new Random( 23 );
+        GaussianLMFit lmFit = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+        for( int i = 0; i < 20; ++i ) {
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200,
+                                                                                  6.5 + rand.nextDouble(), 6.5 + rand.nextDouble(), 1.5, rand );
+            FitResult result = lmFit.dofitWithResult( spot, 100 );
+            assertTrue( result.hasParameters() );
+            assertTrue( result.isConverged() );
+            assertEquals( result.getIterations(), lmFit.getLastIterations() );
+
+            //Residuals of the final parameters, walked separately
+            double[] params = result.getParameters();
+            short[] pixels = (short[]) spot.getPixels();
+            double sumSqr = 0;
+            for( int y = 0; y < SPOT_SIZE; ++y ) {
+                for( int x = 0; x < SPOT_SIZE; ++x ) {
+                    double dx = x - params[GaussianFit.XC];
+                    double dy = y - params[GaussianFit.YC];
+                    double model = params[GaussianFit.INT] * Math.exp( -(dx * dx + dy * dy)
+                                    / (2 * params[GaussianFit.S] * params[GaussianFit.S]) ) + params[GaussianFit.BGR];
+                    sumSqr += Math.pow( (pixels[y * SPOT_SIZE + x] & 0xffff) - model, 2 );
+                }
+            }
+            assertEquals( result.getChiSquare(), sumSqr, 1e-6 * sumSqr );
+            assertEquals( result.getRMSResidual(), Math.sqrt( sumSqr / (SPOT_SIZE * SPOT_SIZE) ), 1e-6 );
+        }
+        //Running out of iterations is not reported as converged
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.4, 6.7, 1.5, rand );
+        assertFalse( lmFit.dofitWithResult( spot, 1 ).isConverged() );
+    }
+
+    @Test
+    public void testFitAllocations() throws Exception {
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 11 ) );
+        short[] pixels = (short[]) spot.getPixels();
+        double[] params0 = { 2000, 200, 7, 7, 1 };
+        GaussianLMFit lmFit = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+
+        for( int i = 0; i < NUM_WARMUP_FITS; ++i ) {
+            curveFit( spot, 1, params0 );
+            lmFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 );
+        }
+
+        long tid = Thread.currentThread().getId();
+        long start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            curveFit( spot, 1, params0 );
+        }
+        long legacyBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            lmFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 );
+        }
+        long fastBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        //Only the returned parameters and the FitResult are allocated per fit
+        assertTrue( fastBytes * 10 < legacyBytes );
+        assertTrue( lmFit.getLastFitResult().isConverged() );
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkFitTime() throws Exception {
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 11 ) );
+        short[] pixels = (short[]) spot.getPixels();
+        double[] params0 = { 2000, 200, 7, 7, 1 };
+        GaussianLMFit lmFit = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 200 );
+
+        for( int i = 0; i < NUM_WARMUP_FITS; ++i ) {
+            curveFit( spot, 1, params0 );
+            lmFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 );
+        }
+
+        long startTime = System.nanoTime();
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            curveFit( spot, 1, params0 );
+        }
+        long legacyTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            lmFit.fit( pixels, SPOT_SIZE, SPOT_SIZE, params0, 100 );
+        }
+        long fastTime = System.nanoTime() - startTime;
+
+        assertTrue( fastTime < legacyTime );
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.apache.commons.math3.distribution.PoissonDistribution;
+import org.apache.commons.math3.random.Well19937c;
+import org.apache.commons.math3.special.Erf;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Accuracy and Iteration Tests for the fixed-iteration Newton-Raphson GaussianMLEFit.
+ * The latency comparison is in the "benchmark" group, which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianMLEFitNGTest {
+
+    private static final int SPOT_SIZE = 11;
+    private static final double BASE_LEVEL = 100;
+    private static final double COUNTS_TO_PHOTONS = 2;
+    private static final int NUM_SPOTS = 2000;
+
+    public GaussianMLEFitNGTest() {
+    }
+
+    private static double integratedGaussian( int i, double center, double sigma ) {
+        double norm = 1.0 / (Math.sqrt( 2 ) * sigma);
+        return .5 * (Erf.erf( (i - center + .5) * norm ) - Erf.erf( (i - center - .5) * norm ));
+    }
+
+    /**
+     * Creates a pixel-integrated Gaussian spot with Poisson noise in photons,
+     * converted to counts on top of the camera base level
+     */
+    private static ShortProcessor createPoissonSpot( double numPhotons, double bgPhotons, double xC,
+                                                     double yC, double sigma, Well19937c rng ) {
+        short[] pixels = new short[SPOT_SIZE * SPOT_SIZE];
+        for( int y = 0; y < SPOT_SIZE; ++y ) {
+            for( int x = 0; x < SPOT_SIZE; ++x ) {
+                double mean = numPhotons * integratedGaussian( x, xC, sigma )
+                                * integratedGaussian( y, yC, sigma ) + bgPhotons;
+                int photons = new PoissonDistribution( rng, mean, PoissonDistribution.DEFAULT_EPSILON,
+                                                       PoissonDistribution.DEFAULT_MAX_ITERATIONS ).sample();
+                pixels[y * SPOT_SIZE + x] = (short) Math.round( photons / COUNTS_TO_PHOTONS + BASE_LEVEL );
+            }
+        }
+        return new ShortProcessor( SPOT_SIZE, SPOT_SIZE, pixels, null );
+    }
+
+    @Test
+    public void testPrecisionReachesCramerRaoBound() {
+        Random rand = new Random( 5 );
+        Well19937c rng = new Well19937c( 5 );
+        GaussianMLEFit fit = new GaussianMLEFit( BASE_LEVEL );
+        fit.setCountsToPhotons( COUNTS_TO_PHOTONS );
+
+        double sumSqrErr = 0, sumCRLB = 0, sumPhotons = 0;
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            double xC = 4.5 + rand.nextDouble();
+            double yC = 4.5 + rand.nextDouble();
+            ShortProcessor spot = createPoissonSpot( 2000, 20, xC, yC, 1.3, rng );
+            double[] params = fit.dofit( spot, GaussianMLEFit.DEFAULT_ITERATIONS );
+            assertEquals( params.length, fit.getNumParams() );
+            double err = params[GaussianFit.XC] - xC;
+            sumSqrErr += err * err;
+            sumCRLB += fit.getCRLB()[GaussianMLEFit.CRLB_X];
+            sumPhotons += COUNTS_TO_PHOTONS * params[GaussianFit.INT]
+                            * 2 * Math.PI * params[GaussianFit.S] * params[GaussianFit.S];
+        }
+        double rmse = Math.sqrt( sumSqrErr / NUM_SPOTS );
+        double crlb = Math.sqrt( sumCRLB / NUM_SPOTS );
+        assertEquals( rmse, crlb, .2 * crlb );
+        assertEquals( sumPhotons / NUM_SPOTS, 2000, 100 );
+    }
+
+    @Test
+    public void testBackgroundConvention() {
+        Well19937c rng = new Well19937c( 9 );
+        GaussianMLEFit fit = new GaussianMLEFit( BASE_LEVEL );
+        fit.setCountsToPhotons( COUNTS_TO_PHOTONS );
+        double bgSum = 0;
+        for( int i = 0; i < 200; ++i ) {
+            double[] params = fit.dofit( createPoissonSpot( 2000, 20, 5, 5, 1.3, rng ),
+                                         GaussianMLEFit.DEFAULT_ITERATIONS );
+            //GaussianFit convention: BGR^2 - baseLevel is the background in counts
+            bgSum += params[GaussianFit.BGR] * params[GaussianFit.BGR] - BASE_LEVEL;
+        }
+        assertEquals( bgSum / 200, 20 / COUNTS_TO_PHOTONS, 1 );
+    }
+
+    @Test
+    public void testFixedIterationCount() {
+        ShortProcessor spot = createPoissonSpot( 2000, 20, 5.2, 4.9, 1.3, new Well19937c( 13 ) );
+        GaussianMLEFit fit = new GaussianMLEFit( BASE_LEVEL );
+        GaussianFit simplexMLE = new GaussianFit( 1, GaussianFit.OptimizationModes.Simplex_Maximum_Likelihood, BASE_LEVEL );
+
+        FitResult result = fit.dofitWithResult( spot, GaussianMLEFit.DEFAULT_ITERATIONS );
+        assertTrue( result.hasParameters() );
+        assertEquals( result.getIterations(), GaussianMLEFit.DEFAULT_ITERATIONS );
+        assertEquals( result.getParameters()[GaussianFit.XC], 5.2, .25 );
+        assertEquals( result.getParameters()[GaussianFit.YC], 4.9, .25 );
+
+        //The simplex needs many more likelihood evaluations to reach the same spot
+        simplexMLE.dofit( spot, 200 );
+        assertTrue( simplexMLE.getLastIterations() > GaussianMLEFit.DEFAULT_ITERATIONS );
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkFixedIterationLatency() {
+        ShortProcessor spot = createPoissonSpot( 2000, 20, 5.2, 4.9, 1.3, new Well19937c( 13 ) );
+        GaussianMLEFit fit = new GaussianMLEFit( BASE_LEVEL );
+        GaussianFit simplexMLE = new GaussianFit( 1, GaussianFit.OptimizationModes.Simplex_Maximum_Likelihood, BASE_LEVEL );
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            fit.dofit( spot, GaussianMLEFit.DEFAULT_ITERATIONS );
+            simplexMLE.dofit( spot, 200 );
+        }
+
+        long startTime = System.nanoTime();
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            simplexMLE.dofit( spot, 200 );
+        }
+        long simplexTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            fit.dofit( spot, GaussianMLEFit.DEFAULT_ITERATIONS );
+        }
+        long newtonTime = System.nanoTime() - startTime;
+
+        assertTrue( newtonTime < simplexTime );
+    }
+
+}
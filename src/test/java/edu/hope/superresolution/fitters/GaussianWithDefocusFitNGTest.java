@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Allocation and Agreement Tests for the Primitive-Array GaussianWithDefocusFit Model
+ * <p>
+ * Allocations are measured per thread through com.sun.management.ThreadMXBean, which
+ * is repeatable, unlike fit times.  The fit times are compared in the "benchmark" group, 
+ * which is excluded from the unit test suite (see benchmark.xml).
+ *
+ * @author Justin Hanselman
+ */
+public class GaussianWithDefocusFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_WARMUP_FITS = 2000;
+    private static final int NUM_TIMED_FITS = 2000;
+
+    private static com.sun.management.ThreadMXBean threadBean_;
+
+    public GaussianWithDefocusFitNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        threadBean_ = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadBean_.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Creates a Synthetic Gaussian Spot with Poisson-like (Gaussian approximated) noise
+     *
+     * @param size The width and height of the spot
+     * @param amplitude The peak amplitude above background
+     * @param background The background level
+     * @param xC The x center (pixels)
+     * @param yC The y center (pixels)
+     * @param sigma The sigma of the Gaussian (pixels)
+     * @param rand The Random Generator for noise (seeded for repeatability)
+     * @return A ShortProcessor with the synthetic spot
+     */
+    static ShortProcessor createSyntheticSpot( int size, double amplitude, double background,
+                                               double xC, double yC, double sigma, Random rand ) {
+        short[] pixels = new short[ size * size ];
+        for( int y = 0; y < size; ++y ) {
+            for( int x = 0; x < size; ++x ) {
+                double r2 = (x - xC) * (x - xC) + (y - yC) * (y - yC);
+                double mean = amplitude * Math.exp( -r2 / (2 * sigma * sigma) ) + background;
+                double val = mean + rand.nextGaussian() * Math.sqrt( mean );
+                pixels[ y * size + x ] = (short) Math.max( 0, Math.min( 65535, Math.round( val ) ) );
+            }
+        }
+        return new ShortProcessor( size, size, pixels, null );
+    }
+
+    @Test
+    public void testPrimitiveModelMatchesLegacyModel() {
+        Random rand = new Random( 42 );
+        GaussianWithDefocusFit legacyFit = new GaussianWithDefocusFit( false );
+        GaussianWithDefocusFit primitiveFit = new GaussianWithDefocusFit( true );
+        for( int i = 0; i < 50; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            ShortProcessor spot = createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            double[] legacy = legacyFit.dofit( spot, 200 );
+            double[] primitive = primitiveFit.dofit( spot, 200 );
+            assertEquals( primitive.length, legacy.length );
+            assertEquals( legacy[GaussianWithDefocusFit.IDX_XC], xC, .25 );
+            assertEquals( legacy[GaussianWithDefocusFit.IDX_YC], yC, .25 );
+            assertEquals( primitive[GaussianWithDefocusFit.IDX_XC], xC, .25 );
+            assertEquals( primitive[GaussianWithDefocusFit.IDX_YC], yC, .25 );
+        }
+    }
+
+    @Test
+    public void testModelEvaluationAllocations() {
+        ShortProcessor spot = createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 7 ) );
+        short[] pixels = (short[]) spot.getPixels();
+        RealVector params = new ArrayRealVector( new double[] { 2000, 200, 7, 7, 1.5, 0 } );
+
+        GaussianWithDefocusModel legacyModel = new GaussianWithDefocusModel( SPOT_SIZE * SPOT_SIZE );
+        for( int i = 0; i < pixels.length; ++i ) {
+            legacyModel.addPixel( i % SPOT_SIZE, i / SPOT_SIZE, pixels[i] & 0xffff );
+        }
+        GaussianWithDefocusPrimitiveModel primitiveModel = new GaussianWithDefocusPrimitiveModel();
+        primitiveModel.setPixels( pixels, SPOT_SIZE, SPOT_SIZE );
+
+        for( int i = 0; i < NUM_WARMUP_FITS; ++i ) {
+            legacyModel.value( params );
+            primitiveModel.value( params );
+        }
+
+        long tid = Thread.currentThread().getId();
+        long start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            legacyModel.value( params );
+        }
+        long legacyBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            primitiveModel.value( params );
+        }
+        long primitiveBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        assertTrue( primitiveBytes * 10 < legacyBytes );
+    }
+
+    @Test
+    public void testFitAllocations() {
+        ShortProcessor spot = createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 11 ) );
+        GaussianWithDefocusFit legacyFit = new GaussianWithDefocusFit( false );
+        GaussianWithDefocusFit primitiveFit = new GaussianWithDefocusFit( true );
+
+        for( int i = 0; i < NUM_WARMUP_FITS; ++i ) {
+            legacyFit.dofit( spot, 200 );
+            primitiveFit.dofit( spot, 200 );
+        }
+
+        long tid = Thread.currentThread().getId();
+        long start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            legacyFit.dofit( spot, 200 );
+        }
+        long legacyBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        start = threadBean_.getThreadAllocatedBytes( tid );
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            primitiveFit.dofit( spot, 200 );
+        }
+        long primitiveBytes = (threadBean_.getThreadAllocatedBytes( tid ) - start) / NUM_TIMED_FITS;
+
+        assertTrue( primitiveBytes < legacyBytes );
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkFitTime() {
+        ShortProcessor spot = createSyntheticSpot( SPOT_SIZE, 2000, 200, 7.2, 6.8, 1.5, new Random( 11 ) );
+        GaussianWithDefocusFit legacyFit = new GaussianWithDefocusFit( false );
+        GaussianWithDefocusFit primitiveFit = new GaussianWithDefocusFit( true );
+
+        for( int i = 0; i < NUM_WARMUP_FITS; ++i ) {
+            legacyFit.dofit( spot, 200 );
+            primitiveFit.dofit( spot, 200 );
+        }
+
+        long startTime = System.nanoTime();
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            legacyFit.dofit( spot, 200 );
+        }
+        long legacyTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for( int i = 0; i < NUM_TIMED_FITS; ++i ) {
+            primitiveFit.dofit( spot, 200 );
+        }
+        long primitiveTime = System.nanoTime() - startTime;
+
+        assertTrue( primitiveTime < legacyTime );
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitResult;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the moment estimates of MomentLocalizer against synthetic spots and the checks
+ * that decide when an estimate may replace a fit
+ *
+ * @author Justin Hanselman
+ */
+public class MomentLocalizerNGTest {
+
+    private static final int SPOT_SIZE = 15;
+
+    public MomentLocalizerNGTest() {
+    }
+
+    @Test
+    public void testBrightSpotMatchesTruth() {
+        Random rand = new Random( 21 );
+        MomentLocalizer localizer = new MomentLocalizer();
+        for( int i = 0; i < 50; ++i ) {
+            double xC = 6.5 + rand.nextDouble();
+            double yC = 6.5 + rand.nextDouble();
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 3000, 200,
+                                                                                   xC, yC, 1.5, rand );
+            FitResult result = localizer.localize( spot );
+            assertTrue( result.hasParameters() );
+            double[] params = result.getParameters();
+            assertEquals( params[GaussianFit.XC], xC, .1 );
+            assertEquals( params[GaussianFit.YC], yC, .1 );
+            assertEquals( params[GaussianFit.S], 1.5, .2 );
+            assertEquals( params[GaussianFit.BGR], 200, 10 );
+            assertEquals( params[GaussianFit.INT], 3000, 450 );
+            assertTrue( localizer.isReliable( 100 ) );
+        }
+    }
+
+    @Test
+    public void testViewMatchesCopy() {
+        Random rand = new Random( 22 );
+        int frameWidth = 40;
+        short[] pixels = new short[ frameWidth * frameWidth ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = (short) Math.round( 200 + 10 * rand.nextGaussian() );
+        }
+        ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200,
+                                                                               7.3, 6.8, 1.4, rand );
+        short[] spotPixels = (short[]) spot.getPixels();
+        for( int y = 0; y < SPOT_SIZE; ++y ) {
+            System.arraycopy( spotPixels, y * SPOT_SIZE, pixels, (12 + y) * frameWidth + 9, SPOT_SIZE );
+        }
+        ShortProcessor frame = new ShortProcessor( frameWidth, frameWidth, pixels, null );
+
+        MomentLocalizer localizer = new MomentLocalizer();
+        double[] expected = localizer.localize( spot ).getParameters();
+        SpotView view = SpotView.create( frame, SPOT_SIZE / 2, 9 + SPOT_SIZE / 2, 12 + SPOT_SIZE / 2 );
+        double[] fromView = localizer.localize( view ).getParameters();
+        double[] fromStrided = localizer.localize( pixels, 12 * frameWidth + 9, frameWidth,
+                                                   SPOT_SIZE, SPOT_SIZE ).getParameters();
+        //The view is an even sized box, so compare it on the box it covers
+        double[] fromViewBox = localizer.localize( pixels, view.getOffset(), view.getStride(),
+                                                   view.getWidth(), view.getHeight() ).getParameters();
+        assertEquals( fromStrided.length, expected.length );
+        for( int k = 0; k < expected.length; ++k ) {
+            assertEquals( fromStrided[k], expected[k], 1e-9 * Math.max( 1, Math.abs( expected[k] ) ) );
+            assertEquals( fromView[k], fromViewBox[k], 1e-9 * Math.max( 1, Math.abs( fromViewBox[k] ) ) );
+        }
+    }
+
+    @Test
+    public void testUnreliableSpots() {
+        Random rand = new Random( 23 );
+        MomentLocalizer localizer = new MomentLocalizer();
+        //Dim
+        localizer.localize( GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 40, 200,
+                                                                             7, 7, 1.5, rand ) );
+        assertFalse( localizer.isReliable( 0 ) );
+        //Bright, but near the edge of its box
+        localizer.localize( GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 3000, 200,
+                                                                             2, 7, 1.5, rand ) );
+        assertFalse( localizer.isReliable( 0 ) );
+        //Bright, but a single hot pixel
+        localizer.localize( GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 3000, 200,
+                                                                             7, 7, .2, rand ) );
+        assertFalse( localizer.isReliable( 0 ) );
+        //Bright, but below the amplitude required
+        localizer.localize( GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 3000, 200,
+                                                                             7, 7, 1.5, rand ) );
+        assertTrue( localizer.isReliable( 0 ) );
+        assertFalse( localizer.isReliable( 10000 ) );
+        //Flat
+        short[] flat = new short[ SPOT_SIZE * SPOT_SIZE ];
+        Arrays.fill( flat, (short) 200 );
+        FitResult result = localizer.localize( new ShortProcessor( SPOT_SIZE, SPOT_SIZE, flat, null ) );
+        assertFalse( result.hasParameters() );
+        assertFalse( localizer.isReliable( 0 ) );
+        assertEquals( localizer.getPeakSNR(), 0, 0 );
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import edu.hope.superresolution.fitprocesses.FitResult;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for MultiGaussianLMFit on synthetic boxes containing a second fiducial
+ * <p>
+ * The center error of the single Gaussian fit and of the multi-emitter refit are
+ * reported to stdout.
+ *
+ * @author Justin Hanselman
+ */
+public class MultiGaussianLMFitNGTest {
+
+    private static final int SPOT_SIZE = 15;
+    private static final int NUM_SPOTS = 200;
+    private static final double BACKGROUND = 200;
+    //3 times the noise of the background
+    private static final double MIN_PEAK = 3 * 3 * Math.sqrt( BACKGROUND );
+
+    public MultiGaussianLMFitNGTest() {
+    }
+
+    /**
+     * Creates a Synthetic Spot of two Gaussians (sigma 1.5) with Gaussian approximated Poisson noise
+     */
+    private static ShortProcessor createPairSpot( double xC, double yC, double amplitude,
+                                                  double x2, double y2, double amplitude2, Random rand ) {
+        short[] pixels = new short[SPOT_SIZE * SPOT_SIZE];
+        for( int y = 0; y < SPOT_SIZE; ++y ) {
+            for( int x = 0; x < SPOT_SIZE; ++x ) {
+                double mean = BACKGROUND
+                        + amplitude * Math.exp( -((x - xC) * (x - xC) + (y - yC) * (y - yC)) / (2 * 1.5 * 1.5) )
+                        + amplitude2 * Math.exp( -((x - x2) * (x - x2) + (y - y2) * (y - y2)) / (2 * 1.5 * 1.5) );
+                double val = mean + rand.nextGaussian() * Math.sqrt( mean );
+                pixels[y * SPOT_SIZE + x] = (short) Math.max( 0, Math.min( 65535, Math.round( val ) ) );
+            }
+        }
+        return new ShortProcessor( SPOT_SIZE, SPOT_SIZE, pixels, null );
+    }
+
+    @Test
+    public void testIsolatedSpotIsNotRefit() {
+        Random rand = new Random( 1 );
+        GaussianLMFit single = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 100 );
+        MultiGaussianLMFit multi = new MultiGaussianLMFit();
+        int refits = 0;
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            ShortProcessor spot = createPairSpot( 6.8 + .4 * rand.nextDouble(), 6.8 + .4 * rand.nextDouble(), 2000,
+                                                  0, 0, 0, rand );
+            double[] params = single.dofit( spot, 200 );
+            if( multi.refine( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params, MIN_PEAK, 200 ) != null ) {
+                ++refits;
+            }
+        }
+        System.out.println( "Isolated spots refit with multiple emitters: " + refits + "/" + NUM_SPOTS );
+        assertTrue( refits <= NUM_SPOTS / 50 );
+    }
+
+    private static void compareOverlapping( double separation ) {
+        Random rand = new Random( 7 );
+        GaussianLMFit single = new GaussianLMFit( 1, OptimizationModes.Levenberg_Marquardt, 100 );
+        MultiGaussianLMFit multi = new MultiGaussianLMFit();
+        double singleError = 0, multiError = 0;
+        int refits = 0;
+        for( int i = 0; i < NUM_SPOTS; ++i ) {
+            double xC = 6.8 + .4 * rand.nextDouble();
+            double yC = 6.8 + .4 * rand.nextDouble();
+            double angle = 2 * Math.PI * rand.nextDouble();
+            ShortProcessor spot = createPairSpot( xC, yC, 2000, xC + separation * Math.cos( angle ),
+                                                  yC + separation * Math.sin( angle ), 1500, rand );
+            double[] params = single.dofit( spot, 200 );
+            singleError += Math.hypot( params[GaussianFit.XC] - xC, params[GaussianFit.YC] - yC ) / NUM_SPOTS;
+
+            FitResult refined = multi.refine( (short[]) spot.getPixels(), SPOT_SIZE, SPOT_SIZE, params, MIN_PEAK, 200 );
+            if( refined != null ) {
+                ++refits;
+                assertEquals( multi.getNumEmitters(), 2 );
+                params = refined.getParameters();
+                assertEquals( params.length, 5 );
+            }
+            multiError += Math.hypot( params[GaussianFit.XC] - xC, params[GaussianFit.YC] - yC ) / NUM_SPOTS;
+        }
+        System.out.println( "Separation " + separation + " px: mean center error single = " + singleError
+                                + " px, multi-emitter = " + multiError + " px (" + refits + "/" + NUM_SPOTS + " refit)" );
+        assertTrue( refits > NUM_SPOTS * 9 / 10 );
+        assertTrue( multiError < .1 );
+        assertTrue( multiError < singleError / 5 );
+    }
+
+    @Test
+    public void testOverlappingPairIsSeparated() {
+        compareOverlapping( 3 );
+    }
+
+    @Test
+    public void testNeighbourAtBoxEdgeIsSeparated() {
+        compareOverlapping( 5 );
+    }
+
+}
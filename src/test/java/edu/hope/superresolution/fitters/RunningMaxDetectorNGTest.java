@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Agreement Tests for the RUNNING_MAX detector against the BLOCK detector of 
+ * FindLocalMaxima.FindMax.  The throughput comparison is in the "benchmark" group, 
+ * which the unit test suite excludes.
+ *
+ * @author Justin Hanselman
+ */
+public class RunningMaxDetectorNGTest {
+
+    private static final int FRAME_SIZE = 1024;
+    private static final int NUM_REPEATS = 5;
+
+    public RunningMaxDetectorNGTest() {
+    }
+
+    private static Set<String> toSet( Polygon maxima ) {
+        Set<String> points = new TreeSet<String>();
+        for( int i = 0; i < maxima.npoints; ++i ) {
+            points.add( maxima.xpoints[i] + "," + maxima.ypoints[i] );
+        }
+        return points;
+    }
+
+    private static Set<String> findMax( FloatProcessor iProc, int n, int threshold, FindLocalMaxima.DetectorType detectorType ) {
+        return toSet( FindLocalMaxima.FindMax( iProc, n, 0, 0, threshold, FindLocalMaxima.FilterType.NONE, detectorType ) );
+    }
+
+    private static FloatProcessor createRandomProcessor( int size, Random rand ) {
+        float[] pixels = new float[ size * size ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = rand.nextFloat() * 1000;
+        }
+        return new FloatProcessor( size, size, pixels );
+    }
+
+    /**
+     * Every pixel of the roi that is the strict maximum of its (2n+1) x (2n+1) neighborhood
+     */
+    private static Set<String> bruteForceMax( FloatProcessor iProc, int n, int threshold ) {
+        Rectangle roi = iProc.getRoi();
+        Set<String> points = new TreeSet<String>();
+        for( int y = roi.y; y < roi.y + roi.height; ++y ) {
+            for( int x = roi.x; x < roi.x + roi.width; ++x ) {
+                float value = iProc.getf( x, y );
+                boolean isMax = value > threshold;
+                for( int y2 = Math.max( y - n, 0 ); isMax && y2 <= Math.min( y + n, iProc.getHeight() - 1 ); ++y2 ) {
+                    for( int x2 = Math.max( x - n, 0 ); x2 <= Math.min( x + n, iProc.getWidth() - 1 ); ++x2 ) {
+                        if( (x2 != x || y2 != y) && iProc.getf( x2, y2 ) >= value ) {
+                            isMax = false;
+                        }
+                    }
+                }
+                if( isMax ) {
+                    points.add( x + "," + y );
+                }
+            }
+        }
+        return points;
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random rand = new Random( 8 );
+        for( int n = 1; n <= 6; ++n ) {
+            int size = 20 + rand.nextInt( 60 );
+            FloatProcessor iProc = createRandomProcessor( size, rand );
+            assertEquals( findMax( iProc, n, 1, FindLocalMaxima.DetectorType.RUNNING_MAX ), bruteForceMax( iProc, n, 1 ) );
+            assertEquals( findMax( iProc, n, 500, FindLocalMaxima.DetectorType.RUNNING_MAX ), bruteForceMax( iProc, n, 500 ) );
+            iProc = createRandomProcessor( size + 20, rand );
+            iProc.setRoi( new Rectangle( rand.nextInt( 20 ), rand.nextInt( 20 ), size, size ) );
+            assertEquals( findMax( iProc, n, 1, FindLocalMaxima.DetectorType.RUNNING_MAX ), bruteForceMax( iProc, n, 1 ) );
+        }
+    }
+
+    @Test
+    public void testContainsBlockDetectorMaxima() {
+        Random rand = new Random( 12 );
+        for( int n = 1; n <= 6; ++n ) {
+            FloatProcessor iProc = createRandomProcessor( 20 + rand.nextInt( 60 ), rand );
+            //The Block search finds at most one maximum per block
+            Set<String> block = findMax( iProc, n, 0, FindLocalMaxima.DetectorType.BLOCK );
+            Set<String> runningMax = findMax( iProc, n, 0, FindLocalMaxima.DetectorType.RUNNING_MAX );
+            assertTrue( runningMax.containsAll( block ) );
+        }
+    }
+
+    @Test
+    public void testPlateauReportsOneMaximum() {
+        short[] pixels = new short[ 30 * 30 ];
+        for( int y = 10; y < 14; ++y ) {
+            for( int x = 12; x < 15; ++x ) {
+                pixels[ y * 30 + x ] = 500;
+            }
+        }
+        ShortProcessor iProc = new ShortProcessor( 30, 30, pixels, null );
+        Polygon maxima = FindLocalMaxima.FindMax( iProc, 4, 0, 0, 100, FindLocalMaxima.FilterType.NONE,
+                                                  FindLocalMaxima.DetectorType.RUNNING_MAX );
+        assertEquals( maxima.npoints, 1 );
+        assertEquals( maxima.xpoints[0], 12 );
+        assertEquals( maxima.ypoints[0], 10 );
+    }
+
+    private static long timeDetector( ShortProcessor iProc, int n, FindLocalMaxima.DetectorType detectorType ) {
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            FindLocalMaxima.FindMax( iProc, n, 0, 0, 0, FindLocalMaxima.FilterType.NONE, detectorType );
+        }
+        long startTime = System.nanoTime();
+        for( int repeat = 0; repeat < NUM_REPEATS; ++repeat ) {
+            FindLocalMaxima.FindMax( iProc, n, 0, 0, 0, FindLocalMaxima.FilterType.NONE, detectorType );
+        }
+        return (System.nanoTime() - startTime) / NUM_REPEATS;
+    }
+
+    @Test( groups = "benchmark" )
+    public void benchmarkCostAcrossRadii() {
+        Random rand = new Random( 9 );
+        short[] pixels = new short[ FRAME_SIZE * FRAME_SIZE ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = (short) (100 + rand.nextInt( 1000 ));
+        }
+        ShortProcessor iProc = new ShortProcessor( FRAME_SIZE, FRAME_SIZE, pixels, null );
+        //A (2n+1)^2 neighborhood scan would be ~50 times slower at n = 16 than at n = 2
+        long smallRadiusTime = timeDetector( iProc, 2, FindLocalMaxima.DetectorType.RUNNING_MAX );
+        long largeRadiusTime = timeDetector( iProc, 16, FindLocalMaxima.DetectorType.RUNNING_MAX );
+        assertTrue( largeRadiusTime < 4 * smallRadiusTime );
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a SpotView reads the same box as a crop of its frame, without touching the frame,
+ * and that fits of views match fits of the copied spots
+ *
+ * @author Justin Hanselman
+ */
+public class SpotViewNGTest {
+
+    private static final int FRAME_WIDTH = 64;
+    private static final int FRAME_HEIGHT = 48;
+    private static final int SPOT_SIZE = 15;
+    private static final double BASE_LEVEL = 100;
+
+    public SpotViewNGTest() {
+    }
+
+    /**
+     * A frame of noise with 16-bit spots centered near each of centers (pairs of x, y)
+     */
+    private static ShortProcessor createFrame( Random rand, int[] centers ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = (short) Math.round( 200 + 10 * rand.nextGaussian() );
+        }
+        int half = SPOT_SIZE / 2;
+        for( int s = 0; s < centers.length; s += 2 ) {
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200,
+                                                    half + rand.nextDouble(), half + rand.nextDouble(), 1.5, rand );
+            short[] spotPixels = (short[]) spot.getPixels();
+            for( int y = 0; y < SPOT_SIZE; ++y ) {
+                System.arraycopy( spotPixels, y * SPOT_SIZE, pixels,
+                                  (centers[s + 1] - half + y) * FRAME_WIDTH + centers[s] - half, SPOT_SIZE );
+            }
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    private static void assertSamePixels( ImageProcessor actual, ImageProcessor expected ) {
+        assertEquals( actual.getWidth(), expected.getWidth() );
+        assertEquals( actual.getHeight(), expected.getHeight() );
+        for( int y = 0; y < expected.getHeight(); ++y ) {
+            for( int x = 0; x < expected.getWidth(); ++x ) {
+                assertEquals( actual.getPixelValue( x, y ), expected.getPixelValue( x, y ) );
+            }
+        }
+    }
+
+    private static ImageProcessor crop( ImageProcessor frame, int halfSize, int x, int y ) {
+        frame.setRoi( new Rectangle( x - halfSize, y - halfSize, 2 * halfSize, 2 * halfSize ) );
+        ImageProcessor cropped = frame.crop();
+        frame.resetRoi();
+        return cropped;
+    }
+
+    @Test
+    public void testViewMatchesCrop() {
+        ShortProcessor frame = createFrame( new Random( 1 ), new int[0] );
+        //Interior, and clipped against the top-left and bottom-right
+        int[][] centers = { { 30, 20 }, { 3, 2 }, { FRAME_WIDTH - 2, FRAME_HEIGHT - 4 } };
+        for( int[] center : centers ) {
+            SpotView view = SpotView.create( frame, 7, center[0], center[1] );
+            ImageProcessor expected = crop( frame, 7, center[0], center[1] );
+            assertEquals( view.getX(), Math.max( center[0] - 7, 0 ) );
+            assertEquals( view.getY(), Math.max( center[1] - 7, 0 ) );
+            assertEquals( view.getStride(), FRAME_WIDTH );
+            assertEquals( view.getOffset(), view.getY() * FRAME_WIDTH + view.getX() );
+            assertSame( view.getShortPixels(), frame.getPixels() );
+            for( int y = 0; y < view.getHeight(); ++y ) {
+                for( int x = 0; x < view.getWidth(); ++x ) {
+                    assertEquals( view.getPixelValue( x, y ), expected.getPixelValue( x, y ) );
+                }
+            }
+            assertSamePixels( view.toProcessor(), expected );
+        }
+        assertNull( SpotView.create( frame, 7, -20, 10 ) );
+    }
+
+    @Test
+    public void testFrameRoiUntouched() {
+        ShortProcessor frame = createFrame( new Random( 2 ), new int[0] );
+        Rectangle roi = new Rectangle( 5, 6, 40, 30 );
+        frame.setRoi( roi );
+        SpotView view = SpotView.create( frame, 7, 30, 20 );
+        view.toProcessor();
+        assertEquals( frame.getRoi(), roi );
+    }
+
+    @Test
+    public void testCopiesOfOtherPixelTypes() {
+        ShortProcessor frame = createFrame( new Random( 3 ), new int[0] );
+        ImageProcessor[] frames = { frame.convertToByte( true ), frame.convertToFloat() };
+        for( ImageProcessor other : frames ) {
+            SpotView view = SpotView.create( other, 6, 20, 25 );
+            assertNull( view.getShortPixels() );
+            ImageProcessor copy = view.toProcessor();
+            assertSame( copy.getClass(), other.getClass() );
+            assertSamePixels( copy, crop( other, 6, 20, 25 ) );
+        }
+        assertTrue( frames[0] instanceof ByteProcessor );
+        assertTrue( frames[1] instanceof FloatProcessor );
+    }
+
+    @Test
+    public void testCopyOfRGBKeepsFrameOrigin() {
+        ImageProcessor frame = createFrame( new Random( 6 ), new int[0] ).convertToRGB();
+        assertTrue( frame instanceof ColorProcessor );
+        //Interior, and clipped against the top-left and bottom-right
+        int[][] centers = { { 20, 25 }, { 3, 2 }, { FRAME_WIDTH - 2, FRAME_HEIGHT - 4 } };
+        for( int[] center : centers ) {
+            SpotView view = SpotView.create( frame, 6, center[0], center[1] );
+            ImageProcessor expected = crop( frame, 6, center[0], center[1] );
+            assertEquals( view.getX(), Math.max( center[0] - 6, 0 ) );
+            assertEquals( view.getY(), Math.max( center[1] - 6, 0 ) );
+            assertEquals( view.getOffset(), 0 );
+            assertEquals( view.getStride(), view.getWidth() );
+            assertNull( view.getShortPixels() );
+            for( int y = 0; y < view.getHeight(); ++y ) {
+                for( int x = 0; x < view.getWidth(); ++x ) {
+                    assertEquals( view.getPixelValue( x, y ), expected.getPixelValue( x, y ) );
+                }
+            }
+            ImageProcessor copy = view.toProcessor();
+            assertTrue( copy instanceof FloatProcessor );
+            assertSamePixels( copy, expected );
+        }
+    }
+
+    @Test
+    public void testFitOfViewMatchesFitOfCopy() {
+        int[] centers = { 15, 12, 45, 30 };
+        ShortProcessor frame = createFrame( new Random( 4 ), centers );
+        GaussianLMFit fit = new GaussianLMFit( 2, OptimizationModes.Levenberg_Marquardt, BASE_LEVEL );
+        for( int s = 0; s < centers.length; s += 2 ) {
+            SpotView view = SpotView.create( frame, SPOT_SIZE / 2, centers[s], centers[s + 1] );
+            double[] expected = fit.dofit( view.toProcessor(), 200 );
+            double[] actual = fit.dofit( view, 200 );
+            assertEquals( actual.length, expected.length );
+            for( int k = 0; k < actual.length; ++k ) {
+                assertEquals( actual[k], expected[k], 1e-9 * Math.max( 1, Math.abs( expected[k] ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void testBatchAddSpotOfView() {
+        int[] centers = { 15, 12, 45, 30 };
+        ShortProcessor frame = createFrame( new Random( 5 ), centers );
+        BatchGaussianLMFit fromViews = new BatchGaussianLMFit( 1, BASE_LEVEL );
+        BatchGaussianLMFit fromCopies = new BatchGaussianLMFit( 1, BASE_LEVEL );
+        for( int s = 0; s < centers.length; s += 2 ) {
+            SpotView view = SpotView.create( frame, SPOT_SIZE / 2, centers[s], centers[s + 1] );
+            fromViews.addSpot( view.getShortPixels(), view.getOffset(), view.getStride(),
+                               view.getWidth(), view.getHeight() );
+            fromCopies.addSpot( (short[]) view.toProcessor().getPixels(), view.getWidth(), view.getHeight() );
+        }
+        fromViews.fitAll( 200 );
+        fromCopies.fitAll( 200 );
+        for( int i = 0; i < centers.length / 2; ++i ) {
+            assertEquals( fromViews.getParameters( i ), fromCopies.getParameters( i ) );
+        }
+    }
+
+}
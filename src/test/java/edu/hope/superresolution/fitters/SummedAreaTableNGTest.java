@@ -0,0 +1,147 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import edu.hope.superresolution.fitprocesses.FitProcessContainer.OptimizationModes;
+import edu.hope.superresolution.fitprocesses.MomentEstimateFitProcess;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for SummedAreaTable lookups and the moment estimates of the fitters
+ *
+ * @author Justin Hanselman
+ */
+public class SummedAreaTableNGTest {
+
+    private static final int FRAME_WIDTH = 120;
+    private static final int FRAME_HEIGHT = 90;
+    private static final int SPOT_SIZE = 14;
+    private static final double BASE_LEVEL = 100;
+
+    public SummedAreaTableNGTest() {
+    }
+
+    private static ShortProcessor createFrame( Random rand ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            pixels[i] = (short) (100 + rand.nextInt( 60000 ));
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    /**
+     * Brute Force {sum, border sum, x moment, y moment} of a box
+     */
+    private static long[] bruteForceMoments( ShortProcessor iProc, int x0, int y0, int width, int height ) {
+        short[] pixels = (short[]) iProc.getPixels();
+        long[] moments = new long[4];
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                long value = pixels[ (y0 + y) * FRAME_WIDTH + x0 + x ] & 0xffff;
+                moments[0] += value;
+                if( x == 0 || y == 0 || x == width - 1 || y == height - 1 ) {
+                    moments[1] += value;
+                }
+                moments[2] += value * x;
+                moments[3] += value * y;
+            }
+        }
+        return moments;
+    }
+
+    @Test
+    public void testBoxesMatchBruteForce() {
+        Random rand = new Random( 3 );
+        ShortProcessor iProc = createFrame( rand );
+        Rectangle region = new Rectangle( 17, 9, 80, 70 );
+        SummedAreaTable table = new SummedAreaTable();
+        table.build( iProc, region );
+        assertEquals( table.getRegion(), region );
+        for( int i = 0; i < 500; ++i ) {
+            int width = 1 + rand.nextInt( 30 );
+            int height = 1 + rand.nextInt( 30 );
+            int x = region.x + rand.nextInt( region.width - width + 1 );
+            int y = region.y + rand.nextInt( region.height - height + 1 );
+            assertTrue( table.contains( x, y, width, height ) );
+            long[] expected = bruteForceMoments( iProc, x, y, width, height );
+            assertEquals( table.getSum( x, y, width, height ), expected[0] );
+            assertEquals( table.getBorderSum( x, y, width, height ), expected[1] );
+            assertEquals( table.getXMoment( x, y, width, height ), expected[2] );
+            assertEquals( table.getYMoment( x, y, width, height ), expected[3] );
+        }
+        assertFalse( table.contains( region.x - 1, region.y, 5, 5 ) );
+        assertFalse( table.contains( region.x + region.width - 4, region.y, 5, 5 ) );
+    }
+
+    @Test
+    public void testRegionIsClippedToImage() {
+        ShortProcessor iProc = createFrame( new Random( 4 ) );
+        SummedAreaTable table = new SummedAreaTable();
+        table.build( iProc, new Rectangle( -10, 80, 50, 50 ) );
+        assertEquals( table.getRegion(), new Rectangle( 0, 80, 40, 10 ) );
+        assertEquals( table.getSum( 0, 80, 40, 10 ), bruteForceMoments( iProc, 0, 80, 40, 10 )[0] );
+        //Reuse of the tables for a larger region
+        table.build( iProc, new Rectangle( 0, 0, FRAME_WIDTH, FRAME_HEIGHT ) );
+        assertEquals( table.getSum( 0, 0, FRAME_WIDTH, FRAME_HEIGHT ),
+                      bruteForceMoments( iProc, 0, 0, FRAME_WIDTH, FRAME_HEIGHT )[0] );
+    }
+
+    /**
+     * Sets the moments of a spot on a fitter the way ImageRegionFitThreadTest stores them
+     */
+    private static void setTableMoments( MomentEstimateFitProcess fit, ShortProcessor spot ) {
+        SummedAreaTable table = new SummedAreaTable();
+        table.build( spot, new Rectangle( 0, 0, SPOT_SIZE, SPOT_SIZE ) );
+        double total = table.getSum( 0, 0, SPOT_SIZE, SPOT_SIZE );
+        double borderMean = table.getBorderSum( 0, 0, SPOT_SIZE, SPOT_SIZE )
+                                / (double) SummedAreaTable.getBorderCount( SPOT_SIZE, SPOT_SIZE );
+        fit.setMomentEstimate( total, borderMean, table.getXMoment( 0, 0, SPOT_SIZE, SPOT_SIZE ) / total,
+                                 table.getYMoment( 0, 0, SPOT_SIZE, SPOT_SIZE ) / total );
+    }
+
+    @Test
+    public void testGaussianFitMomentEstimateMatchesSummedEstimate() {
+        Random rand = new Random( 5 );
+        GaussianFit fit = new GaussianFit( 1, OptimizationModes.Levenberg_Marquardt, BASE_LEVEL );
+        for( int i = 0; i < 20; ++i ) {
+            double xC = SPOT_SIZE / 2 + rand.nextDouble() - .5;
+            double yC = SPOT_SIZE / 2 + rand.nextDouble() - .5;
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            fit.clearMomentEstimate();
+            double[] summed = fit.dofit( spot, 1000 );
+            setTableMoments( fit, spot );
+            double[] looked = fit.dofit( spot, 1000 );
+            assertEquals( looked.length, summed.length );
+            for( int p = 0; p < summed.length; ++p ) {
+                assertEquals( looked[p], summed[p], 1e-6 * Math.max( 1, Math.abs( summed[p] ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void testGaussianWithDefocusFitMomentEstimateMatchesSummedEstimate() {
+        Random rand = new Random( 6 );
+        GaussianWithDefocusFit fit = new GaussianWithDefocusFit( true );
+        for( int i = 0; i < 20; ++i ) {
+            double xC = SPOT_SIZE / 2 + rand.nextDouble() - .5;
+            double yC = SPOT_SIZE / 2 + rand.nextDouble() - .5;
+            ShortProcessor spot = GaussianWithDefocusFitNGTest.createSyntheticSpot( SPOT_SIZE, 2000, 200, xC, yC, 1.5, rand );
+            fit.clearMomentEstimate();
+            double[] summed = fit.dofit( spot, 1000 );
+            setTableMoments( fit, spot );
+            double[] looked = fit.dofit( spot, 1000 );
+            assertEquals( looked.length, summed.length );
+            for( int p = 0; p < summed.length; ++p ) {
+                assertEquals( looked[p], summed[p], 1e-6 * Math.max( 1, Math.abs( summed[p] ) ) );
+            }
+        }
+    }
+
+}
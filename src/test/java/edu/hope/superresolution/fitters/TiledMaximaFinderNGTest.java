@@ -0,0 +1,154 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.fitters;
+
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the parallel bands of TiledMaximaFinder reproduce FindLocalMaxima.FindMax exactly
+ *
+ * @author Justin Hanselman
+ */
+public class TiledMaximaFinderNGTest {
+
+    private static final int FRAME_WIDTH = 700;
+    private static final int FRAME_HEIGHT = 500;
+    private static final int NUM_SPOTS = 400;
+    //Bands to split the roi into, whatever the number of processors
+    private static final int NUM_BANDS = 4;
+
+    public TiledMaximaFinderNGTest() {
+    }
+
+    /**
+     * Creates a frame of spots on a noisy background, whose noise grows by gradedNoise 
+     * from the top left to the bottom right (so that bands of the frame differ in noise)
+     */
+    private static ShortProcessor createFrame( Random rand, int gradedNoise ) {
+        short[] pixels = new short[ FRAME_WIDTH * FRAME_HEIGHT ];
+        for( int i = 0; i < pixels.length; ++i ) {
+            int grade = gradedNoise * (i % FRAME_WIDTH + i / FRAME_WIDTH) / (FRAME_WIDTH + FRAME_HEIGHT);
+            pixels[i] = (short) (100 + rand.nextInt( 40 + grade ));
+        }
+        for( int s = 0; s < NUM_SPOTS; ++s ) {
+            double xC = rand.nextDouble() * FRAME_WIDTH;
+            double yC = rand.nextDouble() * FRAME_HEIGHT;
+            double amplitude = 200 + rand.nextDouble() * 3000;
+            for( int y = Math.max( 0, (int) yC - 6 ); y < Math.min( FRAME_HEIGHT, (int) yC + 7 ); ++y ) {
+                for( int x = Math.max( 0, (int) xC - 6 ); x < Math.min( FRAME_WIDTH, (int) xC + 7 ); ++x ) {
+                    double r2 = (x - xC) * (x - xC) + (y - yC) * (y - yC);
+                    int value = (pixels[ y * FRAME_WIDTH + x ] & 0xffff) + (int) (amplitude * Math.exp( -r2 / (2 * 1.6 * 1.6) ));
+                    pixels[ y * FRAME_WIDTH + x ] = (short) Math.min( 65535, value );
+                }
+            }
+        }
+        return new ShortProcessor( FRAME_WIDTH, FRAME_HEIGHT, pixels, null );
+    }
+
+    private static void assertSamePolygon( Polygon actual, Polygon expected ) {
+        assertEquals( actual.npoints, expected.npoints );
+        for( int i = 0; i < expected.npoints; ++i ) {
+            assertEquals( actual.xpoints[i], expected.xpoints[i] );
+            assertEquals( actual.ypoints[i], expected.ypoints[i] );
+        }
+    }
+
+    @Test
+    public void testMatchesSerialSearch() {
+        ShortProcessor iProc = createFrame( new Random( 31 ), 0 );
+        Rectangle[] rois = { new Rectangle( 0, 0, FRAME_WIDTH, FRAME_HEIGHT ), new Rectangle( 37, 11, 611, 473 ) };
+        for( Rectangle roi : rois ) {
+            iProc.setRoi( roi );
+            for( FindLocalMaxima.FilterType filterType : FindLocalMaxima.FilterType.values() ) {
+                for( FindLocalMaxima.DetectorType detectorType : FindLocalMaxima.DetectorType.values() ) {
+                    for( int n = 2; n <= 5; ++n ) {
+                        Polygon serial = FindLocalMaxima.FindMax( iProc, n, 0, 0, 150, filterType, detectorType );
+                        Polygon tiled = TiledMaximaFinder.findMax( iProc, roi, n, 0, 0, 150, filterType, detectorType, NUM_BANDS );
+                        assertTrue( serial.npoints > 0 );
+                        assertSamePolygon( tiled, serial );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesSerialSearchWithSnr() {
+        //The WAVELET noise of each band differs from that of the roi
+        ShortProcessor iProc = createFrame( new Random( 33 ), 400 );
+        Rectangle[] rois = { new Rectangle( 0, 0, FRAME_WIDTH, FRAME_HEIGHT ), new Rectangle( 37, 11, 611, 473 ) };
+        for( Rectangle roi : rois ) {
+            iProc.setRoi( roi );
+            for( FindLocalMaxima.FilterType filterType : FindLocalMaxima.FilterType.values() ) {
+                for( FindLocalMaxima.DetectorType detectorType : FindLocalMaxima.DetectorType.values() ) {
+                    for( int n = 2; n <= 5; ++n ) {
+                        Polygon serial = FindLocalMaxima.FindMax( iProc, n, 3, 10, 150, filterType, detectorType );
+                        Polygon tiled = TiledMaximaFinder.findMax( iProc, roi, n, 3, 10, 150, filterType, detectorType, NUM_BANDS );
+                        assertTrue( serial.npoints > 0 );
+                        assertSamePolygon( tiled, serial );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExplicitRoiLeavesProcessorRoi() {
+        ShortProcessor iProc = createFrame( new Random( 32 ), 0 );
+        Rectangle roi = new Rectangle( 37, 11, 611, 473 );
+        iProc.setRoi( roi );
+        Polygon expected = TiledMaximaFinder.findMax( iProc, 3, 0, 0, 150, FindLocalMaxima.FilterType.NONE,
+                                                      FindLocalMaxima.DetectorType.BLOCK );
+        //Another search of the same frame has since set the processor's Roi
+        Rectangle otherRoi = new Rectangle( 0, 0, 50, 50 );
+        iProc.setRoi( otherRoi );
+        Polygon actual = TiledMaximaFinder.findMax( iProc, roi, 3, 0, 0, 150, FindLocalMaxima.FilterType.NONE,
+                                                    FindLocalMaxima.DetectorType.BLOCK );
+        assertSamePolygon( actual, expected );
+        assertEquals( iProc.getRoi(), otherRoi );
+    }
+
+    @Test
+    public void testBandsCoverRoi() {
+        Rectangle roi = new Rectangle( 5, 7, 611, 473 );
+        for( int n = 1; n <= 6; ++n ) {
+            List<Rectangle> blockBands = TiledMaximaFinder.createBands( roi, n, FindLocalMaxima.DetectorType.BLOCK, 8 );
+            int x = roi.x;
+            for( int i = 0; i < blockBands.size(); ++i ) {
+                Rectangle band = blockBands.get(i);
+                assertEquals( band.x, x );
+                assertEquals( band.y, roi.y );
+                assertEquals( band.height, roi.height );
+                if( i < blockBands.size() - 1 ) {
+                    //Only the last band may split a block
+                    assertEquals( band.width % (2 * n + 1), 0 );
+                }
+                x += band.width;
+            }
+            assertEquals( x, roi.x + roi.width );
+
+            List<Rectangle> rowBands = TiledMaximaFinder.createBands( roi, n, FindLocalMaxima.DetectorType.RUNNING_MAX, 8 );
+            assertTrue( rowBands.size() <= 8 );
+            int y = roi.y;
+            for( Rectangle band : rowBands ) {
+                assertEquals( band.y, y );
+                assertEquals( band.width, roi.width );
+                y += band.height;
+            }
+            assertEquals( y, roi.y + roi.height );
+        }
+        //Small Rois are not split
+        assertEquals( TiledMaximaFinder.createBands( new Rectangle( 0, 0, 21, 21 ), 3,
+                                                     FindLocalMaxima.DetectorType.BLOCK, 8 ).size(), 1 );
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.hope.superresolution.models;
+
+import edu.hope.superresolution.MMgaussianfitmods.datasubs.BoundedSpotData;
+import ij.gui.Roi;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Tests when a frame searched ahead from an earlier model may be matched to the last model
+ *
+ * @author Justin Hanselman
+ */
+public class TrackingPipelineNGTest {
+
+    private static final int TRAVEL = 10;
+    private static final int SPOT_X = 50;
+    private static final int SPOT_Y = 60;
+    private static final double PIXEL_SIZE = 100;
+    //Fraction of a tracked spot's maximum intensity that the next search keeps (see FiducialArea)
+    private static final double TRACK_THRESHOLD_RATIO = .8;
+
+    public TrackingPipelineNGTest() {
+    }
+
+    //The Track Search Area of a spot, as FiducialArea sets it
+    private static Roi trackArea( double x, double y ) {
+        return new Roi( x - TRAVEL, y - TRAVEL, TRAVEL * 2, TRAVEL * 2 );
+    }
+
+    @Test
+    public void testSameSpotIsCovered() {
+        assertTrue( TrackingPipeline.coversTrackSearch( trackArea( SPOT_X, SPOT_Y ), trackArea( SPOT_X, SPOT_Y ) ) );
+    }
+
+    @Test
+    public void testSpotMovedWithinHalfTravelIsNotCovered() {
+        Roi searched = trackArea( SPOT_X, SPOT_Y );
+        //The last spot moved less than travel/2, but its next spot may travel further
+        double lastX = SPOT_X + TRAVEL * .4;
+        double nextX = lastX + TRAVEL * .9;
+        assertTrue( trackArea( lastX, SPOT_Y ).getBounds().contains( (int) nextX, SPOT_Y ) );
+        assertFalse( searched.getBounds().contains( (int) nextX, SPOT_Y ) );
+
+        assertFalse( TrackingPipeline.coversTrackSearch( searched, trackArea( lastX, SPOT_Y ) ) );
+        assertFalse( TrackingPipeline.coversTrackSearch( searched, trackArea( SPOT_X, SPOT_Y - TRAVEL * .4 ) ) );
+    }
+
+    @Test
+    public void testSpotMovedBeyondHalfTravelIsNotCovered() {
+        Roi searched = trackArea( SPOT_X, SPOT_Y );
+        assertFalse( TrackingPipeline.coversTrackSearch( searched, trackArea( SPOT_X + TRAVEL * .75, SPOT_Y ) ) );
+        assertFalse( TrackingPipeline.coversTrackSearch( searched, trackArea( SPOT_X - TRAVEL * .75, SPOT_Y + TRAVEL * .75 ) ) );
+    }
+
+    @Test
+    public void testLargerSearchCoversMovedSpot() {
+        //A search that extends by twice the travel covers a spot that moved by up to the travel
+        Roi searched = new Roi( SPOT_X - 2 * TRAVEL, SPOT_Y - 2 * TRAVEL, TRAVEL * 4, TRAVEL * 4 );
+        assertTrue( TrackingPipeline.coversTrackSearch( searched, trackArea( SPOT_X + TRAVEL, SPOT_Y - TRAVEL ) ) );
+    }
+
+    private static BoundedSpotData trackSpot( double maxIntensity ) {
+        BoundedSpotData spot = new BoundedSpotData( null, 1, 1, 1, 1, 1, SPOT_X, SPOT_Y, PIXEL_SIZE );
+        spot.setMaxIntensity( maxIntensity );
+        return spot;
+    }
+
+    @Test
+    public void testIntensityDropIsNotCovered() {
+        BoundedSpotData fromSpot = trackSpot( 1000 );
+        BoundedSpotData lastSpot = trackSpot( 700 );
+        //The next spot clears the threshold of the last spot, but not that of the spot searched from
+        double nextIntensity = 650;
+        assertTrue( nextIntensity >= TRACK_THRESHOLD_RATIO * lastSpot.getMaxIntensity() );
+        assertFalse( nextIntensity >= TRACK_THRESHOLD_RATIO * fromSpot.getMaxIntensity() );
+
+        assertFalse( TrackingPipeline.coversTrackThreshold( fromSpot, lastSpot ) );
+    }
+
+    @Test
+    public void testSameOrBrighterSpotIsCovered() {
+        assertTrue( TrackingPipeline.coversTrackThreshold( trackSpot( 1000 ), trackSpot( 1000 ) ) );
+        assertTrue( TrackingPipeline.coversTrackThreshold( trackSpot( 700 ), trackSpot( 1000 ) ) );
+    }
+
+    @Test
+    public void testMissingAreaIsNotCovered() {
+        assertFalse( TrackingPipeline.coversTrackSearch( null, trackArea( SPOT_X, SPOT_Y ) ) );
+        assertFalse( TrackingPipeline.coversTrackSearch( trackArea( SPOT_X, SPOT_Y ), null ) );
+    }
+}